@@ -30,8 +30,12 @@ package org.jf.baksmali.Adaptors;
 
 import org.jf.baksmali.BaksmaliOptions;
 import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcode;
 import org.jf.dexlib2.dexbacked.DexBackedClassDef;
 import org.jf.dexlib2.dexbacked.DexBackedDexFile.InvalidItemIndex;
+import org.jf.dexlib2.dexbacked.DexBackedMethodImplementation;
+import org.jf.dexlib2.dexbacked.instruction.InstructionCursor;
+import org.jf.dexlib2.dexbacked.reference.DexBackedFieldReference;
 import org.jf.dexlib2.iface.*;
 import org.jf.dexlib2.iface.instruction.Instruction;
 import org.jf.dexlib2.iface.instruction.formats.Instruction21c;
@@ -41,6 +45,7 @@ import org.jf.util.IndentingWriter;
 import org.jf.util.StringUtils;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.util.*;
 
@@ -68,30 +73,35 @@ public class ClassDefinition {
         for (Method method: classDef.getDirectMethods()) {
             if (method.getName().equals("<clinit>")) {
                 MethodImplementation impl = method.getImplementation();
-                if (impl != null) {
+                if (impl instanceof DexBackedMethodImplementation) {
+                    // Only the static puts are needed, so read them in place
+                    DexBackedMethodImplementation dexBackedImpl = (DexBackedMethodImplementation)impl;
+                    InstructionCursor cursor = dexBackedImpl.newInstructionCursor();
+                    while (cursor.next()) {
+                        if (isStaticPut(cursor.getOpcode())) {
+                            FieldReference fieldRef = null;
+                            try {
+                                fieldRef = new DexBackedFieldReference(dexBackedImpl.dexFile,
+                                        cursor.getReferenceIndex());
+                            } catch (InvalidItemIndex ex) {
+                                // just ignore it for now. We'll deal with it later, when processing the instructions
+                                // themselves
+                            }
+                            addFieldSetInStaticConstructor(classDef, fieldRef, fieldsSetInStaticConstructor);
+                        }
+                    }
+                } else if (impl != null) {
                     for (Instruction instruction: impl.getInstructions()) {
-                        switch (instruction.getOpcode()) {
-                            case SPUT:
-                            case SPUT_BOOLEAN:
-                            case SPUT_BYTE:
-                            case SPUT_CHAR:
-                            case SPUT_OBJECT:
-                            case SPUT_SHORT:
-                            case SPUT_WIDE: {
-                                Instruction21c ins = (Instruction21c)instruction;
-                                FieldReference fieldRef = null;
-                                try {
-                                    fieldRef = (FieldReference)ins.getReference();
-                                } catch (InvalidItemIndex ex) {
-                                    // just ignore it for now. We'll deal with it later, when processing the instructions
-                                    // themselves
-                                }
-                                if (fieldRef != null &&
-                                        fieldRef.getDefiningClass().equals((classDef.getType()))) {
-                                    fieldsSetInStaticConstructor.add(ReferenceUtil.getShortFieldDescriptor(fieldRef));
-                                }
-                                break;
+                        if (isStaticPut(instruction.getOpcode())) {
+                            Instruction21c ins = (Instruction21c)instruction;
+                            FieldReference fieldRef = null;
+                            try {
+                                fieldRef = (FieldReference)ins.getReference();
+                            } catch (InvalidItemIndex ex) {
+                                // just ignore it for now. We'll deal with it later, when processing the instructions
+                                // themselves
                             }
+                            addFieldSetInStaticConstructor(classDef, fieldRef, fieldsSetInStaticConstructor);
                         }
                     }
                 }
@@ -100,6 +110,29 @@ public class ClassDefinition {
         return fieldsSetInStaticConstructor;
     }
 
+    private static boolean isStaticPut(@Nonnull Opcode opcode) {
+        switch (opcode) {
+            case SPUT:
+            case SPUT_BOOLEAN:
+            case SPUT_BYTE:
+            case SPUT_CHAR:
+            case SPUT_OBJECT:
+            case SPUT_SHORT:
+            case SPUT_WIDE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static void addFieldSetInStaticConstructor(@Nonnull ClassDef classDef, @Nullable FieldReference fieldRef,
+                                                       @Nonnull HashSet<String> fieldsSetInStaticConstructor) {
+        if (fieldRef != null &&
+                fieldRef.getDefiningClass().equals((classDef.getType()))) {
+            fieldsSetInStaticConstructor.add(ReferenceUtil.getShortFieldDescriptor(fieldRef));
+        }
+    }
+
     public void writeTo(IndentingWriter writer) throws IOException {
         writeClass(writer);
         writeSuper(writer);
@@ -49,6 +49,8 @@ import org.jf.dexlib2.analysis.AnalysisException;
 import org.jf.dexlib2.analysis.AnalyzedInstruction;
 import org.jf.dexlib2.analysis.MethodAnalyzer;
 import org.jf.dexlib2.dexbacked.DexBackedDexFile.InvalidItemIndex;
+import org.jf.dexlib2.dexbacked.DexBackedMethodImplementation;
+import org.jf.dexlib2.dexbacked.instruction.InstructionCursor;
 import org.jf.dexlib2.iface.Annotation;
 import org.jf.dexlib2.iface.ExceptionHandler;
 import org.jf.dexlib2.iface.Method;
@@ -403,6 +405,15 @@ public class MethodDefinition {
     }
 
     private boolean needsAnalyzed() {
+        if (methodImpl instanceof DexBackedMethodImplementation) {
+            InstructionCursor cursor = ((DexBackedMethodImplementation)methodImpl).newInstructionCursor();
+            while (cursor.next()) {
+                if (cursor.getOpcode().odexOnly()) {
+                    return true;
+                }
+            }
+            return false;
+        }
         for (Instruction instruction: methodImpl.getInstructions()) {
             if (instruction.getOpcode().odexOnly()) {
                 return true;
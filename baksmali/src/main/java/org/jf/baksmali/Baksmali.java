@@ -31,17 +31,27 @@ package org.jf.baksmali;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Ordering;
 import org.jf.baksmali.Adaptors.ClassDefinition;
+import org.jf.dexlib2.dexbacked.DexBackedMethodImplementation;
 import org.jf.dexlib2.iface.ClassDef;
 import org.jf.dexlib2.iface.DexFile;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.iface.instruction.Instruction;
 import org.jf.util.ClassFileNameHandler;
 import org.jf.util.IndentingWriter;
+import org.jf.util.LargestFirstBatcher;
 
+import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.*;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 public class Baksmali {
     public static boolean disassembleDexFile(DexFile dexFile, File outputDir, int jobs, final BaksmaliOptions options) {
@@ -67,18 +77,34 @@ public class Baksmali {
             classSet = new HashSet<String>(classes);
         }
 
+        boolean errorOccurred = false;
+        final List<ClassDef> selectedClassDefs = Lists.newArrayList();
+        final List<File> smaliFiles = Lists.newArrayList();
         for (final ClassDef classDef: classDefs) {
             if (classSet != null && !classSet.contains(classDef.getType())) {
                 continue;
             }
+            if (!isValidClassDescriptor(classDef.getType())) {
+                errorOccurred = true;
+                continue;
+            }
+            // The file names are assigned in the sorted order, so they don't depend on the order of execution.
+            selectedClassDefs.add(classDef);
+            smaliFiles.add(fileNameHandler.getUniqueFilenameForClass(classDef.getType()));
+        }
+
+        for (final int[] batch: LargestFirstBatcher.batch(estimateSizes(selectedClassDefs), jobs)) {
             tasks.add(executor.submit(new Callable<Boolean>() {
                 @Override public Boolean call() throws Exception {
-                    return disassembleClass(classDef, fileNameHandler, options);
+                    boolean succeeded = true;
+                    for (int index: batch) {
+                        succeeded &= disassembleClass(selectedClassDefs.get(index), smaliFiles.get(index), options);
+                    }
+                    return succeeded;
                 }
             }));
         }
 
-        boolean errorOccurred = false;
         try {
             for (Future<Boolean> task: tasks) {
                 while(true) {
@@ -100,25 +126,201 @@ public class Baksmali {
         return !errorOccurred;
     }
 
-    private static boolean disassembleClass(ClassDef classDef, ClassFileNameHandler fileNameHandler,
-                                            BaksmaliOptions options) {
-        /**
-         * The path for the disassembly file is based on the package name
-         * The class descriptor will look something like:
-         * Ljava/lang/Object;
-         * Where the there is leading 'L' and a trailing ';', and the parts of the
-         * package name are separated by '/'
-         */
-        String classDescriptor = classDef.getType();
+    /**
+     * Disassembles the classes into a single zip archive instead of a file per class, which avoids creating
+     * many small files. The classes are disassembled in parallel, and the current thread writes the results
+     * to the archive in the sorted order of classes, so the archive is the same for the same input.
+     *
+     * The entry names are the same as the relative paths of the files when disassembling to a directory on a
+     * case-insensitive file system, so the archive can be extracted anywhere.
+     */
+    public static boolean disassembleDexFileToArchive(DexFile dexFile, File archiveFile, int jobs,
+                                                      final BaksmaliOptions options,
+                                                      @Nullable List<String> classes) {
+        List<? extends ClassDef> classDefs = Ordering.natural().sortedCopy(dexFile.getClasses());
+
+        final File root = new File(".");
+        final ClassFileNameHandler fileNameHandler = new ClassFileNameHandler(root, ".smali", false, true);
+        final int rootPathLength = root.getPath().length() + 1;
+
+        ExecutorService executor = Executors.newFixedThreadPool(jobs);
+        List<String> entryNames = Lists.newArrayList();
+        final List<ClassDef> selectedClassDefs = Lists.newArrayList();
+
+        Set<String> classSet = null;
+        if (classes != null) {
+            classSet = new HashSet<String>(classes);
+        }
+
+        boolean errorOccurred = false;
+        for (final ClassDef classDef: classDefs) {
+            if (classSet != null && !classSet.contains(classDef.getType())) {
+                continue;
+            }
+            if (!isValidClassDescriptor(classDef.getType())) {
+                errorOccurred = true;
+                continue;
+            }
+            String path = fileNameHandler.getUniqueFilenameForClass(classDef.getType()).getPath();
+            entryNames.add(path.substring(rootPathLength).replace(File.separatorChar, '/'));
+            selectedClassDefs.add(classDef);
+        }
+
+        final int classCount = selectedClassDefs.size();
+        final List<CompletableFuture<byte[]>> results = Lists.newArrayListWithCapacity(classCount);
+        for (int i=0; i<classCount; i++) {
+            results.add(new CompletableFuture<byte[]>());
+        }
+        // The entries are written in order, so the classes are disassembled in order and the workers can only run
+        // ahead of the writer by a window of classes, which bounds the content waiting to be written.
+        final Semaphore window = new Semaphore(jobs * ARCHIVE_WINDOW_PER_JOB);
+        final AtomicInteger nextIndex = new AtomicInteger();
+        for (int i=0; i<jobs; i++) {
+            executor.execute(new Runnable() {
+                @Override public void run() {
+                    while (true) {
+                        try {
+                            window.acquire();
+                        } catch (InterruptedException ex) {
+                            return;
+                        }
+                        int index = nextIndex.getAndIncrement();
+                        if (index >= classCount) {
+                            return;
+                        }
+                        try {
+                            results.get(index).complete(disassembleClass(selectedClassDefs.get(index), options));
+                        } catch (Throwable ex) {
+                            results.get(index).completeExceptionally(ex);
+                        }
+                    }
+                }
+            });
+        }
+
+        ZipOutputStream zipStream = null;
+        try {
+            zipStream = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(archiveFile)));
+            // The text is written by a single thread, so favor the speed over the size.
+            zipStream.setLevel(Deflater.BEST_SPEED);
+            for (int i=0; i<classCount; i++) {
+                byte[] content = getResult(results.get(i));
+                results.set(i, null);
+                window.release();
+                if (content == null) {
+                    errorOccurred = true;
+                    continue;
+                }
+                ZipEntry entry = new ZipEntry(entryNames.get(i));
+                // Use a fixed time, so the archive only depends on the content.
+                entry.setTime(ARCHIVE_ENTRY_TIME);
+                zipStream.putNextEntry(entry);
+                zipStream.write(content);
+                zipStream.closeEntry();
+            }
+        } catch (IOException ex) {
+            System.err.println("\n\nError occurred while writing archive " + archiveFile);
+            ex.printStackTrace();
+            errorOccurred = true;
+        } finally {
+            executor.shutdownNow();
+            if (zipStream != null) {
+                try {
+                    zipStream.close();
+                } catch (IOException ex) {
+                    System.err.println("\n\nError occurred while closing archive " + archiveFile);
+                    ex.printStackTrace();
+                    errorOccurred = true;
+                }
+            }
+        }
+        return !errorOccurred;
+    }
+
+    // The number of disassembled classes each thread may keep ahead of the archive writer.
+    private static final int ARCHIVE_WINDOW_PER_JOB = 32;
+
+    // 1980-01-01, the minimum time of zip entries.
+    private static final long ARCHIVE_ENTRY_TIME = 315532800000L;
 
+    @Nullable
+    private static <T> T getResult(Future<T> task) {
+        while (true) {
+            try {
+                return task.get();
+            } catch (InterruptedException ex) {
+                continue;
+            } catch (ExecutionException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+    }
+
+    /**
+     * @return The disassembled content of the class in UTF-8, or null if an error occurred
+     */
+    @Nullable
+    private static byte[] disassembleClass(@Nonnull ClassDef classDef, @Nonnull BaksmaliOptions options) {
+        ClassDefinition classDefinition = new ClassDefinition(options, classDef);
+        try {
+            ByteArrayOutputStream content = new ByteArrayOutputStream(8192);
+            IndentingWriter writer = new IndentingWriter(new OutputStreamWriter(content, "UTF8"));
+            classDefinition.writeTo(writer);
+            writer.close();
+            return content.toByteArray();
+        } catch (Exception ex) {
+            System.err.println("\n\nError occurred while disassembling class " +
+                    classDef.getType().replace('/', '.') + " - skipping class");
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * The path for the disassembly file is based on the package name
+     * The class descriptor will look something like:
+     * Ljava/lang/Object;
+     * Where the there is leading 'L' and a trailing ';', and the parts of the
+     * package name are separated by '/'
+     */
+    private static boolean isValidClassDescriptor(String classDescriptor) {
         //validate that the descriptor is formatted like we expect
         if (classDescriptor.charAt(0) != 'L' ||
                 classDescriptor.charAt(classDescriptor.length()-1) != ';') {
             System.err.println("Unrecognized class descriptor - " + classDescriptor + " - skipping class");
             return false;
         }
+        return true;
+    }
+
+    /**
+     * Estimates the time to disassemble each class by the size of its code, which is used to start the large
+     * classes first.
+     */
+    private static long[] estimateSizes(List<? extends ClassDef> classDefs) {
+        long[] sizes = new long[classDefs.size()];
+        for (int i=0; i<sizes.length; i++) {
+            ClassDef classDef = classDefs.get(i);
+            long size = 16;
+            for (Method method: classDef.getMethods()) {
+                size += 8;
+                MethodImplementation impl = method.getImplementation();
+                if (impl instanceof DexBackedMethodImplementation) {
+                    // Read the size from the code item without decoding the instructions.
+                    size += ((DexBackedMethodImplementation)impl).getInstructionsCount();
+                } else if (impl != null) {
+                    for (Instruction instruction: impl.getInstructions()) {
+                        size += instruction.getCodeUnits();
+                    }
+                }
+            }
+            sizes[i] = size;
+        }
+        return sizes;
+    }
 
-        File smaliFile = fileNameHandler.getUniqueFilenameForClass(classDescriptor);
+    private static boolean disassembleClass(ClassDef classDef, File smaliFile, BaksmaliOptions options) {
+        String classDescriptor = classDef.getType();
 
         //create and initialize the top level string template
         ClassDefinition classDefinition = new ClassDefinition(options, classDef);
@@ -0,0 +1,425 @@
+/*
+ * Copyright 2026, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.baksmali;
+
+import com.google.common.collect.Lists;
+import org.jf.dexlib2.ReferenceType;
+import org.jf.util.LargestFirstBatcher;
+import org.jf.util.Utf8Utils;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Searches the strings, types, fields and methods of the dex files in a corpus of apk, jar, zip and dex files.
+ *
+ * The files are memory mapped, and the dex entries of the zip files are located by reading the central directory.
+ * A stored entry is matched in place, a deflated entry is inflated into memory. The tables of each dex file are
+ * matched by {@link DexTableScanner}, without loading the dex file.
+ *
+ * Each match is written as a line of json, e.g.
+ * {"file":"app.apk","entry":"classes.dex","kind":"method","value":"La;->b()V"}
+ * The lines of a dex file are written together, but the files are scanned in parallel and may be written in any order.
+ */
+public class CorpusScanner {
+    public static final int EXACT = 0;
+    public static final int PREFIX = 1;
+    public static final int CONTAINS = 2;
+    public static final int REGEX = 3;
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+
+    public static class Query {
+        public final int referenceType;
+        public final int mode;
+        @Nonnull public final String pattern;
+        @Nonnull private final byte[] patternBytes;
+        @Nullable private final Pattern regex;
+        // The defining class that a field or method must have, if the pattern determines it
+        @Nullable private final String definingClass;
+
+        /**
+         * @param referenceType One of ReferenceType.STRING, TYPE, FIELD or METHOD
+         * @param mode One of EXACT, PREFIX, CONTAINS or REGEX
+         * @param pattern The text to match against the string, or the type, field or method descriptor
+         */
+        public Query(int referenceType, int mode, @Nonnull String pattern) {
+            this.referenceType = referenceType;
+            this.mode = mode;
+            this.pattern = pattern;
+            patternBytes = Utf8Utils.stringToUtf8Bytes(pattern);
+            regex = mode == REGEX ? Pattern.compile(pattern) : null;
+            int arrow = pattern.indexOf("->");
+            definingClass = (mode == EXACT || mode == PREFIX) && arrow >= 0 ? pattern.substring(0, arrow) : null;
+        }
+
+        boolean matches(@Nonnull String value) {
+            switch (mode) {
+                case EXACT:
+                    return value.equals(pattern);
+                case PREFIX:
+                    return value.startsWith(pattern);
+                case CONTAINS:
+                    return value.contains(pattern);
+                default:
+                    return regex.matcher(value).find();
+            }
+        }
+
+        /**
+         * Checks the MUTF-8 bytes of a string before it is decoded. This is exact for all modes except REGEX.
+         */
+        boolean bytesMightMatch(@Nonnull byte[] bytes, int length) {
+            switch (mode) {
+                case EXACT:
+                    return length == patternBytes.length && regionMatches(bytes, 0);
+                case PREFIX:
+                    return length >= patternBytes.length && regionMatches(bytes, 0);
+                case CONTAINS:
+                    for (int start=0; start<=length-patternBytes.length; start++) {
+                        if (regionMatches(bytes, start)) {
+                            return true;
+                        }
+                    }
+                    return false;
+                default:
+                    return true;
+            }
+        }
+
+        private boolean regionMatches(@Nonnull byte[] bytes, int start) {
+            for (int i=0; i<patternBytes.length; i++) {
+                if (bytes[start + i] != patternBytes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean classMightMatch(@Nonnull String type) {
+            return definingClass == null || definingClass.equals(type);
+        }
+    }
+
+    @Nonnull private final List<Query> queries;
+    @Nonnull private final Appendable out;
+    private final AtomicInteger matchCount = new AtomicInteger();
+
+    /**
+     * @param out Where to write the json lines. The writes are synchronized on it.
+     */
+    public CorpusScanner(@Nonnull List<Query> queries, @Nonnull Appendable out) {
+        this.queries = queries;
+        this.out = out;
+    }
+
+    /**
+     * @param inputs The files, directories or glob patterns, e.g. "corpus/**.apk", to scan. The apk, jar, zip and dex
+     *               files in a directory are scanned recursively.
+     * @param jobs The number of threads to use
+     * @return The number of matches
+     */
+    public int scan(@Nonnull List<String> inputs, int jobs) throws IOException {
+        final List<File> files = Lists.newArrayList();
+        for (String input: inputs) {
+            addInputFiles(input, files);
+        }
+
+        long[] sizes = new long[files.size()];
+        for (int i=0; i<sizes.length; i++) {
+            sizes[i] = files.get(i).length();
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(jobs);
+        try {
+            List<Future<?>> tasks = Lists.newArrayList();
+            for (final int[] batch: LargestFirstBatcher.batch(sizes, jobs)) {
+                tasks.add(executor.submit(() -> {
+                    for (int index: batch) {
+                        scanFile(files.get(index));
+                    }
+                }));
+            }
+            for (Future<?> task: tasks) {
+                while (true) {
+                    try {
+                        task.get();
+                    } catch (InterruptedException ex) {
+                        continue;
+                    } catch (ExecutionException ex) {
+                        throw new RuntimeException(ex.getCause());
+                    }
+                    break;
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        return matchCount.get();
+    }
+
+    static void addInputFiles(@Nonnull String input, @Nonnull List<File> files) throws IOException {
+        int wildcard = firstWildcard(input);
+        if (wildcard < 0) {
+            File file = new File(input);
+            if (!file.isDirectory()) {
+                files.add(file);
+                return;
+            }
+            try (Stream<Path> paths = Files.walk(file.toPath())) {
+                files.addAll(paths.filter(path -> Files.isRegularFile(path) && isCorpusFile(path))
+                        .sorted().map(Path::toFile).collect(Collectors.toList()));
+            }
+            return;
+        }
+
+        // Walk from the directory before the first wildcard
+        int separator = input.lastIndexOf(File.separatorChar, wildcard);
+        Path base = separator < 0 ? Paths.get(".") : Paths.get(separator == 0 ? File.separator :
+                input.substring(0, separator));
+        final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + input);
+        if (!Files.isDirectory(base)) {
+            return;
+        }
+        final boolean relative = separator < 0;
+        try (Stream<Path> paths = Files.walk(base)) {
+            files.addAll(paths.filter(path -> Files.isRegularFile(path) &&
+                    matcher.matches(relative ? base.relativize(path) : path))
+                    .sorted().map(Path::toFile).collect(Collectors.toList()));
+        }
+    }
+
+    private static int firstWildcard(@Nonnull String input) {
+        for (int i=0; i<input.length(); i++) {
+            switch (input.charAt(i)) {
+                case '*':
+                case '?':
+                case '[':
+                case '{':
+                    return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isCorpusFile(@Nonnull Path path) {
+        String name = path.getFileName().toString().toLowerCase();
+        return name.endsWith(".apk") || name.endsWith(".jar") || name.endsWith(".zip") || name.endsWith(".dex");
+    }
+
+    private void scanFile(@Nonnull File file) {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            FileChannel channel = randomAccessFile.getChannel();
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            if (buf.limit() >= 4 && buf.getInt(0) == LOCAL_HEADER_SIGNATURE) {
+                scanZip(file, buf);
+            } else if (!scanDex(file, null, buf)) {
+                System.err.println(file + " is not a dex or zip file");
+            }
+        } catch (IOException | RuntimeException ex) {
+            System.err.println("Unable to scan " + file + ": " + ex);
+        }
+    }
+
+    private void scanZip(@Nonnull File file, @Nonnull ByteBuffer buf) throws IOException {
+        int endOfCentralDirectory = -1;
+        for (int offset = buf.limit() - END_OF_CENTRAL_DIRECTORY_SIZE;
+             offset >= Math.max(0, buf.limit() - END_OF_CENTRAL_DIRECTORY_SIZE - 0xffff); offset--) {
+            if (buf.getInt(offset) == END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+                endOfCentralDirectory = offset;
+                break;
+            }
+        }
+        if (endOfCentralDirectory < 0) {
+            throw new IOException("Can't find the central directory");
+        }
+
+        int entryCount = buf.getShort(endOfCentralDirectory + 10) & 0xffff;
+        int offset = buf.getInt(endOfCentralDirectory + 16);
+        if (entryCount == 0xffff || offset == -1) {
+            throw new IOException("Zip64 isn't supported");
+        }
+        for (int i=0; i<entryCount; i++) {
+            if (buf.getInt(offset) != CENTRAL_HEADER_SIGNATURE) {
+                throw new IOException("Invalid central directory entry at " + offset);
+            }
+            int method = buf.getShort(offset + 10) & 0xffff;
+            int compressedSize = buf.getInt(offset + 20);
+            int size = buf.getInt(offset + 24);
+            int nameLength = buf.getShort(offset + 28) & 0xffff;
+            int extraLength = buf.getShort(offset + 30) & 0xffff;
+            int commentLength = buf.getShort(offset + 32) & 0xffff;
+            int localHeaderOffset = buf.getInt(offset + 42);
+            byte[] nameBytes = new byte[nameLength];
+            for (int j=0; j<nameLength; j++) {
+                nameBytes[j] = buf.get(offset + CENTRAL_HEADER_SIZE + j);
+            }
+            String name = new String(nameBytes, StandardCharsets.UTF_8);
+            offset += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+
+            if (!name.endsWith(".dex")) {
+                continue;
+            }
+            int dataOffset = localHeaderOffset + LOCAL_HEADER_SIZE +
+                    (buf.getShort(localHeaderOffset + 26) & 0xffff) + (buf.getShort(localHeaderOffset + 28) & 0xffff);
+            ByteBuffer data = buf.duplicate();
+            data.position(dataOffset);
+            data.limit(dataOffset + compressedSize);
+            if (method == METHOD_DEFLATED) {
+                data = inflate(data.slice(), size);
+            } else if (method != METHOD_STORED) {
+                System.err.println(String.format("Unsupported compression method %d of %s in %s", method, name,
+                        file));
+                continue;
+            }
+            if (!scanDex(file, name, data)) {
+                System.err.println(String.format("%s in %s is not a dex file", name, file));
+            }
+        }
+    }
+
+    @Nonnull
+    private static ByteBuffer inflate(@Nonnull ByteBuffer compressed, int size) throws IOException {
+        byte[] input = new byte[compressed.remaining()];
+        compressed.get(input);
+        byte[] output = new byte[size];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(input);
+            int length = 0;
+            while (length < size && !inflater.finished()) {
+                int inflated = inflater.inflate(output, length, size - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += inflated;
+            }
+            if (length != size) {
+                throw new IOException("Truncated deflated entry");
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException(ex);
+        } finally {
+            inflater.end();
+        }
+        return ByteBuffer.wrap(output);
+    }
+
+    private boolean scanDex(@Nonnull final File file, @Nullable final String entry, @Nonnull ByteBuffer buf)
+            throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        final int[] count = new int[1];
+        boolean isDex = DexTableScanner.scan(buf, queries, (referenceType, value) -> {
+            sb.append("{\"file\":");
+            appendJsonString(sb, file.getPath());
+            if (entry != null) {
+                sb.append(",\"entry\":");
+                appendJsonString(sb, entry);
+            }
+            sb.append(",\"kind\":\"").append(ReferenceType.toString(referenceType)).append("\",\"value\":");
+            appendJsonString(sb, value);
+            sb.append("}\n");
+            count[0]++;
+        });
+        if (count[0] > 0) {
+            matchCount.addAndGet(count[0]);
+            synchronized (out) {
+                out.append(sb);
+            }
+        }
+        return isDex;
+    }
+
+    static void appendJsonString(@Nonnull StringBuilder sb, @Nonnull String value) {
+        sb.append('"');
+        for (int i=0; i<value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || Character.isSurrogate(c)) {
+                        // Unpaired surrogates are possible in dex strings, and can't be encoded as UTF-8
+                        sb.append(String.format("\\u%04x", (int)c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2026, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.baksmali;
+
+import org.jf.dexlib2.ReferenceType;
+import org.jf.dexlib2.dexbacked.raw.HeaderItem;
+import org.jf.util.Utf8Utils;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+/**
+ * Matches the queries of a {@link CorpusScanner} against the string_ids, type_ids, field_ids and method_ids tables of
+ * a dex file in a ByteBuffer, e.g. a memory mapped entry of an apk, without loading the dex file. The strings are
+ * only decoded when their bytes could match.
+ */
+class DexTableScanner {
+    interface MatchHandler {
+        void handleMatch(int referenceType, @Nonnull String value);
+    }
+
+    private static final int STRING_ID_ITEM_SIZE = 4;
+    private static final int TYPE_ID_ITEM_SIZE = 4;
+    private static final int PROTO_ID_ITEM_SIZE = 12;
+    private static final int FIELD_ID_ITEM_SIZE = 8;
+    private static final int METHOD_ID_ITEM_SIZE = 8;
+
+    @Nonnull private final ByteBuffer buf;
+    private final int stringCount;
+    private final int stringIdsOffset;
+    private final int typeCount;
+    private final int typeIdsOffset;
+    private final int protoIdsOffset;
+    private final int fieldCount;
+    private final int fieldIdsOffset;
+    private final int methodCount;
+    private final int methodIdsOffset;
+
+    @Nonnull private final String[] strings;
+    @Nullable private String[] protos;
+    @Nonnull private byte[] scratch = new byte[256];
+    private int scratchLength;
+
+    private DexTableScanner(@Nonnull ByteBuffer buf) {
+        this.buf = buf;
+        stringCount = buf.getInt(HeaderItem.STRING_COUNT_OFFSET);
+        stringIdsOffset = buf.getInt(HeaderItem.STRING_START_OFFSET);
+        typeCount = buf.getInt(HeaderItem.TYPE_COUNT_OFFSET);
+        typeIdsOffset = buf.getInt(HeaderItem.TYPE_START_OFFSET);
+        protoIdsOffset = buf.getInt(HeaderItem.PROTO_START_OFFSET);
+        fieldCount = buf.getInt(HeaderItem.FIELD_COUNT_OFFSET);
+        fieldIdsOffset = buf.getInt(HeaderItem.FIELD_START_OFFSET);
+        methodCount = buf.getInt(HeaderItem.METHOD_COUNT_OFFSET);
+        methodIdsOffset = buf.getInt(HeaderItem.METHOD_START_OFFSET);
+        strings = new String[stringCount];
+    }
+
+    /**
+     * @return false if the buffer isn't a dex file
+     */
+    static boolean scan(@Nonnull ByteBuffer buf, @Nonnull List<CorpusScanner.Query> queries,
+                        @Nonnull MatchHandler handler) {
+        buf = buf.slice().order(ByteOrder.LITTLE_ENDIAN);
+        if (buf.limit() < HeaderItem.ITEM_SIZE || buf.get(0) != 'd' || buf.get(1) != 'e' || buf.get(2) != 'x' ||
+                buf.get(3) != '\n') {
+            return false;
+        }
+        DexTableScanner scanner = new DexTableScanner(buf);
+        for (CorpusScanner.Query query: queries) {
+            switch (query.referenceType) {
+                case ReferenceType.STRING:
+                    scanner.scanStrings(query, handler);
+                    break;
+                case ReferenceType.TYPE:
+                    scanner.scanTypes(query, handler);
+                    break;
+                case ReferenceType.FIELD:
+                    scanner.scanFields(query, handler);
+                    break;
+                case ReferenceType.METHOD:
+                    scanner.scanMethods(query, handler);
+                    break;
+            }
+        }
+        return true;
+    }
+
+    private void scanStrings(@Nonnull CorpusScanner.Query query, @Nonnull MatchHandler handler) {
+        for (int i=0; i<stringCount; i++) {
+            if (stringMightMatch(i, query)) {
+                String string = getString(i);
+                if (query.matches(string)) {
+                    handler.handleMatch(ReferenceType.STRING, string);
+                }
+            }
+        }
+    }
+
+    private void scanTypes(@Nonnull CorpusScanner.Query query, @Nonnull MatchHandler handler) {
+        for (int i=0; i<typeCount; i++) {
+            int stringIndex = buf.getInt(typeIdsOffset + i * TYPE_ID_ITEM_SIZE);
+            if (stringMightMatch(stringIndex, query)) {
+                String type = getString(stringIndex);
+                if (query.matches(type)) {
+                    handler.handleMatch(ReferenceType.TYPE, type);
+                }
+            }
+        }
+    }
+
+    private void scanFields(@Nonnull CorpusScanner.Query query, @Nonnull MatchHandler handler) {
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i<fieldCount; i++) {
+            int fieldIdOffset = fieldIdsOffset + i * FIELD_ID_ITEM_SIZE;
+            String definingClass = getType(buf.getShort(fieldIdOffset) & 0xffff);
+            if (!query.classMightMatch(definingClass)) {
+                continue;
+            }
+            sb.setLength(0);
+            sb.append(definingClass).append("->").append(getString(buf.getInt(fieldIdOffset + 4))).append(':')
+                    .append(getType(buf.getShort(fieldIdOffset + 2) & 0xffff));
+            String field = sb.toString();
+            if (query.matches(field)) {
+                handler.handleMatch(ReferenceType.FIELD, field);
+            }
+        }
+    }
+
+    private void scanMethods(@Nonnull CorpusScanner.Query query, @Nonnull MatchHandler handler) {
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i<methodCount; i++) {
+            int methodIdOffset = methodIdsOffset + i * METHOD_ID_ITEM_SIZE;
+            String definingClass = getType(buf.getShort(methodIdOffset) & 0xffff);
+            if (!query.classMightMatch(definingClass)) {
+                continue;
+            }
+            sb.setLength(0);
+            sb.append(definingClass).append("->").append(getString(buf.getInt(methodIdOffset + 4)))
+                    .append(getProto(buf.getShort(methodIdOffset + 2) & 0xffff));
+            String method = sb.toString();
+            if (query.matches(method)) {
+                handler.handleMatch(ReferenceType.METHOD, method);
+            }
+        }
+    }
+
+    /**
+     * Reads the MUTF-8 bytes of a string into the scratch buffer.
+     */
+    private void readStringBytes(int stringIndex) {
+        int offset = buf.getInt(stringIdsOffset + stringIndex * STRING_ID_ITEM_SIZE);
+        // Skip the uleb128 utf16 length
+        while ((buf.get(offset++) & 0x80) != 0) {
+        }
+        int length = 0;
+        byte b;
+        while ((b = buf.get(offset + length)) != 0) {
+            if (length == scratch.length) {
+                byte[] newScratch = new byte[scratch.length * 2];
+                System.arraycopy(scratch, 0, newScratch, 0, length);
+                scratch = newScratch;
+            }
+            scratch[length++] = b;
+        }
+        scratchLength = length;
+    }
+
+    private boolean stringMightMatch(int stringIndex, @Nonnull CorpusScanner.Query query) {
+        if (strings[stringIndex] != null) {
+            return true;
+        }
+        readStringBytes(stringIndex);
+        return query.bytesMightMatch(scratch, scratchLength);
+    }
+
+    @Nonnull
+    private String getString(int stringIndex) {
+        String string = strings[stringIndex];
+        if (string == null) {
+            readStringBytes(stringIndex);
+            string = Utf8Utils.utf8BytesToString(scratch, 0, scratchLength);
+            strings[stringIndex] = string;
+        }
+        return string;
+    }
+
+    @Nonnull
+    private String getType(int typeIndex) {
+        return getString(buf.getInt(typeIdsOffset + typeIndex * TYPE_ID_ITEM_SIZE));
+    }
+
+    @Nonnull
+    private String getProto(int protoIndex) {
+        if (protos == null) {
+            protos = new String[buf.getInt(HeaderItem.PROTO_COUNT_OFFSET)];
+        }
+        String proto = protos[protoIndex];
+        if (proto == null) {
+            int protoIdOffset = protoIdsOffset + protoIndex * PROTO_ID_ITEM_SIZE;
+            StringBuilder sb = new StringBuilder();
+            sb.append('(');
+            int parametersOffset = buf.getInt(protoIdOffset + 8);
+            if (parametersOffset != 0) {
+                int size = buf.getInt(parametersOffset);
+                for (int i=0; i<size; i++) {
+                    sb.append(getType(buf.getShort(parametersOffset + 4 + i * 2) & 0xffff));
+                }
+            }
+            sb.append(')').append(getType(buf.getInt(protoIdOffset + 4)));
+            proto = sb.toString();
+            protos[protoIndex] = proto;
+        }
+        return proto;
+    }
+}
@@ -106,7 +106,8 @@ public class DisassembleCommand extends DexInputCommand {
     private boolean normalizeVirtualMethods = false;
 
     @Parameter(names = {"-o", "--output"},
-            description = "The directory to write the disassembled files to.")
+            description = "The directory to write the disassembled files to. If it ends with .zip, the files are " +
+                    "written into a single zip archive instead, which smali can assemble from directly.")
     @ExtendedParameter(argumentNames = "dir")
     private String outputDir = "out";
 
@@ -169,6 +170,10 @@ public class DisassembleCommand extends DexInputCommand {
         }
 
         File outputDirectoryFile = new File(outputDir);
+        boolean toArchive = outputDir.toLowerCase().endsWith(".zip");
+        if (toArchive) {
+            outputDirectoryFile = outputDirectoryFile.getAbsoluteFile().getParentFile();
+        }
         if (!outputDirectoryFile.exists()) {
             if (!outputDirectoryFile.mkdirs()) {
                 System.err.println("Can't create the output directory " + outputDir);
@@ -180,7 +185,11 @@ public class DisassembleCommand extends DexInputCommand {
             analysisArguments.classPathDirectories = Lists.newArrayList(inputFile.getAbsoluteFile().getParent());
         }
 
-        if (!Baksmali.disassembleDexFile(dexFile, outputDirectoryFile, jobs, getOptions(), classes)) {
+        if (toArchive) {
+            if (!Baksmali.disassembleDexFileToArchive(dexFile, new File(outputDir), jobs, getOptions(), classes)) {
+                System.exit(-1);
+            }
+        } else if (!Baksmali.disassembleDexFile(dexFile, outputDirectoryFile, jobs, getOptions(), classes)) {
             System.exit(-1);
         }
     }
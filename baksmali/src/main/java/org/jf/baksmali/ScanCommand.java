@@ -0,0 +1,160 @@
+/*
+ * Copyright 2026, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.baksmali;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+import com.beust.jcommander.validators.PositiveInteger;
+import com.google.common.collect.Lists;
+import org.jf.dexlib2.ReferenceType;
+import org.jf.util.jcommander.Command;
+import org.jf.util.jcommander.ExtendedParameter;
+import org.jf.util.jcommander.ExtendedParameters;
+
+import javax.annotation.Nonnull;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+@Parameters(commandDescription = "Searches the strings, types, fields and methods of the dex files in a set of " +
+        "apk/jar/zip/dex files, and prints the matches as lines of json.")
+@ExtendedParameters(
+        commandName = "scan",
+        commandAliases = "sc")
+public class ScanCommand extends Command {
+
+    @Parameter(names = {"-h", "-?", "--help"}, help = true,
+            description = "Show usage information")
+    private boolean help;
+
+    @Parameter(names = {"-s", "--string"},
+            description = "A string to search for. This option can be given multiple times.")
+    @ExtendedParameter(argumentNames = "string")
+    private List<String> strings = Lists.newArrayList();
+
+    @Parameter(names = {"-t", "--type"},
+            description = "A type descriptor to search for, e.g. \"Landroid/app/Activity;\". This option can be " +
+                    "given multiple times.")
+    @ExtendedParameter(argumentNames = "type")
+    private List<String> types = Lists.newArrayList();
+
+    @Parameter(names = {"-f", "--field"},
+            description = "A field descriptor to search for, e.g. \"La;->b:I\". This option can be given multiple " +
+                    "times.")
+    @ExtendedParameter(argumentNames = "field")
+    private List<String> fields = Lists.newArrayList();
+
+    @Parameter(names = {"-m", "--method"},
+            description = "A method descriptor to search for, e.g. \"La;->b()V\". This option can be given " +
+                    "multiple times.")
+    @ExtendedParameter(argumentNames = "method")
+    private List<String> methods = Lists.newArrayList();
+
+    @Parameter(names = "--match",
+            description = "How to match the given strings and descriptors. One of exact, prefix, contains or " +
+                    "regex.")
+    @ExtendedParameter(argumentNames = "mode")
+    private String match = "contains";
+
+    @Parameter(names = {"-j", "--jobs"},
+            description = "The number of threads to use. Defaults to the number of cores available.",
+            validateWith = PositiveInteger.class)
+    @ExtendedParameter(argumentNames = "n")
+    private int jobs = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(description = "The apk/jar/zip/dex files to scan. The files in a directory are scanned recursively. " +
+            "A glob pattern, e.g. \"corpus/**.apk\", can be given instead of a file.")
+    @ExtendedParameter(argumentNames = "file")
+    private List<String> inputList = Lists.newArrayList();
+
+    public ScanCommand(@Nonnull List<JCommander> commandAncestors) {
+        super(commandAncestors);
+    }
+
+    @Override public void run() {
+        if (help || inputList == null || inputList.isEmpty()) {
+            usage();
+            return;
+        }
+
+        int mode;
+        switch (match) {
+            case "exact":
+                mode = CorpusScanner.EXACT;
+                break;
+            case "prefix":
+                mode = CorpusScanner.PREFIX;
+                break;
+            case "contains":
+                mode = CorpusScanner.CONTAINS;
+                break;
+            case "regex":
+                mode = CorpusScanner.REGEX;
+                break;
+            default:
+                System.err.println("Invalid match mode: " + match);
+                usage();
+                return;
+        }
+
+        List<CorpusScanner.Query> queries = Lists.newArrayList();
+        addQueries(queries, ReferenceType.STRING, mode, strings);
+        addQueries(queries, ReferenceType.TYPE, mode, types);
+        addQueries(queries, ReferenceType.FIELD, mode, fields);
+        addQueries(queries, ReferenceType.METHOD, mode, methods);
+        if (queries.isEmpty()) {
+            System.err.println("Nothing to search for. Use -s, -t, -f or -m.");
+            usage();
+            return;
+        }
+
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        try {
+            new CorpusScanner(queries, out).scan(inputList, jobs);
+            out.flush();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static void addQueries(@Nonnull List<CorpusScanner.Query> queries, int referenceType, int mode,
+                                   @Nonnull List<String> patterns) {
+        for (String pattern: patterns) {
+            queries.add(new CorpusScanner.Query(referenceType, mode, pattern));
+        }
+    }
+}
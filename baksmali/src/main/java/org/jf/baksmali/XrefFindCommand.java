@@ -0,0 +1,116 @@
+/*
+ * Copyright 2026, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.baksmali;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+import com.google.common.collect.Lists;
+import org.jf.dexlib2.ReferenceType;
+import org.jf.util.jcommander.Command;
+import org.jf.util.jcommander.ExtendedParameter;
+import org.jf.util.jcommander.ExtendedParameters;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+@Parameters(commandDescription = "Finds the code that references a method, field, type or string in an index " +
+        "built by \"xref build\".")
+@ExtendedParameters(
+        commandName = "find",
+        commandAliases = "f")
+public class XrefFindCommand extends Command {
+
+    @Parameter(names = {"-h", "-?", "--help"}, help = true,
+            description = "Show usage information")
+    private boolean help;
+
+    @Parameter(names = {"-s", "--string"},
+            description = "Find the references to a string literal instead of a method, field or type.")
+    private boolean string = false;
+
+    @Parameter(names = {"-p", "--prefix"},
+            description = "Find the references to anything that starts with the given reference, e.g. " +
+                    "\"Landroid/app/Activity;->\" for all the methods of a class.")
+    private boolean prefix = false;
+
+    @Parameter(description = "The index file, followed by a method or field descriptor in the same format as " +
+            "smali, e.g. \"Ljava/lang/Object;->toString()Ljava/lang/String;\", a type descriptor, or a string.")
+    @ExtendedParameter(argumentNames = {"index", "reference"})
+    private List<String> inputList = Lists.newArrayList();
+
+    public XrefFindCommand(@Nonnull List<JCommander> commandAncestors) {
+        super(commandAncestors);
+    }
+
+    @Override public void run() {
+        if (help || inputList == null || inputList.size() != 2) {
+            usage();
+            return;
+        }
+
+        String reference = inputList.get(1);
+        int referenceType;
+        if (string) {
+            referenceType = ReferenceType.STRING;
+        } else if (prefix) {
+            referenceType = reference.contains("->") ? ReferenceType.METHOD : ReferenceType.TYPE;
+        } else {
+            referenceType = XrefIndex.guessReferenceType(reference);
+        }
+
+        try (XrefIndex index = XrefIndex.open(new File(inputList.get(0)))) {
+            List<XrefIndex.Xref> xrefs;
+            if (prefix) {
+                xrefs = index.findPrefix(referenceType, reference);
+                if (referenceType == ReferenceType.METHOD) {
+                    // A class prefix can match both methods and fields
+                    xrefs.addAll(index.findPrefix(ReferenceType.FIELD, reference));
+                }
+            } else {
+                xrefs = index.find(referenceType, reference);
+            }
+            for (XrefIndex.Xref xref: xrefs) {
+                if (prefix) {
+                    System.out.println(xref.reference + " " + xref);
+                } else {
+                    System.out.println(xref);
+                }
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2026, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.baksmali;
+
+import com.google.common.collect.Lists;
+import org.jf.dexlib2.ReferenceType;
+
+import javax.annotation.Nonnull;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * A cross-reference index of the string, type, field and method references in the code of a set of dex files, as
+ * written by {@link XrefIndexBuilder}. The index file is memory mapped, and a query only reads the parts of the file
+ * it needs.
+ *
+ * The index has a segment for each input file. A segment has a bloom filter of its keys, a table of the keys sorted
+ * by reference type and then by their UTF-8 bytes, a table of the referencing methods, and the postings of the keys.
+ * All the numbers are little-endian ints, and all the offsets are from the start of the file:
+ *
+ * header:    magic, version, segment count, segment table offset
+ * segment:   name offset, bloom offset, bloom size in longs, key table offset, key count, method table offset,
+ *            method count, postings offset
+ * key:       reference type, name offset, first posting, posting count
+ * method:    name offset
+ * posting:   method index, code address
+ * string:    length in bytes, UTF-8 bytes
+ */
+public class XrefIndex implements Closeable {
+    static final int MAGIC = 0x66657278; // "xref"
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 16;
+    static final int SEGMENT_SIZE = 32;
+    static final int KEY_SIZE = 16;
+    static final int METHOD_SIZE = 4;
+    static final int POSTING_SIZE = 8;
+
+    static final int BLOOM_BITS_PER_KEY = 10;
+    static final int BLOOM_HASH_COUNT = 6;
+
+    @Nonnull private final RandomAccessFile file;
+    @Nonnull private final MappedByteBuffer buffer;
+    private final int segmentCount;
+    private final int segmentTableOffset;
+
+    public static class Xref {
+        /** The name of the input file that contains the referencing method */
+        @Nonnull public final String file;
+        /** The referenced string, type, field or method */
+        @Nonnull public final String reference;
+        @Nonnull public final String method;
+        public final int codeAddress;
+
+        public Xref(@Nonnull String file, @Nonnull String reference, @Nonnull String method, int codeAddress) {
+            this.file = file;
+            this.reference = reference;
+            this.method = method;
+            this.codeAddress = codeAddress;
+        }
+
+        @Override public String toString() {
+            return String.format("%s %s @0x%x", file, method, codeAddress);
+        }
+    }
+
+    private XrefIndex(@Nonnull RandomAccessFile file) throws IOException {
+        this.file = file;
+        buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not an xref index");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported xref index version: " + buffer.getInt(4));
+        }
+        segmentCount = buffer.getInt(8);
+        segmentTableOffset = buffer.getInt(12);
+    }
+
+    @Nonnull
+    public static XrefIndex open(@Nonnull File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            return new XrefIndex(randomAccessFile);
+        } catch (IOException ex) {
+            randomAccessFile.close();
+            throw ex;
+        }
+    }
+
+    @Override public void close() throws IOException {
+        file.close();
+    }
+
+    public int getSegmentCount() {
+        return segmentCount;
+    }
+
+    @Nonnull
+    public String getSegmentName(int segment) {
+        return readString(buffer.getInt(segmentTableOffset + segment * SEGMENT_SIZE));
+    }
+
+    /**
+     * Finds the code that references exactly the given reference.
+     *
+     * @param referenceType One of ReferenceType.STRING, TYPE, FIELD or METHOD
+     * @param reference The string, or the type, field or method descriptor of the reference
+     */
+    @Nonnull
+    public List<Xref> find(int referenceType, @Nonnull String reference) {
+        byte[] key = reference.getBytes(StandardCharsets.UTF_8);
+        long hash = hash(referenceType, key);
+        List<Xref> result = Lists.newArrayList();
+        for (int segment=0; segment<segmentCount; segment++) {
+            int segmentOffset = segmentTableOffset + segment * SEGMENT_SIZE;
+            if (!mightContain(segmentOffset, hash)) {
+                continue;
+            }
+            int keyIndex = lowerBound(segmentOffset, referenceType, key);
+            if (keyIndex < buffer.getInt(segmentOffset + 16) &&
+                    compareKey(segmentOffset, keyIndex, referenceType, key, false) == 0) {
+                addPostings(result, segmentOffset, keyIndex, reference);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Finds the code that references anything that starts with the given prefix, e.g. all methods of a class. The
+     * bloom filters can't prune the segments for a prefix, so this is slower than {@link #find(int, String)}.
+     */
+    @Nonnull
+    public List<Xref> findPrefix(int referenceType, @Nonnull String prefix) {
+        byte[] key = prefix.getBytes(StandardCharsets.UTF_8);
+        List<Xref> result = Lists.newArrayList();
+        for (int segment=0; segment<segmentCount; segment++) {
+            int segmentOffset = segmentTableOffset + segment * SEGMENT_SIZE;
+            int keyCount = buffer.getInt(segmentOffset + 16);
+            for (int keyIndex = lowerBound(segmentOffset, referenceType, key);
+                 keyIndex < keyCount && compareKey(segmentOffset, keyIndex, referenceType, key, true) == 0;
+                 keyIndex++) {
+                addPostings(result, segmentOffset, keyIndex, null);
+            }
+        }
+        return result;
+    }
+
+    private void addPostings(@Nonnull List<Xref> result, int segmentOffset, int keyIndex, String reference) {
+        String fileName = readString(buffer.getInt(segmentOffset));
+        int keyOffset = buffer.getInt(segmentOffset + 12) + keyIndex * KEY_SIZE;
+        if (reference == null) {
+            reference = readString(buffer.getInt(keyOffset + 4));
+        }
+        int methodTableOffset = buffer.getInt(segmentOffset + 20);
+        int postingOffset = buffer.getInt(segmentOffset + 28) + buffer.getInt(keyOffset + 8) * POSTING_SIZE;
+        int postingCount = buffer.getInt(keyOffset + 12);
+        for (int i=0; i<postingCount; i++, postingOffset += POSTING_SIZE) {
+            int methodIndex = buffer.getInt(postingOffset);
+            String method = readString(buffer.getInt(methodTableOffset + methodIndex * METHOD_SIZE));
+            result.add(new Xref(fileName, reference, method, buffer.getInt(postingOffset + 4)));
+        }
+    }
+
+    private boolean mightContain(int segmentOffset, long hash) {
+        int bloomOffset = buffer.getInt(segmentOffset + 4);
+        long bitCount = (long)buffer.getInt(segmentOffset + 8) * 64;
+        int hash1 = (int)hash;
+        int hash2 = (int)(hash >>> 32);
+        for (int i=0; i<BLOOM_HASH_COUNT; i++) {
+            long bit = bloomBit(hash1, hash2, i, bitCount);
+            if ((buffer.getLong(bloomOffset + (int)(bit >>> 6) * 8) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The index of the first key of the segment that isn't less than the given key
+     */
+    private int lowerBound(int segmentOffset, int referenceType, @Nonnull byte[] key) {
+        int low = 0;
+        int high = buffer.getInt(segmentOffset + 16);
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareKey(segmentOffset, mid, referenceType, key, false) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int compareKey(int segmentOffset, int keyIndex, int referenceType, @Nonnull byte[] key,
+                           boolean prefixOnly) {
+        int keyOffset = buffer.getInt(segmentOffset + 12) + keyIndex * KEY_SIZE;
+        int type = buffer.getInt(keyOffset);
+        if (type != referenceType) {
+            return type < referenceType ? -1 : 1;
+        }
+        int nameOffset = buffer.getInt(keyOffset + 4);
+        int length = buffer.getInt(nameOffset);
+        int commonLength = Math.min(length, key.length);
+        for (int i=0; i<commonLength; i++) {
+            int diff = (buffer.get(nameOffset + 4 + i) & 0xff) - (key[i] & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        if (prefixOnly && length >= key.length) {
+            return 0;
+        }
+        return length - key.length;
+    }
+
+    @Nonnull
+    private String readString(int offset) {
+        byte[] bytes = new byte[buffer.getInt(offset)];
+        for (int i=0; i<bytes.length; i++) {
+            bytes[i] = buffer.get(offset + 4 + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A 64-bit FNV-1a hash of the reference type and the UTF-8 bytes of a key.
+     */
+    static long hash(int referenceType, @Nonnull byte[] key) {
+        long hash = 0xcbf29ce484222325L;
+        hash = (hash ^ referenceType) * 0x100000001b3L;
+        for (byte b: key) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    static long bloomBit(int hash1, int hash2, int i, long bitCount) {
+        long combined = (hash1 + (long)i * hash2) & 0x7fffffffffffffffL;
+        return combined % bitCount;
+    }
+
+    /**
+     * @return The reference type of a descriptor: a method if it has "->" and "(", a field if it has "->" only,
+     * otherwise a type
+     */
+    public static int guessReferenceType(@Nonnull String descriptor) {
+        int arrow = descriptor.indexOf("->");
+        if (arrow < 0) {
+            return ReferenceType.TYPE;
+        }
+        return descriptor.indexOf('(', arrow) >= 0 ? ReferenceType.METHOD : ReferenceType.FIELD;
+    }
+}
@@ -0,0 +1,491 @@
+/*
+ * Copyright 2026, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.baksmali;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.io.LittleEndianDataOutputStream;
+import org.jf.dexlib2.DexFileFactory;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.ReferenceType;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.dexbacked.DexVisitor;
+import org.jf.dexlib2.dexbacked.instruction.InstructionCursor;
+import org.jf.dexlib2.dexbacked.reference.DexBackedFieldReference;
+import org.jf.dexlib2.dexbacked.reference.DexBackedMethodReference;
+import org.jf.dexlib2.util.ReferenceUtil;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Builds the {@link XrefIndex} of a set of dex, apk, jar, odex or oat files. The segment of each input file is built
+ * in parallel, and each segment is written as soon as the segments of the previous input files are written.
+ */
+public class XrefIndexBuilder {
+    private static final int INDEXED_REFERENCE_TYPES = ReferenceType.METHOD + 1;
+    // The number of input files each thread may build ahead of the first segment that is not written yet.
+    private static final int SEGMENTS_AHEAD_PER_JOB = 2;
+
+    private static class Key implements Comparable<Key> {
+        final int referenceType;
+        @Nonnull final byte[] name;
+        private final int hashCode;
+
+        Key(int referenceType, @Nonnull byte[] name) {
+            this.referenceType = referenceType;
+            this.name = name;
+            this.hashCode = 31 * referenceType + Arrays.hashCode(name);
+        }
+
+        @Override public int hashCode() {
+            return hashCode;
+        }
+
+        @Override public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key)o;
+            return referenceType == other.referenceType && Arrays.equals(name, other.name);
+        }
+
+        @Override public int compareTo(@Nonnull Key other) {
+            if (referenceType != other.referenceType) {
+                return referenceType < other.referenceType ? -1 : 1;
+            }
+            int commonLength = Math.min(name.length, other.name.length);
+            for (int i=0; i<commonLength; i++) {
+                int diff = (name[i] & 0xff) - (other.name[i] & 0xff);
+                if (diff != 0) {
+                    return diff;
+                }
+            }
+            return name.length - other.name.length;
+        }
+    }
+
+    /**
+     * The pairs of method index and code address that reference a key.
+     */
+    private static class Postings {
+        int[] data = new int[8];
+        int size;
+
+        void add(int methodIndex, int codeAddress) {
+            if (size + 2 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            data[size++] = methodIndex;
+            data[size++] = codeAddress;
+        }
+
+        void addAll(@Nonnull Postings other) {
+            for (int i=0; i<other.size; i+=2) {
+                add(other.data[i], other.data[i+1]);
+            }
+        }
+
+        int count() {
+            return size / 2;
+        }
+    }
+
+    static class Segment {
+        @Nonnull final String name;
+        final List<String> methods = Lists.newArrayList();
+        final Map<String, Integer> methodIndexes = Maps.newHashMap();
+        final Map<Key, Postings> postings = Maps.newHashMap();
+
+        Segment(@Nonnull String name) {
+            this.name = name;
+        }
+
+        int getMethodIndex(@Nonnull String method) {
+            Integer index = methodIndexes.get(method);
+            if (index == null) {
+                index = methods.size();
+                methods.add(method);
+                methodIndexes.put(method, index);
+            }
+            return index;
+        }
+
+        void addDexFile(@Nonnull final DexBackedDexFile dexFile) {
+            final int[] referenceCounts = {
+                    dexFile.getStringCount(), dexFile.getTypeCount(), dexFile.getFieldCount(),
+                    dexFile.getMethodCount() };
+            // The postings by reference type and index in the dex file, the names are resolved once at the end
+            final Postings[][] dexPostings = new Postings[INDEXED_REFERENCE_TYPES][];
+            for (int i=0; i<INDEXED_REFERENCE_TYPES; i++) {
+                dexPostings[i] = new Postings[referenceCounts[i]];
+            }
+            final int[] segmentMethodIndexes = new int[dexFile.getMethodCount()];
+            Arrays.fill(segmentMethodIndexes, -1);
+
+            dexFile.accept(new DexVisitor() {
+                private int methodIndex;
+
+                @Override public int visitField(@Nonnull FieldItem fieldItem) {
+                    return SKIP;
+                }
+
+                @Override public int visitMethod(@Nonnull MethodItem methodItem) {
+                    if (!methodItem.hasImplementation()) {
+                        return SKIP;
+                    }
+                    int dexMethodIndex = methodItem.getMethodIndex();
+                    methodIndex = segmentMethodIndexes[dexMethodIndex];
+                    if (methodIndex < 0) {
+                        methodIndex = getMethodIndex(ReferenceUtil.getMethodDescriptor(methodItem.getReference()));
+                        segmentMethodIndexes[dexMethodIndex] = methodIndex;
+                    }
+                    return CONTINUE;
+                }
+
+                @Override public int visitInstruction(@Nonnull MethodItem methodItem,
+                                                      @Nonnull InstructionCursor instruction) {
+                    int referenceType = instruction.getReferenceType();
+                    if (referenceType >= INDEXED_REFERENCE_TYPES) {
+                        return CONTINUE;
+                    }
+                    int referenceIndex = instruction.getReferenceIndex();
+                    if (referenceIndex < 0 || referenceIndex >= referenceCounts[referenceType]) {
+                        // An invalid index, which the verifier would reject
+                        return CONTINUE;
+                    }
+                    Postings referencePostings = dexPostings[referenceType][referenceIndex];
+                    if (referencePostings == null) {
+                        referencePostings = new Postings();
+                        dexPostings[referenceType][referenceIndex] = referencePostings;
+                    }
+                    referencePostings.add(methodIndex, instruction.getCodeAddress());
+                    return CONTINUE;
+                }
+            });
+
+            for (int referenceType=0; referenceType<INDEXED_REFERENCE_TYPES; referenceType++) {
+                Postings[] typePostings = dexPostings[referenceType];
+                for (int referenceIndex=0; referenceIndex<typePostings.length; referenceIndex++) {
+                    if (typePostings[referenceIndex] == null) {
+                        continue;
+                    }
+                    String name = getReferenceName(dexFile, referenceType, referenceIndex);
+                    Key key = new Key(referenceType, name.getBytes(StandardCharsets.UTF_8));
+                    Postings keyPostings = postings.get(key);
+                    if (keyPostings == null) {
+                        postings.put(key, typePostings[referenceIndex]);
+                    } else {
+                        keyPostings.addAll(typePostings[referenceIndex]);
+                    }
+                }
+            }
+        }
+    }
+
+    @Nonnull
+    private static String getReferenceName(@Nonnull DexBackedDexFile dexFile, int referenceType, int index) {
+        switch (referenceType) {
+            case ReferenceType.STRING:
+                return dexFile.getString(index);
+            case ReferenceType.TYPE:
+                return dexFile.getType(index);
+            case ReferenceType.FIELD:
+                return ReferenceUtil.getFieldDescriptor(new DexBackedFieldReference(dexFile, index));
+            default:
+                return ReferenceUtil.getMethodDescriptor(new DexBackedMethodReference(dexFile, index));
+        }
+    }
+
+    /**
+     * Builds the segment of an input file.
+     *
+     * @return The segment, or null if the file has no dex file
+     */
+    @Nullable
+    static Segment buildSegment(@Nonnull File file, @Nullable Opcodes opcodes) throws IOException {
+        List<DexBackedDexFile> dexFiles = DexFileFactory.loadDexFiles(file, null, opcodes);
+        if (dexFiles.isEmpty()) {
+            return null;
+        }
+        Segment segment = new Segment(file.getPath());
+        for (DexBackedDexFile dexFile: dexFiles) {
+            segment.addDexFile(dexFile);
+        }
+        return segment;
+    }
+
+    /**
+     * @param inputs The files to index. The dex, apk, jar, zip, odex and oat files in a directory are indexed
+     *               recursively.
+     * @param jobs The number of threads to use
+     * @return The number of indexed files
+     */
+    public static int build(@Nonnull List<File> inputs, @Nullable final Opcodes opcodes, int jobs,
+                            @Nonnull File output) throws IOException {
+        List<File> files = Lists.newArrayList();
+        for (File input: inputs) {
+            addInputFiles(input, files);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(jobs);
+        try (IndexWriter writer = new IndexWriter(output)) {
+            CompletionService<Segment> completionService = new ExecutorCompletionService<Segment>(executor);
+            Map<Future<Segment>, Integer> taskIndexes = Maps.newHashMap();
+            Segment[] segments = new Segment[files.size()];
+            boolean[] completed = new boolean[files.size()];
+            // The segments which are built but not written yet are kept in memory, so only a few files are built
+            // ahead of the first unwritten one.
+            int window = jobs * SEGMENTS_AHEAD_PER_JOB;
+            int submitted = 0;
+            int written = 0;
+            while (written < files.size()) {
+                while (submitted < files.size() && submitted - written < window) {
+                    final File file = files.get(submitted);
+                    taskIndexes.put(completionService.submit(() -> buildSegment(file, opcodes)), submitted);
+                    submitted++;
+                }
+                Future<Segment> task = takeCompleted(completionService);
+                int index = taskIndexes.remove(task);
+                segments[index] = getSegment(task, files.get(index));
+                completed[index] = true;
+                while (written < submitted && completed[written]) {
+                    if (segments[written] != null) {
+                        writer.add(segments[written]);
+                        // The postings aren't needed anymore
+                        segments[written] = null;
+                    }
+                    written++;
+                }
+            }
+            writer.finish();
+            return writer.getSegmentCount();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Nonnull
+    private static Future<Segment> takeCompleted(@Nonnull CompletionService<Segment> completionService) {
+        while (true) {
+            try {
+                return completionService.take();
+            } catch (InterruptedException ex) {
+                continue;
+            }
+        }
+    }
+
+    @Nullable
+    private static Segment getSegment(@Nonnull Future<Segment> task, @Nonnull File file) throws IOException {
+        while (true) {
+            try {
+                return task.get();
+            } catch (InterruptedException ex) {
+                continue;
+            } catch (ExecutionException ex) {
+                System.err.println("Unable to index " + file + ": " + ex.getCause());
+                return null;
+            }
+        }
+    }
+
+    private static void addInputFiles(@Nonnull File input, @Nonnull List<File> files) {
+        if (!input.isDirectory()) {
+            files.add(input);
+            return;
+        }
+        File[] children = input.listFiles();
+        if (children == null) {
+            return;
+        }
+        Arrays.sort(children);
+        for (File child: children) {
+            String name = child.getName().toLowerCase();
+            if (child.isDirectory()) {
+                addInputFiles(child, files);
+            } else if (name.endsWith(".dex") || name.endsWith(".apk") || name.endsWith(".jar") ||
+                    name.endsWith(".zip") || name.endsWith(".odex") || name.endsWith(".oat")) {
+                files.add(child);
+            }
+        }
+    }
+
+    /**
+     * Writes the segments in the order they are added. The segment table and the header are written by
+     * {@link #finish()}, so the output is not a valid index if it is closed before finishing.
+     */
+    static class IndexWriter implements Closeable {
+        @Nonnull private final File output;
+        @Nonnull private final CountingOutputStream counter;
+        @Nonnull private final LittleEndianDataOutputStream out;
+        private final List<int[]> segmentTable = Lists.newArrayList();
+        private boolean closed;
+
+        IndexWriter(@Nonnull File output) throws IOException {
+            this.output = output;
+            counter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(output)));
+            out = new LittleEndianDataOutputStream(counter);
+            out.writeInt(XrefIndex.MAGIC);
+            out.writeInt(XrefIndex.VERSION);
+            // The segment count and segment table offset are written at the end
+            out.writeInt(0);
+            out.writeInt(0);
+        }
+
+        void add(@Nonnull Segment segment) throws IOException {
+            segmentTable.add(writeSegment(segment, out, counter));
+        }
+
+        int getSegmentCount() {
+            return segmentTable.size();
+        }
+
+        void finish() throws IOException {
+            long segmentTableOffset = counter.getCount();
+            for (int[] entry: segmentTable) {
+                for (int value: entry) {
+                    out.writeInt(value);
+                }
+            }
+            checkOffset(counter.getCount());
+            close();
+
+            try (RandomAccessFile file = new RandomAccessFile(output, "rw")) {
+                file.seek(8);
+                file.writeInt(Integer.reverseBytes(segmentTable.size()));
+                file.writeInt(Integer.reverseBytes((int)segmentTableOffset));
+            }
+        }
+
+        @Override public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                out.close();
+            }
+        }
+    }
+
+    @Nonnull
+    private static int[] writeSegment(@Nonnull Segment segment, @Nonnull LittleEndianDataOutputStream out,
+                                      @Nonnull CountingOutputStream counter) throws IOException {
+        List<Key> keys = Lists.newArrayList(segment.postings.keySet());
+        Collections.sort(keys);
+
+        int nameOffset = writeString(segment.name.getBytes(StandardCharsets.UTF_8), out, counter);
+        int[] keyNameOffsets = new int[keys.size()];
+        for (int i=0; i<keys.size(); i++) {
+            keyNameOffsets[i] = writeString(keys.get(i).name, out, counter);
+        }
+        int[] methodNameOffsets = new int[segment.methods.size()];
+        for (int i=0; i<methodNameOffsets.length; i++) {
+            methodNameOffsets[i] = writeString(segment.methods.get(i).getBytes(StandardCharsets.UTF_8), out, counter);
+        }
+
+        long[] bloom = new long[Math.max(1, (keys.size() * XrefIndex.BLOOM_BITS_PER_KEY + 63) / 64)];
+        long bitCount = (long)bloom.length * 64;
+        for (Key key: keys) {
+            long hash = XrefIndex.hash(key.referenceType, key.name);
+            for (int i=0; i<XrefIndex.BLOOM_HASH_COUNT; i++) {
+                long bit = XrefIndex.bloomBit((int)hash, (int)(hash >>> 32), i, bitCount);
+                bloom[(int)(bit >>> 6)] |= 1L << bit;
+            }
+        }
+        int bloomOffset = checkOffset(counter.getCount());
+        for (long bits: bloom) {
+            out.writeLong(bits);
+        }
+
+        int keysOffset = checkOffset(counter.getCount());
+        int firstPosting = 0;
+        for (int i=0; i<keys.size(); i++) {
+            Key key = keys.get(i);
+            int postingCount = segment.postings.get(key).count();
+            out.writeInt(key.referenceType);
+            out.writeInt(keyNameOffsets[i]);
+            out.writeInt(firstPosting);
+            out.writeInt(postingCount);
+            firstPosting += postingCount;
+        }
+
+        int methodsOffset = checkOffset(counter.getCount());
+        for (int methodNameOffset: methodNameOffsets) {
+            out.writeInt(methodNameOffset);
+        }
+
+        int postingsOffset = checkOffset(counter.getCount());
+        for (Key key: keys) {
+            Postings postings = segment.postings.get(key);
+            for (int i=0; i<postings.size; i++) {
+                out.writeInt(postings.data[i]);
+            }
+        }
+        checkOffset(counter.getCount());
+
+        return new int[] { nameOffset, bloomOffset, bloom.length, keysOffset, keys.size(), methodsOffset,
+                methodNameOffsets.length, postingsOffset };
+    }
+
+    private static int writeString(@Nonnull byte[] bytes, @Nonnull LittleEndianDataOutputStream out,
+                                   @Nonnull CountingOutputStream counter) throws IOException {
+        int offset = checkOffset(counter.getCount());
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        return offset;
+    }
+
+    private static int checkOffset(long offset) throws IOException {
+        if (offset > Integer.MAX_VALUE) {
+            throw new IOException("The xref index is too large");
+        }
+        return (int)offset;
+    }
+}
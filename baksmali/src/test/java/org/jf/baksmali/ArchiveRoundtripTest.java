@@ -0,0 +1,164 @@
+/*
+ * Copyright 2026, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jf.baksmali;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
+import com.google.common.io.Files;
+import org.antlr.runtime.RecognitionException;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.jf.smali.Smali;
+import org.jf.smali.SmaliOptions;
+import org.jf.smali.SmaliTestUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+public class ArchiveRoundtripTest {
+    private static final String[] SOURCES = {
+            ".class public Lorg/test/A;\n" +
+            ".super Ljava/lang/Object;\n" +
+            ".method public static run()I\n" +
+            "    .registers 1\n" +
+            "    const/4 v0, 0x1\n" +
+            "    return v0\n" +
+            ".end method\n",
+
+            // Only differs in case from the previous one.
+            ".class public Lorg/test/a;\n" +
+            ".super Lorg/test/A;\n",
+
+            ".class public Lorg/test/sub/B;\n" +
+            ".super Ljava/lang/Object;\n" +
+            ".field public static value:Ljava/lang/String; = \"b\"\n"
+    };
+
+    private static List<ClassDef> compileClasses() throws IOException, RecognitionException {
+        List<ClassDef> classDefs = Lists.newArrayList();
+        for (String source: SOURCES) {
+            classDefs.add(SmaliTestUtils.compileSmali(source));
+        }
+        return classDefs;
+    }
+
+    @Test
+    public void testArchiveRoundtrip() throws IOException, RecognitionException {
+        File tempDir = Files.createTempDir();
+        tempDir.deleteOnExit();
+        BaksmaliOptions options = new BaksmaliOptions();
+        List<ClassDef> classDefs = compileClasses();
+        File archive = new File(tempDir, "out.zip");
+        archive.deleteOnExit();
+
+        Assert.assertTrue(Baksmali.disassembleDexFileToArchive(
+                new ImmutableDexFile(Opcodes.getDefault(), classDefs), archive, 2, options, null));
+
+        List<String> entryNames = Lists.newArrayList();
+        try (ZipFile zipFile = new ZipFile(archive)) {
+            for (ZipEntry entry: Collections.list(zipFile.entries())) {
+                entryNames.add(entry.getName());
+            }
+        }
+        Assert.assertEquals(Arrays.asList("org/test/A.smali", "org/test/a.1.smali", "org/test/sub/B.smali"),
+                entryNames);
+
+        SmaliOptions smaliOptions = new SmaliOptions();
+        smaliOptions.jobs = 2;
+        smaliOptions.outputDexFile = new File(tempDir, "out.dex").getPath();
+        new File(smaliOptions.outputDexFile).deleteOnExit();
+        Assert.assertTrue(Smali.assemble(smaliOptions, archive.getPath()));
+
+        DexBackedDexFile dexFile = new DexBackedDexFile(Opcodes.getDefault(),
+                Files.toByteArray(new File(smaliOptions.outputDexFile)));
+        List<? extends ClassDef> expected = Ordering.natural().sortedCopy(classDefs);
+        List<? extends ClassDef> actual = Ordering.natural().sortedCopy(dexFile.getClasses());
+        Assert.assertEquals(expected.size(), actual.size());
+        for (int i=0; i<expected.size(); i++) {
+            Assert.assertEquals(BaksmaliTestUtils.getNormalizedSmali(expected.get(i), options, true),
+                    BaksmaliTestUtils.getNormalizedSmali(actual.get(i), options, true));
+        }
+    }
+
+    @Test
+    public void testArchiveIsReproducible() throws IOException, RecognitionException {
+        File tempDir = Files.createTempDir();
+        tempDir.deleteOnExit();
+        BaksmaliOptions options = new BaksmaliOptions();
+        ImmutableDexFile dexFile = new ImmutableDexFile(Opcodes.getDefault(), compileClasses());
+        File archive1 = new File(tempDir, "out1.zip");
+        File archive2 = new File(tempDir, "out2.zip");
+        archive1.deleteOnExit();
+        archive2.deleteOnExit();
+
+        Assert.assertTrue(Baksmali.disassembleDexFileToArchive(dexFile, archive1, 1, options, null));
+        Assert.assertTrue(Baksmali.disassembleDexFileToArchive(dexFile, archive2, 3, options, null));
+        Assert.assertArrayEquals(Files.toByteArray(archive1), Files.toByteArray(archive2));
+    }
+
+    @Test
+    public void testMoreClassesThanWindow() throws IOException, RecognitionException {
+        File tempDir = Files.createTempDir();
+        tempDir.deleteOnExit();
+        BaksmaliOptions options = new BaksmaliOptions();
+        List<ClassDef> classDefs = Lists.newArrayList();
+        List<String> expectedNames = Lists.newArrayList();
+        for (int i=0; i<300; i++) {
+            String name = String.format("org/test/C%03d", i);
+            classDefs.add(SmaliTestUtils.compileSmali(".class public L" + name + ";\n" +
+                    ".super Ljava/lang/Object;\n"));
+            expectedNames.add(name + ".smali");
+        }
+        File archive = new File(tempDir, "out.zip");
+        archive.deleteOnExit();
+
+        Assert.assertTrue(Baksmali.disassembleDexFileToArchive(
+                new ImmutableDexFile(Opcodes.getDefault(), classDefs), archive, 2, options, null));
+
+        List<String> entryNames = Lists.newArrayList();
+        try (ZipFile zipFile = new ZipFile(archive)) {
+            for (ZipEntry entry: Collections.list(zipFile.entries())) {
+                entryNames.add(entry.getName());
+            }
+        }
+        Assert.assertEquals(expectedNames, entryNames);
+    }
+}
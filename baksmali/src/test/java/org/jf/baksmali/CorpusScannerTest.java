@@ -0,0 +1,187 @@
+/*
+ * Copyright 2026, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.baksmali;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
+import com.google.common.io.Files;
+import org.antlr.runtime.RecognitionException;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.ReferenceType;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
+import org.jf.smali.SmaliTestUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class CorpusScannerTest {
+    private static final String CLASS_A =
+            ".class public Lorg/test/A;\n" +
+            ".super Ljava/lang/Object;\n" +
+            ".field public static count:I\n" +
+            ".method public static run(ILjava/lang/String;)V\n" +
+            "    .registers 2\n" +
+            "    const-string v0, \"hello world\"\n" +
+            "    invoke-static {}, Lorg/test/B;->foo()V\n" +
+            "    return-void\n" +
+            ".end method\n";
+
+    private static final String CLASS_B =
+            ".class public Lorg/test/B;\n" +
+            ".super Ljava/lang/Object;\n" +
+            ".method public static foo()V\n" +
+            "    .registers 1\n" +
+            "    const-string v0, \"hello \\u00e9\"\n" +
+            "    sget v0, Lorg/test/A;->count:I\n" +
+            "    return-void\n" +
+            ".end method\n";
+
+    private static byte[] compileDex(String source) throws IOException, RecognitionException {
+        MemoryDataStore dataStore = new MemoryDataStore();
+        DexPool.writeTo(dataStore, new ImmutableDexFile(Opcodes.getDefault(),
+                ImmutableList.of(SmaliTestUtils.compileSmali(source))));
+        return dataStore.getData();
+    }
+
+    private static File writeCorpus() throws IOException, RecognitionException {
+        File tempDir = Files.createTempDir();
+        tempDir.deleteOnExit();
+        byte[] dexA = compileDex(CLASS_A);
+        byte[] dexB = compileDex(CLASS_B);
+
+        File apk = new File(tempDir, "test.apk");
+        apk.deleteOnExit();
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(apk))) {
+            ZipEntry stored = new ZipEntry("classes.dex");
+            stored.setMethod(ZipEntry.STORED);
+            stored.setSize(dexA.length);
+            CRC32 crc = new CRC32();
+            crc.update(dexA);
+            stored.setCrc(crc.getValue());
+            zip.putNextEntry(stored);
+            zip.write(dexA);
+            zip.closeEntry();
+
+            ZipEntry deflated = new ZipEntry("classes2.dex");
+            deflated.setMethod(ZipEntry.DEFLATED);
+            zip.putNextEntry(deflated);
+            zip.write(dexB);
+            zip.closeEntry();
+
+            zip.putNextEntry(new ZipEntry("res/raw/other.txt"));
+            zip.write("hello".getBytes("UTF-8"));
+            zip.closeEntry();
+        }
+
+        File dex = new File(tempDir, "b.dex");
+        dex.deleteOnExit();
+        Files.write(dexB, dex);
+        return tempDir;
+    }
+
+    private static List<String> scan(File dir, int mode, int referenceType, String pattern) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int count = new CorpusScanner(ImmutableList.of(new CorpusScanner.Query(referenceType, mode, pattern)), sb)
+                .scan(ImmutableList.of(dir.getPath()), 2);
+        List<String> lines = Lists.newArrayList();
+        for (String line: sb.toString().split("\n")) {
+            if (!line.isEmpty()) {
+                lines.add(line.replace(dir.getPath() + File.separator, ""));
+            }
+        }
+        Assert.assertEquals(count, lines.size());
+        return Ordering.natural().sortedCopy(lines);
+    }
+
+    @Test
+    public void testStrings() throws IOException, RecognitionException {
+        File dir = writeCorpus();
+        Assert.assertEquals(ImmutableList.of(
+                "{\"file\":\"b.dex\",\"kind\":\"string\",\"value\":\"hello \u00e9\"}",
+                "{\"file\":\"test.apk\",\"entry\":\"classes.dex\",\"kind\":\"string\",\"value\":\"hello world\"}",
+                "{\"file\":\"test.apk\",\"entry\":\"classes2.dex\",\"kind\":\"string\",\"value\":\"hello \u00e9\"}"),
+                scan(dir, CorpusScanner.PREFIX, ReferenceType.STRING, "hello"));
+        Assert.assertEquals(2, scan(dir, CorpusScanner.EXACT, ReferenceType.STRING, "hello \u00e9").size());
+        Assert.assertEquals(0, scan(dir, CorpusScanner.EXACT, ReferenceType.STRING, "hello").size());
+        Assert.assertEquals(2, scan(dir, CorpusScanner.CONTAINS, ReferenceType.STRING, "\u00e9").size());
+        Assert.assertEquals(1, scan(dir, CorpusScanner.REGEX, ReferenceType.STRING, "^hello w.*d$").size());
+    }
+
+    @Test
+    public void testTypes() throws IOException, RecognitionException {
+        File dir = writeCorpus();
+        Assert.assertEquals(ImmutableList.of(
+                "{\"file\":\"b.dex\",\"kind\":\"type\",\"value\":\"Lorg/test/A;\"}",
+                "{\"file\":\"test.apk\",\"entry\":\"classes.dex\",\"kind\":\"type\",\"value\":\"Lorg/test/A;\"}",
+                "{\"file\":\"test.apk\",\"entry\":\"classes2.dex\",\"kind\":\"type\",\"value\":\"Lorg/test/A;\"}"),
+                scan(dir, CorpusScanner.EXACT, ReferenceType.TYPE, "Lorg/test/A;"));
+    }
+
+    @Test
+    public void testMembers() throws IOException, RecognitionException {
+        File dir = writeCorpus();
+        Assert.assertEquals(ImmutableList.of(
+                "{\"file\":\"test.apk\",\"entry\":\"classes.dex\",\"kind\":\"method\"," +
+                        "\"value\":\"Lorg/test/A;->run(ILjava/lang/String;)V\"}"),
+                scan(dir, CorpusScanner.EXACT, ReferenceType.METHOD, "Lorg/test/A;->run(ILjava/lang/String;)V"));
+        Assert.assertEquals(3, scan(dir, CorpusScanner.PREFIX, ReferenceType.METHOD, "Lorg/test/B;->").size());
+        Assert.assertEquals(3, scan(dir, CorpusScanner.CONTAINS, ReferenceType.METHOD, "->foo()").size());
+        Assert.assertEquals(ImmutableList.of(
+                "{\"file\":\"b.dex\",\"kind\":\"field\",\"value\":\"Lorg/test/A;->count:I\"}",
+                "{\"file\":\"test.apk\",\"entry\":\"classes.dex\",\"kind\":\"field\",\"value\":\"Lorg/test/A;->count:I\"}",
+                "{\"file\":\"test.apk\",\"entry\":\"classes2.dex\",\"kind\":\"field\"," +
+                        "\"value\":\"Lorg/test/A;->count:I\"}"),
+                scan(dir, CorpusScanner.REGEX, ReferenceType.FIELD, ":I$"));
+    }
+
+    @Test
+    public void testGlob() throws IOException, RecognitionException {
+        File dir = writeCorpus();
+        List<File> files = Lists.newArrayList();
+        CorpusScanner.addInputFiles(dir.getPath() + File.separator + "*.apk", files);
+        Assert.assertEquals(ImmutableList.of(new File(dir, "test.apk")), files);
+        files.clear();
+        CorpusScanner.addInputFiles(dir.getPath(), files);
+        Assert.assertEquals(ImmutableList.of(new File(dir, "b.dex"), new File(dir, "test.apk")), files);
+    }
+}
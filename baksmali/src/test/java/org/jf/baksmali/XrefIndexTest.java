@@ -0,0 +1,229 @@
+/*
+ * Copyright 2026, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.baksmali;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import org.antlr.runtime.RecognitionException;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.ReferenceType;
+import org.jf.dexlib2.dexbacked.DexBackedClassDef;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.dexbacked.DexBackedMethod;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.iface.instruction.ReferenceInstruction;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.jf.dexlib2.util.ReferenceUtil;
+import org.jf.dexlib2.writer.pool.DexPool;
+import org.jf.smali.SmaliTestUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+public class XrefIndexTest {
+    private static final String[][] SOURCES = {
+            {
+                    ".class public Lorg/test/A;\n" +
+                    ".super Ljava/lang/Object;\n" +
+                    ".field public static count:I\n" +
+                    ".method public static run()V\n" +
+                    "    .registers 2\n" +
+                    "    invoke-static {}, Lorg/test/B;->foo()V\n" +
+                    "    const-string v0, \"hello\"\n" +
+                    "    sget v1, Lorg/test/A;->count:I\n" +
+                    "    new-instance v0, Lorg/test/B;\n" +
+                    "    invoke-static {}, Lorg/test/B;->foo()V\n" +
+                    "    return-void\n" +
+                    ".end method\n",
+            },
+            {
+                    ".class public Lorg/test/B;\n" +
+                    ".super Ljava/lang/Object;\n" +
+                    ".method public static foo()V\n" +
+                    "    .registers 1\n" +
+                    "    const-string v0, \"hello\"\n" +
+                    "    invoke-static {}, Lorg/test/B;->bar()V\n" +
+                    "    return-void\n" +
+                    ".end method\n" +
+                    ".method public static bar()V\n" +
+                    "    .registers 1\n" +
+                    "    sget v0, Lorg/test/A;->count:I\n" +
+                    "    return-void\n" +
+                    ".end method\n",
+
+                    ".class public Lorg/test/C;\n" +
+                    ".super Ljava/lang/Object;\n" +
+                    ".method public abstract baz()V\n" +
+                    ".end method\n"
+            }
+    };
+
+    private static List<File> writeDexFiles(File dir) throws IOException, RecognitionException {
+        List<File> files = Lists.newArrayList();
+        for (int i=0; i<SOURCES.length; i++) {
+            List<ClassDef> classDefs = Lists.newArrayList();
+            for (String source: SOURCES[i]) {
+                classDefs.add(SmaliTestUtils.compileSmali(source));
+            }
+            File file = new File(dir, "classes" + i + ".dex");
+            file.deleteOnExit();
+            DexPool.writeTo(file.getPath(), new ImmutableDexFile(Opcodes.getDefault(), classDefs));
+            files.add(file);
+        }
+        return files;
+    }
+
+    private static String describe(XrefIndex.Xref xref) {
+        return xref.reference + " " + xref;
+    }
+
+    @Test
+    public void testFind() throws IOException, RecognitionException {
+        File tempDir = Files.createTempDir();
+        tempDir.deleteOnExit();
+        List<File> dexFiles = writeDexFiles(tempDir);
+        File indexFile = new File(tempDir, "xref.idx");
+        indexFile.deleteOnExit();
+
+        Assert.assertEquals(2, XrefIndexBuilder.build(ImmutableList.of(tempDir), null, 2, indexFile));
+
+        // Every reference of the code, found by walking the object model
+        Set<String> expected = Sets.newHashSet();
+        Set<List<Object>> references = Sets.newHashSet();
+        for (File file: dexFiles) {
+            DexBackedDexFile dexFile = new DexBackedDexFile(Opcodes.getDefault(), Files.toByteArray(file));
+            for (DexBackedClassDef classDef: dexFile.getClasses()) {
+                for (DexBackedMethod method: classDef.getMethods()) {
+                    if (method.getImplementation() == null) {
+                        continue;
+                    }
+                    int codeAddress = 0;
+                    for (Instruction instruction: method.getImplementation().getInstructions()) {
+                        if (instruction instanceof ReferenceInstruction) {
+                            ReferenceInstruction referenceInstruction = (ReferenceInstruction)instruction;
+                            String reference = ReferenceUtil.getReferenceString(referenceInstruction.getReference());
+                            if (referenceInstruction.getReferenceType() == ReferenceType.STRING) {
+                                // getReferenceString quotes the strings
+                                reference = reference.substring(1, reference.length() - 1);
+                            }
+                            expected.add(describe(new XrefIndex.Xref(file.getPath(), reference,
+                                    ReferenceUtil.getMethodDescriptor(method), codeAddress)));
+                            references.add(Arrays.<Object>asList(referenceInstruction.getReferenceType(),
+                                    reference));
+                        }
+                        codeAddress += instruction.getCodeUnits();
+                    }
+                }
+            }
+        }
+
+        try (XrefIndex index = XrefIndex.open(indexFile)) {
+            Assert.assertEquals(2, index.getSegmentCount());
+            Assert.assertEquals(dexFiles.get(0).getPath(), index.getSegmentName(0));
+
+            Set<String> actual = Sets.newHashSet();
+            for (List<Object> reference: references) {
+                List<XrefIndex.Xref> xrefs = index.find((Integer)reference.get(0), (String)reference.get(1));
+                Assert.assertFalse(xrefs.isEmpty());
+                for (XrefIndex.Xref xref: xrefs) {
+                    Assert.assertTrue(actual.add(describe(xref)));
+                }
+            }
+            Assert.assertEquals(Ordering.natural().sortedCopy(expected), Ordering.natural().sortedCopy(actual));
+
+            List<XrefIndex.Xref> fooCalls = index.find(ReferenceType.METHOD, "Lorg/test/B;->foo()V");
+            Assert.assertEquals(2, fooCalls.size());
+            Assert.assertEquals("Lorg/test/A;->run()V", fooCalls.get(0).method);
+            Assert.assertEquals(0, fooCalls.get(0).codeAddress);
+            Assert.assertEquals(9, fooCalls.get(1).codeAddress);
+
+            Assert.assertEquals(2, index.find(ReferenceType.STRING, "hello").size());
+            Assert.assertEquals(0, index.find(ReferenceType.STRING, "hell").size());
+            Assert.assertEquals(0, index.find(ReferenceType.TYPE, "hello").size());
+            Assert.assertEquals(0, index.find(ReferenceType.METHOD, "Lorg/test/C;->baz()V").size());
+
+            Assert.assertEquals(3, index.findPrefix(ReferenceType.METHOD, "Lorg/test/B;->").size());
+            Assert.assertEquals(2, index.findPrefix(ReferenceType.FIELD, "Lorg/test/A;->").size());
+            Assert.assertEquals(0, index.findPrefix(ReferenceType.METHOD, "Lorg/test/C;->").size());
+        }
+    }
+
+    @Test
+    public void testSegmentsInInputOrder() throws IOException, RecognitionException {
+        File tempDir = Files.createTempDir();
+        tempDir.deleteOnExit();
+        List<File> inputs = Lists.newArrayList();
+        for (int i=0; i<12; i++) {
+            File file = new File(tempDir, String.format("classes%02d.dex", i));
+            file.deleteOnExit();
+            if (i == 5) {
+                // Not a dex file, it is reported and skipped
+                Files.write(new byte[] { 1, 2, 3 }, file);
+            } else {
+                DexPool.writeTo(file.getPath(), new ImmutableDexFile(Opcodes.getDefault(), ImmutableList.of(
+                        SmaliTestUtils.compileSmali(".class public Lorg/test/C" + i + ";\n" +
+                                ".super Ljava/lang/Object;\n"))));
+            }
+            inputs.add(file);
+        }
+        File indexFile = new File(tempDir, "xref.idx");
+        indexFile.deleteOnExit();
+
+        Assert.assertEquals(11, XrefIndexBuilder.build(inputs, null, 1, indexFile));
+        try (XrefIndex index = XrefIndex.open(indexFile)) {
+            Assert.assertEquals(11, index.getSegmentCount());
+            int segment = 0;
+            for (File input: inputs) {
+                if (!input.getName().equals("classes05.dex")) {
+                    Assert.assertEquals(input.getPath(), index.getSegmentName(segment++));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testGuessReferenceType() {
+        Assert.assertEquals(ReferenceType.METHOD, XrefIndex.guessReferenceType("La;->b(I)V"));
+        Assert.assertEquals(ReferenceType.FIELD, XrefIndex.guessReferenceType("La;->b:I"));
+        Assert.assertEquals(ReferenceType.TYPE, XrefIndex.guessReferenceType("[La;"));
+    }
+}
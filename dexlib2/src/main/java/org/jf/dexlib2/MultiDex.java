@@ -3,27 +3,33 @@ package org.jf.dexlib2;
 import org.jf.dexlib2.dexbacked.DexBackedDexFile;
 import org.jf.dexlib2.iface.ClassDef;
 import org.jf.dexlib2.iface.DexFile;
+import org.jf.dexlib2.writer.DexWriter;
 import org.jf.dexlib2.writer.io.DexDataStore;
 import org.jf.dexlib2.writer.io.FileDataStore;
 import org.jf.dexlib2.writer.io.MemoryDataStore;
-import org.jf.dexlib2.writer.pool.ClassPool;
 import org.jf.dexlib2.writer.pool.DexPool;
+import org.jf.util.ExceptionWithContext;
 
 import javax.annotation.Nonnull;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.function.Consumer;
 
 public class MultiDex implements DexFile {
-    private static final int MAX_METHOD_ADDED_DURING_DEX_CREATION = 2;
-    private static final int MAX_FIELD_ADDED_DURING_DEX_CREATION = 9;
     private static final int DEFAULT_MAX_DEX_ID = 0xffff + 1;
+    // The number of class groups that may be skipped because they don't fit in the current dex,
+    // before the next dex is started.
+    private static final int MAX_SKIPPED_GROUPS = 32;
     private int mMaxNumberOfIdxPerDex = DEFAULT_MAX_DEX_ID;
+    private int mCodeWriterThreads = 1;
 
     private final Opcodes opcodes;
     public List<DexFile> files;
@@ -83,6 +89,19 @@ public class MultiDex implements DexFile {
         mMaxNumberOfIdxPerDex = maxIdx;
     }
 
+    /**
+     * @see DexWriter#setCodeWriterThreads(int)
+     */
+    public void setCodeWriterThreads(int threads) {
+        mCodeWriterThreads = threads;
+    }
+
+    private DexPool newDexPool() {
+        final DexPool dexPool = new DexPool(opcodes);
+        dexPool.setCodeWriterThreads(mCodeWriterThreads);
+        return dexPool;
+    }
+
     @Override
     @Nonnull
     public Set<ClassDef> getClasses() {
@@ -129,36 +148,107 @@ public class MultiDex implements DexFile {
         writeClassesTo(new ArrayList<>(classes), store);
     }
 
-    public <C extends ClassDef> void writeClassesTo(
+    /**
+     * Writes the classes to as few dex files as the id limits allow.
+     *
+     * The classes are grouped with their inner classes and sorted by type, so the classes of
+     * a package, which reference each other most, are placed in the same dex. Each group is
+     * interned to the current dex and rolled back by {@link DexPool#reset()} if it overflows,
+     * so the exact number of ids it adds is used instead of an estimation. A group that doesn't
+     * fit is moved to the next dex, and the following groups are still tried to fill the
+     * current dex until {@link #MAX_SKIPPED_GROUPS} groups are skipped.
+     *
+     * @return The number of written dex files
+     */
+    public <C extends ClassDef> int writeClassesTo(
             List<C> classList, DexDataStoreFactory store) throws IOException {
+        final Deque<List<C>> pendingGroups = new ArrayDeque<>(groupNestedClasses(classList));
+        final List<List<C>> skippedGroups = new ArrayList<>();
         int dexNum = 0;
-        DexPool dexPool = new DexPool(opcodes);
-        ClassPool clsPool = dexPool.classSection;
-        classList.sort(Comparator.comparing(ClassDef::getType));
-
-        for (ClassDef classDef : classList) {
-            int numMethodIds = dexPool.methodSection.getItemCount();
-            int numFieldIds = dexPool.fieldSection.getItemCount();
-            int constantPoolSize = classDef.getDirectMethodCount()
-                    + classDef.getVirtualMethodCount()
-                    + classDef.getStaticFieldCount()
-                    + classDef.getInstanceFieldCount();
-
-            int maxMethodIdsInDex = numMethodIds + constantPoolSize
-                    + MAX_METHOD_ADDED_DURING_DEX_CREATION;
-            int maxFieldIdsInDex = numFieldIds + constantPoolSize
-                    + MAX_FIELD_ADDED_DURING_DEX_CREATION;
-
-            if (maxMethodIdsInDex > mMaxNumberOfIdxPerDex
-                    || maxFieldIdsInDex > mMaxNumberOfIdxPerDex) {
+        DexPool dexPool = newDexPool();
+        boolean isEmpty = true;
+
+        while (!pendingGroups.isEmpty() || !skippedGroups.isEmpty()) {
+            if (pendingGroups.isEmpty() || skippedGroups.size() >= MAX_SKIPPED_GROUPS) {
                 dexPool.writeTo(store.getDataStore(dexNum));
                 dexNum++;
-                dexPool = new DexPool(opcodes);
-                clsPool = dexPool.classSection;
+                dexPool = newDexPool();
+                isEmpty = true;
+                // The skipped groups are placed first in the next dex, in the original order.
+                for (int i = skippedGroups.size() - 1; i >= 0; i--) {
+                    pendingGroups.addFirst(skippedGroups.get(i));
+                }
+                skippedGroups.clear();
+                continue;
+            }
+
+            final List<C> group = pendingGroups.poll();
+            dexPool.mark();
+            for (ClassDef classDef : group) {
+                dexPool.internClass(classDef);
+            }
+            if (!dexPool.hasOverflowed(mMaxNumberOfIdxPerDex)) {
+                isEmpty = false;
+                continue;
+            }
+            dexPool.reset();
+
+            if (!isEmpty) {
+                skippedGroups.add(group);
+            } else if (group.size() > 1) {
+                // The group is too large for a dex, split it to single classes.
+                for (int i = group.size() - 1; i >= 0; i--) {
+                    pendingGroups.addFirst(Collections.singletonList(group.get(i)));
+                }
+            } else {
+                throw new ExceptionWithContext(
+                        "Class %s has too many references to fit in a dex file",
+                        group.get(0).getType());
             }
-            clsPool.intern(classDef);
         }
-        dexPool.writeTo(store.getDataStore(dexNum));
+        if (!isEmpty || dexNum == 0) {
+            dexPool.writeTo(store.getDataStore(dexNum));
+            dexNum++;
+        }
+        return dexNum;
+    }
+
+    /**
+     * Sorts the classes by type, with each inner class right after its outer class.
+     *
+     * @return The groups of each outer class and its inner classes
+     */
+    @Nonnull
+    static <C extends ClassDef> List<List<C>> groupNestedClasses(@Nonnull List<C> classList) {
+        final List<C> sortedClasses = new ArrayList<>(classList);
+        sortedClasses.sort(Comparator.comparing((C classDef) -> getOuterType(classDef.getType()))
+                .thenComparing(ClassDef::getType));
+
+        final List<List<C>> groups = new ArrayList<>();
+        String lastOuterType = null;
+        for (C classDef : sortedClasses) {
+            final String outerType = getOuterType(classDef.getType());
+            if (!outerType.equals(lastOuterType)) {
+                groups.add(new ArrayList<>());
+                lastOuterType = outerType;
+            }
+            groups.get(groups.size() - 1).add(classDef);
+        }
+        return groups;
+    }
+
+    /**
+     * @return The type without the inner class part and the trailing ';', e.g. "Lfoo/Bar" for
+     * "Lfoo/Bar$1;"
+     */
+    @Nonnull
+    private static String getOuterType(@Nonnull String type) {
+        final int packageEnd = type.lastIndexOf('/');
+        final int innerStart = type.indexOf('$', packageEnd + 1);
+        if (innerStart > 0) {
+            return type.substring(0, innerStart);
+        }
+        return type.endsWith(";") ? type.substring(0, type.length() - 1) : type;
     }
 
     public static String getDexFileName(int i) {
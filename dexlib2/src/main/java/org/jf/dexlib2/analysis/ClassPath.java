@@ -48,6 +48,7 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ClassPath {
     @Nonnull private final TypeProto unknownClass;
@@ -173,6 +174,15 @@ public class ClassPath {
         return unknownClass;
     }
 
+    private final AtomicInteger interfaceIdCounter = new AtomicInteger();
+
+    /**
+     * @return A new index for the interface sets of the classes in this class path
+     */
+    int newInterfaceId() {
+        return interfaceIdCounter.getAndIncrement();
+    }
+
     public boolean shouldCheckPackagePrivateAccess() {
         return checkPackagePrivateAccess;
     }
@@ -52,6 +52,7 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A class "prototype". This contains things like the interfaces, the superclass, the vtable and the instance fields
@@ -338,52 +339,166 @@ public class ClassProto implements TypeProto {
         return getClassDef().getSuperclass();
     }
 
+    private static final int INTERFACE_NO = 0;
+    private static final int INTERFACE_YES = 1;
+    // The answer depends on a class that couldn't be resolved
+    private static final int INTERFACE_UNRESOLVED = 2;
+
+    /**
+     * The interfaces of this class as a set of interface ids, see {@link #getInterfaceId()}.
+     *
+     * ids is null if the interfaces of this class couldn't be calculated at all.
+     */
+    private static final class InterfaceSet {
+        @Nullable final BitSet ids;
+        final boolean fullyResolved;
+
+        InterfaceSet(@Nullable BitSet ids, boolean fullyResolved) {
+            this.ids = ids;
+            this.fullyResolved = fullyResolved;
+        }
+    }
+
+    @Nonnull
+    private final Supplier<InterfaceSet> interfaceSetSupplier = Suppliers.memoize(new Supplier<InterfaceSet>() {
+        @Override public InterfaceSet get() {
+            Set<String> interfaces;
+            try {
+                interfaces = getInterfaces().keySet();
+            } catch (UnresolvedClassException ex) {
+                return new InterfaceSet(null, false);
+            }
+            BitSet ids = new BitSet();
+            for (String iface: interfaces) {
+                TypeProto interfaceProto = classPath.getClass(iface);
+                if (interfaceProto instanceof ClassProto) {
+                    ids.set(((ClassProto)interfaceProto).getInterfaceId());
+                }
+            }
+            return new InterfaceSet(ids, interfacesFullyResolved);
+        }
+    });
+
+    // -1 until this class is first checked as an interface
+    private volatile int interfaceId = -1;
+
+    /**
+     * @return The index of this class in the interface sets of the class path. The ids are only assigned to the
+     * classes that are used as interfaces, to keep the sets small.
+     */
+    private int getInterfaceId() {
+        int id = interfaceId;
+        if (id < 0) {
+            synchronized (this) {
+                id = interfaceId;
+                if (id < 0) {
+                    id = classPath.newInterfaceId();
+                    interfaceId = id;
+                }
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Same as implementsInterface, but the unresolved case is returned instead of thrown.
+     */
+    private int implementsInterface(@Nonnull ClassProto iface) {
+        InterfaceSet interfaceSet = interfaceSetSupplier.get();
+        if (interfaceSet.ids == null) {
+            return INTERFACE_UNRESOLVED;
+        }
+        if (interfaceSet.ids.get(iface.getInterfaceId())) {
+            return INTERFACE_YES;
+        }
+        return interfaceSet.fullyResolved ? INTERFACE_NO : INTERFACE_UNRESOLVED;
+    }
+
+    private static final int KIND_UNKNOWN = 0;
+    private static final int KIND_CLASS = 1;
+    private static final int KIND_INTERFACE = 2;
+    private static final int KIND_UNRESOLVED = 3;
+
+    private volatile int kind = KIND_UNKNOWN;
+
+    /**
+     * @return Whether this class is an interface, or KIND_UNRESOLVED if this class is not defined. Unlike isInterface,
+     * the resolution is only attempted once.
+     */
+    private int getKind() {
+        int kind = this.kind;
+        if (kind == KIND_UNKNOWN) {
+            try {
+                kind = isInterface() ? KIND_INTERFACE : KIND_CLASS;
+            } catch (UnresolvedClassException ex) {
+                kind = KIND_UNRESOLVED;
+            }
+            this.kind = kind;
+        }
+        return kind;
+    }
+
     /**
      * This is a helper method for getCommonSuperclass
      *
      * It checks if this class is an interface, and if so, if other implements it.
      *
-     * If this class is undefined, we go ahead and check if it is listed in other's interfaces. If not, we throw an
-     * UndefinedClassException
+     * If this class is undefined, we go ahead and check if it is listed in other's interfaces. If not, we return
+     * INTERFACE_NO.
      *
      * If the interfaces of other cannot be fully resolved, we check the interfaces that can be resolved. If not found,
-     * we throw an UndefinedClassException
+     * we return INTERFACE_UNRESOLVED
      *
      * @param other The class to check the interfaces of
-     * @return true if this class is an interface (or is undefined) other implements this class
+     * @return INTERFACE_YES if this class is an interface (or is undefined) other implements this class
      *
      */
-    private boolean checkInterface(@Nonnull ClassProto other) {
-        boolean isResolved = true;
-        boolean isInterface = true;
-        try {
-            isInterface = isInterface();
-        } catch (UnresolvedClassException ex) {
-            isResolved = false;
-            // if we don't know if this class is an interface or not,
-            // we can still try to call other.implementsInterface(this)
+    private int checkInterface(@Nonnull ClassProto other) {
+        int kind = getKind();
+        if (kind == KIND_CLASS) {
+            return INTERFACE_NO;
         }
-        if (isInterface) {
-            try {
-                if (other.implementsInterface(getType())) {
-                    return true;
-                }
-            } catch (UnresolvedClassException ex) {
-                // There are 2 possibilities here, depending on whether we were able to resolve this class.
-                // 1. If this class is resolved, then we know it is an interface class. The other class either
-                //    isn't defined, or its interfaces couldn't be fully resolved.
-                //    In this case, we throw an UnresolvedClassException
-                // 2. If this class is not resolved, we had tried to call implementsInterface anyway. We don't
-                //    know for sure if this class is an interface or not. We return false, and let processing
-                //    continue in getCommonSuperclass
-                if (isResolved) {
-                    throw ex;
-                }
-            }
+        int result = other.implementsInterface(this);
+        if (result == INTERFACE_UNRESOLVED && kind == KIND_UNRESOLVED) {
+            // We don't know for sure if this class is an interface or not. Let processing continue in
+            // getCommonSuperclass
+            return INTERFACE_NO;
         }
-        return false;
+        return result;
     }
 
+    /**
+     * The superclass chain of this class, from the root (Ljava/lang/Object; or Ujava/lang/Object; if a superclass
+     * couldn't be resolved) to this class.
+     *
+     * A class at position i of the chain is a superclass of another class only if it is at position i of the other
+     * chain, and then both chains are the same up to i. So the common superclass is at the last common position of
+     * the chains.
+     */
+    @Nonnull
+    private final Supplier<TypeProto[]> superclassChainSupplier = Suppliers.memoize(new Supplier<TypeProto[]>() {
+        @Override public TypeProto[] get() {
+            TypeProto superclass = TypeProtoUtils.getSuperclassAsTypeProto(ClassProto.this);
+            TypeProto[] chain;
+            if (superclass == null) {
+                chain = new TypeProto[1];
+            } else if (superclass instanceof ClassProto) {
+                TypeProto[] superclassChain = ((ClassProto)superclass).superclassChainSupplier.get();
+                chain = Arrays.copyOf(superclassChain, superclassChain.length + 1);
+            } else {
+                // Ujava/lang/Object;, the chain is the same as of TypeProtoUtils.getSuperclassChain
+                List<TypeProto> superclassChain = Lists.newArrayList(superclass);
+                Iterables.addAll(superclassChain, TypeProtoUtils.getSuperclassChain(superclass));
+                chain = Lists.reverse(superclassChain).toArray(new TypeProto[superclassChain.size() + 1]);
+            }
+            chain[chain.length - 1] = ClassProto.this;
+            return chain;
+        }
+    });
+
+    // The results of getCommonSuperclass with another ClassProto, created on the first merge
+    @Nullable private volatile ConcurrentHashMap<ClassProto, TypeProto> commonSuperclasses;
+
     @Override @Nonnull
     public TypeProto getCommonSuperclass(@Nonnull TypeProto other) {
         // use the other type's more specific implementation
@@ -403,44 +518,59 @@ public class ClassProto implements TypeProto {
             return other;
         }
 
-        boolean gotException = false;
-        try {
-            if (checkInterface((ClassProto)other)) {
-                return this;
+        ConcurrentHashMap<ClassProto, TypeProto> commonSuperclasses = this.commonSuperclasses;
+        if (commonSuperclasses == null) {
+            synchronized (this) {
+                commonSuperclasses = this.commonSuperclasses;
+                if (commonSuperclasses == null) {
+                    commonSuperclasses = new ConcurrentHashMap<ClassProto, TypeProto>(4);
+                    this.commonSuperclasses = commonSuperclasses;
+                }
             }
-        } catch (UnresolvedClassException ex) {
-            gotException = true;
         }
 
-        try {
-            if (((ClassProto)other).checkInterface(this)) {
-                return other;
-            }
-        } catch (UnresolvedClassException ex) {
-            gotException = true;
-        }
-        if (gotException) {
-            return classPath.getUnknownClass();
+        TypeProto commonSuperclass = commonSuperclasses.get(other);
+        if (commonSuperclass == null) {
+            commonSuperclass = findCommonSuperclass((ClassProto)other);
+            commonSuperclasses.put((ClassProto)other, commonSuperclass);
         }
+        return commonSuperclass;
+    }
 
-        List<TypeProto> thisChain = Lists.<TypeProto>newArrayList(this);
-        Iterables.addAll(thisChain, TypeProtoUtils.getSuperclassChain(this));
+    @Nonnull
+    private TypeProto findCommonSuperclass(@Nonnull ClassProto other) {
+        int result = checkInterface(other);
+        if (result == INTERFACE_YES) {
+            return this;
+        }
+        boolean unresolved = result == INTERFACE_UNRESOLVED;
 
-        List<TypeProto> otherChain = Lists.newArrayList(other);
-        Iterables.addAll(otherChain, TypeProtoUtils.getSuperclassChain(other));
+        result = other.checkInterface(this);
+        if (result == INTERFACE_YES) {
+            return other;
+        }
+        if (unresolved || result == INTERFACE_UNRESOLVED) {
+            return classPath.getUnknownClass();
+        }
 
-        // reverse them, so that the first entry is either Ljava/lang/Object; or Ujava/lang/Object;
-        thisChain = Lists.reverse(thisChain);
-        otherChain = Lists.reverse(otherChain);
+        TypeProto[] thisChain = superclassChainSupplier.get();
+        TypeProto[] otherChain = other.superclassChainSupplier.get();
+        if (thisChain[0] != otherChain[0]) {
+            return classPath.getUnknownClass();
+        }
 
-        for (int i=Math.min(thisChain.size(), otherChain.size())-1; i>=0; i--) {
-            TypeProto typeProto = thisChain.get(i);
-            if (typeProto.getType().equals(otherChain.get(i).getType())) {
-                return typeProto;
+        // find the last position where both chains have the same class
+        int low = 0;
+        int high = Math.min(thisChain.length, otherChain.length) - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (thisChain[mid] == otherChain[mid]) {
+                low = mid;
+            } else {
+                high = mid - 1;
             }
         }
-
-        return classPath.getUnknownClass();
+        return thisChain[low];
     }
 
     @Override
@@ -32,6 +32,7 @@
 package org.jf.dexlib2.analysis;
 
 import com.google.common.collect.Maps;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
 import org.jf.dexlib2.iface.ClassDef;
 import org.jf.dexlib2.iface.DexFile;
 
@@ -40,17 +41,25 @@ import java.util.Map;
 
 public class DexClassProvider implements ClassProvider {
     private final DexFile dexFile;
-    private Map<String, ClassDef> classMap = Maps.newHashMap();
+    // Only used if the dex file is not able to find a class by itself
+    @Nullable private Map<String, ClassDef> classMap;
 
     public DexClassProvider(DexFile dexFile) {
         this.dexFile = dexFile;
 
-        for (ClassDef classDef: dexFile.getClasses()) {
-            classMap.put(classDef.getType(), classDef);
+        if (!(dexFile instanceof DexBackedDexFile)) {
+            classMap = Maps.newHashMap();
+            for (ClassDef classDef: dexFile.getClasses()) {
+                classMap.put(classDef.getType(), classDef);
+            }
         }
     }
 
     @Nullable @Override public ClassDef getClassDef(String type) {
+        if (classMap == null) {
+            // A binary search of the sorted string and type ids, see DexBackedDexFile.findStringIndex
+            return ((DexBackedDexFile)dexFile).findClassDef(type);
+        }
         return classMap.get(type);
     }
 }
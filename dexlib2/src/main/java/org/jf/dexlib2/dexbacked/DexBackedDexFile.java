@@ -53,6 +53,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
 
@@ -106,6 +107,9 @@ public class DexBackedDexFile extends BaseDexBuffer implements DexFile {
     final CompactInfo compactInfo;
     final CompactOffsetTable debugInfoOffsets;
 
+    // Maps a type index to the index of its class def, or -1 if the type is not defined here.
+    @Nullable private int[] classDefIndices;
+
     protected DexBackedDexFile(@Nullable Opcodes opcodes, @Nonnull byte[] buf, int offset,
             boolean verifyMagic) {
         this(opcodes, buf, offset, 0, verifyMagic);
@@ -254,6 +258,16 @@ public class DexBackedDexFile extends BaseDexBuffer implements DexFile {
         };
     }
 
+    /**
+     * Streams through the classes of this dex file in layout order, without creating the objects of getClasses().
+     *
+     * @param visitor The visitor to call for the classes, members, annotations and instructions
+     * @return true if all classes were visited, or false if the visitor stopped the walk
+     */
+    public boolean accept(@Nonnull DexVisitor visitor) {
+        return new DexWalker(this, visitor).walk();
+    }
+
     public int getStringIdItemOffset(int stringIndex) {
         if (stringIndex < 0 || stringIndex >= stringCount) {
             throw new InvalidItemIndex(stringIndex, "String index out of bounds: %d", stringIndex);
@@ -384,6 +398,94 @@ public class DexBackedDexFile extends BaseDexBuffer implements DexFile {
         return getType(typeIndex);
     }
 
+    /**
+     * Finds a string without decoding all strings. The string ids are sorted by the UTF-16 code
+     * units of their contents, so it is a binary search.
+     *
+     * The order is required by the dex format and checked by the verifier of the runtime, so it
+     * is not checked here. If the string ids of a malformed dex file are not sorted, an existing
+     * string may not be found.
+     *
+     * @return The index of the string, or -1 if it is not in this dex file
+     */
+    public int findStringIndex(@Nonnull String string) {
+        int low = 0;
+        int high = stringCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int result = getString(mid).compareTo(string);
+            if (result < 0) {
+                low = mid + 1;
+            } else if (result > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The index of the type, or -1 if it is not in this dex file
+     */
+    public int findTypeIndex(@Nonnull String type) {
+        int stringIndex = findStringIndex(type);
+        if (stringIndex < 0) {
+            return -1;
+        }
+        // The type ids are sorted by the index of their descriptor string.
+        int low = 0;
+        int high = typeCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midStringIndex = readSmallUint(typeStartOffset + mid*TypeIdItem.ITEM_SIZE);
+            if (midStringIndex < stringIndex) {
+                low = mid + 1;
+            } else if (midStringIndex > stringIndex) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the class def of a type without reading all classes. The first call builds a table from
+     * type index to class def index, which only reads the type index of each class def.
+     *
+     * @return The class def of the type, or null if it is not defined in this dex file. If the type
+     * is defined multiple times, the last one is returned.
+     */
+    @Nullable
+    public DexBackedClassDef findClassDef(@Nonnull String type) {
+        int typeIndex = findTypeIndex(type);
+        if (typeIndex < 0) {
+            return null;
+        }
+        int classIndex = getClassDefIndices()[typeIndex];
+        if (classIndex < 0) {
+            return null;
+        }
+        return new DexBackedClassDef(this, getClassDefItemOffset(classIndex));
+    }
+
+    @Nonnull
+    private synchronized int[] getClassDefIndices() {
+        if (classDefIndices == null) {
+            int[] indices = new int[typeCount];
+            Arrays.fill(indices, -1);
+            for (int i = 0; i < classCount; i++) {
+                int typeIndex = readSmallUint(getClassDefItemOffset(i) + ClassDefItem.CLASS_OFFSET);
+                if (typeIndex < typeCount) {
+                    indices[typeIndex] = i;
+                }
+            }
+            classDefIndices = indices;
+        }
+        return classDefIndices;
+    }
+
     public List<DexBackedStringReference> getStrings() {
         return new AbstractList<DexBackedStringReference>() {
             @Override public DexBackedStringReference get(int index) {
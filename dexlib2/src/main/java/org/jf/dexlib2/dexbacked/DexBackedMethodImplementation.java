@@ -33,6 +33,7 @@ package org.jf.dexlib2.dexbacked;
 
 import com.google.common.collect.ImmutableList;
 import org.jf.dexlib2.dexbacked.instruction.DexBackedInstruction;
+import org.jf.dexlib2.dexbacked.instruction.InstructionCursor;
 import org.jf.dexlib2.dexbacked.raw.CodeItem;
 import org.jf.dexlib2.dexbacked.util.DebugInfo;
 import org.jf.dexlib2.dexbacked.util.FixedSizeList;
@@ -107,49 +108,52 @@ public class DexBackedMethodImplementation implements MethodImplementation {
         this.method = method;
         this.codeOffset = codeOffset;
 
+        codeItemInfo = dexFile.isCompact ? readCompactCodeItemInfo(dexFile, codeOffset) : null;
+    }
+
+    /**
+     * Reads the header of a code item of compact dex, which may have pre-headers before the code offset.
+     */
+    @Nonnull
+    static CompactCodeItemInfo readCompactCodeItemInfo(@Nonnull DexBackedDexFile dexFile, int codeOffset) {
         // See art/libdexfile/dex/compact_dex_file.h, art/dexlayout/compact_dex_writer.cc
-        if (dexFile.isCompact) {
-            final int fields = dexFile.readUshort(codeOffset);
-            int registers_size = (fields >> kRegistersSizeShift) & 0xF;
-            int ins_size = (fields >> kInsSizeShift) & 0xF;
-            int outs_size = (fields >> kOutsSizeShift) & 0xF;
-            int tries_size = fields & 0xF;
-
-            final int insns_count_and_flags_ = dexFile.readUshort(SIZEOF_UINT16 + codeOffset);
-            int insns_count = insns_count_and_flags_ >> kInsnsSizeShift;
-
-            if ((insns_count_and_flags_ & kFlagPreHeaderCombined) != 0) {
-                // The code item has pre-headers.
-                int preOffset = codeOffset;
-                if ((insns_count_and_flags_ & kFlagPreHeaderInsnsSize) != 0) {
-                    preOffset -= SIZEOF_UINT16;
-                    insns_count += dexFile.readUshort(preOffset);
-                    preOffset -= SIZEOF_UINT16;
-                    insns_count += dexFile.readUshort(preOffset) << 16;
-                }
-                if ((insns_count_and_flags_ & kFlagPreHeaderRegisterSize) != 0) {
-                    preOffset -= SIZEOF_UINT16;
-                    registers_size += dexFile.readUshort(preOffset);
-                }
-                if ((insns_count_and_flags_ & kFlagPreHeaderInsSize) != 0) {
-                    preOffset -= SIZEOF_UINT16;
-                    ins_size += dexFile.readUshort(preOffset);
-                }
-                if ((insns_count_and_flags_ & kFlagPreHeaderOutsSize) != 0) {
-                    preOffset -= SIZEOF_UINT16;
-                    outs_size += dexFile.readUshort(preOffset);
-                }
-                if ((insns_count_and_flags_ & kFlagPreHeaderTriesSize) != 0) {
-                    preOffset -= SIZEOF_UINT16;
-                    tries_size += dexFile.readUshort(preOffset);
-                }
+        final int fields = dexFile.readUshort(codeOffset);
+        int registers_size = (fields >> kRegistersSizeShift) & 0xF;
+        int ins_size = (fields >> kInsSizeShift) & 0xF;
+        int outs_size = (fields >> kOutsSizeShift) & 0xF;
+        int tries_size = fields & 0xF;
+
+        final int insns_count_and_flags_ = dexFile.readUshort(SIZEOF_UINT16 + codeOffset);
+        int insns_count = insns_count_and_flags_ >> kInsnsSizeShift;
+
+        if ((insns_count_and_flags_ & kFlagPreHeaderCombined) != 0) {
+            // The code item has pre-headers.
+            int preOffset = codeOffset;
+            if ((insns_count_and_flags_ & kFlagPreHeaderInsnsSize) != 0) {
+                preOffset -= SIZEOF_UINT16;
+                insns_count += dexFile.readUshort(preOffset);
+                preOffset -= SIZEOF_UINT16;
+                insns_count += dexFile.readUshort(preOffset) << 16;
+            }
+            if ((insns_count_and_flags_ & kFlagPreHeaderRegisterSize) != 0) {
+                preOffset -= SIZEOF_UINT16;
+                registers_size += dexFile.readUshort(preOffset);
+            }
+            if ((insns_count_and_flags_ & kFlagPreHeaderInsSize) != 0) {
+                preOffset -= SIZEOF_UINT16;
+                ins_size += dexFile.readUshort(preOffset);
+            }
+            if ((insns_count_and_flags_ & kFlagPreHeaderOutsSize) != 0) {
+                preOffset -= SIZEOF_UINT16;
+                outs_size += dexFile.readUshort(preOffset);
+            }
+            if ((insns_count_and_flags_ & kFlagPreHeaderTriesSize) != 0) {
+                preOffset -= SIZEOF_UINT16;
+                tries_size += dexFile.readUshort(preOffset);
             }
-            registers_size += ins_size;
-            codeItemInfo = new CompactCodeItemInfo(
-                    registers_size, ins_size, outs_size, tries_size, insns_count);
-        } else {
-            codeItemInfo = null;
         }
+        registers_size += ins_size;
+        return new CompactCodeItemInfo(registers_size, ins_size, outs_size, tries_size, insns_count);
     }
 
     @Override public int getRegisterCount() {
@@ -208,6 +212,16 @@ public class DexBackedMethodImplementation implements MethodImplementation {
         };
     }
 
+    /**
+     * @return A cursor over the instructions, which reads them without creating an object per instruction
+     */
+    @Nonnull
+    public InstructionCursor newInstructionCursor() {
+        int instructionsStartOffset = getInstructionStartOffset();
+        return new InstructionCursor(dexFile, instructionsStartOffset,
+                instructionsStartOffset + (getInstructionsCount() * 2));
+    }
+
     @Nonnull
     @Override
     public List<? extends DexBackedTryBlock> getTryBlocks() {
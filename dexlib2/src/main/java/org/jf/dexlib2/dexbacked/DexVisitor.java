@@ -0,0 +1,273 @@
+/*
+ * Copyright 2026, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.dexbacked;
+
+import org.jf.dexlib2.dexbacked.instruction.InstructionCursor;
+import org.jf.dexlib2.dexbacked.raw.ClassDefItem;
+import org.jf.dexlib2.dexbacked.raw.CodeItem;
+import org.jf.dexlib2.dexbacked.reference.DexBackedFieldReference;
+import org.jf.dexlib2.dexbacked.reference.DexBackedMethodReference;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A callback based alternative to the object model of DexBackedDexFile, for the passes that read the whole file
+ * once, e.g. to list the strings or the references of all methods.
+ *
+ * {@link DexBackedDexFile#accept(DexVisitor)} streams through the classes in the order of the class_defs section.
+ * For each class, it visits the class annotations, then the static and instance fields, each followed by its
+ * annotations, then the direct and virtual methods, each followed by its annotations, its parameter annotations and
+ * its instructions.
+ *
+ * The items passed to the callbacks are scratch objects that are reused for the following items, so they must not
+ * be kept after the callback returns. They only hold indexes and offsets, the names are read when they are asked for.
+ * Unlike DexBackedClassDef, the fields and methods are reported as they are encoded, including duplicated entries.
+ *
+ * Each callback returns {@link #CONTINUE}, {@link #SKIP} to skip the rest of the current item, or {@link #STOP} to
+ * end the walk.
+ */
+public abstract class DexVisitor {
+    /** Continue with the next item */
+    public static final int CONTINUE = 0;
+    /**
+     * Skip the content of the current item: the members of a class, the annotations and instructions of a field or a
+     * method, the remaining annotations of an annotation set or the remaining instructions of a method
+     */
+    public static final int SKIP = 1;
+    /** End the walk */
+    public static final int STOP = 2;
+
+    /**
+     * Called before the annotations and members of a class. If SKIP is returned, visitClassEnd isn't called either.
+     */
+    public int visitClass(@Nonnull ClassItem classItem) {
+        return CONTINUE;
+    }
+
+    public int visitAnnotation(@Nonnull AnnotationItem annotationItem) {
+        return CONTINUE;
+    }
+
+    public int visitField(@Nonnull FieldItem fieldItem) {
+        return CONTINUE;
+    }
+
+    public int visitMethod(@Nonnull MethodItem methodItem) {
+        return CONTINUE;
+    }
+
+    /**
+     * @param methodItem The method that contains the instruction
+     * @param instruction The cursor positioned at the instruction
+     */
+    public int visitInstruction(@Nonnull MethodItem methodItem, @Nonnull InstructionCursor instruction) {
+        return CONTINUE;
+    }
+
+    /**
+     * Called after all annotations and members of a class were visited. SKIP has the same effect as CONTINUE.
+     */
+    public int visitClassEnd(@Nonnull ClassItem classItem) {
+        return CONTINUE;
+    }
+
+    public static class ClassItem {
+        @Nonnull public final DexBackedDexFile dexFile;
+        int classDefIndex;
+        int classDefOffset;
+
+        ClassItem(@Nonnull DexBackedDexFile dexFile) {
+            this.dexFile = dexFile;
+        }
+
+        public int getClassDefIndex() { return classDefIndex; }
+        public int getClassDefOffset() { return classDefOffset; }
+
+        public int getTypeIndex() {
+            return dexFile.readSmallUint(classDefOffset + ClassDefItem.CLASS_OFFSET);
+        }
+
+        @Nonnull
+        public String getType() {
+            return dexFile.getType(getTypeIndex());
+        }
+
+        public int getAccessFlags() {
+            return dexFile.readSmallUint(classDefOffset + ClassDefItem.ACCESS_FLAGS_OFFSET);
+        }
+
+        /**
+         * @return The type index of the superclass, or -1 if there is no superclass
+         */
+        public int getSuperclassIndex() {
+            return dexFile.readOptionalUint(classDefOffset + ClassDefItem.SUPERCLASS_OFFSET);
+        }
+
+        @Nullable
+        public String getSuperclass() {
+            return dexFile.getOptionalType(getSuperclassIndex());
+        }
+
+        /**
+         * @return A new DexBackedClassDef of the class, for the classes that need the full object model
+         */
+        @Nonnull
+        public DexBackedClassDef toClassDef() {
+            return new DexBackedClassDef(dexFile, classDefOffset);
+        }
+    }
+
+    public static class FieldItem {
+        @Nonnull public final DexBackedDexFile dexFile;
+        int fieldIndex;
+        int accessFlags;
+        boolean isStatic;
+
+        FieldItem(@Nonnull DexBackedDexFile dexFile) {
+            this.dexFile = dexFile;
+        }
+
+        public int getFieldIndex() { return fieldIndex; }
+        public int getAccessFlags() { return accessFlags; }
+        public boolean isStatic() { return isStatic; }
+
+        @Nonnull
+        public DexBackedFieldReference getReference() {
+            return new DexBackedFieldReference(dexFile, fieldIndex);
+        }
+    }
+
+    public static class MethodItem {
+        @Nonnull public final DexBackedDexFile dexFile;
+        int methodIndex;
+        int accessFlags;
+        boolean isDirect;
+        int codeOffset;
+        int registerCount;
+        int instructionStartOffset;
+        int instructionsCount;
+
+        MethodItem(@Nonnull DexBackedDexFile dexFile) {
+            this.dexFile = dexFile;
+        }
+
+        void set(int methodIndex, int accessFlags, boolean isDirect, int codeOffset) {
+            this.methodIndex = methodIndex;
+            this.accessFlags = accessFlags;
+            this.isDirect = isDirect;
+            this.codeOffset = codeOffset;
+            if (codeOffset == 0) {
+                registerCount = 0;
+                instructionStartOffset = 0;
+                instructionsCount = 0;
+            } else if (dexFile.isCompact) {
+                DexBackedMethodImplementation.CompactCodeItemInfo codeItemInfo =
+                        DexBackedMethodImplementation.readCompactCodeItemInfo(dexFile, codeOffset);
+                registerCount = codeItemInfo.registersSize;
+                instructionStartOffset = codeOffset + 4;
+                instructionsCount = codeItemInfo.insnsCount;
+            } else {
+                registerCount = dexFile.readUshort(codeOffset + CodeItem.REGISTERS_OFFSET);
+                instructionStartOffset = codeOffset + CodeItem.INSTRUCTION_START_OFFSET;
+                instructionsCount = dexFile.readSmallUint(codeOffset + CodeItem.INSTRUCTION_COUNT_OFFSET);
+            }
+        }
+
+        public int getMethodIndex() { return methodIndex; }
+        public int getAccessFlags() { return accessFlags; }
+        public boolean isDirect() { return isDirect; }
+        public boolean hasImplementation() { return codeOffset != 0; }
+
+        /**
+         * @return The offset of the code item, or 0 if the method has no implementation
+         */
+        public int getCodeOffset() { return codeOffset; }
+        public int getRegisterCount() { return registerCount; }
+
+        /**
+         * @return The size of the instructions, in code units
+         */
+        public int getInstructionsCount() { return instructionsCount; }
+        int getInstructionStartOffset() { return instructionStartOffset; }
+
+        @Nonnull
+        public DexBackedMethodReference getReference() {
+            return new DexBackedMethodReference(dexFile, methodIndex);
+        }
+    }
+
+    public static class AnnotationItem {
+        public static final int TARGET_CLASS = 0;
+        public static final int TARGET_FIELD = 1;
+        public static final int TARGET_METHOD = 2;
+        public static final int TARGET_PARAMETER = 3;
+
+        @Nonnull public final DexBackedDexFile dexFile;
+        int target;
+        int parameterIndex;
+        int annotationOffset;
+        int visibility;
+        int typeIndex;
+
+        AnnotationItem(@Nonnull DexBackedDexFile dexFile) {
+            this.dexFile = dexFile;
+        }
+
+        /**
+         * @return One of the TARGET_ constants. The annotated field or method is the last visited one.
+         */
+        public int getTarget() { return target; }
+
+        /**
+         * @return The index of the annotated parameter, or -1 if the target isn't a parameter
+         */
+        public int getParameterIndex() { return parameterIndex; }
+        public int getAnnotationOffset() { return annotationOffset; }
+        public int getVisibility() { return visibility; }
+        public int getTypeIndex() { return typeIndex; }
+
+        @Nonnull
+        public String getType() {
+            return dexFile.getType(typeIndex);
+        }
+
+        /**
+         * @return A new DexBackedAnnotation, which gives access to the elements of the annotation
+         */
+        @Nonnull
+        public DexBackedAnnotation toAnnotation() {
+            return new DexBackedAnnotation(dexFile, annotationOffset);
+        }
+    }
+}
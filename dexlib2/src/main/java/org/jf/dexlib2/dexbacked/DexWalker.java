@@ -0,0 +1,288 @@
+/*
+ * Copyright 2026, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.dexbacked;
+
+import org.jf.dexlib2.dexbacked.DexVisitor.AnnotationItem;
+import org.jf.dexlib2.dexbacked.DexVisitor.ClassItem;
+import org.jf.dexlib2.dexbacked.DexVisitor.FieldItem;
+import org.jf.dexlib2.dexbacked.DexVisitor.MethodItem;
+import org.jf.dexlib2.dexbacked.instruction.InstructionCursor;
+import org.jf.dexlib2.dexbacked.raw.ClassDefItem;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Walks a dex file for {@link DexBackedDexFile#accept(DexVisitor)}. All the state is kept in the fields, so nothing
+ * is allocated per class, member or instruction.
+ */
+class DexWalker {
+    private static final int FIELD_ANNOTATIONS = 0;
+    private static final int METHOD_ANNOTATIONS = 1;
+    private static final int PARAMETER_ANNOTATIONS = 2;
+
+    /** The size of a field_annotation, method_annotation or parameter_annotation structure */
+    private static final int ANNOTATION_ENTRY_SIZE = 8;
+    private static final int ANNOTATIONS_START_OFFSET = 16;
+
+    @Nonnull private final DexBackedDexFile dexFile;
+    @Nonnull private final DexVisitor visitor;
+
+    @Nonnull private final DexReader classDataReader;
+    @Nonnull private final DexReader annotationReader;
+    @Nonnull private final InstructionCursor instructionCursor;
+
+    @Nonnull private final ClassItem classItem;
+    @Nonnull private final FieldItem fieldItem;
+    @Nonnull private final MethodItem methodItem;
+    @Nonnull private final AnnotationItem annotationItem;
+
+    // The lists of the annotations_directory_item of the current class, indexed by FIELD_ANNOTATIONS etc.
+    private final int[] annotationListOffsets = new int[3];
+    private final int[] annotationListSizes = new int[3];
+    private final int[] annotationListPositions = new int[3];
+
+    DexWalker(@Nonnull DexBackedDexFile dexFile, @Nonnull DexVisitor visitor) {
+        this.dexFile = dexFile;
+        this.visitor = visitor;
+        classDataReader = dexFile.readerAt(0);
+        annotationReader = dexFile.readerAt(0);
+        instructionCursor = new InstructionCursor(dexFile, 0, 0);
+        classItem = new ClassItem(dexFile);
+        fieldItem = new FieldItem(dexFile);
+        methodItem = new MethodItem(dexFile);
+        annotationItem = new AnnotationItem(dexFile);
+    }
+
+    /**
+     * @return true if all classes were visited, or false if the visitor stopped the walk
+     */
+    boolean walk() {
+        int classCount = dexFile.getClassCount();
+        for (int i=0; i<classCount; i++) {
+            if (!walkClass(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean walkClass(int classDefIndex) {
+        int classDefOffset = dexFile.getClassDefItemOffset(classDefIndex);
+        classItem.classDefIndex = classDefIndex;
+        classItem.classDefOffset = classDefOffset;
+        int result = visitor.visitClass(classItem);
+        if (result == DexVisitor.STOP) {
+            return false;
+        }
+        if (result == DexVisitor.SKIP) {
+            return true;
+        }
+
+        int directoryOffset = readDataOffset(classDefOffset + ClassDefItem.ANNOTATIONS_OFFSET);
+        readAnnotationsDirectory(directoryOffset);
+        if (directoryOffset != 0) {
+            int classAnnotationsOffset = readDataOffset(directoryOffset);
+            if (classAnnotationsOffset != 0 &&
+                    !walkAnnotationSet(classAnnotationsOffset, AnnotationItem.TARGET_CLASS, -1)) {
+                return false;
+            }
+        }
+
+        int classDataOffset = readDataOffset(classDefOffset + ClassDefItem.CLASS_DATA_OFFSET);
+        if (classDataOffset != 0) {
+            DexReader reader = classDataReader;
+            reader.setOffset(classDataOffset);
+            int staticFieldCount = reader.readSmallUleb128();
+            int instanceFieldCount = reader.readSmallUleb128();
+            int directMethodCount = reader.readSmallUleb128();
+            int virtualMethodCount = reader.readSmallUleb128();
+
+            if (!walkFields(staticFieldCount, true) || !walkFields(instanceFieldCount, false) ||
+                    !walkMethods(directMethodCount, true) || !walkMethods(virtualMethodCount, false)) {
+                return false;
+            }
+        }
+
+        return visitor.visitClassEnd(classItem) != DexVisitor.STOP;
+    }
+
+    private boolean walkFields(int count, boolean isStatic) {
+        DexReader reader = classDataReader;
+        // The static and instance fields are sorted separately, but share a single list of annotations
+        annotationListPositions[FIELD_ANNOTATIONS] = 0;
+        int fieldIndex = 0;
+        for (int i=0; i<count; i++) {
+            // large values may be used for the index delta, which cause the cumulative index to overflow upon
+            // addition, effectively allowing out of order entries.
+            fieldIndex += reader.readLargeUleb128();
+            fieldItem.fieldIndex = fieldIndex;
+            fieldItem.accessFlags = reader.readSmallUleb128();
+            fieldItem.isStatic = isStatic;
+
+            int result = visitor.visitField(fieldItem);
+            if (result == DexVisitor.STOP) {
+                return false;
+            }
+            if (result == DexVisitor.SKIP) {
+                continue;
+            }
+
+            int annotationSetOffset = seekAnnotations(FIELD_ANNOTATIONS, fieldIndex);
+            if (annotationSetOffset != 0 &&
+                    !walkAnnotationSet(annotationSetOffset, AnnotationItem.TARGET_FIELD, -1)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean walkMethods(int count, boolean isDirect) {
+        DexReader reader = classDataReader;
+        annotationListPositions[METHOD_ANNOTATIONS] = 0;
+        annotationListPositions[PARAMETER_ANNOTATIONS] = 0;
+        int methodIndex = 0;
+        for (int i=0; i<count; i++) {
+            methodIndex += reader.readLargeUleb128();
+            int accessFlags = reader.readSmallUleb128();
+            int codeOffset = reader.readSmallUleb128();
+            if (codeOffset != 0) {
+                codeOffset += dexFile.compactDataOffset;
+            }
+            methodItem.set(methodIndex, accessFlags, isDirect, codeOffset);
+
+            int result = visitor.visitMethod(methodItem);
+            if (result == DexVisitor.STOP) {
+                return false;
+            }
+            if (result == DexVisitor.SKIP) {
+                continue;
+            }
+
+            int annotationSetOffset = seekAnnotations(METHOD_ANNOTATIONS, methodIndex);
+            if (annotationSetOffset != 0 &&
+                    !walkAnnotationSet(annotationSetOffset, AnnotationItem.TARGET_METHOD, -1)) {
+                return false;
+            }
+
+            int annotationSetListOffset = seekAnnotations(PARAMETER_ANNOTATIONS, methodIndex);
+            if (annotationSetListOffset != 0) {
+                int parameterCount = dexFile.readSmallUint(annotationSetListOffset);
+                for (int parameterIndex=0; parameterIndex<parameterCount; parameterIndex++) {
+                    annotationSetOffset = readDataOffset(annotationSetListOffset + 4 + parameterIndex * 4);
+                    if (annotationSetOffset != 0 &&
+                            !walkAnnotationSet(annotationSetOffset, AnnotationItem.TARGET_PARAMETER, parameterIndex)) {
+                        return false;
+                    }
+                }
+            }
+
+            if (methodItem.hasImplementation()) {
+                int instructionStartOffset = methodItem.getInstructionStartOffset();
+                instructionCursor.reset(instructionStartOffset,
+                        instructionStartOffset + methodItem.getInstructionsCount() * 2);
+                while (instructionCursor.next()) {
+                    result = visitor.visitInstruction(methodItem, instructionCursor);
+                    if (result == DexVisitor.STOP) {
+                        return false;
+                    }
+                    if (result == DexVisitor.SKIP) {
+                        break;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean walkAnnotationSet(int annotationSetOffset, int target, int parameterIndex) {
+        int size = dexFile.readSmallUint(annotationSetOffset);
+        for (int i=0; i<size; i++) {
+            int annotationOffset = readDataOffset(annotationSetOffset + 4 + (4 * i));
+            annotationReader.setOffset(annotationOffset);
+            annotationItem.target = target;
+            annotationItem.parameterIndex = parameterIndex;
+            annotationItem.annotationOffset = annotationOffset;
+            annotationItem.visibility = annotationReader.readUbyte();
+            annotationItem.typeIndex = annotationReader.readSmallUleb128();
+
+            int result = visitor.visitAnnotation(annotationItem);
+            if (result == DexVisitor.STOP) {
+                return false;
+            }
+            if (result == DexVisitor.SKIP) {
+                break;
+            }
+        }
+        return true;
+    }
+
+    private void readAnnotationsDirectory(int directoryOffset) {
+        int listOffset = directoryOffset + ANNOTATIONS_START_OFFSET;
+        for (int list=FIELD_ANNOTATIONS; list<=PARAMETER_ANNOTATIONS; list++) {
+            int size = directoryOffset == 0 ? 0 : dexFile.readSmallUint(directoryOffset + 4 + list * 4);
+            annotationListOffsets[list] = listOffset;
+            annotationListSizes[list] = size;
+            annotationListPositions[list] = 0;
+            listOffset += size * ANNOTATION_ENTRY_SIZE;
+        }
+    }
+
+    /**
+     * Seeks forward in one of the annotation lists of the current class, like AnnotationsDirectory.AnnotationIterator.
+     *
+     * @return The annotation offset associated with the field or method index, or 0 if not found
+     */
+    private int seekAnnotations(int list, int itemIndex) {
+        int listOffset = annotationListOffsets[list];
+        int size = annotationListSizes[list];
+        int position = annotationListPositions[list];
+        for (; position<size; position++) {
+            int entryOffset = listOffset + position * ANNOTATION_ENTRY_SIZE;
+            int entryIndex = dexFile.readSmallUint(entryOffset);
+            if (entryIndex >= itemIndex) {
+                annotationListPositions[list] = position;
+                return entryIndex == itemIndex ? readDataOffset(entryOffset + 4) : 0;
+            }
+        }
+        annotationListPositions[list] = position;
+        return 0;
+    }
+
+    /**
+     * @return The offset in the data section, or 0 if the offset is absent
+     */
+    private int readDataOffset(int offset) {
+        int dataOffset = dexFile.readSmallUint(offset);
+        return dataOffset == 0 ? 0 : dataOffset + dexFile.compactDataOffset;
+    }
+}
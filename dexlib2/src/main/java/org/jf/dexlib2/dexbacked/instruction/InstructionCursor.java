@@ -0,0 +1,317 @@
+/*
+ * Copyright 2026, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.dexbacked.instruction;
+
+import org.jf.dexlib2.Format;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.ReferenceType;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.util.ExceptionWithContext;
+import org.jf.util.NibbleUtils;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A flyweight to iterate the instructions of a method in place, without creating an instruction object for each of
+ * them.
+ *
+ * The accessors read the current instruction from the buffer, in the same way as the corresponding methods of the
+ * DexBackedInstruction classes. The registers are named by their position in the instruction format, e.g. for
+ * Format35c the registers are C, D, E, F and G, and for Format3rc the start register is read with
+ * {@link #getStartRegister()}. An accessor that doesn't apply to the format of the current instruction returns a
+ * meaningless value.
+ *
+ * An instruction with an unknown opcode is read as a nop of 1 code unit, like DexBackedUnknownInstruction.
+ */
+public class InstructionCursor {
+    @Nonnull private final DexBackedDexFile dexFile;
+    @Nonnull private final Opcodes opcodes;
+    private int startOffset;
+    private int endOffset;
+
+    private int nextOffset;
+    private int instructionStart = -1;
+    @Nonnull private Opcode opcode = Opcode.NOP;
+    private boolean unknown;
+    private int codeUnits;
+
+    /**
+     * @param startOffset The offset of the first instruction in the dex file
+     * @param endOffset The offset after the last instruction
+     */
+    public InstructionCursor(@Nonnull DexBackedDexFile dexFile, int startOffset, int endOffset) {
+        this.dexFile = dexFile;
+        this.opcodes = dexFile.getOpcodes();
+        reset(startOffset, endOffset);
+    }
+
+    /**
+     * Moves the cursor to before the first instruction of another range, so the cursor can be reused for the next
+     * method.
+     */
+    public void reset(int startOffset, int endOffset) {
+        this.startOffset = startOffset;
+        this.endOffset = endOffset;
+        this.nextOffset = startOffset;
+        this.instructionStart = -1;
+    }
+
+    /**
+     * Moves to the next instruction.
+     *
+     * @return false if there are no more instructions
+     */
+    public boolean next() {
+        if (nextOffset >= endOffset) {
+            return false;
+        }
+        instructionStart = nextOffset;
+
+        int opcodeValue = dexFile.readUbyte(instructionStart);
+        if (opcodeValue == 0) {
+            opcodeValue = dexFile.readUshort(instructionStart);
+        }
+        Opcode opcode = opcodes.getOpcodeByValue(opcodeValue);
+        unknown = opcode == null;
+        this.opcode = unknown ? Opcode.NOP : opcode;
+
+        switch (this.opcode.format) {
+            case PackedSwitchPayload:
+                codeUnits = 4 + dexFile.readUshort(instructionStart + 2) * 2;
+                break;
+            case SparseSwitchPayload:
+                codeUnits = 2 + dexFile.readUshort(instructionStart + 2) * 4;
+                break;
+            case ArrayPayload:
+                codeUnits = 4 + (dexFile.readUshort(instructionStart + 2) *
+                        dexFile.readSmallUint(instructionStart + 4) + 1) / 2;
+                break;
+            default:
+                codeUnits = this.opcode.format.size / 2;
+        }
+
+        nextOffset = instructionStart + codeUnits * 2;
+        // Does the instruction extend past the end of the method?
+        if (nextOffset > endOffset || nextOffset < 0) {
+            throw new ExceptionWithContext("The last instruction in the method is truncated offset=%d endOffset=%d",
+                    nextOffset, endOffset);
+        }
+        return true;
+    }
+
+    /**
+     * @return The offset of the current instruction in the dex file
+     */
+    public int getOffset() {
+        return instructionStart;
+    }
+
+    /**
+     * @return The address of the current instruction in the method, in code units
+     */
+    public int getCodeAddress() {
+        return (instructionStart - startOffset) / 2;
+    }
+
+    @Nonnull public Opcode getOpcode() { return opcode; }
+    @Nonnull public Format getFormat() { return opcode.format; }
+    public int getCodeUnits() { return codeUnits; }
+
+    /**
+     * @return true if the opcode of the current instruction is not known in the opcodes of the dex file
+     */
+    public boolean isUnknown() {
+        return unknown;
+    }
+
+    public int getRegisterA() {
+        switch (opcode.format) {
+            case Format11n:
+            case Format12x:
+            case Format22c:
+            case Format22cs:
+            case Format22s:
+            case Format22t:
+                return NibbleUtils.extractLowUnsignedNibble(dexFile.readByte(instructionStart + 1));
+            case Format32x:
+                return dexFile.readUshort(instructionStart + 2);
+            default:
+                return dexFile.readUbyte(instructionStart + 1);
+        }
+    }
+
+    public int getRegisterB() {
+        switch (opcode.format) {
+            case Format12x:
+            case Format22c:
+            case Format22cs:
+            case Format22s:
+            case Format22t:
+                return NibbleUtils.extractHighUnsignedNibble(dexFile.readByte(instructionStart + 1));
+            case Format22x:
+                return dexFile.readUshort(instructionStart + 2);
+            case Format32x:
+                return dexFile.readUshort(instructionStart + 4);
+            default:
+                return dexFile.readUbyte(instructionStart + 2);
+        }
+    }
+
+    public int getRegisterC() {
+        if (opcode.format == Format.Format23x) {
+            return dexFile.readUbyte(instructionStart + 3);
+        }
+        return NibbleUtils.extractLowUnsignedNibble(dexFile.readUbyte(instructionStart + 4));
+    }
+
+    public int getRegisterD() {
+        return NibbleUtils.extractHighUnsignedNibble(dexFile.readUbyte(instructionStart + 4));
+    }
+
+    public int getRegisterE() {
+        return NibbleUtils.extractLowUnsignedNibble(dexFile.readUbyte(instructionStart + 5));
+    }
+
+    public int getRegisterF() {
+        return NibbleUtils.extractHighUnsignedNibble(dexFile.readUbyte(instructionStart + 5));
+    }
+
+    public int getRegisterG() {
+        return NibbleUtils.extractLowUnsignedNibble(dexFile.readUbyte(instructionStart + 1));
+    }
+
+    /**
+     * @return The number of registers of a Format35c-like or a range instruction
+     */
+    public int getRegisterCount() {
+        switch (opcode.format) {
+            case Format3rc:
+            case Format3rmi:
+            case Format3rms:
+            case Format4rcc:
+                return dexFile.readUbyte(instructionStart + 1);
+            default:
+                return NibbleUtils.extractHighUnsignedNibble(dexFile.readUbyte(instructionStart + 1));
+        }
+    }
+
+    public int getStartRegister() {
+        return dexFile.readUshort(instructionStart + 4);
+    }
+
+    public long getWideLiteral() {
+        switch (opcode.format) {
+            case Format11n:
+                return NibbleUtils.extractHighSignedNibble(dexFile.readByte(instructionStart + 1));
+            case Format21ih:
+                return ((short)dexFile.readShort(instructionStart + 2)) << 16;
+            case Format21lh:
+                return ((long)(short)dexFile.readShort(instructionStart + 2)) << 48;
+            case Format21s:
+            case Format22s:
+                return dexFile.readShort(instructionStart + 2);
+            case Format22b:
+                return dexFile.readByte(instructionStart + 3);
+            case Format31i:
+                return dexFile.readInt(instructionStart + 2);
+            case Format51l:
+                return dexFile.readLong(instructionStart + 2);
+            default:
+                return 0;
+        }
+    }
+
+    public int getNarrowLiteral() {
+        return (int)getWideLiteral();
+    }
+
+    public int getCodeOffset() {
+        switch (opcode.format) {
+            case Format10t:
+                return dexFile.readByte(instructionStart + 1);
+            case Format30t:
+            case Format31t:
+                return dexFile.readInt(instructionStart + 2);
+            default:
+                return dexFile.readShort(instructionStart + 2);
+        }
+    }
+
+    /**
+     * @return The type of the reference of the current instruction, or ReferenceType.NONE
+     */
+    public int getReferenceType() {
+        switch (opcode.format) {
+            case Format20bc: {
+                int referenceType = (dexFile.readUbyte(instructionStart + 1) >>> 6) + 1;
+                ReferenceType.validateReferenceType(referenceType);
+                return referenceType;
+            }
+            case Format21c:
+            case Format22c:
+            case Format31c:
+            case Format35c:
+            case Format3rc:
+            case Format45cc:
+            case Format4rcc:
+                return opcode.referenceType;
+            default:
+                return ReferenceType.NONE;
+        }
+    }
+
+    public int getReferenceIndex() {
+        if (opcode.format == Format.Format31c) {
+            return dexFile.readSmallUint(instructionStart + 2);
+        }
+        return dexFile.readUshort(instructionStart + 2);
+    }
+
+    /**
+     * @return The type of the second reference of a Format45cc or Format4rcc instruction, or ReferenceType.NONE
+     */
+    public int getReferenceType2() {
+        switch (opcode.format) {
+            case Format45cc:
+            case Format4rcc:
+                return opcode.referenceType2;
+            default:
+                return ReferenceType.NONE;
+        }
+    }
+
+    public int getReferenceIndex2() {
+        return dexFile.readUshort(instructionStart + 6);
+    }
+}
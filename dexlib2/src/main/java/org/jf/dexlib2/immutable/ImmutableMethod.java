@@ -54,7 +54,8 @@ public class ImmutableMethod extends BaseMethodReference implements Method {
     @Nonnull protected final String returnType;
     protected final int accessFlags;
     @Nonnull protected final ImmutableSet<? extends ImmutableAnnotation> annotations;
-    @Nullable protected final ImmutableMethodImplementation methodImplementation;
+    // An ImmutableMethodImplementation, or a PackedMethodImplementation
+    @Nullable protected final MethodImplementation methodImplementation;
 
     public ImmutableMethod(@Nonnull String definingClass,
                            @Nonnull String name,
@@ -69,7 +70,11 @@ public class ImmutableMethod extends BaseMethodReference implements Method {
         this.returnType = returnType;
         this.accessFlags = accessFlags;
         this.annotations = ImmutableAnnotation.immutableSetOf(annotations);
-        this.methodImplementation = ImmutableMethodImplementation.of(methodImplementation);
+        if (methodImplementation instanceof PackedMethodImplementation) {
+            this.methodImplementation = methodImplementation;
+        } else {
+            this.methodImplementation = ImmutableMethodImplementation.of(methodImplementation);
+        }
     }
 
     public ImmutableMethod(@Nonnull String definingClass,
@@ -109,7 +114,20 @@ public class ImmutableMethod extends BaseMethodReference implements Method {
     @Override @Nonnull public String getReturnType() { return returnType; }
     @Override public int getAccessFlags() { return accessFlags; }
     @Override @Nonnull public ImmutableSet<? extends ImmutableAnnotation> getAnnotations() { return annotations; }
-    @Override @Nullable public ImmutableMethodImplementation getImplementation() { return methodImplementation; }
+
+    /**
+     * A packed implementation is converted to a new ImmutableMethodImplementation on each call. Use
+     * getStoredImplementation() to avoid the conversion.
+     */
+    @Override @Nullable public ImmutableMethodImplementation getImplementation() {
+        return ImmutableMethodImplementation.of(methodImplementation);
+    }
+
+    /**
+     * @return The implementation of this method as it is stored: an ImmutableMethodImplementation, or a
+     * PackedMethodImplementation
+     */
+    @Nullable public MethodImplementation getStoredImplementation() { return methodImplementation; }
 
     @Nonnull
     public static ImmutableSortedSet<ImmutableMethod> immutableSetOf(@Nullable Iterable<? extends Method> list) {
@@ -0,0 +1,910 @@
+/*
+ * Copyright 2026, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.immutable;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
+import com.google.common.primitives.Ints;
+import org.jf.dexlib2.Format;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.ReferenceType;
+import org.jf.dexlib2.iface.ExceptionHandler;
+import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.iface.TryBlock;
+import org.jf.dexlib2.iface.debug.DebugItem;
+import org.jf.dexlib2.iface.instruction.DualReferenceInstruction;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.iface.instruction.ReferenceInstruction;
+import org.jf.dexlib2.iface.instruction.SwitchElement;
+import org.jf.dexlib2.iface.instruction.formats.*;
+import org.jf.dexlib2.iface.reference.Reference;
+import org.jf.dexlib2.immutable.debug.ImmutableDebugItem;
+import org.jf.dexlib2.immutable.instruction.*;
+import org.jf.dexlib2.immutable.reference.ImmutableReference;
+import org.jf.dexlib2.immutable.reference.ImmutableReferenceFactory;
+import org.jf.util.ExceptionWithContext;
+import org.jf.util.NibbleUtils;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A method implementation that keeps the instructions as code units, instead of an object for each instruction.
+ *
+ * The code units are in the same format as the instructions of a dex file, except that the reference index of an
+ * instruction is 0. The references are kept in a separate array, in the order of the instructions, and the second
+ * reference of an instruction follows the first one. The instructions returned by {@link #getInstructions()} are
+ * created while iterating them.
+ *
+ * Format4rcc instructions are not supported, like {@link ImmutableInstruction#of}.
+ */
+public class PackedMethodImplementation implements MethodImplementation {
+    @Nonnull protected final Opcodes opcodes;
+    protected final int registerCount;
+    @Nonnull protected final short[] code;
+    @Nonnull protected final ImmutableReference[] references;
+    @Nonnull protected final ImmutableList<? extends ImmutableTryBlock> tryBlocks;
+    @Nonnull protected final ImmutableList<? extends ImmutableDebugItem> debugItems;
+
+    /**
+     * @param opcodes The opcodes used to encode the instructions
+     */
+    public PackedMethodImplementation(@Nonnull Opcodes opcodes,
+                                      int registerCount,
+                                      @Nullable Iterable<? extends Instruction> instructions,
+                                      @Nullable List<? extends TryBlock<? extends ExceptionHandler>> tryBlocks,
+                                      @Nullable Iterable<? extends DebugItem> debugItems) {
+        this.opcodes = opcodes;
+        this.registerCount = registerCount;
+        Encoder encoder = new Encoder(opcodes);
+        if (instructions != null) {
+            for (Instruction instruction: instructions) {
+                encoder.write(instruction);
+            }
+        }
+        this.code = encoder.getCode();
+        this.references = encoder.references.toArray(new ImmutableReference[encoder.references.size()]);
+        this.tryBlocks = ImmutableTryBlock.immutableListOf(tryBlocks);
+        this.debugItems = ImmutableDebugItem.immutableListOf(debugItems);
+    }
+
+    @Nullable
+    public static PackedMethodImplementation of(@Nonnull Opcodes opcodes,
+                                                @Nullable MethodImplementation methodImplementation) {
+        if (methodImplementation == null) {
+            return null;
+        }
+        if (methodImplementation instanceof PackedMethodImplementation) {
+            return (PackedMethodImplementation)methodImplementation;
+        }
+        return new PackedMethodImplementation(
+                opcodes,
+                methodImplementation.getRegisterCount(),
+                methodImplementation.getInstructions(),
+                methodImplementation.getTryBlocks(),
+                methodImplementation.getDebugItems());
+    }
+
+    @Override public int getRegisterCount() { return registerCount; }
+    @Nonnull @Override public Instructions getInstructions() { return new Instructions(); }
+    @Nonnull @Override public ImmutableList<? extends ImmutableTryBlock> getTryBlocks() { return tryBlocks; }
+    @Nonnull @Override public ImmutableList<? extends ImmutableDebugItem> getDebugItems() { return debugItems; }
+
+    /**
+     * @return The opcodes used to encode the instructions
+     */
+    @Nonnull public Opcodes getOpcodes() { return opcodes; }
+
+    public int getCodeUnitCount() {
+        return code.length;
+    }
+
+    public int getCodeUnit(int codeAddress) {
+        return code[codeAddress] & 0xFFFF;
+    }
+
+    @Nonnull
+    public InstructionCursor newInstructionCursor() {
+        return new InstructionCursor();
+    }
+
+    /**
+     * The instructions of a packed method implementation. A writer can check for it to write the code units
+     * directly.
+     */
+    public class Instructions implements Iterable<ImmutableInstruction> {
+        @Nonnull public PackedMethodImplementation getImplementation() {
+            return PackedMethodImplementation.this;
+        }
+
+        @Nonnull @Override public Iterator<ImmutableInstruction> iterator() {
+            final InstructionCursor cursor = newInstructionCursor();
+            return new AbstractIterator<ImmutableInstruction>() {
+                @Override protected ImmutableInstruction computeNext() {
+                    if (!cursor.next()) {
+                        return endOfData();
+                    }
+                    return cursor.getInstruction();
+                }
+            };
+        }
+    }
+
+    /**
+     * A flyweight to iterate the instructions without creating an instruction object for each of them, like
+     * {@link org.jf.dexlib2.dexbacked.instruction.InstructionCursor}. An accessor that doesn't apply to the format
+     * of the current instruction returns a meaningless value.
+     */
+    public class InstructionCursor {
+        private int nextCodeAddress;
+        private int nextReference;
+
+        private int instructionStart = -1;
+        private int reference;
+        private int opcodeValue;
+        @Nonnull private Opcode opcode = Opcode.NOP;
+        private boolean unknown;
+        private int codeUnits;
+
+        private InstructionCursor() {
+        }
+
+        /**
+         * Moves to the next instruction.
+         *
+         * @return false if there are no more instructions
+         */
+        public boolean next() {
+            if (nextCodeAddress >= code.length) {
+                return false;
+            }
+            instructionStart = nextCodeAddress * 2;
+            reference = nextReference;
+
+            opcodeValue = readUbyte(instructionStart);
+            if (opcodeValue == 0) {
+                opcodeValue = readUshort(instructionStart);
+            }
+            Opcode opcode = opcodes.getOpcodeByValue(opcodeValue);
+            unknown = opcode == null;
+            this.opcode = unknown ? Opcode.NOP : opcode;
+
+            switch (this.opcode.format) {
+                case PackedSwitchPayload:
+                    codeUnits = 4 + readUshort(instructionStart + 2) * 2;
+                    break;
+                case SparseSwitchPayload:
+                    codeUnits = 2 + readUshort(instructionStart + 2) * 4;
+                    break;
+                case ArrayPayload:
+                    codeUnits = 4 + (readUshort(instructionStart + 2) * readInt(instructionStart + 4) + 1) / 2;
+                    break;
+                default:
+                    codeUnits = this.opcode.format.size / 2;
+            }
+            nextCodeAddress += codeUnits;
+
+            switch (this.opcode.format) {
+                case Format20bc:
+                case Format21c:
+                case Format22c:
+                case Format31c:
+                case Format35c:
+                case Format3rc:
+                    nextReference++;
+                    break;
+                case Format45cc:
+                    nextReference += 2;
+                    break;
+            }
+            return true;
+        }
+
+        /**
+         * @return The address of the current instruction in the method, in code units
+         */
+        public int getCodeAddress() {
+            return instructionStart / 2;
+        }
+
+        @Nonnull public Opcode getOpcode() { return opcode; }
+        @Nonnull public Format getFormat() { return opcode.format; }
+        public int getCodeUnits() { return codeUnits; }
+
+        /**
+         * @return true if the opcode of the current instruction is not known in the opcodes of the implementation
+         */
+        public boolean isUnknown() {
+            return unknown;
+        }
+
+        public int getRegisterA() {
+            switch (opcode.format) {
+                case Format11n:
+                case Format12x:
+                case Format22c:
+                case Format22cs:
+                case Format22s:
+                case Format22t:
+                    return NibbleUtils.extractLowUnsignedNibble(readUbyte(instructionStart + 1));
+                case Format32x:
+                    return readUshort(instructionStart + 2);
+                default:
+                    return readUbyte(instructionStart + 1);
+            }
+        }
+
+        public int getRegisterB() {
+            switch (opcode.format) {
+                case Format12x:
+                case Format22c:
+                case Format22cs:
+                case Format22s:
+                case Format22t:
+                    return NibbleUtils.extractHighUnsignedNibble(readUbyte(instructionStart + 1));
+                case Format22x:
+                    return readUshort(instructionStart + 2);
+                case Format32x:
+                    return readUshort(instructionStart + 4);
+                default:
+                    return readUbyte(instructionStart + 2);
+            }
+        }
+
+        public int getRegisterC() {
+            if (opcode.format == Format.Format23x) {
+                return readUbyte(instructionStart + 3);
+            }
+            return NibbleUtils.extractLowUnsignedNibble(readUbyte(instructionStart + 4));
+        }
+
+        public int getRegisterD() {
+            return NibbleUtils.extractHighUnsignedNibble(readUbyte(instructionStart + 4));
+        }
+
+        public int getRegisterE() {
+            return NibbleUtils.extractLowUnsignedNibble(readUbyte(instructionStart + 5));
+        }
+
+        public int getRegisterF() {
+            return NibbleUtils.extractHighUnsignedNibble(readUbyte(instructionStart + 5));
+        }
+
+        public int getRegisterG() {
+            return NibbleUtils.extractLowUnsignedNibble(readUbyte(instructionStart + 1));
+        }
+
+        /**
+         * @return The number of registers of a Format35c-like or a range instruction
+         */
+        public int getRegisterCount() {
+            switch (opcode.format) {
+                case Format3rc:
+                case Format3rmi:
+                case Format3rms:
+                    return readUbyte(instructionStart + 1);
+                default:
+                    return NibbleUtils.extractHighUnsignedNibble(readUbyte(instructionStart + 1));
+            }
+        }
+
+        public int getStartRegister() {
+            return readUshort(instructionStart + 4);
+        }
+
+        public long getWideLiteral() {
+            switch (opcode.format) {
+                case Format11n:
+                    return NibbleUtils.extractHighSignedNibble(readUbyte(instructionStart + 1));
+                case Format21ih:
+                    return readShort(instructionStart + 2) << 16;
+                case Format21lh:
+                    return ((long)readShort(instructionStart + 2)) << 48;
+                case Format21s:
+                case Format22s:
+                    return readShort(instructionStart + 2);
+                case Format22b:
+                    return readByte(instructionStart + 3);
+                case Format31i:
+                    return readInt(instructionStart + 2);
+                case Format51l:
+                    return readLong(instructionStart + 2);
+                default:
+                    return 0;
+            }
+        }
+
+        public int getNarrowLiteral() {
+            return (int)getWideLiteral();
+        }
+
+        public int getCodeOffset() {
+            switch (opcode.format) {
+                case Format10t:
+                    return readByte(instructionStart + 1);
+                case Format30t:
+                case Format31t:
+                    return readInt(instructionStart + 2);
+                default:
+                    return readShort(instructionStart + 2);
+            }
+        }
+
+        /**
+         * @return The field offset, inline index or vtable index of an odex instruction
+         */
+        public int getIndex() {
+            return readUshort(instructionStart + 2);
+        }
+
+        /**
+         * @return The type of the reference of the current instruction, or ReferenceType.NONE
+         */
+        public int getReferenceType() {
+            switch (opcode.format) {
+                case Format20bc:
+                    return ReferenceType.getReferenceType(references[reference]);
+                case Format21c:
+                case Format22c:
+                case Format31c:
+                case Format35c:
+                case Format3rc:
+                case Format45cc:
+                    return opcode.referenceType;
+                default:
+                    return ReferenceType.NONE;
+            }
+        }
+
+        @Nonnull
+        public ImmutableReference getReference() {
+            return references[reference];
+        }
+
+        /**
+         * @return The type of the second reference of a Format45cc instruction, or ReferenceType.NONE
+         */
+        public int getReferenceType2() {
+            if (opcode.format == Format.Format45cc) {
+                return opcode.referenceType2;
+            }
+            return ReferenceType.NONE;
+        }
+
+        @Nonnull
+        public ImmutableReference getReference2() {
+            return references[reference + 1];
+        }
+
+        /**
+         * @return A new instruction object for the current instruction
+         */
+        @Nonnull
+        public ImmutableInstruction getInstruction() {
+            switch (opcode.format) {
+                case Format10t:
+                    return new ImmutableInstruction10t(opcode, getCodeOffset());
+                case Format10x:
+                    if (unknown) {
+                        return new ImmutableUnknownInstruction(opcodeValue);
+                    }
+                    return new ImmutableInstruction10x(opcode);
+                case Format11n:
+                    return new ImmutableInstruction11n(opcode, getRegisterA(), getNarrowLiteral());
+                case Format11x:
+                    return new ImmutableInstruction11x(opcode, getRegisterA());
+                case Format12x:
+                    return new ImmutableInstruction12x(opcode, getRegisterA(), getRegisterB());
+                case Format20bc:
+                    return new ImmutableInstruction20bc(opcode, readUbyte(instructionStart + 1), getReference());
+                case Format20t:
+                    return new ImmutableInstruction20t(opcode, getCodeOffset());
+                case Format21c:
+                    return new ImmutableInstruction21c(opcode, getRegisterA(), getReference());
+                case Format21ih:
+                    return new ImmutableInstruction21ih(opcode, getRegisterA(), getNarrowLiteral());
+                case Format21lh:
+                    return new ImmutableInstruction21lh(opcode, getRegisterA(), getWideLiteral());
+                case Format21s:
+                    return new ImmutableInstruction21s(opcode, getRegisterA(), getNarrowLiteral());
+                case Format21t:
+                    return new ImmutableInstruction21t(opcode, getRegisterA(), getCodeOffset());
+                case Format22b:
+                    return new ImmutableInstruction22b(opcode, getRegisterA(), getRegisterB(), getNarrowLiteral());
+                case Format22c:
+                    return new ImmutableInstruction22c(opcode, getRegisterA(), getRegisterB(), getReference());
+                case Format22cs:
+                    return new ImmutableInstruction22cs(opcode, getRegisterA(), getRegisterB(), getIndex());
+                case Format22s:
+                    return new ImmutableInstruction22s(opcode, getRegisterA(), getRegisterB(), getNarrowLiteral());
+                case Format22t:
+                    return new ImmutableInstruction22t(opcode, getRegisterA(), getRegisterB(), getCodeOffset());
+                case Format22x:
+                    return new ImmutableInstruction22x(opcode, getRegisterA(), getRegisterB());
+                case Format23x:
+                    return new ImmutableInstruction23x(opcode, getRegisterA(), getRegisterB(), getRegisterC());
+                case Format30t:
+                    return new ImmutableInstruction30t(opcode, getCodeOffset());
+                case Format31c:
+                    return new ImmutableInstruction31c(opcode, getRegisterA(), getReference());
+                case Format31i:
+                    return new ImmutableInstruction31i(opcode, getRegisterA(), getNarrowLiteral());
+                case Format31t:
+                    return new ImmutableInstruction31t(opcode, getRegisterA(), getCodeOffset());
+                case Format32x:
+                    return new ImmutableInstruction32x(opcode, getRegisterA(), getRegisterB());
+                case Format35c:
+                    return new ImmutableInstruction35c(opcode, getRegisterCount(), getRegisterC(), getRegisterD(),
+                            getRegisterE(), getRegisterF(), getRegisterG(), getReference());
+                case Format35mi:
+                    return new ImmutableInstruction35mi(opcode, getRegisterCount(), getRegisterC(), getRegisterD(),
+                            getRegisterE(), getRegisterF(), getRegisterG(), getIndex());
+                case Format35ms:
+                    return new ImmutableInstruction35ms(opcode, getRegisterCount(), getRegisterC(), getRegisterD(),
+                            getRegisterE(), getRegisterF(), getRegisterG(), getIndex());
+                case Format3rc:
+                    return new ImmutableInstruction3rc(opcode, getStartRegister(), getRegisterCount(),
+                            getReference());
+                case Format3rmi:
+                    return new ImmutableInstruction3rmi(opcode, getStartRegister(), getRegisterCount(), getIndex());
+                case Format3rms:
+                    return new ImmutableInstruction3rms(opcode, getStartRegister(), getRegisterCount(), getIndex());
+                case Format45cc:
+                    return new ImmutableInstruction45cc(opcode, getRegisterCount(), getRegisterC(), getRegisterD(),
+                            getRegisterE(), getRegisterF(), getRegisterG(), getReference(), getReference2());
+                case Format51l:
+                    return new ImmutableInstruction51l(opcode, getRegisterA(), getWideLiteral());
+                case PackedSwitchPayload: {
+                    int size = readUshort(instructionStart + 2);
+                    int firstKey = readInt(instructionStart + 4);
+                    List<ImmutableSwitchElement> elements = Lists.newArrayListWithCapacity(size);
+                    for (int i=0; i<size; i++) {
+                        elements.add(new ImmutableSwitchElement(firstKey + i,
+                                readInt(instructionStart + 8 + i * 4)));
+                    }
+                    return new ImmutablePackedSwitchPayload(elements);
+                }
+                case SparseSwitchPayload: {
+                    int size = readUshort(instructionStart + 2);
+                    int keysStart = instructionStart + 4;
+                    int targetsStart = keysStart + size * 4;
+                    List<ImmutableSwitchElement> elements = Lists.newArrayListWithCapacity(size);
+                    for (int i=0; i<size; i++) {
+                        elements.add(new ImmutableSwitchElement(readInt(keysStart + i * 4),
+                                readInt(targetsStart + i * 4)));
+                    }
+                    return new ImmutableSparseSwitchPayload(elements);
+                }
+                case ArrayPayload: {
+                    int elementWidth = readUshort(instructionStart + 2);
+                    int size = readInt(instructionStart + 4);
+                    int elementsStart = instructionStart + 8;
+                    List<Number> elements = Lists.newArrayListWithCapacity(size);
+                    for (int i=0; i<size; i++) {
+                        switch (elementWidth) {
+                            case 1:
+                                elements.add(readByte(elementsStart + i));
+                                break;
+                            case 2:
+                                elements.add(readShort(elementsStart + i * 2));
+                                break;
+                            case 4:
+                                elements.add(readInt(elementsStart + i * 4));
+                                break;
+                            default:
+                                elements.add(readLong(elementsStart + i * 8));
+                        }
+                    }
+                    return new ImmutableArrayPayload(elementWidth, elements);
+                }
+                default:
+                    throw new ExceptionWithContext("Unexpected instruction type %s", opcode.name);
+            }
+        }
+    }
+
+    // The offsets are in bytes, from the start of the code
+
+    private int readUbyte(int offset) {
+        return (code[offset >> 1] >> ((offset & 1) << 3)) & 0xFF;
+    }
+
+    private int readByte(int offset) {
+        return (byte)readUbyte(offset);
+    }
+
+    private int readUshort(int offset) {
+        return code[offset >> 1] & 0xFFFF;
+    }
+
+    private int readShort(int offset) {
+        return code[offset >> 1];
+    }
+
+    private int readInt(int offset) {
+        return readUshort(offset) | (readUshort(offset + 2) << 16);
+    }
+
+    private long readLong(int offset) {
+        return (readInt(offset) & 0xFFFFFFFFL) | ((long)readInt(offset + 4) << 32);
+    }
+
+    /**
+     * Encodes the instructions in the same way as {@link org.jf.dexlib2.writer.InstructionWriter}
+     */
+    private static class Encoder {
+        @Nonnull private final Opcodes opcodes;
+        @Nonnull private byte[] buffer = new byte[64];
+        private int position;
+        @Nonnull final List<ImmutableReference> references = Lists.newArrayList();
+
+        Encoder(@Nonnull Opcodes opcodes) {
+            this.opcodes = opcodes;
+        }
+
+        @Nonnull
+        short[] getCode() {
+            short[] code = new short[position / 2];
+            for (int i=0; i<code.length; i++) {
+                code[i] = (short)((buffer[i * 2] & 0xFF) | (buffer[i * 2 + 1] << 8));
+            }
+            return code;
+        }
+
+        private void write(int value) {
+            if (position == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            buffer[position++] = (byte)value;
+        }
+
+        private void writeShort(int value) {
+            write(value);
+            write(value >> 8);
+        }
+
+        private void writeInt(int value) {
+            writeShort(value);
+            writeShort(value >> 16);
+        }
+
+        private void writeLong(long value) {
+            writeInt((int)value);
+            writeInt((int)(value >> 32));
+        }
+
+        private void writeOpcode(@Nonnull Opcode opcode) {
+            Short value = opcodes.getOpcodeValue(opcode);
+            if (value == null) {
+                throw new ExceptionWithContext("Instruction %s is invalid for api %d", opcode.name, opcodes.api);
+            }
+            if (opcode.format.isPayloadFormat) {
+                writeShort(value);
+            } else {
+                write(value);
+            }
+        }
+
+        private void writeReference(@Nonnull ReferenceInstruction instruction) {
+            references.add(ImmutableReferenceFactory.of(instruction.getReferenceType(),
+                    instruction.getReference()));
+            writeShort(0);
+        }
+
+        private void writeReference2(@Nonnull DualReferenceInstruction instruction) {
+            references.add(ImmutableReferenceFactory.of(instruction.getReferenceType2(),
+                    instruction.getReference2()));
+            writeShort(0);
+        }
+
+        private static int packNibbles(int a, int b) {
+            return (b << 4) | a;
+        }
+
+        void write(@Nonnull Instruction instruction) {
+            Opcode opcode = instruction.getOpcode();
+            if (instruction instanceof UnknownInstruction) {
+                // Keep the original opcode if it is still unknown, and is read back as the same value
+                int originalOpcode = ((UnknownInstruction)instruction).getOriginalOpcode();
+                boolean readBack = (originalOpcode & ~0xFF) == 0 || (originalOpcode & ~0xFF00) == 0;
+                if (readBack && opcodes.getOpcodeByValue(originalOpcode) == null) {
+                    writeShort(originalOpcode);
+                    return;
+                }
+            }
+
+            writeOpcode(opcode);
+            switch (opcode.format) {
+                case Format10t:
+                    write(((Instruction10t)instruction).getCodeOffset());
+                    break;
+                case Format10x:
+                    write(0);
+                    break;
+                case Format11n: {
+                    Instruction11n i = (Instruction11n)instruction;
+                    write(packNibbles(i.getRegisterA(), i.getNarrowLiteral()));
+                    break;
+                }
+                case Format11x:
+                    write(((Instruction11x)instruction).getRegisterA());
+                    break;
+                case Format12x: {
+                    Instruction12x i = (Instruction12x)instruction;
+                    write(packNibbles(i.getRegisterA(), i.getRegisterB()));
+                    break;
+                }
+                case Format20bc: {
+                    Instruction20bc i = (Instruction20bc)instruction;
+                    write(i.getVerificationError());
+                    writeReference(i);
+                    break;
+                }
+                case Format20t:
+                    write(0);
+                    writeShort(((Instruction20t)instruction).getCodeOffset());
+                    break;
+                case Format21c: {
+                    Instruction21c i = (Instruction21c)instruction;
+                    write(i.getRegisterA());
+                    writeReference(i);
+                    break;
+                }
+                case Format21ih: {
+                    Instruction21ih i = (Instruction21ih)instruction;
+                    write(i.getRegisterA());
+                    writeShort(i.getHatLiteral());
+                    break;
+                }
+                case Format21lh: {
+                    Instruction21lh i = (Instruction21lh)instruction;
+                    write(i.getRegisterA());
+                    writeShort(i.getHatLiteral());
+                    break;
+                }
+                case Format21s: {
+                    Instruction21s i = (Instruction21s)instruction;
+                    write(i.getRegisterA());
+                    writeShort(i.getNarrowLiteral());
+                    break;
+                }
+                case Format21t: {
+                    Instruction21t i = (Instruction21t)instruction;
+                    write(i.getRegisterA());
+                    writeShort(i.getCodeOffset());
+                    break;
+                }
+                case Format22b: {
+                    Instruction22b i = (Instruction22b)instruction;
+                    write(i.getRegisterA());
+                    write(i.getRegisterB());
+                    write(i.getNarrowLiteral());
+                    break;
+                }
+                case Format22c: {
+                    Instruction22c i = (Instruction22c)instruction;
+                    write(packNibbles(i.getRegisterA(), i.getRegisterB()));
+                    writeReference(i);
+                    break;
+                }
+                case Format22cs: {
+                    Instruction22cs i = (Instruction22cs)instruction;
+                    write(packNibbles(i.getRegisterA(), i.getRegisterB()));
+                    writeShort(i.getFieldOffset());
+                    break;
+                }
+                case Format22s: {
+                    Instruction22s i = (Instruction22s)instruction;
+                    write(packNibbles(i.getRegisterA(), i.getRegisterB()));
+                    writeShort(i.getNarrowLiteral());
+                    break;
+                }
+                case Format22t: {
+                    Instruction22t i = (Instruction22t)instruction;
+                    write(packNibbles(i.getRegisterA(), i.getRegisterB()));
+                    writeShort(i.getCodeOffset());
+                    break;
+                }
+                case Format22x: {
+                    Instruction22x i = (Instruction22x)instruction;
+                    write(i.getRegisterA());
+                    writeShort(i.getRegisterB());
+                    break;
+                }
+                case Format23x: {
+                    Instruction23x i = (Instruction23x)instruction;
+                    write(i.getRegisterA());
+                    write(i.getRegisterB());
+                    write(i.getRegisterC());
+                    break;
+                }
+                case Format30t:
+                    write(0);
+                    writeInt(((Instruction30t)instruction).getCodeOffset());
+                    break;
+                case Format31c: {
+                    Instruction31c i = (Instruction31c)instruction;
+                    write(i.getRegisterA());
+                    references.add(ImmutableReferenceFactory.of(i.getReferenceType(), i.getReference()));
+                    writeInt(0);
+                    break;
+                }
+                case Format31i: {
+                    Instruction31i i = (Instruction31i)instruction;
+                    write(i.getRegisterA());
+                    writeInt(i.getNarrowLiteral());
+                    break;
+                }
+                case Format31t: {
+                    Instruction31t i = (Instruction31t)instruction;
+                    write(i.getRegisterA());
+                    writeInt(i.getCodeOffset());
+                    break;
+                }
+                case Format32x: {
+                    Instruction32x i = (Instruction32x)instruction;
+                    write(0);
+                    writeShort(i.getRegisterA());
+                    writeShort(i.getRegisterB());
+                    break;
+                }
+                case Format35c: {
+                    Instruction35c i = (Instruction35c)instruction;
+                    write(packNibbles(i.getRegisterG(), i.getRegisterCount()));
+                    writeReference(i);
+                    write(packNibbles(i.getRegisterC(), i.getRegisterD()));
+                    write(packNibbles(i.getRegisterE(), i.getRegisterF()));
+                    break;
+                }
+                case Format35mi: {
+                    Instruction35mi i = (Instruction35mi)instruction;
+                    write(packNibbles(i.getRegisterG(), i.getRegisterCount()));
+                    writeShort(i.getInlineIndex());
+                    write(packNibbles(i.getRegisterC(), i.getRegisterD()));
+                    write(packNibbles(i.getRegisterE(), i.getRegisterF()));
+                    break;
+                }
+                case Format35ms: {
+                    Instruction35ms i = (Instruction35ms)instruction;
+                    write(packNibbles(i.getRegisterG(), i.getRegisterCount()));
+                    writeShort(i.getVtableIndex());
+                    write(packNibbles(i.getRegisterC(), i.getRegisterD()));
+                    write(packNibbles(i.getRegisterE(), i.getRegisterF()));
+                    break;
+                }
+                case Format3rc: {
+                    Instruction3rc i = (Instruction3rc)instruction;
+                    write(i.getRegisterCount());
+                    writeReference(i);
+                    writeShort(i.getStartRegister());
+                    break;
+                }
+                case Format3rmi: {
+                    Instruction3rmi i = (Instruction3rmi)instruction;
+                    write(i.getRegisterCount());
+                    writeShort(i.getInlineIndex());
+                    writeShort(i.getStartRegister());
+                    break;
+                }
+                case Format3rms: {
+                    Instruction3rms i = (Instruction3rms)instruction;
+                    write(i.getRegisterCount());
+                    writeShort(i.getVtableIndex());
+                    writeShort(i.getStartRegister());
+                    break;
+                }
+                case Format45cc: {
+                    Instruction45cc i = (Instruction45cc)instruction;
+                    write(packNibbles(i.getRegisterG(), i.getRegisterCount()));
+                    writeReference(i);
+                    write(packNibbles(i.getRegisterC(), i.getRegisterD()));
+                    write(packNibbles(i.getRegisterE(), i.getRegisterF()));
+                    writeReference2(i);
+                    break;
+                }
+                case Format51l: {
+                    Instruction51l i = (Instruction51l)instruction;
+                    write(i.getRegisterA());
+                    writeLong(i.getWideLiteral());
+                    break;
+                }
+                case PackedSwitchPayload: {
+                    List<? extends SwitchElement> elements = ((PackedSwitchPayload)instruction).getSwitchElements();
+                    writeShort(elements.size());
+                    if (elements.size() == 0) {
+                        writeInt(0);
+                    } else {
+                        writeInt(elements.get(0).getKey());
+                        for (SwitchElement element: elements) {
+                            writeInt(element.getOffset());
+                        }
+                    }
+                    break;
+                }
+                case SparseSwitchPayload: {
+                    List<? extends SwitchElement> elements = Ordering.from(SWITCH_ELEMENT_COMPARATOR)
+                            .immutableSortedCopy(((SparseSwitchPayload)instruction).getSwitchElements());
+                    writeShort(elements.size());
+                    for (SwitchElement element: elements) {
+                        writeInt(element.getKey());
+                    }
+                    for (SwitchElement element: elements) {
+                        writeInt(element.getOffset());
+                    }
+                    break;
+                }
+                case ArrayPayload: {
+                    ArrayPayload i = (ArrayPayload)instruction;
+                    List<Number> elements = i.getArrayElements();
+                    writeShort(i.getElementWidth());
+                    writeInt(elements.size());
+                    for (Number element: elements) {
+                        switch (i.getElementWidth()) {
+                            case 1:
+                                write(element.byteValue());
+                                break;
+                            case 2:
+                                writeShort(element.shortValue());
+                                break;
+                            case 4:
+                                writeInt(element.intValue());
+                                break;
+                            case 8:
+                                writeLong(element.longValue());
+                                break;
+                        }
+                    }
+                    if ((position & 1) != 0) {
+                        write(0);
+                    }
+                    break;
+                }
+                default:
+                    throw new ExceptionWithContext("Unexpected instruction type %s", opcode.name);
+            }
+        }
+    }
+
+    private static final Comparator<SwitchElement> SWITCH_ELEMENT_COMPARATOR = new Comparator<SwitchElement>() {
+        @Override public int compare(SwitchElement element1, SwitchElement element2) {
+            return Ints.compare(element1.getKey(), element2.getKey());
+        }
+    };
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright 2026, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.writer;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.jf.dexlib2.iface.reference.MethodReference;
+import org.jf.dexlib2.util.ReferenceUtil;
+
+import javax.annotation.Nonnull;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PushbackInputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * The classes and methods of an ART profile in the text format, i.e. a baseline-prof.txt or the output of
+ * "profman --dump-classes-and-methods", which is used as a {@link DexLayout}.
+ *
+ * Each line is a class, e.g. "Lcom/example/Foo;", or a method with its flags, e.g.
+ * "HSPLcom/example/Foo;->bar(I)V", where H is hot, S is startup and P is post-startup. A method without flags is
+ * hot. The inline caches after a "+" are ignored. The wildcards "**" (any characters), "*" (any characters except
+ * "/") and "?" (a character except "/") are supported.
+ *
+ * The startup methods and the classes of the profile are ranked first, then the hot methods, then the post-startup
+ * methods. A class that isn't in the profile has the rank of its first ranked method.
+ */
+public class ArtProfile implements DexLayout {
+    public static final int FLAG_HOT = 1;
+    public static final int FLAG_STARTUP = 2;
+    public static final int FLAG_POST_STARTUP = 4;
+
+    public static final int RANK_STARTUP = 0;
+    public static final int RANK_HOT = 1;
+    public static final int RANK_POST_STARTUP = 2;
+
+    private static final byte[] BINARY_MAGIC = {'p', 'r', 'o', 0};
+
+    private final Map<String, Integer> classRanks = Maps.newHashMap();
+    private final Map<String, Integer> methodFlags = Maps.newHashMap();
+    private final List<WildcardRule> wildcardRules = Lists.newArrayList();
+
+    private static class WildcardRule {
+        @Nonnull final Pattern pattern;
+        // The pattern of the defining class of the matched methods, null for a class rule
+        final Pattern classPattern;
+        final int flags;
+
+        WildcardRule(@Nonnull Pattern pattern, Pattern classPattern, int flags) {
+            this.pattern = pattern;
+            this.classPattern = classPattern;
+            this.flags = flags;
+        }
+    }
+
+    @Nonnull
+    public static ArtProfile read(@Nonnull File file) throws IOException {
+        try (InputStream input = new FileInputStream(file)) {
+            return read(input);
+        }
+    }
+
+    @Nonnull
+    public static ArtProfile read(@Nonnull InputStream input) throws IOException {
+        PushbackInputStream pushbackInput = new PushbackInputStream(input, BINARY_MAGIC.length);
+        byte[] magic = new byte[BINARY_MAGIC.length];
+        int length = 0;
+        while (length < magic.length) {
+            int read = pushbackInput.read(magic, length, magic.length - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+        }
+        if (length == magic.length && magic[0] == BINARY_MAGIC[0] && magic[1] == BINARY_MAGIC[1] &&
+                magic[2] == BINARY_MAGIC[2] && magic[3] == BINARY_MAGIC[3]) {
+            throw new IOException("The binary profile format isn't supported. Convert it to text with " +
+                    "\"profman --profile-file=<file> --dump-classes-and-methods --apk=<apk>\"");
+        }
+        pushbackInput.unread(magic, 0, length);
+        return read(new InputStreamReader(pushbackInput, StandardCharsets.UTF_8));
+    }
+
+    @Nonnull
+    public static ArtProfile read(@Nonnull Reader reader) throws IOException {
+        ArtProfile profile = new ArtProfile();
+        BufferedReader bufferedReader = new BufferedReader(reader);
+        String line;
+        while ((line = bufferedReader.readLine()) != null) {
+            profile.addLine(line);
+        }
+        return profile;
+    }
+
+    /**
+     * Adds a class or method in the text format of profile
+     */
+    public void addLine(@Nonnull String line) {
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#")) {
+            return;
+        }
+
+        int flags = 0;
+        int start = 0;
+        parseFlags:
+        for (; start < line.length(); start++) {
+            switch (line.charAt(start)) {
+                case 'H':
+                    flags |= FLAG_HOT;
+                    break;
+                case 'S':
+                    flags |= FLAG_STARTUP;
+                    break;
+                case 'P':
+                    flags |= FLAG_POST_STARTUP;
+                    break;
+                default:
+                    break parseFlags;
+            }
+        }
+        int end = line.indexOf('+', start);
+        String descriptor = line.substring(start, end < 0 ? line.length() : end);
+        int arrow = descriptor.indexOf("->");
+
+        if (arrow < 0) {
+            if (isWildcard(descriptor)) {
+                wildcardRules.add(new WildcardRule(compileWildcard(descriptor), null, 0));
+            } else {
+                classRanks.put(descriptor, RANK_STARTUP);
+            }
+            return;
+        }
+
+        if (flags == 0) {
+            flags = FLAG_HOT;
+        }
+        if (isWildcard(descriptor)) {
+            wildcardRules.add(new WildcardRule(compileWildcard(descriptor),
+                    compileWildcard(descriptor.substring(0, arrow)), flags));
+            return;
+        }
+        Integer oldFlags = methodFlags.get(descriptor);
+        methodFlags.put(descriptor, oldFlags == null ? flags : oldFlags | flags);
+
+        String definingClass = descriptor.substring(0, arrow);
+        Integer classRank = classRanks.get(definingClass);
+        int methodRank = getRankOfFlags(flags);
+        if (classRank == null || methodRank < classRank) {
+            classRanks.put(definingClass, methodRank);
+        }
+    }
+
+    private static boolean isWildcard(@Nonnull String descriptor) {
+        return descriptor.indexOf('*') >= 0 || descriptor.indexOf('?') >= 0;
+    }
+
+    @Nonnull
+    private static Pattern compileWildcard(@Nonnull String descriptor) {
+        StringBuilder sb = new StringBuilder();
+        int literalStart = 0;
+        for (int i=0; i<descriptor.length(); i++) {
+            char c = descriptor.charAt(i);
+            if (c != '*' && c != '?') {
+                continue;
+            }
+            if (i > literalStart) {
+                sb.append(Pattern.quote(descriptor.substring(literalStart, i)));
+            }
+            if (c == '?') {
+                sb.append("[^/]");
+            } else if (i + 1 < descriptor.length() && descriptor.charAt(i + 1) == '*') {
+                sb.append(".*");
+                i++;
+            } else {
+                sb.append("[^/]*");
+            }
+            literalStart = i + 1;
+        }
+        if (literalStart < descriptor.length()) {
+            sb.append(Pattern.quote(descriptor.substring(literalStart)));
+        }
+        return Pattern.compile(sb.toString());
+    }
+
+    private static int getRankOfFlags(int flags) {
+        if ((flags & FLAG_STARTUP) != 0) {
+            return RANK_STARTUP;
+        }
+        if ((flags & FLAG_HOT) != 0) {
+            return RANK_HOT;
+        }
+        if ((flags & FLAG_POST_STARTUP) != 0) {
+            return RANK_POST_STARTUP;
+        }
+        return UNRANKED;
+    }
+
+    public boolean containsClass(@Nonnull String type) {
+        return getClassRank(type) != UNRANKED;
+    }
+
+    /**
+     * @param methodDescriptor The method descriptor, e.g. "Lcom/example/Foo;->bar(I)V"
+     * @return The FLAG_HOT, FLAG_STARTUP and FLAG_POST_STARTUP flags of the method, or 0 if the method isn't in the
+     * profile
+     */
+    public int getMethodFlags(@Nonnull String methodDescriptor) {
+        Integer flags = methodFlags.get(methodDescriptor);
+        int result = flags == null ? 0 : flags;
+        for (WildcardRule rule: wildcardRules) {
+            if (rule.classPattern != null && rule.pattern.matcher(methodDescriptor).matches()) {
+                result |= rule.flags;
+            }
+        }
+        return result;
+    }
+
+    @Override public int getClassRank(@Nonnull String type) {
+        Integer rank = classRanks.get(type);
+        int result = rank == null ? UNRANKED : rank;
+        for (WildcardRule rule: wildcardRules) {
+            if (rule.classPattern == null) {
+                if (rule.pattern.matcher(type).matches()) {
+                    result = Math.min(result, RANK_STARTUP);
+                }
+            } else if (rule.classPattern.matcher(type).matches()) {
+                result = Math.min(result, getRankOfFlags(rule.flags));
+            }
+        }
+        return result;
+    }
+
+    @Override public int getMethodRank(@Nonnull MethodReference method) {
+        return getRankOfFlags(getMethodFlags(ReferenceUtil.getMethodDescriptor(method)));
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2026, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.writer;
+
+import org.jf.dexlib2.iface.reference.MethodReference;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Decides which classes and methods are clustered at the start of their sections when a dex file is written, e.g.
+ * the classes and methods used at startup, so they are paged in together.
+ *
+ * The items with a lower rank are written first, and the items with the same rank are written in the default order.
+ * The string data of a ranked class or method, i.e. its name, the types and the strings referenced by its code, gets
+ * the same rank. The class_def items are also ordered by rank, but a superclass or an interface is still written
+ * before the classes that extend it.
+ *
+ * @see DexWriter#setLayout(DexLayout)
+ */
+public interface DexLayout {
+    /**
+     * The rank of the items that aren't clustered
+     */
+    int UNRANKED = Integer.MAX_VALUE;
+
+    /**
+     * @param type The type descriptor of the class, e.g. "Ljava/lang/Object;"
+     * @return The rank of the class_def and class_data_item of the class
+     */
+    int getClassRank(@Nonnull String type);
+
+    /**
+     * @return The rank of the code_item of the method
+     */
+    int getMethodRank(@Nonnull MethodReference method);
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2026, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.writer;
+
+import java.util.BitSet;
+
+/**
+ * The pages of a written dex file that are touched by the ranked items of a {@link DexLayout}.
+ *
+ * The minimum is the number of pages that the items would take if they were contiguous and page aligned.
+ */
+public class DexLayoutReport {
+    public static final int PAGE_SIZE = 4096;
+
+    public static final int STRING_DATA = 0;
+    public static final int CLASS_DATA = 1;
+    public static final int CODE = 2;
+
+    private static final String[] SECTION_NAMES = {"string_data", "class_data", "code"};
+
+    private final int[] itemCounts = new int[SECTION_NAMES.length];
+    private final long[] byteCounts = new long[SECTION_NAMES.length];
+    private final BitSet[] pages = new BitSet[SECTION_NAMES.length];
+    private final BitSet allPages = new BitSet();
+
+    DexLayoutReport() {
+        for (int i=0; i<pages.length; i++) {
+            pages[i] = new BitSet();
+        }
+    }
+
+    void addItem(int section, int offset, int size) {
+        itemCounts[section]++;
+        byteCounts[section] += size;
+        if (size > 0) {
+            pages[section].set(offset / PAGE_SIZE, (offset + size - 1) / PAGE_SIZE + 1);
+            allPages.set(offset / PAGE_SIZE, (offset + size - 1) / PAGE_SIZE + 1);
+        }
+    }
+
+    /**
+     * @param section One of STRING_DATA, CLASS_DATA or CODE
+     * @return The number of ranked items in the section
+     */
+    public int getItemCount(int section) {
+        return itemCounts[section];
+    }
+
+    /**
+     * @param section One of STRING_DATA, CLASS_DATA or CODE
+     * @return The number of pages that the ranked items of the section are on
+     */
+    public int getPageCount(int section) {
+        return pages[section].cardinality();
+    }
+
+    /**
+     * @param section One of STRING_DATA, CLASS_DATA or CODE
+     * @return The number of pages that the ranked items of the section would take at least
+     */
+    public int getMinimumPageCount(int section) {
+        return (int)((byteCounts[section] + PAGE_SIZE - 1) / PAGE_SIZE);
+    }
+
+    /**
+     * @return The number of pages that any ranked item is on
+     */
+    public int getPageCount() {
+        return allPages.cardinality();
+    }
+
+    @Override public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%d pages touched by ranked items", getPageCount()));
+        for (int i=0; i<SECTION_NAMES.length; i++) {
+            sb.append(String.format(", %s: %d items on %d pages (min %d)", SECTION_NAMES[i], itemCounts[i],
+                    getPageCount(i), getMinimumPageCount(i)));
+        }
+        return sb.toString();
+    }
+}
@@ -31,11 +31,14 @@
 
 package org.jf.dexlib2.writer;
 
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Ordering;
 import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.jf.dexlib2.*;
 import org.jf.dexlib2.base.BaseAnnotation;
 import org.jf.dexlib2.base.BaseAnnotationElement;
@@ -53,6 +56,7 @@ import org.jf.dexlib2.iface.instruction.ReferenceInstruction;
 import org.jf.dexlib2.iface.instruction.VariableRegisterInstruction;
 import org.jf.dexlib2.iface.instruction.formats.*;
 import org.jf.dexlib2.iface.reference.*;
+import org.jf.dexlib2.immutable.PackedMethodImplementation;
 import org.jf.dexlib2.util.InstructionUtil;
 import org.jf.dexlib2.util.MethodUtil;
 import org.jf.dexlib2.util.ReferenceUtil;
@@ -75,6 +79,11 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.Adler32;
 
 public abstract class DexWriter<
@@ -158,6 +167,17 @@ public abstract class DexWriter<
 
     private final IndexSection<?>[] overflowableSections;
 
+    // The code and debug items of a dex with fewer methods are always written by one thread
+    private static final int MIN_METHODS_PER_CODE_CHUNK = 256;
+
+    private int codeWriterThreads = 1;
+    @Nullable private DexLayout layout;
+    @Nullable private DexLayoutReport layoutReport;
+    // The ranks of the layout, only while writing
+    @Nullable private Map<ClassKey, Integer> classRanks;
+    @Nullable private Map<MethodKey, Integer> methodRanks;
+    @Nullable private Map<String, Integer> stringRanks;
+
     protected DexWriter(Opcodes opcodes) {
         this.opcodes = opcodes;
 
@@ -293,6 +313,37 @@ public abstract class DexWriter<
         return false;
     }
 
+    /**
+     * Sets the number of threads that encode the code and debug items. The written dex file is the same with any
+     * number of threads.
+     *
+     * @param threads The number of threads, 1 to write everything on the calling thread
+     */
+    public void setCodeWriterThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Invalid number of threads: " + threads);
+        }
+        codeWriterThreads = threads;
+    }
+
+    /**
+     * Sets the layout that clusters the classes, methods and strings it ranks, e.g. the ones in an {@link ArtProfile}.
+     *
+     * @param layout The layout to use, or null for the default order
+     */
+    public void setLayout(@Nullable DexLayout layout) {
+        this.layout = layout;
+    }
+
+    /**
+     * @return The pages touched by the ranked items of the layout in the last written dex file, or null if no layout
+     * was set
+     */
+    @Nullable
+    public DexLayoutReport getLayoutReport() {
+        return layoutReport;
+    }
+
     public void writeTo(@Nonnull DexDataStore dest) throws IOException {
         this.writeTo(dest, MemoryDeferredOutputStream.getFactory());
     }
@@ -300,6 +351,10 @@ public abstract class DexWriter<
     public void writeTo(@Nonnull DexDataStore dest,
                         @Nonnull DeferredOutputStreamFactory tempFactory) throws IOException {
         try {
+            layoutReport = null;
+            if (layout != null) {
+                rankItems(layout);
+            }
             int dataSectionOffset = getDataSectionOffset();
             DexDataWriter headerWriter = outputAt(dest, 0);
             DexDataWriter indexWriter = outputAt(dest, HeaderItem.ITEM_SIZE);
@@ -338,7 +393,7 @@ public abstract class DexWriter<
                 writeAnnotationSets(offsetWriter);
                 writeAnnotationSetRefs(offsetWriter);
                 writeAnnotationDirectories(offsetWriter);
-                writeDebugAndCodeItems(offsetWriter, tempFactory.makeDeferredOutputStream());
+                writeDebugAndCodeItems(offsetWriter, tempFactory);
                 writeClasses(indexWriter, offsetWriter);
 
                 writeMapItem(offsetWriter);
@@ -351,10 +406,73 @@ public abstract class DexWriter<
             updateSignature(dest);
             updateChecksum(dest);
         } finally {
+            classRanks = null;
+            methodRanks = null;
+            stringRanks = null;
             dest.close();
         }
     }
 
+    private void rankItems(@Nonnull DexLayout layout) {
+        layoutReport = new DexLayoutReport();
+        classRanks = Maps.newHashMap();
+        methodRanks = Maps.newHashMap();
+        stringRanks = Maps.newHashMap();
+
+        for (ClassKey classKey: classSection.getSortedClasses()) {
+            String type = classSection.getType(classKey).toString();
+            int classRank = layout.getClassRank(type);
+            if (classRank != DexLayout.UNRANKED) {
+                classRanks.put(classKey, classRank);
+                rankString(type, classRank);
+            }
+
+            for (MethodKey methodKey: classSection.getSortedMethods(classKey)) {
+                MethodRefKey methodReference = methodSection.getMethodReference(methodKey);
+                int methodRank = layout.getMethodRank(methodReference);
+                if (methodRank == DexLayout.UNRANKED) {
+                    continue;
+                }
+                methodRanks.put(methodKey, methodRank);
+                rankString(type, methodRank);
+                rankString(methodSection.getName(methodReference), methodRank);
+
+                Iterable<? extends Instruction> instructions = classSection.getInstructions(methodKey);
+                if (instructions == null) {
+                    continue;
+                }
+                for (Instruction instruction: instructions) {
+                    switch (instruction.getOpcode().referenceType) {
+                        case ReferenceType.STRING:
+                            rankString(((StringReference)((ReferenceInstruction)instruction).getReference())
+                                    .getString(), methodRank);
+                            break;
+                        case ReferenceType.TYPE:
+                            rankString(((TypeReference)((ReferenceInstruction)instruction).getReference())
+                                    .getType(), methodRank);
+                            break;
+                    }
+                }
+            }
+        }
+    }
+
+    private void rankString(@Nonnull CharSequence string, int rank) {
+        String key = string.toString();
+        Integer oldRank = stringRanks.get(key);
+        if (oldRank == null || rank < oldRank) {
+            stringRanks.put(key, rank);
+        }
+    }
+
+    private static int getRank(@Nullable Map<?, Integer> ranks, @Nonnull Object key) {
+        if (ranks == null) {
+            return DexLayout.UNRANKED;
+        }
+        Integer rank = ranks.get(key);
+        return rank == null ? DexLayout.UNRANKED : rank;
+    }
+
     private void updateSignature(@Nonnull DexDataStore dataStore) throws IOException {
         MessageDigest md;
         try {
@@ -409,14 +527,38 @@ public abstract class DexWriter<
         int index = 0;
         List<Entry<? extends StringKey, Integer>> stringEntries = Lists.newArrayList(stringSection.getItems());
         Collections.sort(stringEntries, toStringKeyComparator);
-
         for (Map.Entry<? extends StringKey, Integer>  entry: stringEntries) {
             entry.setValue(index++);
-            indexWriter.writeInt(offsetWriter.getPosition());
+        }
+
+        // The string_id items must be sorted, but the string_data items can be in any order
+        List<Entry<? extends StringKey, Integer>> dataEntries = stringEntries;
+        if (stringRanks != null) {
+            dataEntries = Lists.newArrayList(stringEntries);
+            Collections.sort(dataEntries, new Comparator<Entry<? extends StringKey, Integer>>() {
+                @Override public int compare(Entry<? extends StringKey, Integer> o1,
+                                             Entry<? extends StringKey, Integer> o2) {
+                    return Ints.compare(getRank(stringRanks, o1.getKey().toString()),
+                            getRank(stringRanks, o2.getKey().toString()));
+                }
+            });
+        }
+
+        int[] dataOffsets = new int[stringEntries.size()];
+        for (Map.Entry<? extends StringKey, Integer>  entry: dataEntries) {
+            int dataOffset = offsetWriter.getPosition();
+            dataOffsets[entry.getValue()] = dataOffset;
             String stringValue = entry.getKey().toString();
             offsetWriter.writeUleb128(stringValue.length());
             offsetWriter.writeString(stringValue);
             offsetWriter.write(0);
+            if (getRank(stringRanks, stringValue) != DexLayout.UNRANKED) {
+                layoutReport.addItem(DexLayoutReport.STRING_DATA, dataOffset,
+                        offsetWriter.getPosition() - dataOffset);
+            }
+        }
+        for (int dataOffset: dataOffsets) {
+            indexWriter.writeInt(dataOffset);
         }
     }
 
@@ -487,6 +629,14 @@ public abstract class DexWriter<
 
         List<Map.Entry<? extends ClassKey, Integer>> classEntries = Lists.newArrayList(classSection.getItems());
         Collections.sort(classEntries, DexWriter.<ClassKey>comparableKeyComparator());
+        if (classRanks != null) {
+            Collections.sort(classEntries, new Comparator<Entry<? extends ClassKey, Integer>>() {
+                @Override public int compare(Entry<? extends ClassKey, Integer> o1,
+                                             Entry<? extends ClassKey, Integer> o2) {
+                    return Ints.compare(getRank(classRanks, o1.getKey()), getRank(classRanks, o2.getKey()));
+                }
+            });
+        }
 
         int index = 0;
         for (Map.Entry<? extends ClassKey, Integer> key: classEntries) {
@@ -567,6 +717,7 @@ public abstract class DexWriter<
         // now write the class_data_item
         if (classHasData) {
             numClassDataItems++;
+            int classDataOffset = offsetWriter.getPosition();
 
             offsetWriter.writeUleb128(staticFields.size());
             offsetWriter.writeUleb128(instanceFields.size());
@@ -577,6 +728,11 @@ public abstract class DexWriter<
             writeEncodedFields(offsetWriter, instanceFields);
             writeEncodedMethods(offsetWriter, directMethods);
             writeEncodedMethods(offsetWriter, virtualMethods);
+
+            if (getRank(classRanks, key) != DexLayout.UNRANKED) {
+                layoutReport.addItem(DexLayoutReport.CLASS_DATA, classDataOffset,
+                        offsetWriter.getPosition() - classDataOffset);
+            }
         }
 
         return nextIndex;
@@ -860,78 +1016,286 @@ public abstract class DexWriter<
         }
     }
 
+    /**
+     * The code items of a range of methods, with the offsets relative to the start of the code written for the range
+     */
+    private static class CodeChunk<MethodKey> {
+        @Nonnull final List<CodeItemOffset<MethodKey>> codeOffsets = Lists.newArrayList();
+        // The offset and size of the ranked code items
+        @Nonnull final List<int[]> rankedCodeItems = Lists.newArrayList();
+        int debugItemCount;
+        int codeItemCount;
+
+        // The encoded items of a range that is written in parallel
+        @Nullable DeferredOutputStream debugItems;
+        @Nullable DeferredOutputStream codeItems;
+        int codeItemsSize;
+    }
+
     private void writeDebugAndCodeItems(@Nonnull DexDataWriter offsetWriter,
-                                        @Nonnull DeferredOutputStream temp) throws IOException {
-        ByteArrayOutputStream ehBuf = new ByteArrayOutputStream();
+                                        @Nonnull DeferredOutputStreamFactory tempFactory) throws IOException {
         debugSectionOffset = offsetWriter.getPosition();
+
+        List<MethodKey> methods = Lists.newArrayList();
+        for (ClassKey classKey: classSection.getSortedClasses()) {
+            methods.addAll(classSection.getSortedDirectMethods(classKey));
+            methods.addAll(classSection.getSortedVirtualMethods(classKey));
+        }
+        if (methodRanks != null) {
+            Collections.sort(methods, new Comparator<MethodKey>() {
+                @Override public int compare(MethodKey o1, MethodKey o2) {
+                    return Ints.compare(getRank(methodRanks, o1), getRank(methodRanks, o2));
+                }
+            });
+        }
+
+        if (codeWriterThreads > 1 && methods.size() >= MIN_METHODS_PER_CODE_CHUNK * 2) {
+            writeDebugAndCodeItemsInParallel(offsetWriter, methods, tempFactory);
+            return;
+        }
+
+        DeferredOutputStream temp = tempFactory.makeDeferredOutputStream();
+        ByteArrayOutputStream ehBuf = new ByteArrayOutputStream();
         DebugWriter<StringKey, TypeKey> debugWriter =
                 new DebugWriter<StringKey, TypeKey>(stringSection, typeSection, offsetWriter);
-
         DexDataWriter codeWriter = new DexDataWriter(temp, 0);
+        CodeChunk<MethodKey> chunk = new CodeChunk<MethodKey>();
 
-        List<CodeItemOffset<MethodKey>> codeOffsets = Lists.newArrayList();
+        for (MethodKey methodKey: methods) {
+            writeDebugAndCodeItem(offsetWriter, debugWriter, codeWriter, ehBuf, methodKey, chunk);
+        }
 
-        for (ClassKey classKey: classSection.getSortedClasses()) {
-            Collection<? extends MethodKey> directMethods = classSection.getSortedDirectMethods(classKey);
-            Collection<? extends MethodKey> virtualMethods = classSection.getSortedVirtualMethods(classKey);
+        offsetWriter.align();
+        codeSectionOffset = offsetWriter.getPosition();
 
-            Iterable<MethodKey> methods = Iterables.concat(directMethods, virtualMethods);
+        codeWriter.close();
+        temp.writeTo(offsetWriter);
+        temp.close();
 
-            for (MethodKey methodKey: methods) {
-                List<? extends TryBlock<? extends ExceptionHandler>> tryBlocks =
-                        classSection.getTryBlocks(methodKey);
-                Iterable<? extends Instruction> instructions = classSection.getInstructions(methodKey);
-                Iterable<? extends DebugItem> debugItems = classSection.getDebugItems(methodKey);
-
-                if (instructions != null && stringSection.hasJumboIndexes()) {
-                    boolean needsFix = false;
-                    for (Instruction instruction: instructions) {
-                        if (instruction.getOpcode() == Opcode.CONST_STRING) {
-                            if (stringSection.getItemIndex(
-                                    (StringRef)((ReferenceInstruction)instruction).getReference()) >= 65536) {
-                                needsFix = true;
-                                break;
-                            }
-                        }
-                    }
+        setCodeItemOffsets(chunk, 0);
+    }
 
-                    if (needsFix) {
-                        MutableMethodImplementation mutableMethodImplementation =
-                                classSection.makeMutableMethodImplementation(methodKey);
-                        fixInstructions(mutableMethodImplementation);
+    /**
+     * Encodes the debug and code items of consecutive ranges of the methods in parallel, and concatenates them in the
+     * order of the ranges. The result is the same as writing them one by one.
+     *
+     * Each range writes its debug items as if they started at the start of the debug section, and its code items as
+     * if they started at the start of the code section. The offsets of the debug items in the code items are adjusted
+     * when the position of each range is known. A code item is 4 byte aligned, so a range of code items is also
+     * aligned, and the alignment of the items within a range doesn't change when the range is moved.
+     *
+     * The encoded items of each range are buffered by the streams of the given factory until they are concatenated.
+     */
+    private void writeDebugAndCodeItemsInParallel(@Nonnull DexDataWriter offsetWriter,
+                                                  @Nonnull List<MethodKey> methods,
+                                                  @Nonnull DeferredOutputStreamFactory tempFactory)
+            throws IOException {
+        final int debugStart = offsetWriter.getPosition();
+        // Use a few ranges per thread, so the threads are still busy if some ranges have larger methods
+        int chunkCount = Math.min(codeWriterThreads * 4, methods.size() / MIN_METHODS_PER_CODE_CHUNK);
+        List<CodeChunk<MethodKey>> chunks = Lists.newArrayList();
+        List<Future<Void>> tasks = Lists.newArrayList();
 
-                        instructions = mutableMethodImplementation.getInstructions();
-                        tryBlocks = mutableMethodImplementation.getTryBlocks();
-                        debugItems = mutableMethodImplementation.getDebugItems();
+        ExecutorService executor = Executors.newFixedThreadPool(codeWriterThreads);
+        try {
+            for (int i=0; i<chunkCount; i++) {
+                final List<MethodKey> chunkMethods = methods.subList(methods.size() * i / chunkCount,
+                        methods.size() * (i + 1) / chunkCount);
+                final CodeChunk<MethodKey> chunk = new CodeChunk<MethodKey>();
+                chunk.debugItems = tempFactory.makeDeferredOutputStream();
+                chunk.codeItems = tempFactory.makeDeferredOutputStream();
+                chunks.add(chunk);
+                tasks.add(executor.submit(new Callable<Void>() {
+                    @Override public Void call() throws IOException {
+                        DexDataWriter debugItemWriter = new DexDataWriter(chunk.debugItems, debugStart, 8 * 1024);
+                        DebugWriter<StringKey, TypeKey> debugWriter =
+                                new DebugWriter<StringKey, TypeKey>(stringSection, typeSection, debugItemWriter);
+                        DexDataWriter codeWriter = new DexDataWriter(chunk.codeItems, 0, 8 * 1024);
+                        ByteArrayOutputStream ehBuf = new ByteArrayOutputStream();
+                        for (MethodKey methodKey: chunkMethods) {
+                            writeDebugAndCodeItem(debugItemWriter, debugWriter, codeWriter, ehBuf, methodKey, chunk);
+                        }
+                        chunk.codeItemsSize = codeWriter.getPosition();
+                        debugItemWriter.close();
+                        codeWriter.close();
+                        return null;
                     }
-                }
+                }));
+            }
 
-                int debugItemOffset = writeDebugItem(offsetWriter, debugWriter,
-                        classSection.getParameterNames(methodKey), debugItems);
-                int codeItemOffset;
+            for (Future<Void> task: tasks) {
                 try {
-                    codeItemOffset = writeCodeItem(
-                            codeWriter, ehBuf, methodKey, tryBlocks, instructions, debugItemOffset);
-                } catch (RuntimeException ex) {
-                    throw new ExceptionWithContext(ex, "Exception occurred while writing code_item for method %s",
-                            methodSection.getMethodReference(methodKey));
-                }
-
-                if (codeItemOffset != -1) {
-                    codeOffsets.add(new CodeItemOffset<MethodKey>(methodKey, codeItemOffset));
+                    Uninterruptibles.getUninterruptibly(task);
+                } catch (ExecutionException ex) {
+                    Throwables.propagateIfPossible(ex.getCause(), IOException.class);
+                    throw new RuntimeException(ex.getCause());
                 }
             }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        int[] debugOffsetDeltas = new int[chunkCount];
+        for (int i=0; i<chunkCount; i++) {
+            CodeChunk<MethodKey> chunk = chunks.get(i);
+            debugOffsetDeltas[i] = offsetWriter.getPosition() - debugStart;
+            chunk.debugItems.writeTo(offsetWriter);
+            chunk.debugItems.close();
+            chunk.debugItems = null;
         }
 
         offsetWriter.align();
         codeSectionOffset = offsetWriter.getPosition();
 
-        codeWriter.close();
-        temp.writeTo(offsetWriter);
-        temp.close();
+        for (int i=0; i<chunkCount; i++) {
+            CodeChunk<MethodKey> chunk = chunks.get(i);
+            if (chunk.codeItemsSize != 0) {
+                offsetWriter.align();
+                int chunkOffset = offsetWriter.getPosition() - codeSectionOffset;
+                if (debugOffsetDeltas[i] != 0) {
+                    chunk.codeItems.writeTo(new DebugOffsetPatcher<MethodKey>(
+                            offsetWriter, chunk.codeOffsets, debugOffsetDeltas[i]));
+                } else {
+                    chunk.codeItems.writeTo(offsetWriter);
+                }
+                setCodeItemOffsets(chunk, chunkOffset);
+            }
+            chunk.codeItems.close();
+            chunk.codeItems = null;
+        }
+    }
+
+    /**
+     * Adds a delta to the debug info offsets of the code items of a range, while the range is copied to its position
+     */
+    private static class DebugOffsetPatcher<MethodKey> extends OutputStream {
+        @Nonnull private final OutputStream out;
+        @Nonnull private final List<CodeItemOffset<MethodKey>> codeOffsets;
+        private final int delta;
+        private int position;
+        private int nextCodeItem;
+        // The bytes of the debug info offset field that is being copied
+        @Nonnull private final byte[] field = new byte[4];
+        private int fieldSize;
+
+        DebugOffsetPatcher(@Nonnull OutputStream out, @Nonnull List<CodeItemOffset<MethodKey>> codeOffsets,
+                           int delta) {
+            this.out = out;
+            this.codeOffsets = codeOffsets;
+            this.delta = delta;
+        }
+
+        private int nextFieldPosition() {
+            if (nextCodeItem < codeOffsets.size()) {
+                return codeOffsets.get(nextCodeItem).codeOffset + CodeItem.DEBUG_INFO_OFFSET;
+            }
+            return Integer.MAX_VALUE;
+        }
+
+        @Override public void write(int b) throws IOException {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        @Override public void write(@Nonnull byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                int fieldPosition = nextFieldPosition();
+                if (position < fieldPosition) {
+                    int count = (int)Math.min(length, (long)fieldPosition - position);
+                    out.write(bytes, offset, count);
+                    position += count;
+                    offset += count;
+                    length -= count;
+                    continue;
+                }
+                field[fieldSize++] = bytes[offset++];
+                position++;
+                length--;
+                if (fieldSize == field.length) {
+                    ByteBuffer fieldBuffer = ByteBuffer.wrap(field).order(ByteOrder.LITTLE_ENDIAN);
+                    int debugOffset = fieldBuffer.getInt(0);
+                    if (debugOffset != NO_OFFSET) {
+                        fieldBuffer.putInt(0, debugOffset + delta);
+                    }
+                    out.write(field);
+                    fieldSize = 0;
+                    nextCodeItem++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the offsets of the code items written for the range, and counts the items
+     *
+     * @param chunkOffset The offset of the code items of the range, from the start of the code section
+     */
+    private void setCodeItemOffsets(@Nonnull CodeChunk<MethodKey> chunk, int chunkOffset) {
+        numDebugInfoItems += chunk.debugItemCount;
+        numCodeItemItems += chunk.codeItemCount;
 
-        for (CodeItemOffset<MethodKey> codeOffset: codeOffsets) {
-            classSection.setCodeItemOffset(codeOffset.method, codeSectionOffset + codeOffset.codeOffset);
+        for (CodeItemOffset<MethodKey> codeOffset: chunk.codeOffsets) {
+            classSection.setCodeItemOffset(codeOffset.method,
+                    codeSectionOffset + chunkOffset + codeOffset.codeOffset);
+        }
+        for (int[] codeItem: chunk.rankedCodeItems) {
+            layoutReport.addItem(DexLayoutReport.CODE, codeSectionOffset + chunkOffset + codeItem[0], codeItem[1]);
+        }
+    }
+
+    private void writeDebugAndCodeItem(@Nonnull DexDataWriter debugItemWriter,
+                                       @Nonnull DebugWriter<StringKey, TypeKey> debugWriter,
+                                       @Nonnull DexDataWriter codeWriter,
+                                       @Nonnull ByteArrayOutputStream ehBuf,
+                                       @Nonnull MethodKey methodKey,
+                                       @Nonnull CodeChunk<MethodKey> chunk) throws IOException {
+        List<? extends TryBlock<? extends ExceptionHandler>> tryBlocks =
+                classSection.getTryBlocks(methodKey);
+        Iterable<? extends Instruction> instructions = classSection.getInstructions(methodKey);
+        Iterable<? extends DebugItem> debugItems = classSection.getDebugItems(methodKey);
+
+        if (instructions != null && stringSection.hasJumboIndexes()) {
+            boolean needsFix = false;
+            for (Instruction instruction: instructions) {
+                if (instruction.getOpcode() == Opcode.CONST_STRING) {
+                    if (stringSection.getItemIndex(
+                            (StringRef)((ReferenceInstruction)instruction).getReference()) >= 65536) {
+                        needsFix = true;
+                        break;
+                    }
+                }
+            }
+
+            if (needsFix) {
+                MutableMethodImplementation mutableMethodImplementation =
+                        classSection.makeMutableMethodImplementation(methodKey);
+                fixInstructions(mutableMethodImplementation);
+
+                instructions = mutableMethodImplementation.getInstructions();
+                tryBlocks = mutableMethodImplementation.getTryBlocks();
+                debugItems = mutableMethodImplementation.getDebugItems();
+            }
+        }
+
+        int debugItemOffset = writeDebugItem(debugItemWriter, debugWriter,
+                classSection.getParameterNames(methodKey), debugItems);
+        if (debugItemOffset != NO_OFFSET) {
+            chunk.debugItemCount++;
+        }
+        int codeItemOffset;
+        try {
+            codeItemOffset = writeCodeItem(
+                    codeWriter, ehBuf, methodKey, tryBlocks, instructions, debugItemOffset);
+        } catch (RuntimeException ex) {
+            throw new ExceptionWithContext(ex, "Exception occurred while writing code_item for method %s",
+                    methodSection.getMethodReference(methodKey));
+        }
+
+        if (codeItemOffset != -1) {
+            chunk.codeItemCount++;
+            chunk.codeOffsets.add(new CodeItemOffset<MethodKey>(methodKey, codeItemOffset));
+            if (getRank(methodRanks, methodKey) != DexLayout.UNRANKED) {
+                chunk.rankedCodeItems.add(new int[] {codeItemOffset, codeWriter.getPosition() - codeItemOffset});
+            }
         }
     }
 
@@ -974,8 +1338,6 @@ public abstract class DexWriter<
             return NO_OFFSET;
         }
 
-        numDebugInfoItems++;
-
         int debugItemOffset = writer.getPosition();
         int startingLineNumber = 0;
 
@@ -1014,6 +1376,27 @@ public abstract class DexWriter<
         return debugItemOffset;
     }
 
+    private static int getOutParamCount(@Nonnull PackedMethodImplementation implementation) {
+        int outParamCount = 0;
+        PackedMethodImplementation.InstructionCursor cursor = implementation.newInstructionCursor();
+        while (cursor.next()) {
+            Opcode opcode = cursor.getOpcode();
+            if (opcode.referenceType == ReferenceType.METHOD) {
+                int paramCount;
+                if (InstructionUtil.isInvokePolymorphic(opcode)) {
+                    paramCount = cursor.getRegisterCount();
+                } else {
+                    paramCount = MethodUtil.getParameterRegisterCount((MethodReference)cursor.getReference(),
+                            InstructionUtil.isInvokeStatic(opcode));
+                }
+                if (paramCount > outParamCount) {
+                    outParamCount = paramCount;
+                }
+            }
+        }
+        return outParamCount;
+    }
+
     private int writeCodeItem(@Nonnull DexDataWriter writer,
                               @Nonnull ByteArrayOutputStream ehBuf,
                               @Nonnull MethodKey methodKey,
@@ -1024,8 +1407,6 @@ public abstract class DexWriter<
             return -1;
         }
 
-        numCodeItemItems++;
-
         writer.align();
 
         int codeItemOffset = writer.getPosition();
@@ -1041,8 +1422,19 @@ public abstract class DexWriter<
         if (instructions != null) {
             tryBlocks = TryListBuilder.massageTryBlocks(tryBlocks);
 
+            PackedMethodImplementation packedImplementation = null;
+            if (instructions instanceof PackedMethodImplementation.Instructions) {
+                packedImplementation = ((PackedMethodImplementation.Instructions)instructions).getImplementation();
+            }
+
             int outParamCount = 0;
             int codeUnitCount = 0;
+            if (packedImplementation != null) {
+                codeUnitCount = packedImplementation.getCodeUnitCount();
+                outParamCount = getOutParamCount(packedImplementation);
+                // The code units are written at once, instead of each instruction
+                instructions = ImmutableList.of();
+            }
             for (Instruction instruction: instructions) {
                 codeUnitCount += instruction.getCodeUnits();
                 if (instruction.getOpcode().referenceType == ReferenceType.METHOD) {
@@ -1070,6 +1462,13 @@ public abstract class DexWriter<
                             methodSection, protoSection, methodHandleSection, callSiteSection);
 
             writer.writeInt(codeUnitCount);
+            if (packedImplementation != null) {
+                try {
+                    instructionWriter.write(packedImplementation);
+                } catch (RuntimeException ex) {
+                    throw new ExceptionWithContext(ex, "Error while writing packed instructions");
+                }
+            }
             int codeOffset = 0;
             for (Instruction instruction: instructions) {
                 try {
@@ -41,6 +41,7 @@ import org.jf.dexlib2.iface.instruction.ReferenceInstruction;
 import org.jf.dexlib2.iface.instruction.SwitchElement;
 import org.jf.dexlib2.iface.instruction.formats.*;
 import org.jf.dexlib2.iface.reference.*;
+import org.jf.dexlib2.immutable.PackedMethodImplementation;
 import org.jf.util.ExceptionWithContext;
 
 import javax.annotation.Nonnull;
@@ -533,6 +534,64 @@ public class InstructionWriter<StringRef extends StringReference, TypeRef extend
         }
     }
 
+    /**
+     * Writes the code units of a packed method implementation, with the opcodes and reference indexes of the dex file
+     * being written. The result is the same as writing each of its instructions.
+     */
+    public void write(@Nonnull PackedMethodImplementation implementation) {
+        try {
+            PackedMethodImplementation.InstructionCursor cursor = implementation.newInstructionCursor();
+            while (cursor.next()) {
+                int codeAddress = cursor.getCodeAddress();
+                int endAddress = codeAddress + cursor.getCodeUnits();
+                int opcodeValue = getOpcodeValue(cursor.getOpcode());
+                if (cursor.getFormat().isPayloadFormat) {
+                    writer.writeUshort(opcodeValue);
+                    writeCodeUnits(implementation, codeAddress + 1, endAddress);
+                    continue;
+                }
+                writer.write(opcodeValue);
+                switch (cursor.getFormat()) {
+                    case Format10x:
+                        // The high byte of an unknown instruction is not written
+                        writer.write(0);
+                        break;
+                    case Format20bc:
+                    case Format21c:
+                    case Format22c:
+                    case Format35c:
+                    case Format3rc:
+                        writer.write(implementation.getCodeUnit(codeAddress) >> 8);
+                        writer.writeUshort(getReferenceIndex(cursor.getReferenceType(), cursor.getReference()));
+                        writeCodeUnits(implementation, codeAddress + 2, endAddress);
+                        break;
+                    case Format31c:
+                        writer.write(implementation.getCodeUnit(codeAddress) >> 8);
+                        writer.writeInt(getReferenceIndex(cursor.getReferenceType(), cursor.getReference()));
+                        break;
+                    case Format45cc:
+                        writer.write(implementation.getCodeUnit(codeAddress) >> 8);
+                        writer.writeUshort(getReferenceIndex(cursor.getReferenceType(), cursor.getReference()));
+                        writer.writeUshort(implementation.getCodeUnit(codeAddress + 2));
+                        writer.writeUshort(getReferenceIndex(cursor.getReferenceType2(), cursor.getReference2()));
+                        break;
+                    default:
+                        writer.write(implementation.getCodeUnit(codeAddress) >> 8);
+                        writeCodeUnits(implementation, codeAddress + 1, endAddress);
+                }
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private void writeCodeUnits(@Nonnull PackedMethodImplementation implementation, int startAddress,
+                                int endAddress) throws IOException {
+        for (int codeAddress=startAddress; codeAddress<endAddress; codeAddress++) {
+            writer.writeUshort(implementation.getCodeUnit(codeAddress));
+        }
+    }
+
     private static int packNibbles(int a, int b) {
         return (b << 4) | a;
     }
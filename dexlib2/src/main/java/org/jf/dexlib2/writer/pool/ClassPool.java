@@ -40,6 +40,11 @@ import com.google.common.collect.Ordering;
 import org.jf.dexlib2.DebugItemType;
 import org.jf.dexlib2.ReferenceType;
 import org.jf.dexlib2.builder.MutableMethodImplementation;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.dexbacked.DexBackedMethodImplementation;
+import org.jf.dexlib2.dexbacked.instruction.InstructionCursor;
+import org.jf.dexlib2.dexbacked.reference.DexBackedMethodProtoReference;
+import org.jf.dexlib2.dexbacked.reference.DexBackedReference;
 import org.jf.dexlib2.iface.*;
 import org.jf.dexlib2.iface.debug.*;
 import org.jf.dexlib2.iface.instruction.DualReferenceInstruction;
@@ -48,6 +53,7 @@ import org.jf.dexlib2.iface.instruction.ReferenceInstruction;
 import org.jf.dexlib2.iface.reference.*;
 import org.jf.dexlib2.iface.value.ArrayEncodedValue;
 import org.jf.dexlib2.iface.value.EncodedValue;
+import org.jf.dexlib2.immutable.PackedMethodImplementation;
 import org.jf.dexlib2.util.ReferenceUtil;
 import org.jf.dexlib2.writer.ClassSection;
 import org.jf.dexlib2.writer.DebugWriter;
@@ -124,41 +130,92 @@ public class ClassPool extends BasePool<String, PoolClassDef> implements ClassSe
         dexPool.annotationSetSection.intern(poolClassDef.getAnnotations());
     }
 
+    /**
+     * @param referenceType The reference type of the opcode
+     * @param methodProto The second reference of a method instruction, if it is a method proto
+     */
+    private void internReference(int referenceType, @Nonnull Reference reference,
+                                 @Nullable MethodProtoReference methodProto) {
+        switch (referenceType) {
+            case ReferenceType.STRING:
+                dexPool.stringSection.intern((StringReference)reference);
+                break;
+            case ReferenceType.TYPE:
+                dexPool.typeSection.intern((TypeReference)reference);
+                break;
+            case ReferenceType.FIELD:
+                dexPool.fieldSection.intern((FieldReference) reference);
+                break;
+            case ReferenceType.METHOD:
+                if (methodProto != null) {
+                    dexPool.protoSection.intern(methodProto);
+                }
+                dexPool.methodSection.intern((MethodReference)reference);
+                break;
+            case ReferenceType.CALL_SITE:
+                dexPool.callSiteSection.intern((CallSiteReference) reference);
+                break;
+            default:
+                throw new ExceptionWithContext("Unrecognized reference type: %d", referenceType);
+        }
+    }
+
     private void internCode(@Nonnull Method method) {
         // this also handles parameter names, which aren't directly tied to the MethodImplementation, even though the debug items are
         boolean hasInstruction = false;
 
         MethodImplementation methodImpl = method.getImplementation();
         if (methodImpl != null) {
-            for (Instruction instruction: methodImpl.getInstructions()) {
-                hasInstruction = true;
-                if (instruction instanceof ReferenceInstruction) {
-                    Reference reference = ((ReferenceInstruction)instruction).getReference();
-                    switch (instruction.getOpcode().referenceType) {
-                        case ReferenceType.STRING:
-                            dexPool.stringSection.intern((StringReference)reference);
-                            break;
-                        case ReferenceType.TYPE:
-                            dexPool.typeSection.intern((TypeReference)reference);
-                            break;
-                        case ReferenceType.FIELD:
-                            dexPool.fieldSection.intern((FieldReference) reference);
-                            break;
-                        case ReferenceType.METHOD:
-                            if (instruction instanceof DualReferenceInstruction) {
-                                DualReferenceInstruction dual = (DualReferenceInstruction) instruction;
-                                if (dual.getReferenceType2() == ReferenceType.METHOD_PROTO) {
-                                    dexPool.protoSection.intern((MethodProtoReference) dual.getReference2());
-                                }
+            if (methodImpl instanceof DexBackedMethodImplementation) {
+                // Read the references in place, instead of creating an object for each instruction
+                DexBackedMethodImplementation dexBackedImpl = (DexBackedMethodImplementation)methodImpl;
+                DexBackedDexFile dexFile = dexBackedImpl.dexFile;
+                InstructionCursor cursor = dexBackedImpl.newInstructionCursor();
+                while (cursor.next()) {
+                    hasInstruction = true;
+                    int referenceType = cursor.getReferenceType();
+                    if (referenceType != ReferenceType.NONE) {
+                        int opcodeReferenceType = cursor.getOpcode().referenceType;
+                        MethodProtoReference methodProto = null;
+                        if (opcodeReferenceType == ReferenceType.METHOD &&
+                                cursor.getReferenceType2() == ReferenceType.METHOD_PROTO) {
+                            methodProto = new DexBackedMethodProtoReference(dexFile, cursor.getReferenceIndex2());
+                        }
+                        internReference(opcodeReferenceType,
+                                DexBackedReference.makeReference(dexFile, referenceType, cursor.getReferenceIndex()),
+                                methodProto);
+                    }
+                }
+            } else if (methodImpl instanceof PackedMethodImplementation) {
+                PackedMethodImplementation.InstructionCursor cursor =
+                        ((PackedMethodImplementation)methodImpl).newInstructionCursor();
+                while (cursor.next()) {
+                    hasInstruction = true;
+                    if (cursor.getReferenceType() != ReferenceType.NONE) {
+                        int opcodeReferenceType = cursor.getOpcode().referenceType;
+                        MethodProtoReference methodProto = null;
+                        if (opcodeReferenceType == ReferenceType.METHOD &&
+                                cursor.getReferenceType2() == ReferenceType.METHOD_PROTO) {
+                            methodProto = (MethodProtoReference)cursor.getReference2();
+                        }
+                        internReference(opcodeReferenceType, cursor.getReference(), methodProto);
+                    }
+                }
+            } else {
+                for (Instruction instruction: methodImpl.getInstructions()) {
+                    hasInstruction = true;
+                    if (instruction instanceof ReferenceInstruction) {
+                        int opcodeReferenceType = instruction.getOpcode().referenceType;
+                        MethodProtoReference methodProto = null;
+                        if (opcodeReferenceType == ReferenceType.METHOD &&
+                                instruction instanceof DualReferenceInstruction) {
+                            DualReferenceInstruction dual = (DualReferenceInstruction) instruction;
+                            if (dual.getReferenceType2() == ReferenceType.METHOD_PROTO) {
+                                methodProto = (MethodProtoReference) dual.getReference2();
                             }
-                            dexPool.methodSection.intern((MethodReference)reference);
-                            break;
-                        case ReferenceType.CALL_SITE:
-                            dexPool.callSiteSection.intern((CallSiteReference) reference);
-                            break;
-                        default:
-                            throw new ExceptionWithContext("Unrecognized reference type: %d",
-                                    instruction.getOpcode().referenceType);
+                        }
+                        internReference(opcodeReferenceType, ((ReferenceInstruction)instruction).getReference(),
+                                methodProto);
                     }
                 }
             }
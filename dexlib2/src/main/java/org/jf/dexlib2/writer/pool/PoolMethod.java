@@ -37,6 +37,7 @@ import org.jf.dexlib2.iface.Annotation;
 import org.jf.dexlib2.iface.Method;
 import org.jf.dexlib2.iface.MethodImplementation;
 import org.jf.dexlib2.iface.MethodParameter;
+import org.jf.dexlib2.immutable.ImmutableMethod;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -88,6 +89,10 @@ class PoolMethod extends BaseMethodReference implements Method {
     }
 
     @Override @Nullable public MethodImplementation getImplementation() {
+        if (method instanceof ImmutableMethod) {
+            // Keep a packed implementation, so its code units are written directly
+            return ((ImmutableMethod)method).getStoredImplementation();
+        }
         return method.getImplementation();
     }
 }
@@ -41,7 +41,9 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.TreeMap;
 
 public class TryListBuilder<EH extends ExceptionHandler>
 {
@@ -50,6 +52,11 @@ public class TryListBuilder<EH extends ExceptionHandler>
     private final MutableTryBlock<EH> listStart;
     private final MutableTryBlock<EH> listEnd;
 
+    // The try blocks in the list by their start address, to find the start of a new range without walking the list.
+    // The list is sorted and the blocks don't overlap, unless an empty range was added. The index is dropped then,
+    // and the list is walked from the start as before.
+    @Nullable private TreeMap<Integer, MutableTryBlock<EH>> blockIndex = new TreeMap<Integer, MutableTryBlock<EH>>();
+
     public TryListBuilder() {
         listStart = new MutableTryBlock<EH>(0, 0);
         listEnd = new MutableTryBlock<EH>(0, 0);
@@ -186,10 +193,37 @@ public class TryListBuilder<EH extends ExceptionHandler>
         }
     }
 
+    /**
+     * @return The first block in the list that doesn't end at or before the given address, unless it also starts
+     * there. This is where getBoundingRanges starts to look for the start of a new range.
+     */
+    @Nonnull
+    private MutableTryBlock<EH> findFirstCandidate(int startAddress) {
+        if (blockIndex == null) {
+            return listStart.next;
+        }
+        Map.Entry<Integer, MutableTryBlock<EH>> floor = blockIndex.floorEntry(startAddress);
+        if (floor == null) {
+            return listStart.next;
+        }
+        // The blocks before it start and end before startAddress
+        MutableTryBlock<EH> tryBlock = floor.getValue();
+        if (tryBlock.startCodeAddress == startAddress || tryBlock.endCodeAddress > startAddress) {
+            return tryBlock;
+        }
+        return tryBlock.next;
+    }
+
+    private void indexBlock(@Nonnull MutableTryBlock<EH> tryBlock) {
+        if (blockIndex != null) {
+            blockIndex.put(tryBlock.startCodeAddress, tryBlock);
+        }
+    }
+
     private TryBounds<EH> getBoundingRanges(int startAddress, int endAddress) {
         MutableTryBlock<EH> startBlock = null;
 
-        MutableTryBlock<EH> tryBlock = listStart.next;
+        MutableTryBlock<EH> tryBlock = findFirstCandidate(startAddress);
         while (tryBlock != listEnd) {
             int currentStartAddress = tryBlock.startCodeAddress;
             int currentEndAddress = tryBlock.endCodeAddress;
@@ -207,6 +241,7 @@ public class TryListBuilder<EH extends ExceptionHandler>
                 of an existing try range. We need to split the existing range
                 at the start address of the range being added*/
                 startBlock = tryBlock.split(startAddress);
+                indexBlock(startBlock);
                 break;
             }else if (startAddress < currentStartAddress) {
                 if (endAddress <= currentStartAddress) {
@@ -216,6 +251,7 @@ public class TryListBuilder<EH extends ExceptionHandler>
                     ones, so we just add it and return*/
                     startBlock = new MutableTryBlock<EH>(startAddress, endAddress);
                     tryBlock.prepend(startBlock);
+                    indexBlock(startBlock);
                     return new TryBounds<EH>(startBlock, startBlock);
                 } else {
                     //   |-----|
@@ -225,6 +261,7 @@ public class TryListBuilder<EH extends ExceptionHandler>
                      before this one*/
                     startBlock = new MutableTryBlock<EH>(startAddress, currentStartAddress);
                     tryBlock.prepend(startBlock);
+                    indexBlock(startBlock);
                     break;
                 }
             }
@@ -240,6 +277,7 @@ public class TryListBuilder<EH extends ExceptionHandler>
         if (startBlock == null) {
             startBlock = new MutableTryBlock<EH>(startAddress, endAddress);
             listEnd.prepend(startBlock);
+            indexBlock(startBlock);
             return new TryBounds<EH>(startBlock, startBlock);
         }
 
@@ -259,7 +297,7 @@ public class TryListBuilder<EH extends ExceptionHandler>
                 /*Almost. The range being added ends in the middle of an
                 existing range. We need to split the existing range
                 at the end of the range being added.*/
-                tryBlock.split(endAddress);
+                indexBlock(tryBlock.split(endAddress));
                 return new TryBounds<EH>(startBlock, tryBlock);
             } else if (endAddress <= currentStartAddress) {
                 //|-----|       |-----|
@@ -269,6 +307,7 @@ public class TryListBuilder<EH extends ExceptionHandler>
                 previous range, and ends at the end of the range being added*/
                 MutableTryBlock<EH> endBlock = new MutableTryBlock<EH>(tryBlock.prev.endCodeAddress, endAddress);
                 tryBlock.prepend(endBlock);
+                indexBlock(endBlock);
                 return new TryBounds<EH>(startBlock, endBlock);
             }
             tryBlock = tryBlock.next;
@@ -281,10 +320,14 @@ public class TryListBuilder<EH extends ExceptionHandler>
         list, and ends at the end of the range being added.*/
         MutableTryBlock<EH> endBlock = new MutableTryBlock<EH>(listEnd.prev.endCodeAddress, endAddress);
         listEnd.prepend(endBlock);
+        indexBlock(endBlock);
         return new TryBounds<EH>(startBlock, endBlock);
     }
 
     public void addHandler(int startAddress, int endAddress, EH handler) {
+        if (endAddress <= startAddress) {
+            blockIndex = null;
+        }
         TryBounds<EH> bounds = getBoundingRanges(startAddress, endAddress);
 
         MutableTryBlock<EH> startBlock = bounds.start;
@@ -303,6 +346,7 @@ public class TryListBuilder<EH extends ExceptionHandler>
             if (tryBlock.startCodeAddress > previousEnd) {
                 MutableTryBlock<EH> newBlock = new MutableTryBlock<EH>(previousEnd, tryBlock.startCodeAddress);
                 tryBlock.prepend(newBlock);
+                indexBlock(newBlock);
                 tryBlock = newBlock;
             }
 
@@ -337,6 +381,9 @@ public class TryListBuilder<EH extends ExceptionHandler>
                 while (ret.next != listEnd) {
                     if (ret.endCodeAddress == ret.next.startCodeAddress &&
                             ret.getExceptionHandlers().equals(ret.next.getExceptionHandlers())) {
+                        if (blockIndex != null) {
+                            blockIndex.remove(ret.next.startCodeAddress);
+                        }
                         ret.mergeNext();
                     } else {
                         break;
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2026, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.util;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Groups the work items into batches for a thread pool, so the total time is close to the total work divided by
+ * the number of threads.
+ *
+ * The batches are ordered by descending size, so the largest items start first instead of being left to a single
+ * thread at the end. The large items are in their own batch, and the consecutive small items are merged into a
+ * batch until it reaches a fraction of the average work of a thread, which reduces the overhead of the tasks while
+ * the idle threads can still take the remaining small batches.
+ */
+public class LargestFirstBatcher {
+    // The number of batches each thread should have at least, to balance the end of the work.
+    private static final int BATCHES_PER_JOB = 16;
+    private static final int MAX_BATCH_ITEMS = 256;
+
+    /**
+     * @param sizes The estimated size of each item
+     * @param jobs The number of threads to run the batches
+     * @return The batches of item indices. The items of the same size keep their original order.
+     */
+    @Nonnull
+    public static List<int[]> batch(@Nonnull final long[] sizes, int jobs) {
+        Integer[] order = new Integer[sizes.length];
+        long totalSize = 0;
+        for (int i=0; i<sizes.length; i++) {
+            order[i] = i;
+            totalSize += Math.max(sizes[i], 0);
+        }
+        // The sort is stable.
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override public int compare(Integer o1, Integer o2) {
+                return Long.compare(sizes[o2], sizes[o1]);
+            }
+        });
+
+        long targetSize = Math.max(1, totalSize / ((long)Math.max(1, jobs) * BATCHES_PER_JOB));
+        List<int[]> batches = new ArrayList<int[]>();
+        int[] batch = new int[MAX_BATCH_ITEMS];
+        int batchItems = 0;
+        long batchSize = 0;
+        for (Integer index: order) {
+            batch[batchItems++] = index;
+            batchSize += Math.max(sizes[index], 0);
+            if (batchSize >= targetSize || batchItems == MAX_BATCH_ITEMS) {
+                batches.add(Arrays.copyOf(batch, batchItems));
+                batchItems = 0;
+                batchSize = 0;
+            }
+        }
+        if (batchItems > 0) {
+            batches.add(Arrays.copyOf(batch, batchItems));
+        }
+        return batches;
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2026, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.jf.dexlib2.dexbacked.DexBackedClassDef;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableMethod;
+import org.jf.dexlib2.immutable.ImmutableMethodImplementation;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction10x;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction35c;
+import org.jf.dexlib2.immutable.reference.ImmutableMethodReference;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+public class MultiDexTest {
+    private static ClassDef makeClass(String type, int methodCount, String calledType) {
+        List<ImmutableMethod> methods = Lists.newArrayList();
+        for (int i=0; i<methodCount; i++) {
+            List<ImmutableInstruction> instructions = Lists.newArrayList();
+            if (calledType != null) {
+                instructions.add(new ImmutableInstruction35c(Opcode.INVOKE_STATIC, 0, 0, 0, 0, 0, 0,
+                        new ImmutableMethodReference(calledType, "m" + i, null, "V")));
+            }
+            instructions.add(new ImmutableInstruction10x(Opcode.RETURN_VOID));
+            methods.add(new ImmutableMethod(type, "m" + i, null, "V",
+                    AccessFlags.PUBLIC.getValue() | AccessFlags.STATIC.getValue(), null,
+                    new ImmutableMethodImplementation(0, instructions, null, null)));
+        }
+        return new ImmutableClassDef(type, AccessFlags.PUBLIC.getValue(), "Ljava/lang/Object;", null, null, null,
+                null, methods);
+    }
+
+    private static List<DexBackedDexFile> write(MultiDex multiDex, List<ClassDef> classes) throws IOException {
+        final List<MemoryDataStore> stores = Lists.newArrayList();
+        int count = multiDex.writeClassesTo(Lists.newArrayList(classes), dexNum -> {
+            Assert.assertEquals(stores.size(), dexNum);
+            MemoryDataStore store = new MemoryDataStore();
+            stores.add(store);
+            return store;
+        });
+        Assert.assertEquals(stores.size(), count);
+
+        List<DexBackedDexFile> dexFiles = Lists.newArrayList();
+        for (MemoryDataStore store: stores) {
+            dexFiles.add(new DexBackedDexFile(Opcodes.getDefault(), store.getData()));
+        }
+        return dexFiles;
+    }
+
+    /**
+     * @return The index of the dex file of each class
+     */
+    private static Map<String, Integer> getDexIndexes(List<DexBackedDexFile> dexFiles, int maxIds) {
+        Map<String, Integer> dexIndexes = Maps.newHashMap();
+        for (int i=0; i<dexFiles.size(); i++) {
+            DexBackedDexFile dexFile = dexFiles.get(i);
+            Assert.assertTrue(dexFile.getMethodCount() <= maxIds);
+            Assert.assertTrue(dexFile.getTypeCount() <= maxIds);
+            for (DexBackedClassDef classDef: dexFile.getClasses()) {
+                Assert.assertNull(dexIndexes.put(classDef.getType(), i));
+            }
+        }
+        return dexIndexes;
+    }
+
+    @Test
+    public void testExactPacking() throws IOException {
+        // Each class adds exactly 10 method ids, so 10 classes fill a dex of 100 method ids
+        List<ClassDef> classes = Lists.newArrayList();
+        for (int i=0; i<30; i++) {
+            classes.add(makeClass(String.format("Lorg/test/C%02d;", i), 10, null));
+        }
+        MultiDex multiDex = new MultiDex(Opcodes.getDefault());
+        multiDex.setMaxNumberOfIdxPerDex(100);
+        List<DexBackedDexFile> dexFiles = write(multiDex, classes);
+
+        Assert.assertEquals(3, dexFiles.size());
+        Map<String, Integer> dexIndexes = getDexIndexes(dexFiles, 100);
+        Assert.assertEquals(30, dexIndexes.size());
+        for (DexBackedDexFile dexFile: dexFiles) {
+            Assert.assertEquals(100, dexFile.getMethodCount());
+        }
+    }
+
+    @Test
+    public void testReferencesCounted() throws IOException {
+        // Each class defines 5 methods and calls 5 methods of another class, which aren't in the same dex
+        List<ClassDef> classes = Lists.newArrayList();
+        for (int i=0; i<20; i++) {
+            classes.add(makeClass(String.format("Lorg/test/C%02d;", i), 5, String.format("Lorg/other/D%02d;", i)));
+        }
+        MultiDex multiDex = new MultiDex(Opcodes.getDefault());
+        multiDex.setMaxNumberOfIdxPerDex(100);
+        List<DexBackedDexFile> dexFiles = write(multiDex, classes);
+
+        Assert.assertEquals(2, dexFiles.size());
+        Assert.assertEquals(20, getDexIndexes(dexFiles, 100).size());
+    }
+
+    @Test
+    public void testGaps() throws IOException {
+        // The large classes leave gaps that the following small classes fill
+        List<ClassDef> classes = Lists.newArrayList();
+        for (int i=0; i<6; i++) {
+            classes.add(makeClass(String.format("Lorg/test/A%02d;", i), 30, null));
+        }
+        for (int i=0; i<10; i++) {
+            classes.add(makeClass(String.format("Lorg/test/B%02d;", i), 2, null));
+        }
+        MultiDex multiDex = new MultiDex(Opcodes.getDefault());
+        multiDex.setMaxNumberOfIdxPerDex(100);
+        List<DexBackedDexFile> dexFiles = write(multiDex, classes);
+
+        Assert.assertEquals(2, dexFiles.size());
+        Map<String, Integer> dexIndexes = getDexIndexes(dexFiles, 100);
+        Assert.assertEquals(16, dexIndexes.size());
+        // A skipped class is the first of the next dex
+        Assert.assertEquals(1, (int)dexIndexes.get("Lorg/test/A03;"));
+        Assert.assertEquals(0, (int)dexIndexes.get("Lorg/test/B04;"));
+    }
+
+    @Test
+    public void testInnerClassesTogether() throws IOException {
+        List<ClassDef> classes = Lists.newArrayList(
+                makeClass("Lorg/test/Outer;", 20, null),
+                makeClass("Lorg/test/Outer0;", 20, null),
+                makeClass("Lorg/test/Outer$1;", 20, null),
+                makeClass("Lorg/test/Outer$Inner;", 20, null),
+                makeClass("Lorg/test/Outer0$1;", 20, null));
+        Assert.assertEquals(ImmutableList.of(
+                ImmutableList.of(classes.get(2), classes.get(3), classes.get(0)),
+                ImmutableList.of(classes.get(4), classes.get(1))),
+                MultiDex.groupNestedClasses(classes));
+
+        MultiDex multiDex = new MultiDex(Opcodes.getDefault());
+        multiDex.setMaxNumberOfIdxPerDex(70);
+        Map<String, Integer> dexIndexes = getDexIndexes(write(multiDex, classes), 70);
+        Assert.assertEquals(dexIndexes.get("Lorg/test/Outer;"), dexIndexes.get("Lorg/test/Outer$1;"));
+        Assert.assertEquals(dexIndexes.get("Lorg/test/Outer;"), dexIndexes.get("Lorg/test/Outer$Inner;"));
+        Assert.assertEquals(dexIndexes.get("Lorg/test/Outer0;"), dexIndexes.get("Lorg/test/Outer0$1;"));
+        Assert.assertFalse(dexIndexes.get("Lorg/test/Outer;").equals(dexIndexes.get("Lorg/test/Outer0;")));
+    }
+
+    @Test
+    public void testLargeGroupSplit() throws IOException {
+        List<ClassDef> classes = Lists.newArrayList(
+                makeClass("Lorg/test/Outer;", 40, null),
+                makeClass("Lorg/test/Outer$1;", 40, null),
+                makeClass("Lorg/test/Outer$2;", 40, null));
+        MultiDex multiDex = new MultiDex(Opcodes.getDefault());
+        multiDex.setMaxNumberOfIdxPerDex(100);
+        List<DexBackedDexFile> dexFiles = write(multiDex, classes);
+        Assert.assertEquals(2, dexFiles.size());
+        Assert.assertEquals(3, getDexIndexes(dexFiles, 100).size());
+    }
+}
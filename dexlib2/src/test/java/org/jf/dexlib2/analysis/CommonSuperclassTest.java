@@ -40,6 +40,7 @@ import org.jf.dexlib2.immutable.ImmutableDexFile;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.List;
 
 public class CommonSuperclassTest {
     // object tree:
@@ -330,4 +331,37 @@ public class CommonSuperclassTest {
         superclassTest(object, int1, float1);
         superclassTest(object, int1, int2);
     }
+
+    @Test
+    public void testDeepHierarchy() throws IOException {
+        // deep0 <- deep1 <- ... <- deep99, and a branch of 10 classes from each 10th class
+        List<ClassDef> classes = Lists.newArrayList();
+        classes.add(TestUtils.makeClassDef("Ljava/lang/Object;", null));
+        classes.add(TestUtils.makeClassDef("Ltest/deep0;", "Ljava/lang/Object;"));
+        for (int i=1; i<100; i++) {
+            classes.add(TestUtils.makeClassDef("Ltest/deep" + i + ";", "Ltest/deep" + (i-1) + ";"));
+        }
+        for (int i=0; i<100; i+=10) {
+            classes.add(TestUtils.makeClassDef("Ltest/branch" + i + "_0;", "Ltest/deep" + i + ";"));
+            for (int j=1; j<10; j++) {
+                classes.add(TestUtils.makeClassDef("Ltest/branch" + i + "_" + j + ";",
+                        "Ltest/branch" + i + "_" + (j-1) + ";"));
+            }
+        }
+        ClassPath classPath = new ClassPath(new DexClassProvider(
+                new ImmutableDexFile(Opcodes.getDefault(), ImmutableSet.copyOf(classes))));
+
+        for (int i=0; i<100; i+=10) {
+            for (int j=0; j<10; j++) {
+                String branch = "Ltest/branch" + i + "_" + j + ";";
+                superclassTest(classPath, "Ltest/deep" + i + ";", branch, "Ltest/deep99;");
+                superclassTest(classPath, "Ltest/deep" + i + ";", branch, "Ltest/deep" + i + ";");
+                if (i > 0) {
+                    superclassTest(classPath, "Ltest/deep" + (i-10) + ";", branch, "Ltest/branch" + (i-10) + "_9;");
+                }
+            }
+            superclassTest(classPath, "Ltest/deep" + i + ";", "Ltest/deep" + i + ";", "Ltest/deep" + (i+9) + ";");
+        }
+        superclassTest(classPath, "Ljava/lang/Object;", "Ltest/deep0;", "Ljava/lang/Object;");
+    }
 }
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2026, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.dexbacked;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import junit.framework.Assert;
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.AnnotationVisibility;
+import org.jf.dexlib2.DexFileFactory;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.instruction.InstructionCursor;
+import org.jf.dexlib2.iface.Annotation;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.immutable.*;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction10x;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction11n;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction11x;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.net.URL;
+import java.util.List;
+import java.util.Set;
+
+public class DexVisitorTest {
+    private static ImmutableSet<ImmutableAnnotation> annotations(String... types) {
+        ImmutableSet.Builder<ImmutableAnnotation> builder = ImmutableSet.builder();
+        for (String type: types) {
+            builder.add(new ImmutableAnnotation(AnnotationVisibility.RUNTIME, type, null));
+        }
+        return builder.build();
+    }
+
+    private static DexBackedDexFile buildDexFile() throws IOException {
+        List<ImmutableClassDef> classes = Lists.newArrayList();
+        for (int i=0; i<3; i++) {
+            String type = "Ltest" + i + ";";
+            List<ImmutableField> fields = ImmutableList.of(
+                    new ImmutableField(type, "sf", "I", AccessFlags.STATIC.getValue(), null, annotations("Lanno1;")),
+                    new ImmutableField(type, "a", "I", 0, null, null),
+                    new ImmutableField(type, "b", "J", 0, null, annotations("Lanno1;", "Lanno2;")));
+            List<ImmutableMethod> methods = ImmutableList.of(
+                    new ImmutableMethod(type, "direct", ImmutableList.of(
+                            new ImmutableMethodParameter("I", null, null),
+                            new ImmutableMethodParameter("I", annotations("Lanno2;"), null)),
+                            "I", AccessFlags.STATIC.getValue(), annotations("Lanno3;"),
+                            new ImmutableMethodImplementation(3, ImmutableList.of(
+                                    new ImmutableInstruction11n(Opcode.CONST_4, 0, i),
+                                    new ImmutableInstruction11x(Opcode.RETURN, 0)), null, null)),
+                    new ImmutableMethod(type, "virtual", null, "V", AccessFlags.PUBLIC.getValue(), null,
+                            new ImmutableMethodImplementation(1, ImmutableList.of(
+                                    new ImmutableInstruction10x(Opcode.NOP),
+                                    new ImmutableInstruction10x(Opcode.RETURN_VOID)), null, null)),
+                    new ImmutableMethod(type, "abstractMethod", null, "V",
+                            AccessFlags.PUBLIC.getValue() | AccessFlags.ABSTRACT.getValue(), annotations("Lanno1;"),
+                            null));
+            classes.add(new ImmutableClassDef(type, AccessFlags.PUBLIC.getValue() | AccessFlags.ABSTRACT.getValue(),
+                    "Ljava/lang/Object;", null, null, i == 1 ? annotations("Lanno1;", "Lanno3;") : null, fields,
+                    methods));
+        }
+
+        MemoryDataStore dataStore = new MemoryDataStore();
+        DexPool.writeTo(dataStore, new ImmutableDexFile(Opcodes.getDefault(), classes));
+        return new DexBackedDexFile(Opcodes.getDefault(), dataStore.getBuffer());
+    }
+
+    private static DexBackedDexFile loadTestDex() throws IOException {
+        URL url = DexVisitorTest.class.getClassLoader().getResource("accessorTest.dex");
+        Assert.assertNotNull(url);
+        return DexFileFactory.loadDexFile(url.getFile(), Opcodes.getDefault());
+    }
+
+    private static class TraceVisitor extends DexVisitor {
+        final List<String> trace = Lists.newArrayList();
+
+        @Override public int visitClass(@Nonnull ClassItem classItem) {
+            trace.add("class " + classItem.getType() + " " + classItem.getSuperclass() + " " +
+                    classItem.getAccessFlags());
+            return CONTINUE;
+        }
+
+        @Override public int visitAnnotation(@Nonnull AnnotationItem annotationItem) {
+            trace.add("annotation " + annotationItem.getParameterIndex() + " " + annotationItem.getType() + " " +
+                    annotationItem.getVisibility());
+            return CONTINUE;
+        }
+
+        @Override public int visitField(@Nonnull FieldItem fieldItem) {
+            trace.add("field " + fieldItem.getReference() + " " + fieldItem.getAccessFlags());
+            return CONTINUE;
+        }
+
+        @Override public int visitMethod(@Nonnull MethodItem methodItem) {
+            trace.add("method " + methodItem.getReference() + " " + methodItem.getAccessFlags() + " " +
+                    methodItem.getRegisterCount());
+            return CONTINUE;
+        }
+
+        @Override public int visitInstruction(@Nonnull MethodItem methodItem, @Nonnull InstructionCursor instruction) {
+            trace.add(instruction.getOpcode().name);
+            return CONTINUE;
+        }
+
+        @Override public int visitClassEnd(@Nonnull ClassItem classItem) {
+            trace.add("end " + classItem.getType());
+            return CONTINUE;
+        }
+    }
+
+    private static void addAnnotations(List<String> trace, int parameterIndex, Set<? extends Annotation> annotations) {
+        for (Annotation annotation: annotations) {
+            trace.add("annotation " + parameterIndex + " " + annotation.getType() + " " +
+                    annotation.getVisibility());
+        }
+    }
+
+    private static void addMethods(List<String> trace, Iterable<? extends DexBackedMethod> methods) {
+        for (DexBackedMethod method: methods) {
+            DexBackedMethodImplementation impl = method.getImplementation();
+            trace.add("method " + method + " " + method.getAccessFlags() + " " +
+                    (impl == null ? 0 : impl.getRegisterCount()));
+            addAnnotations(trace, -1, method.getAnnotations());
+            int parameterIndex = 0;
+            for (Set<? extends Annotation> parameterAnnotations: method.getParameterAnnotations()) {
+                addAnnotations(trace, parameterIndex++, parameterAnnotations);
+            }
+            if (impl != null) {
+                for (Instruction instruction: impl.getInstructions()) {
+                    trace.add(instruction.getOpcode().name);
+                }
+            }
+        }
+    }
+
+    private static List<String> traceObjectModel(DexBackedDexFile dexFile) {
+        List<String> trace = Lists.newArrayList();
+        for (DexBackedClassDef classDef: dexFile.getClasses()) {
+            trace.add("class " + classDef.getType() + " " + classDef.getSuperclass() + " " +
+                    classDef.getAccessFlags());
+            addAnnotations(trace, -1, classDef.getAnnotations());
+            for (DexBackedField field: classDef.getStaticFields(false)) {
+                trace.add("field " + field + " " + field.getAccessFlags());
+                addAnnotations(trace, -1, field.getAnnotations());
+            }
+            for (DexBackedField field: classDef.getInstanceFields(false)) {
+                trace.add("field " + field + " " + field.getAccessFlags());
+                addAnnotations(trace, -1, field.getAnnotations());
+            }
+            addMethods(trace, classDef.getDirectMethods(false));
+            addMethods(trace, classDef.getVirtualMethods(false));
+            trace.add("end " + classDef.getType());
+        }
+        return trace;
+    }
+
+    @Test
+    public void testMatchesObjectModel() throws IOException {
+        DexBackedDexFile dexFile = buildDexFile();
+        TraceVisitor visitor = new TraceVisitor();
+        Assert.assertTrue(dexFile.accept(visitor));
+        Assert.assertEquals(traceObjectModel(dexFile), visitor.trace);
+        Assert.assertTrue(visitor.trace.contains("annotation 1 Lanno2; 1"));
+    }
+
+    @Test
+    public void testTestDex() throws IOException {
+        DexBackedDexFile dexFile = loadTestDex();
+        TraceVisitor visitor = new TraceVisitor();
+        Assert.assertTrue(dexFile.accept(visitor));
+        Assert.assertEquals(traceObjectModel(dexFile), visitor.trace);
+    }
+
+    @Test
+    public void testSkipAndStop() throws IOException {
+        DexBackedDexFile dexFile = buildDexFile();
+
+        TraceVisitor skipMembers = new TraceVisitor() {
+            @Override public int visitClass(@Nonnull ClassItem classItem) {
+                super.visitClass(classItem);
+                return SKIP;
+            }
+        };
+        Assert.assertTrue(dexFile.accept(skipMembers));
+        Assert.assertEquals(3, skipMembers.trace.size());
+
+        TraceVisitor skipInstructions = new TraceVisitor() {
+            @Override public int visitInstruction(@Nonnull MethodItem methodItem,
+                                                  @Nonnull InstructionCursor instruction) {
+                super.visitInstruction(methodItem, instruction);
+                return SKIP;
+            }
+        };
+        Assert.assertTrue(dexFile.accept(skipInstructions));
+        // Only the first instruction of each of the 2 implementations of the 3 classes
+        int instructionCount = 0;
+        for (String line: skipInstructions.trace) {
+            if (line.equals("const/4") || line.equals("nop")) {
+                instructionCount++;
+            } else {
+                Assert.assertFalse(line.equals("return") || line.equals("return-void"));
+            }
+        }
+        Assert.assertEquals(6, instructionCount);
+
+        TraceVisitor stopAtMethod = new TraceVisitor() {
+            @Override public int visitMethod(@Nonnull MethodItem methodItem) {
+                super.visitMethod(methodItem);
+                return STOP;
+            }
+        };
+        Assert.assertFalse(dexFile.accept(stopAtMethod));
+        Assert.assertTrue(stopAtMethod.trace.get(stopAtMethod.trace.size() - 1).startsWith("method Ltest0;"));
+        Assert.assertFalse(stopAtMethod.trace.contains("end Ltest0;"));
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2026, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.dexbacked;
+
+import com.google.common.collect.ImmutableList;
+import junit.framework.Assert;
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.DexFileFactory;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.instruction.InstructionCursor;
+import org.jf.dexlib2.dexbacked.reference.DexBackedReference;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.instruction.*;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.jf.dexlib2.immutable.ImmutableMethod;
+import org.jf.dexlib2.immutable.ImmutableMethodImplementation;
+import org.jf.dexlib2.immutable.ImmutableMethodParameter;
+import org.jf.dexlib2.immutable.instruction.*;
+import org.jf.dexlib2.immutable.reference.ImmutableFieldReference;
+import org.jf.dexlib2.immutable.reference.ImmutableMethodReference;
+import org.jf.dexlib2.immutable.reference.ImmutableStringReference;
+import org.jf.dexlib2.immutable.reference.ImmutableTypeReference;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URL;
+
+public class InstructionCursorTest {
+    @Test
+    public void testAllFormats() throws IOException {
+        ImmutableList<ImmutableInstruction> instructions = ImmutableList.of(
+                /*0x00*/ new ImmutableInstruction11n(Opcode.CONST_4, 0, -3),
+                /*0x01*/ new ImmutableInstruction21s(Opcode.CONST_16, 1, -12),
+                /*0x03*/ new ImmutableInstruction21ih(Opcode.CONST_HIGH16, 2, 0x10000),
+                /*0x05*/ new ImmutableInstruction21lh(Opcode.CONST_WIDE_HIGH16, 2, 0x1000000000000L),
+                /*0x07*/ new ImmutableInstruction31i(Opcode.CONST, 4, 0x12345678),
+                /*0x0a*/ new ImmutableInstruction51l(Opcode.CONST_WIDE, 4, 0x123456789abcdefL),
+                /*0x0f*/ new ImmutableInstruction21c(Opcode.CONST_STRING, 6, new ImmutableStringReference("blah")),
+                /*0x11*/ new ImmutableInstruction31c(Opcode.CONST_STRING_JUMBO, 6,
+                                                     new ImmutableStringReference("jumbo")),
+                /*0x14*/ new ImmutableInstruction22c(Opcode.INSTANCE_OF, 0, 1, new ImmutableTypeReference("Ltype;")),
+                /*0x16*/ new ImmutableInstruction22c(Opcode.IGET, 0, 1,
+                                                     new ImmutableFieldReference("Ltype;", "f", "I")),
+                /*0x18*/ new ImmutableInstruction22b(Opcode.ADD_INT_LIT8, 0, 1, -16),
+                /*0x1a*/ new ImmutableInstruction22s(Opcode.ADD_INT_LIT16, 0, 1, -300),
+                /*0x1c*/ new ImmutableInstruction23x(Opcode.ADD_INT, 0, 1, 2),
+                /*0x1e*/ new ImmutableInstruction22x(Opcode.MOVE_FROM16, 0, 300),
+                /*0x20*/ new ImmutableInstruction32x(Opcode.MOVE_16, 350, 300),
+                /*0x23*/ new ImmutableInstruction12x(Opcode.ARRAY_LENGTH, 0, 1),
+                /*0x24*/ new ImmutableInstruction35c(Opcode.INVOKE_VIRTUAL, 3, 0, 1, 2, 0, 0,
+                                                     new ImmutableMethodReference("Ltype;", "m",
+                                                             ImmutableList.of("I", "I"), "V")),
+                /*0x27*/ new ImmutableInstruction3rc(Opcode.INVOKE_STATIC_RANGE, 300, 3,
+                                                     new ImmutableMethodReference("Ltype;", "s",
+                                                             ImmutableList.of("I", "I", "I"), "V")),
+                /*0x2a*/ new ImmutableInstruction21c(Opcode.SGET_OBJECT, 0,
+                                                     new ImmutableFieldReference("Ltype;", "sf", "Ltype;")),
+                /*0x2c*/ new ImmutableInstruction21t(Opcode.IF_EQZ, 0, -0x2c),
+                /*0x2e*/ new ImmutableInstruction22t(Opcode.IF_EQ, 0, 1, -0x2e),
+                /*0x30*/ new ImmutableInstruction10t(Opcode.GOTO, -0x30),
+                /*0x31*/ new ImmutableInstruction20t(Opcode.GOTO_16, -0x31),
+                /*0x33*/ new ImmutableInstruction30t(Opcode.GOTO_32, -0x33),
+                /*0x36*/ new ImmutableInstruction31t(Opcode.FILL_ARRAY_DATA, 0, 0x3e - 0x36),
+                /*0x39*/ new ImmutableInstruction31t(Opcode.PACKED_SWITCH, 0, 0x48 - 0x39),
+                /*0x3c*/ new ImmutableInstruction10x(Opcode.RETURN_VOID),
+                /*0x3d*/ new ImmutableInstruction10x(Opcode.NOP),
+                /*0x3e*/ new ImmutableArrayPayload(4, ImmutableList.<Number>of(1, 2, 3)),
+                /*0x48*/ new ImmutablePackedSwitchPayload(ImmutableList.of(
+                        new ImmutableSwitchElement(5, -0x39), new ImmutableSwitchElement(6, -0x2e)))
+        );
+
+        ClassDef classDef = new ImmutableClassDef("Ltest;", AccessFlags.PUBLIC.getValue(), "Ljava/lang/Object;",
+                null, null, null, null,
+                ImmutableList.of(new ImmutableMethod("Ltest;", "test", ImmutableList.<ImmutableMethodParameter>of(),
+                        "V", AccessFlags.STATIC.getValue(), null,
+                        new ImmutableMethodImplementation(400, instructions, null, null))));
+
+        MemoryDataStore dataStore = new MemoryDataStore();
+        DexPool.writeTo(dataStore, new ImmutableDexFile(Opcodes.getDefault(), ImmutableList.of(classDef)));
+        DexBackedDexFile dexFile = new DexBackedDexFile(Opcodes.getDefault(), dataStore.getBuffer());
+
+        int count = 0;
+        for (DexBackedClassDef dexClassDef: dexFile.getClasses()) {
+            for (DexBackedMethod method: dexClassDef.getMethods()) {
+                count += compareInstructions(dexFile, method.getImplementation());
+            }
+        }
+        Assert.assertEquals(instructions.size(), count);
+    }
+
+    @Test
+    public void testTestDex() throws IOException {
+        URL url = InstructionCursorTest.class.getClassLoader().getResource("accessorTest.dex");
+        Assert.assertNotNull(url);
+        DexBackedDexFile dexFile = DexFileFactory.loadDexFile(url.getFile(), Opcodes.getDefault());
+
+        int count = 0;
+        for (DexBackedClassDef classDef: dexFile.getClasses()) {
+            for (DexBackedMethod method: classDef.getMethods()) {
+                DexBackedMethodImplementation impl = method.getImplementation();
+                if (impl != null) {
+                    count += compareInstructions(dexFile, impl);
+                }
+            }
+        }
+        Assert.assertTrue(count > 0);
+    }
+
+    private static int compareInstructions(DexBackedDexFile dexFile, DexBackedMethodImplementation impl) {
+        InstructionCursor cursor = impl.newInstructionCursor();
+        int codeAddress = 0;
+        int count = 0;
+        for (Instruction instruction: impl.getInstructions()) {
+            Assert.assertTrue(cursor.next());
+            Assert.assertEquals(codeAddress, cursor.getCodeAddress());
+            Assert.assertEquals(instruction.getOpcode(), cursor.getOpcode());
+            Assert.assertEquals(instruction.getCodeUnits(), cursor.getCodeUnits());
+
+            if (instruction instanceof OneRegisterInstruction) {
+                Assert.assertEquals(((OneRegisterInstruction)instruction).getRegisterA(), cursor.getRegisterA());
+            }
+            if (instruction instanceof TwoRegisterInstruction) {
+                Assert.assertEquals(((TwoRegisterInstruction)instruction).getRegisterB(), cursor.getRegisterB());
+            }
+            if (instruction instanceof ThreeRegisterInstruction) {
+                Assert.assertEquals(((ThreeRegisterInstruction)instruction).getRegisterC(), cursor.getRegisterC());
+            }
+            if (instruction instanceof FiveRegisterInstruction) {
+                FiveRegisterInstruction fiveRegister = (FiveRegisterInstruction)instruction;
+                Assert.assertEquals(fiveRegister.getRegisterCount(), cursor.getRegisterCount());
+                Assert.assertEquals(fiveRegister.getRegisterC(), cursor.getRegisterC());
+                Assert.assertEquals(fiveRegister.getRegisterD(), cursor.getRegisterD());
+                Assert.assertEquals(fiveRegister.getRegisterE(), cursor.getRegisterE());
+                Assert.assertEquals(fiveRegister.getRegisterF(), cursor.getRegisterF());
+                Assert.assertEquals(fiveRegister.getRegisterG(), cursor.getRegisterG());
+            }
+            if (instruction instanceof RegisterRangeInstruction) {
+                RegisterRangeInstruction rangeInstruction = (RegisterRangeInstruction)instruction;
+                Assert.assertEquals(rangeInstruction.getRegisterCount(), cursor.getRegisterCount());
+                Assert.assertEquals(rangeInstruction.getStartRegister(), cursor.getStartRegister());
+            }
+            if (instruction instanceof WideLiteralInstruction) {
+                Assert.assertEquals(((WideLiteralInstruction)instruction).getWideLiteral(), cursor.getWideLiteral());
+            }
+            if (instruction instanceof NarrowLiteralInstruction) {
+                Assert.assertEquals(((NarrowLiteralInstruction)instruction).getNarrowLiteral(),
+                        cursor.getNarrowLiteral());
+            }
+            if (instruction instanceof OffsetInstruction) {
+                Assert.assertEquals(((OffsetInstruction)instruction).getCodeOffset(), cursor.getCodeOffset());
+            }
+            if (instruction instanceof ReferenceInstruction) {
+                ReferenceInstruction referenceInstruction = (ReferenceInstruction)instruction;
+                Assert.assertEquals(referenceInstruction.getReferenceType(), cursor.getReferenceType());
+                Assert.assertEquals(referenceInstruction.getReference(),
+                        DexBackedReference.makeReference(dexFile, cursor.getReferenceType(),
+                                cursor.getReferenceIndex()));
+            }
+            if (instruction instanceof DualReferenceInstruction) {
+                DualReferenceInstruction dualReferenceInstruction = (DualReferenceInstruction)instruction;
+                Assert.assertEquals(dualReferenceInstruction.getReferenceType2(), cursor.getReferenceType2());
+                Assert.assertEquals(dualReferenceInstruction.getReference2(),
+                        DexBackedReference.makeReference(dexFile, cursor.getReferenceType2(),
+                                cursor.getReferenceIndex2()));
+            }
+
+            codeAddress += instruction.getCodeUnits();
+            count++;
+        }
+        Assert.assertFalse(cursor.next());
+        return count;
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2026, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.immutable;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.dexbacked.DexBackedMethod;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.iface.instruction.formats.UnknownInstruction;
+import org.jf.dexlib2.immutable.instruction.*;
+import org.jf.dexlib2.immutable.reference.ImmutableFieldReference;
+import org.jf.dexlib2.immutable.reference.ImmutableMethodProtoReference;
+import org.jf.dexlib2.immutable.reference.ImmutableMethodReference;
+import org.jf.dexlib2.immutable.reference.ImmutableStringReference;
+import org.jf.dexlib2.immutable.reference.ImmutableTypeReference;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+public class PackedMethodImplementationTest {
+    private static final Opcodes OPCODES = Opcodes.forApi(26);
+    private static final int REGISTER_COUNT = 301;
+
+    private static List<ImmutableInstruction> makeInstructions() {
+        ImmutableMethodReference method = new ImmutableMethodReference("Lorg/test/Test;", "call",
+                ImmutableList.of("I", "I", "I"), "V");
+        ImmutableMethodReference invoke = new ImmutableMethodReference("Ljava/lang/invoke/MethodHandle;",
+                "invoke", ImmutableList.of("[Ljava/lang/Object;"), "Ljava/lang/Object;");
+        return ImmutableList.of(
+                new ImmutableInstruction21c(Opcode.CONST_STRING, 0, new ImmutableStringReference("a")), // 0
+                new ImmutableInstruction31c(Opcode.CONST_STRING_JUMBO, 1, new ImmutableStringReference("b")), // 2
+                new ImmutableInstruction11n(Opcode.CONST_4, 2, -3), // 5
+                new ImmutableInstruction21s(Opcode.CONST_16, 3, -1000), // 6
+                new ImmutableInstruction21ih(Opcode.CONST_HIGH16, 4, 0x12340000), // 8
+                new ImmutableInstruction21lh(Opcode.CONST_WIDE_HIGH16, 4, 0x1234000000000000L), // 10
+                new ImmutableInstruction31i(Opcode.CONST, 5, 0x12345678), // 12
+                new ImmutableInstruction51l(Opcode.CONST_WIDE, 6, 0x123456789abcdefL), // 15
+                new ImmutableInstruction22b(Opcode.ADD_INT_LIT8, 0, 2, -5), // 20
+                new ImmutableInstruction22s(Opcode.ADD_INT_LIT16, 0, 2, 300), // 22
+                new ImmutableInstruction22c(Opcode.IGET, 0, 8,
+                        new ImmutableFieldReference("Lorg/test/Test;", "field", "I")), // 24
+                new ImmutableInstruction23x(Opcode.ADD_INT, 0, 2, 3), // 26
+                new ImmutableInstruction12x(Opcode.ADD_INT_2ADDR, 0, 2), // 28
+                new ImmutableInstruction22x(Opcode.MOVE_FROM16, 0, 300), // 29
+                new ImmutableInstruction32x(Opcode.MOVE_16, 300, 0), // 31
+                new ImmutableInstruction35c(Opcode.INVOKE_STATIC, 3, 0, 2, 3, 0, 0, method), // 34
+                new ImmutableInstruction3rc(Opcode.INVOKE_STATIC_RANGE, 0, 3, method), // 37
+                new ImmutableInstruction45cc(Opcode.INVOKE_POLYMORPHIC, 2, 0, 1, 0, 0, 0, invoke,
+                        new ImmutableMethodProtoReference(ImmutableList.of("I"), "V")), // 40
+                new ImmutableInstruction21t(Opcode.IF_EQZ, 0, 4), // 44
+                new ImmutableInstruction22t(Opcode.IF_EQ, 0, 2, 2), // 46
+                new ImmutableInstruction10t(Opcode.GOTO, 1), // 48
+                new ImmutableInstruction20t(Opcode.GOTO_16, 2), // 49
+                new ImmutableInstruction30t(Opcode.GOTO_32, 3), // 51
+                new ImmutableInstruction31t(Opcode.PACKED_SWITCH, 0, 14), // 54
+                new ImmutableInstruction31t(Opcode.SPARSE_SWITCH, 0, 19), // 57
+                new ImmutableInstruction31t(Opcode.FILL_ARRAY_DATA, 0, 26), // 60
+                new ImmutableInstruction21c(Opcode.CHECK_CAST, 0, new ImmutableTypeReference("Lorg/test/Test;")), // 63
+                new ImmutableInstruction11x(Opcode.MOVE_RESULT, 0), // 65
+                new ImmutableInstruction10x(Opcode.RETURN_VOID), // 66
+                new ImmutableInstruction10x(Opcode.NOP), // 67
+                new ImmutablePackedSwitchPayload(ImmutableList.of(
+                        new ImmutableSwitchElement(-1, -14), new ImmutableSwitchElement(0, 3))), // 68
+                new ImmutableSparseSwitchPayload(ImmutableList.of(
+                        new ImmutableSwitchElement(100, 5), new ImmutableSwitchElement(-7, -19))), // 76
+                new ImmutableArrayPayload(1, ImmutableList.<Number>of(1, -2, 127))); // 86
+    }
+
+    private static byte[] write(MethodImplementation implementation) throws IOException {
+        ImmutableMethod method = new ImmutableMethod("Lorg/test/Test;", "run", null, "V",
+                AccessFlags.PUBLIC.getValue() | AccessFlags.STATIC.getValue(), null, implementation);
+        ClassDef classDef = new ImmutableClassDef("Lorg/test/Test;", AccessFlags.PUBLIC.getValue(),
+                "Ljava/lang/Object;", null, null, null, null, ImmutableList.of(method));
+        MemoryDataStore dataStore = new MemoryDataStore();
+        DexPool.writeTo(dataStore, new ImmutableDexFile(OPCODES, ImmutableSet.of(classDef)));
+        return dataStore.getData();
+    }
+
+    @Test
+    public void testWriteSameAsInstructions() throws IOException {
+        List<ImmutableInstruction> instructions = makeInstructions();
+        ImmutableMethodImplementation immutableImpl = new ImmutableMethodImplementation(REGISTER_COUNT,
+                instructions, ImmutableList.of(new ImmutableTryBlock(0, 5,
+                        ImmutableList.of(new ImmutableExceptionHandler("Ljava/lang/Exception;", 66)))), null);
+        PackedMethodImplementation packedImpl = PackedMethodImplementation.of(OPCODES, immutableImpl);
+        Assert.assertEquals(92, packedImpl.getCodeUnitCount());
+
+        byte[] expected = write(immutableImpl);
+        Assert.assertArrayEquals(expected, write(packedImpl));
+
+        // The instructions created from the code units are the same as the original ones
+        Assert.assertEquals(instructions.size(), Iterables.size(packedImpl.getInstructions()));
+        Assert.assertArrayEquals(expected, write(new ImmutableMethodImplementation(REGISTER_COUNT,
+                packedImpl.getInstructions(), packedImpl.getTryBlocks(), packedImpl.getDebugItems())));
+
+        // Pack the code read from the dex file
+        DexBackedDexFile dexFile = new DexBackedDexFile(OPCODES, expected);
+        DexBackedMethod dexBackedMethod = Iterables.getOnlyElement(
+                Iterables.getOnlyElement(dexFile.getClasses()).getMethods());
+        Assert.assertArrayEquals(expected,
+                write(PackedMethodImplementation.of(OPCODES, dexBackedMethod.getImplementation())));
+    }
+
+    @Test
+    public void testInstructionCursor() {
+        PackedMethodImplementation packedImpl = new PackedMethodImplementation(OPCODES, REGISTER_COUNT,
+                makeInstructions(), null, null);
+        PackedMethodImplementation.InstructionCursor cursor = packedImpl.newInstructionCursor();
+        int codeAddress = 0;
+        for (Instruction instruction: makeInstructions()) {
+            Assert.assertTrue(cursor.next());
+            Assert.assertEquals(codeAddress, cursor.getCodeAddress());
+            Assert.assertEquals(instruction.getOpcode(), cursor.getOpcode());
+            Assert.assertEquals(instruction.getCodeUnits(), cursor.getCodeUnits());
+            codeAddress += instruction.getCodeUnits();
+        }
+        Assert.assertFalse(cursor.next());
+    }
+
+    @Test
+    public void testUnknownInstruction() {
+        PackedMethodImplementation packedImpl = new PackedMethodImplementation(OPCODES, 1, ImmutableList.of(
+                new ImmutableUnknownInstruction(0x3e), new ImmutableInstruction10x(Opcode.RETURN_VOID)), null, null);
+        Instruction instruction = packedImpl.getInstructions().iterator().next();
+        Assert.assertTrue(instruction instanceof UnknownInstruction);
+        Assert.assertEquals(0x3e, ((UnknownInstruction)instruction).getOriginalOpcode());
+    }
+
+    @Test
+    public void testImmutableMethodKeepsPackedImplementation() {
+        PackedMethodImplementation packedImpl = new PackedMethodImplementation(OPCODES, 1,
+                ImmutableList.of(new ImmutableInstruction10x(Opcode.RETURN_VOID)), null, null);
+        ImmutableMethod method = new ImmutableMethod("Lorg/test/Test;", "run", null, "V",
+                AccessFlags.PUBLIC.getValue() | AccessFlags.STATIC.getValue(), null, packedImpl);
+        Assert.assertSame(packedImpl, method.getStoredImplementation());
+        Assert.assertSame(packedImpl, ImmutableMethod.of(new ImmutableMethod("Lorg/test/Test;", "run", null, "V",
+                0, null, method.getStoredImplementation())).getStoredImplementation());
+
+        // The compatible accessor converts the packed implementation
+        ImmutableMethodImplementation impl = method.getImplementation();
+        Assert.assertNotNull(impl);
+        Assert.assertEquals(1, impl.getRegisterCount());
+        Assert.assertEquals(Opcode.RETURN_VOID, impl.getInstructions().get(0).getOpcode());
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2026, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.writer;
+
+import org.jf.dexlib2.immutable.reference.ImmutableMethodReference;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+
+public class ArtProfileTest {
+    private static final String PROFILE =
+            "# comment\n" +
+            "Lcom/example/Startup;\n" +
+            "HSPLcom/example/Foo;->bar(I)V\n" +
+            "HLcom/example/Foo;->baz()V+Lcom/example/Impl;\n" +
+            "PLcom/example/Late;->run()V\n" +
+            "Lcom/example/Hot;->run()V\n" +
+            "\n" +
+            "SLcom/example/wild/*;->**(**)**\n" +
+            "Lcom/example/classes/**;\n";
+
+    private static int getMethodRank(ArtProfile profile, String definingClass, String name, String returnType) {
+        return profile.getMethodRank(new ImmutableMethodReference(definingClass, name, null, returnType));
+    }
+
+    @Test
+    public void testText() throws IOException {
+        ArtProfile profile = ArtProfile.read(new StringReader(PROFILE));
+
+        Assert.assertEquals(ArtProfile.FLAG_HOT | ArtProfile.FLAG_STARTUP | ArtProfile.FLAG_POST_STARTUP,
+                profile.getMethodFlags("Lcom/example/Foo;->bar(I)V"));
+        Assert.assertEquals(ArtProfile.FLAG_HOT, profile.getMethodFlags("Lcom/example/Foo;->baz()V"));
+        Assert.assertEquals(ArtProfile.FLAG_HOT, profile.getMethodFlags("Lcom/example/Hot;->run()V"));
+        Assert.assertEquals(0, profile.getMethodFlags("Lcom/example/Foo;->other()V"));
+
+        Assert.assertEquals(ArtProfile.RANK_HOT, getMethodRank(profile, "Lcom/example/Foo;", "baz", "V"));
+        Assert.assertEquals(ArtProfile.RANK_POST_STARTUP, getMethodRank(profile, "Lcom/example/Late;", "run", "V"));
+        Assert.assertEquals(DexLayout.UNRANKED, getMethodRank(profile, "Lcom/example/Late;", "other", "V"));
+
+        Assert.assertEquals(ArtProfile.RANK_STARTUP, profile.getClassRank("Lcom/example/Startup;"));
+        Assert.assertEquals(ArtProfile.RANK_STARTUP, profile.getClassRank("Lcom/example/Foo;"));
+        Assert.assertEquals(ArtProfile.RANK_HOT, profile.getClassRank("Lcom/example/Hot;"));
+        Assert.assertEquals(ArtProfile.RANK_POST_STARTUP, profile.getClassRank("Lcom/example/Late;"));
+        Assert.assertEquals(DexLayout.UNRANKED, profile.getClassRank("Lcom/example/Other;"));
+        Assert.assertFalse(profile.containsClass("Lcom/example/Other;"));
+    }
+
+    @Test
+    public void testWildcards() throws IOException {
+        ArtProfile profile = ArtProfile.read(new StringReader(PROFILE));
+
+        Assert.assertEquals(ArtProfile.RANK_STARTUP, getMethodRank(profile, "Lcom/example/wild/A;", "a", "V"));
+        Assert.assertEquals(ArtProfile.RANK_STARTUP, profile.getClassRank("Lcom/example/wild/A;"));
+        // A single * doesn't match a /
+        Assert.assertEquals(DexLayout.UNRANKED, getMethodRank(profile, "Lcom/example/wild/sub/A;", "a", "V"));
+        Assert.assertEquals(ArtProfile.RANK_STARTUP, profile.getClassRank("Lcom/example/classes/sub/A;"));
+        Assert.assertEquals(DexLayout.UNRANKED, profile.getClassRank("Lcom/example/classesA;"));
+    }
+
+    @Test
+    public void testBinary() {
+        try {
+            ArtProfile.read(new ByteArrayInputStream(new byte[] {'p', 'r', 'o', 0, '0', '1', '0', 0}));
+            Assert.fail();
+        } catch (IOException ex) {
+            Assert.assertTrue(ex.getMessage().contains("profman"));
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2026, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.writer;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedClassDef;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.dexbacked.DexBackedMethod;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.iface.instruction.ReferenceInstruction;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.jf.dexlib2.immutable.ImmutableMethod;
+import org.jf.dexlib2.immutable.ImmutableMethodImplementation;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction10x;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction21c;
+import org.jf.dexlib2.immutable.reference.ImmutableStringReference;
+import org.jf.dexlib2.util.ReferenceUtil;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+public class DexLayoutTest {
+    private static final int CLASS_COUNT = 200;
+    private static final int[] PROFILE_CLASSES = {17, 93, 150, 199};
+
+    private static String getType(int i) {
+        return String.format("Lorg/test/Class%03d;", i);
+    }
+
+    private static List<ClassDef> makeClasses() {
+        List<ClassDef> classDefs = Lists.newArrayList();
+        for (int i=0; i<CLASS_COUNT; i++) {
+            List<ImmutableInstruction> instructions = Lists.newArrayList();
+            for (int j=0; j<50; j++) {
+                instructions.add(new ImmutableInstruction21c(Opcode.CONST_STRING, 0,
+                        new ImmutableStringReference(String.format("string %d of class %d", j, i))));
+            }
+            instructions.add(new ImmutableInstruction10x(Opcode.RETURN_VOID));
+            ImmutableMethod method = new ImmutableMethod(getType(i), "run", null, "V",
+                    AccessFlags.PUBLIC.getValue() | AccessFlags.STATIC.getValue(), null,
+                    new ImmutableMethodImplementation(1, instructions, null, null));
+            classDefs.add(new ImmutableClassDef(getType(i), AccessFlags.PUBLIC.getValue(), "Ljava/lang/Object;",
+                    null, null, null, null, ImmutableList.of(method)));
+        }
+        return classDefs;
+    }
+
+    private static byte[] writeBytes(DexPool dexPool) throws IOException {
+        for (ClassDef classDef: makeClasses()) {
+            dexPool.internClass(classDef);
+        }
+        MemoryDataStore dataStore = new MemoryDataStore();
+        dexPool.writeTo(dataStore);
+        return dataStore.getData();
+    }
+
+    private static DexBackedDexFile write(DexPool dexPool) throws IOException {
+        return new DexBackedDexFile(Opcodes.getDefault(), writeBytes(dexPool));
+    }
+
+    private static Map<String, List<String>> getContents(DexBackedDexFile dexFile) {
+        Map<String, List<String>> contents = Maps.newTreeMap();
+        for (DexBackedClassDef classDef: dexFile.getClasses()) {
+            for (DexBackedMethod method: classDef.getMethods()) {
+                List<String> strings = Lists.newArrayList();
+                for (Instruction instruction: method.getImplementation().getInstructions()) {
+                    if (instruction instanceof ReferenceInstruction) {
+                        strings.add(ReferenceUtil.getReferenceString(
+                                ((ReferenceInstruction)instruction).getReference()));
+                    }
+                }
+                contents.put(ReferenceUtil.getMethodDescriptor(method), strings);
+            }
+        }
+        return contents;
+    }
+
+    @Test
+    public void testProfileLayout() throws IOException {
+        StringBuilder profileText = new StringBuilder("# startup classes\n");
+        for (int i: PROFILE_CLASSES) {
+            profileText.append("HSP").append(getType(i)).append("->run()V\n");
+        }
+        ArtProfile profile = ArtProfile.read(new StringReader(profileText.toString()));
+
+        DexBackedDexFile defaultDex = write(new DexPool(Opcodes.getDefault()));
+        DexPool dexPool = new DexPool(Opcodes.getDefault());
+        dexPool.setLayout(profile);
+        DexBackedDexFile layoutDex = write(dexPool);
+
+        Assert.assertEquals(getContents(defaultDex), getContents(layoutDex));
+
+        // The profile classes are the first classes and have the lowest code and string offsets
+        List<DexBackedClassDef> classDefs = Lists.newArrayList(layoutDex.getClasses());
+        int maxRankedCodeOffset = 0;
+        int maxRankedStringOffset = 0;
+        for (int i=0; i<PROFILE_CLASSES.length; i++) {
+            DexBackedClassDef classDef = classDefs.get(i);
+            Assert.assertEquals(getType(PROFILE_CLASSES[i]), classDef.getType());
+            DexBackedMethod method = classDef.getMethods().iterator().next();
+            maxRankedCodeOffset = Math.max(maxRankedCodeOffset, method.getCodeOffset());
+            maxRankedStringOffset = Math.max(maxRankedStringOffset, getStringDataOffset(layoutDex,
+                    String.format("string 49 of class %d", PROFILE_CLASSES[i])));
+        }
+        for (int i=PROFILE_CLASSES.length; i<classDefs.size(); i++) {
+            DexBackedClassDef classDef = classDefs.get(i);
+            DexBackedMethod method = classDef.getMethods().iterator().next();
+            Assert.assertTrue(method.getCodeOffset() > maxRankedCodeOffset);
+        }
+        for (int i=0; i<CLASS_COUNT; i++) {
+            if (Arrays.binarySearch(PROFILE_CLASSES, i) < 0) {
+                Assert.assertTrue(getStringDataOffset(layoutDex, String.format("string 0 of class %d", i)) >
+                        maxRankedStringOffset);
+            }
+        }
+
+        DexLayoutReport report = dexPool.getLayoutReport();
+        Assert.assertNotNull(report);
+        Assert.assertEquals(PROFILE_CLASSES.length, report.getItemCount(DexLayoutReport.CODE));
+        Assert.assertEquals(PROFILE_CLASSES.length, report.getItemCount(DexLayoutReport.CLASS_DATA));
+        // The type, method name and 50 strings of each class, and the shared name "run"
+        Assert.assertEquals(PROFILE_CLASSES.length * 51 + 1, report.getItemCount(DexLayoutReport.STRING_DATA));
+        for (int section: new int[] {DexLayoutReport.STRING_DATA, DexLayoutReport.CLASS_DATA,
+                DexLayoutReport.CODE}) {
+            Assert.assertTrue(report.getPageCount(section) <= report.getMinimumPageCount(section) + 1);
+        }
+    }
+
+    @Test
+    public void testDefaultLayout() throws IOException {
+        DexPool dexPool = new DexPool(Opcodes.getDefault());
+        byte[] defaultDex = writeBytes(dexPool);
+        Assert.assertNull(dexPool.getLayoutReport());
+
+        // A layout without ranks doesn't change anything
+        DexPool unrankedPool = new DexPool(Opcodes.getDefault());
+        unrankedPool.setLayout(new ArtProfile());
+        Assert.assertArrayEquals(defaultDex, writeBytes(unrankedPool));
+        Assert.assertEquals(0, unrankedPool.getLayoutReport().getPageCount());
+    }
+
+    private static int getStringDataOffset(DexBackedDexFile dexFile, String string) {
+        for (int i=0; i<dexFile.getStringCount(); i++) {
+            if (dexFile.getString(i).equals(string)) {
+                return dexFile.readSmallUint(dexFile.getStringIdItemOffset(i));
+            }
+        }
+        throw new AssertionError("Missing string: " + string);
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2026, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.writer;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedClassDef;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.dexbacked.DexBackedMethod;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.debug.DebugItem;
+import org.jf.dexlib2.immutable.*;
+import org.jf.dexlib2.immutable.debug.ImmutableLineNumber;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction10x;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction21c;
+import org.jf.dexlib2.immutable.reference.ImmutableStringReference;
+import org.jf.dexlib2.writer.io.DeferredOutputStreamFactory;
+import org.jf.dexlib2.writer.io.FileDeferredOutputStream;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+
+public class ParallelCodeWriterTest {
+    private static final int CLASS_COUNT = 400;
+
+    private static String getType(int i) {
+        return String.format("Lorg/test/Class%03d;", i);
+    }
+
+    private static List<ClassDef> makeClasses() {
+        List<ClassDef> classDefs = Lists.newArrayList();
+        for (int i=0; i<CLASS_COUNT; i++) {
+            String type = getType(i);
+            List<ImmutableMethod> methods = Lists.newArrayList();
+
+            // A different number of code units in each class, so some code items need padding
+            List<ImmutableInstruction> instructions = Lists.newArrayList();
+            instructions.add(new ImmutableInstruction21c(Opcode.CONST_STRING, 0,
+                    new ImmutableStringReference("string of class " + i)));
+            for (int j=0; j<i%7; j++) {
+                instructions.add(new ImmutableInstruction10x(Opcode.NOP));
+            }
+            instructions.add(new ImmutableInstruction10x(Opcode.RETURN_VOID));
+            List<ImmutableTryBlock> tryBlocks = ImmutableList.of(new ImmutableTryBlock(0, 2,
+                    ImmutableList.of(new ImmutableExceptionHandler("Ljava/lang/Exception;", 2 + i%7))));
+            List<DebugItem> debugItems = Lists.newArrayList();
+            for (int j=0; j<=i%5; j++) {
+                debugItems.add(new ImmutableLineNumber(j, i + j));
+            }
+            methods.add(new ImmutableMethod(type, "run", null, "V",
+                    AccessFlags.PUBLIC.getValue() | AccessFlags.STATIC.getValue(), null,
+                    new ImmutableMethodImplementation(1, instructions, tryBlocks, debugItems)));
+
+            // Only the parameter name is in the debug item
+            methods.add(new ImmutableMethod(type, "set",
+                    ImmutableList.of(new ImmutableMethodParameter("I", ImmutableSet.<ImmutableAnnotation>of(),
+                            "value" + i%3)),
+                    "V", AccessFlags.PUBLIC.getValue(), null,
+                    new ImmutableMethodImplementation(2,
+                            ImmutableList.of(new ImmutableInstruction10x(Opcode.RETURN_VOID)), null, null)));
+
+            // No code item
+            methods.add(new ImmutableMethod(type, "get", null, "I",
+                    AccessFlags.PUBLIC.getValue() | AccessFlags.ABSTRACT.getValue(), null, null));
+
+            // No debug item
+            methods.add(new ImmutableMethod(type, "clear", null, "V",
+                    AccessFlags.PUBLIC.getValue() | AccessFlags.STATIC.getValue(), null,
+                    new ImmutableMethodImplementation(0,
+                            ImmutableList.of(new ImmutableInstruction10x(Opcode.RETURN_VOID)), null, null)));
+
+            classDefs.add(new ImmutableClassDef(type,
+                    AccessFlags.PUBLIC.getValue() | AccessFlags.ABSTRACT.getValue(), "Ljava/lang/Object;",
+                    null, null, null, null, methods));
+        }
+        return classDefs;
+    }
+
+    private static byte[] write(int threads, DexLayout layout) throws IOException {
+        return write(threads, layout, null);
+    }
+
+    private static byte[] write(int threads, DexLayout layout, DeferredOutputStreamFactory tempFactory)
+            throws IOException {
+        DexPool dexPool = new DexPool(Opcodes.getDefault());
+        dexPool.setCodeWriterThreads(threads);
+        if (layout != null) {
+            dexPool.setLayout(layout);
+        }
+        for (ClassDef classDef: makeClasses()) {
+            dexPool.internClass(classDef);
+        }
+        MemoryDataStore dataStore = new MemoryDataStore();
+        if (tempFactory != null) {
+            dexPool.writeTo(dataStore, tempFactory);
+        } else {
+            dexPool.writeTo(dataStore);
+        }
+        return dataStore.getData();
+    }
+
+    @Test
+    public void testSameAsSerial() throws IOException {
+        byte[] serialDex = write(1, null);
+        for (int threads: new int[] {2, 3, 8}) {
+            Assert.assertArrayEquals(serialDex, write(threads, null));
+        }
+
+        DexBackedDexFile dexFile = new DexBackedDexFile(Opcodes.getDefault(), serialDex);
+        int codeItemCount = 0;
+        for (DexBackedClassDef classDef: dexFile.getClasses()) {
+            for (DexBackedMethod method: classDef.getMethods()) {
+                if (method.getImplementation() != null) {
+                    codeItemCount++;
+                    Assert.assertNotNull(method.getImplementation().getDebugItems());
+                }
+            }
+        }
+        Assert.assertEquals(CLASS_COUNT * 3, codeItemCount);
+    }
+
+    @Test
+    public void testSameAsSerialWithLayout() throws IOException {
+        StringBuilder profileText = new StringBuilder();
+        for (int i=0; i<CLASS_COUNT; i+=13) {
+            profileText.append("HS").append(getType(i)).append("->run()V\n");
+            profileText.append("P").append(getType(i + 1)).append("->set(I)V\n");
+        }
+        ArtProfile profile = ArtProfile.read(new StringReader(profileText.toString()));
+        Assert.assertArrayEquals(write(1, profile), write(4, profile));
+    }
+
+    @Test
+    public void testSameAsSerialWithFileTemp() throws IOException {
+        File tempDir = Files.createTempDir();
+        try {
+            // A small buffer, so the ranges are spilled to the temp files and copied in several writes
+            DeferredOutputStreamFactory tempFactory = FileDeferredOutputStream.getFactory(tempDir, 64);
+            Assert.assertArrayEquals(write(1, null), write(4, null, tempFactory));
+            Assert.assertEquals(0, tempDir.listFiles().length);
+        } finally {
+            for (File file: tempDir.listFiles()) {
+                file.delete();
+            }
+            tempDir.delete();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidThreads() {
+        new DexPool(Opcodes.getDefault()).setCodeWriterThreads(0);
+    }
+}
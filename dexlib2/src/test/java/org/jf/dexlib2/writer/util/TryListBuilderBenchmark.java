@@ -0,0 +1,84 @@
+/*
+ * Copyright 2026, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.writer.util;
+
+import org.jf.dexlib2.iface.ExceptionHandler;
+import org.jf.dexlib2.immutable.ImmutableExceptionHandler;
+
+import java.util.Random;
+
+/**
+ * Measures TryListBuilder on synthetic methods with many try ranges, like the ones of obfuscated code or of heavily
+ * inlined methods. Run the main method with the test classpath.
+ */
+public class TryListBuilderBenchmark {
+    private static final int HANDLER_COUNT = 10000;
+    private static final int ITERATIONS = 20;
+
+    public static void main(String[] args) {
+        benchmark("disjoint", false);
+        benchmark("overlapping", true);
+    }
+
+    private static void benchmark(String name, boolean overlapping) {
+        int[] starts = new int[HANDLER_COUNT];
+        int[] ends = new int[HANDLER_COUNT];
+        ExceptionHandler[] handlers = new ExceptionHandler[HANDLER_COUNT];
+        Random random = new Random(HANDLER_COUNT);
+        for (int i=0; i<HANDLER_COUNT; i++) {
+            if (overlapping) {
+                // short ranges that overlap with the nearby ones
+                starts[i] = random.nextInt(HANDLER_COUNT * 4);
+                ends[i] = starts[i] + 1 + random.nextInt(16);
+            } else {
+                starts[i] = random.nextInt(HANDLER_COUNT) * 4;
+                ends[i] = starts[i] + 1 + random.nextInt(3);
+            }
+            handlers[i] = new ImmutableExceptionHandler("LException" + random.nextInt(8) + ";", i);
+        }
+
+        long best = Long.MAX_VALUE;
+        int tryBlockCount = 0;
+        for (int iteration=0; iteration<ITERATIONS; iteration++) {
+            long start = System.nanoTime();
+            TryListBuilder<ExceptionHandler> tlb = new TryListBuilder<ExceptionHandler>();
+            for (int i=0; i<HANDLER_COUNT; i++) {
+                tlb.addHandler(starts[i], ends[i], handlers[i]);
+            }
+            tryBlockCount = tlb.getTryBlocks().size();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.println(String.format("%s: %d handlers, %d try blocks, %.2f ms", name, HANDLER_COUNT,
+                tryBlockCount, best / 1e6));
+    }
+}
@@ -32,6 +32,7 @@
 package org.jf.dexlib2.writer.util;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import junit.framework.Assert;
 import org.jf.dexlib2.iface.ExceptionHandler;
 import org.jf.dexlib2.iface.TryBlock;
@@ -40,6 +41,7 @@ import org.jf.dexlib2.immutable.ImmutableTryBlock;
 import org.junit.Test;
 
 import java.util.List;
+import java.util.Random;
 
 public class TryListBuilderTest {
     private static class TryListBuilder extends org.jf.dexlib2.writer.util.TryListBuilder<ExceptionHandler> {
@@ -563,4 +565,74 @@ public class TryListBuilderTest {
 
         Assert.assertEquals(expected, tryBlocks);
     }
+
+    @Test
+    public void testRandomRanges() {
+        Random random = new Random(1234);
+        for (int iteration=0; iteration<200; iteration++) {
+            int codeSize = 10 + random.nextInt(200);
+            int handlerCount = 1 + random.nextInt(50);
+
+            TryListBuilder tlb = new TryListBuilder();
+            // The handlers of each code unit, built the same way as the handlers of a try block
+            List<List<ExceptionHandler>> expectedHandlers = Lists.newArrayList();
+            for (int i=0; i<codeSize; i++) {
+                expectedHandlers.add(Lists.<ExceptionHandler>newArrayList());
+            }
+
+            boolean expectedInvalid = false;
+            boolean invalid = false;
+            for (int i=0; i<handlerCount; i++) {
+                int start = random.nextInt(codeSize - 1);
+                int end = start + 1 + random.nextInt(codeSize - start - 1);
+                String type = random.nextInt(4) == 0 ? null : "LException" + random.nextInt(5) + ";";
+                ExceptionHandler handler = new ImmutableExceptionHandler(type, random.nextInt(3));
+
+                for (int address=start; address<end && !expectedInvalid; address++) {
+                    expectedInvalid = !addExpectedHandler(expectedHandlers.get(address), handler);
+                }
+                try {
+                    tlb.addHandler(start, end, handler);
+                } catch (TryListBuilder.InvalidTryException ex) {
+                    invalid = true;
+                }
+                Assert.assertEquals(expectedInvalid, invalid);
+                if (invalid) {
+                    break;
+                }
+            }
+            if (invalid) {
+                continue;
+            }
+
+            List<TryBlock> expected = Lists.newArrayList();
+            int address = 0;
+            while (address < codeSize) {
+                List<ExceptionHandler> handlers = expectedHandlers.get(address);
+                int end = address + 1;
+                while (end < codeSize && expectedHandlers.get(end).equals(handlers)) {
+                    end++;
+                }
+                if (!handlers.isEmpty()) {
+                    expected.add(new ImmutableTryBlock(address, end - address, handlers));
+                }
+                address = end;
+            }
+            Assert.assertEquals(expected, tlb.getTryBlocks());
+        }
+    }
+
+    private static boolean addExpectedHandler(List<ExceptionHandler> handlers, ExceptionHandler handler) {
+        for (ExceptionHandler existingHandler: handlers) {
+            if (existingHandler.getExceptionType() == null) {
+                if (handler.getExceptionType() == null) {
+                    return existingHandler.getHandlerCodeAddress() == handler.getHandlerCodeAddress();
+                }
+            } else if (existingHandler.getExceptionType().equals(handler.getExceptionType())) {
+                return true;
+            }
+        }
+        handlers.add(handler);
+        return true;
+    }
 }
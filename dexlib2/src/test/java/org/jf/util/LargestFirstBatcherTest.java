@@ -0,0 +1,84 @@
+/*
+ * Copyright 2026, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class LargestFirstBatcherTest {
+    @Test
+    public void testLargestFirst() {
+        long[] sizes = new long[] { 5, 1000, 1, 300, 5 };
+        List<int[]> batches = LargestFirstBatcher.batch(sizes, 1);
+
+        // The target size is 1311 / 16 = 81, so the large items are alone and the small ones are merged.
+        Assert.assertEquals(3, batches.size());
+        Assert.assertArrayEquals(new int[] { 1 }, batches.get(0));
+        Assert.assertArrayEquals(new int[] { 3 }, batches.get(1));
+        Assert.assertArrayEquals(new int[] { 0, 4, 2 }, batches.get(2));
+    }
+
+    @Test
+    public void testAllItemsBatchedOnce() {
+        long[] sizes = new long[10000];
+        for (int i=0; i<sizes.length; i++) {
+            sizes[i] = (i * 7919) % 97;
+        }
+        List<int[]> batches = LargestFirstBatcher.batch(sizes, 8);
+
+        boolean[] seen = new boolean[sizes.length];
+        long previousMax = Long.MAX_VALUE;
+        for (int[] batch: batches) {
+            Assert.assertTrue(batch.length > 0 && batch.length <= 256);
+            Assert.assertTrue(sizes[batch[0]] <= previousMax);
+            previousMax = sizes[batch[batch.length - 1]];
+            for (int index: batch) {
+                Assert.assertFalse(seen[index]);
+                seen[index] = true;
+            }
+        }
+        for (boolean s: seen) {
+            Assert.assertTrue(s);
+        }
+        // There should be enough batches for the threads to balance the end of the work.
+        Assert.assertTrue(batches.size() >= 8 * 8);
+    }
+
+    @Test
+    public void testEmpty() {
+        Assert.assertEquals(Arrays.asList(), LargestFirstBatcher.batch(new long[0], 4));
+    }
+}
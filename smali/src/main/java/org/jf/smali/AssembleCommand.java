@@ -77,9 +77,14 @@ public class AssembleCommand extends Command {
             description = "Allows the odex opcodes that dalvik doesn't reject to be assembled.")
     private boolean allowOdexOpcodes;
 
+    @Parameter(names = "--antlr-parser",
+            description = "Parse all files with the ANTLR parser and tree walker, instead of the direct parser.")
+    private boolean antlrParser;
+
     @Parameter(description = "Assembles the given files. If a directory is specified, it will be " +
-            "recursively searched for any files with a .smali prefix")
-    @ExtendedParameter(argumentNames = "[<file>|<dir>]+")
+            "recursively searched for any files with a .smali prefix. If a .zip file is specified, the .smali " +
+            "files in it are assembled")
+    @ExtendedParameter(argumentNames = "[<file>|<dir>|<zip>]+")
     private List<String> input;
 
     public AssembleCommand(@Nonnull List<JCommander> commandAncestors) {
@@ -107,6 +112,7 @@ public class AssembleCommand extends Command {
         options.outputDexFile = output;
         options.allowOdexOpcodes = allowOdexOpcodes;
         options.verboseErrors = verbose;
+        options.directParser = !antlrParser;
 
         return options;
     }
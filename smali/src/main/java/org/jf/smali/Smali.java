@@ -34,6 +34,7 @@ package org.jf.smali;
 import static javax.swing.text.html.HTML.Tag.HEAD;
 
 import com.google.common.collect.Lists;
+import com.google.common.io.CharStreams;
 
 import org.antlr.runtime.CommonTokenStream;
 import org.antlr.runtime.Token;
@@ -45,12 +46,15 @@ import org.jf.dexlib2.MultiDex;
 import org.jf.dexlib2.iface.ClassDef;
 import org.jf.dexlib2.writer.builder.DexBuilder;
 import org.jf.dexlib2.writer.io.FileDataStore;
+import org.jf.util.LargestFirstBatcher;
 
 import javax.annotation.Nonnull;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -59,6 +63,8 @@ import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 public class Smali {
 
@@ -82,6 +88,7 @@ public class Smali {
      */
     public static boolean assemble(final SmaliOptions options, List<String> input) throws IOException {
         TreeSet<File> filesToProcessSet = new TreeSet<File>();
+        List<ZipFile> archives = new ArrayList<>();
 
         for (String fileToProcess: input) {
             File argFile = new File(fileToProcess);
@@ -92,15 +99,30 @@ public class Smali {
 
             if (argFile.isDirectory()) {
                 getSmaliFilesInDir(argFile, filesToProcessSet);
+            } else if (argFile.isFile() && argFile.getName().toLowerCase().endsWith(".zip")) {
+                archives.add(new ZipFile(argFile));
             } else if (argFile.isFile()) {
                 filesToProcessSet.add(argFile);
             }
         }
 
+        try {
+            return assemble(options, filesToProcessSet, archives);
+        } finally {
+            for (ZipFile archive: archives) {
+                archive.close();
+            }
+        }
+    }
+
+    private static boolean assemble(final SmaliOptions options, Set<File> filesToProcessSet,
+                                    List<ZipFile> archives) throws IOException {
+
         boolean errors = false;
 
         final Opcodes opcodes = Opcodes.forApi(options.apiLevel);
         final MultiDex multiDex = new MultiDex(opcodes);
+        multiDex.setCodeWriterThreads(options.jobs);
         final List<ClassDef> classes = Collections.synchronizedList(
                 new ArrayList<>(filesToProcessSet.size()));
 
@@ -109,8 +131,42 @@ public class Smali {
         ExecutorService executor = Executors.newFixedThreadPool(options.jobs);
         List<Future<Boolean>> tasks = Lists.newArrayList();
 
+        final List<Callable<Boolean>> jobs = new ArrayList<>();
+        final List<Long> sizes = new ArrayList<>();
         for (final File file: filesToProcessSet) {
-            tasks.add(executor.submit(() -> assembleSmaliFile(file, classes, opcodes, options)));
+            jobs.add(() -> assembleSmaliFile(file, classes, opcodes, options));
+            sizes.add(file.length());
+        }
+        for (final ZipFile archive: archives) {
+            final File archiveFile = new File(archive.getName());
+            for (final ZipEntry entry: Collections.list(archive.entries())) {
+                if (entry.isDirectory() || !entry.getName().endsWith(".smali")) {
+                    continue;
+                }
+                jobs.add(() -> {
+                    // ZipFile supports reading the entries concurrently.
+                    try (Reader reader = new InputStreamReader(archive.getInputStream(entry), "UTF-8")) {
+                        return assembleSmali(reader, new File(archiveFile, entry.getName()), classes, opcodes,
+                                options);
+                    }
+                });
+                sizes.add(entry.getSize());
+            }
+        }
+
+        // Start the large files first, so a few huge classes won't be left to a single thread at the end.
+        long[] sizeArray = new long[sizes.size()];
+        for (int i=0; i<sizeArray.length; i++) {
+            sizeArray[i] = sizes.get(i);
+        }
+        for (final int[] batch: LargestFirstBatcher.batch(sizeArray, options.jobs)) {
+            tasks.add(executor.submit(() -> {
+                boolean succeeded = true;
+                for (int index: batch) {
+                    succeeded &= jobs.get(index).call();
+                }
+                return succeeded;
+            }));
         }
 
         for (Future<Boolean> task: tasks) {
@@ -166,59 +222,83 @@ public class Smali {
         try {
             fis = new FileInputStream(smaliFile);
             InputStreamReader reader = new InputStreamReader(fis, "UTF-8");
+            return assembleSmali(reader, smaliFile, classes, opcodes, options);
+        } finally {
+            if (fis != null) {
+                fis.close();
+            }
+        }
+    }
 
-            LexerErrorInterface lexer = new smaliFlexLexer(reader);
-            ((smaliFlexLexer)lexer).setSourceFile(smaliFile);
-            CommonTokenStream tokens = new CommonTokenStream((TokenSource)lexer);
+    /**
+     * @param smaliFile The file to report in the errors. For an entry of archive, it is the path of the entry
+     *                  under the archive.
+     */
+    private static boolean assembleSmali(
+            Reader reader, File smaliFile, List<ClassDef> classes,
+            Opcodes opcodes, SmaliOptions options) throws Exception {
+        String text = CharStreams.toString(reader);
+
+        if (options.directParser && !options.printTokens) {
+            smaliFlexLexer directLexer = new smaliFlexLexer(new StringReader(text));
+            directLexer.setSourceFile(smaliFile);
+            directLexer.setSuppressErrors(true);
+            ClassDef classDef = new SmaliDirectParser(directLexer, new DexBuilder(opcodes), options.apiLevel,
+                    options.allowOdexOpcodes).parseSmaliFile();
+            if (classDef != null) {
+                classes.add(classDef);
+                return true;
+            }
+            // Parse it again with smaliParser, which reports the errors
+        }
 
-            if (options.printTokens) {
-                tokens.getTokens();
+        LexerErrorInterface lexer = new smaliFlexLexer(new StringReader(text));
+        ((smaliFlexLexer)lexer).setSourceFile(smaliFile);
+        CommonTokenStream tokens = new CommonTokenStream((TokenSource)lexer);
 
-                for (int i=0; i<tokens.size(); i++) {
-                    Token token = tokens.get(i);
-                    if (token.getChannel() == smaliParser.HIDDEN) {
-                        continue;
-                    }
+        if (options.printTokens) {
+            tokens.getTokens();
 
-                    System.out.println(smaliParser.tokenNames[token.getType()] + ": " + token.getText());
+            for (int i=0; i<tokens.size(); i++) {
+                Token token = tokens.get(i);
+                if (token.getChannel() == smaliParser.HIDDEN) {
+                    continue;
                 }
 
-                System.out.flush();
+                System.out.println(smaliParser.tokenNames[token.getType()] + ": " + token.getText());
             }
 
-            smaliParser parser = new smaliParser(tokens);
-            parser.setVerboseErrors(options.verboseErrors);
-            parser.setAllowOdex(options.allowOdexOpcodes);
-            parser.setApiLevel(options.apiLevel);
+            System.out.flush();
+        }
 
-            smaliParser.smali_file_return result = parser.smali_file();
+        smaliParser parser = new smaliParser(tokens);
+        parser.setVerboseErrors(options.verboseErrors);
+        parser.setAllowOdex(options.allowOdexOpcodes);
+        parser.setApiLevel(options.apiLevel);
 
-            if (parser.getNumberOfSyntaxErrors() > 0 || lexer.getNumberOfSyntaxErrors() > 0) {
-                return false;
-            }
+        smaliParser.smali_file_return result = parser.smali_file();
 
-            CommonTree t = result.getTree();
+        if (parser.getNumberOfSyntaxErrors() > 0 || lexer.getNumberOfSyntaxErrors() > 0) {
+            return false;
+        }
 
-            CommonTreeNodeStream treeStream = new CommonTreeNodeStream(t);
-            treeStream.setTokenStream(tokens);
+        CommonTree t = result.getTree();
 
-            if (options.printTokens) {
-                System.out.println(t.toStringTree());
-            }
+        CommonTreeNodeStream treeStream = new CommonTreeNodeStream(t);
+        treeStream.setTokenStream(tokens);
 
-            smaliTreeWalker dexGen = new smaliTreeWalker(treeStream);
-            dexGen.setApiLevel(options.apiLevel);
+        if (options.printTokens) {
+            System.out.println(t.toStringTree());
+        }
 
-            dexGen.setVerboseErrors(options.verboseErrors);
-            //dexGen.setDexBuilder(dexBuilder);
-            dexGen.setDexBuilder(new DexBuilder(opcodes));
-            classes.add(dexGen.smali_file());
+        smaliTreeWalker dexGen = new smaliTreeWalker(treeStream);
+        dexGen.setApiLevel(options.apiLevel);
 
-            return dexGen.getNumberOfSyntaxErrors() == 0;
-        } finally {
-            if (fis != null) {
-                fis.close();
-            }
-        }
+        dexGen.setVerboseErrors(options.verboseErrors);
+        //dexGen.setDexBuilder(dexBuilder);
+        dexGen.setDexBuilder(new DexBuilder(opcodes));
+        classes.add(dexGen.smali_file());
+
+        return dexGen.getNumberOfSyntaxErrors() == 0;
     }
 }
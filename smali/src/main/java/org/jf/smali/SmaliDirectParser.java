@@ -0,0 +1,1469 @@
+/*
+ * Copyright 2016, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.smali;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import org.antlr.runtime.CommonToken;
+import org.antlr.runtime.Token;
+import org.antlr.runtime.TokenSource;
+import org.jf.dexlib2.*;
+import org.jf.dexlib2.builder.BuilderInstruction;
+import org.jf.dexlib2.builder.Label;
+import org.jf.dexlib2.builder.MethodImplementationBuilder;
+import org.jf.dexlib2.builder.SwitchLabelElement;
+import org.jf.dexlib2.builder.instruction.*;
+import org.jf.dexlib2.iface.Annotation;
+import org.jf.dexlib2.iface.AnnotationElement;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.iface.value.EncodedValue;
+import org.jf.dexlib2.immutable.ImmutableAnnotation;
+import org.jf.dexlib2.immutable.ImmutableAnnotationElement;
+import org.jf.dexlib2.immutable.reference.*;
+import org.jf.dexlib2.immutable.value.*;
+import org.jf.dexlib2.util.MethodUtil;
+import org.jf.dexlib2.writer.builder.BuilderField;
+import org.jf.dexlib2.writer.builder.BuilderMethod;
+import org.jf.dexlib2.writer.builder.DexBuilder;
+import org.jf.util.ExceptionWithContext;
+import org.jf.util.LinearSearch;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+
+import static org.jf.smali.smaliParser.*;
+
+/**
+ * A recursive descent parser that builds the class directly from the tokens of smaliFlexLexer, without the
+ * token stream, the AST and the tree walker of the ANTLR path.
+ *
+ * It accepts the grammar of smaliParser and produces the same class as smaliTreeWalker. It does not report or
+ * recover from errors. When the input has an error, or a construct that the grammar may resolve in another way,
+ * {@link #parseSmaliFile()} returns null, and the caller should run smaliParser and smaliTreeWalker over the
+ * same input, which report the errors.
+ */
+public class SmaliDirectParser {
+    private static final BitSet SIMPLE_NAME_TOKENS = new BitSet();
+    // The literals that are also valid names, e.g. "true:I" is a field reference.
+    private static final BitSet LITERAL_OR_NAME_TOKENS = new BitSet();
+
+    static {
+        for (int type: new int[] { SIMPLE_NAME, ACCESS_SPEC, VERIFICATION_ERROR_TYPE, POSITIVE_INTEGER_LITERAL,
+                NEGATIVE_INTEGER_LITERAL, FLOAT_LITERAL_OR_ID, DOUBLE_LITERAL_OR_ID, BOOL_LITERAL, NULL_LITERAL,
+                REGISTER, PRIMITIVE_TYPE, VOID_TYPE, ANNOTATION_VISIBILITY, INSTRUCTION_FORMAT10t,
+                INSTRUCTION_FORMAT10x, INSTRUCTION_FORMAT10x_ODEX, INSTRUCTION_FORMAT11x,
+                INSTRUCTION_FORMAT12x_OR_ID, INSTRUCTION_FORMAT21c_FIELD, INSTRUCTION_FORMAT21c_FIELD_ODEX,
+                INSTRUCTION_FORMAT21c_METHOD_HANDLE, INSTRUCTION_FORMAT21c_METHOD_TYPE,
+                INSTRUCTION_FORMAT21c_STRING, INSTRUCTION_FORMAT21c_TYPE, INSTRUCTION_FORMAT21t,
+                INSTRUCTION_FORMAT22c_FIELD, INSTRUCTION_FORMAT22c_FIELD_ODEX, INSTRUCTION_FORMAT22c_TYPE,
+                INSTRUCTION_FORMAT22cs_FIELD, INSTRUCTION_FORMAT22s_OR_ID, INSTRUCTION_FORMAT22t,
+                INSTRUCTION_FORMAT23x, INSTRUCTION_FORMAT31i_OR_ID, INSTRUCTION_FORMAT31t,
+                INSTRUCTION_FORMAT35c_CALL_SITE, INSTRUCTION_FORMAT35c_METHOD, INSTRUCTION_FORMAT35c_METHOD_ODEX,
+                INSTRUCTION_FORMAT35c_METHOD_OR_METHOD_HANDLE_TYPE, INSTRUCTION_FORMAT35c_TYPE,
+                INSTRUCTION_FORMAT35mi_METHOD, INSTRUCTION_FORMAT35ms_METHOD, INSTRUCTION_FORMAT45cc_METHOD,
+                INSTRUCTION_FORMAT4rcc_METHOD, INSTRUCTION_FORMAT51l }) {
+            SIMPLE_NAME_TOKENS.set(type);
+        }
+        for (int type: new int[] { POSITIVE_INTEGER_LITERAL, NEGATIVE_INTEGER_LITERAL, FLOAT_LITERAL_OR_ID,
+                DOUBLE_LITERAL_OR_ID, BOOL_LITERAL, NULL_LITERAL }) {
+            LITERAL_OR_NAME_TOKENS.set(type);
+        }
+    }
+
+    @Nonnull private final TokenSource tokenSource;
+    @Nonnull private final DexBuilder dexBuilder;
+    private final int apiLevel;
+    private final boolean allowOdex;
+    @Nonnull private final Opcodes opcodes;
+
+    // The next 2 tokens on the default channel.
+    private Token la1;
+    private Token la2;
+
+    private String classType;
+
+    // The state of the method being parsed
+    private boolean isStatic;
+    private int totalMethodRegisters;
+    private int methodParameterRegisters;
+    private MethodImplementationBuilder methodBuilder;
+
+    public SmaliDirectParser(@Nonnull TokenSource tokenSource, @Nonnull DexBuilder dexBuilder, int apiLevel,
+                             boolean allowOdex) {
+        this.tokenSource = tokenSource;
+        this.dexBuilder = dexBuilder;
+        this.apiLevel = apiLevel;
+        this.allowOdex = allowOdex;
+        this.opcodes = Opcodes.forApi(apiLevel);
+    }
+
+    /**
+     * @return The class of the smali file, or null if the file must be parsed by smaliParser instead
+     */
+    @Nullable
+    public ClassDef parseSmaliFile() {
+        try {
+            return smaliFile();
+        } catch (Fallback ex) {
+            return null;
+        } catch (IllegalArgumentException ex) {
+            // A check of dexlib2 or LiteralTools on a value of the input, e.g. a literal or a register that is out of
+            // range, which smaliTreeWalker reports as an error
+            return null;
+        } catch (ExceptionWithContext ex) {
+            // E.g. a class or a member that is defined twice
+            return null;
+        }
+    }
+
+    private static final class Fallback extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        static final Fallback INSTANCE = new Fallback();
+
+        private Fallback() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static Fallback fallback() {
+        return Fallback.INSTANCE;
+    }
+
+    private Token nextDefaultChannelToken() {
+        if (la2 != null && la2.getType() == Token.EOF) {
+            return la2;
+        }
+        while (true) {
+            Token token = tokenSource.nextToken();
+            if (token.getChannel() == Token.DEFAULT_CHANNEL) {
+                return token;
+            }
+            if (token.getChannel() != Token.HIDDEN_CHANNEL) {
+                // An InvalidToken, the lexer error is reported by the ANTLR path
+                throw fallback();
+            }
+        }
+    }
+
+    private int la(int i) {
+        if (la1 == null) {
+            la1 = nextDefaultChannelToken();
+        }
+        if (i == 1) {
+            return la1.getType();
+        }
+        if (la2 == null) {
+            la2 = la1.getType() == Token.EOF ? la1 : nextDefaultChannelToken();
+        }
+        return la2.getType();
+    }
+
+    @Nonnull
+    private Token next() {
+        la(1);
+        Token token = la1;
+        la1 = la2;
+        la2 = null;
+        return token;
+    }
+
+    @Nonnull
+    private Token match(int type) {
+        if (la(1) != type) {
+            throw fallback();
+        }
+        return next();
+    }
+
+    @Nonnull
+    private ClassDef smaliFile() {
+        int accessFlags = 0;
+        String superType = null;
+        boolean hasSuperSpec = false;
+        String source = null;
+        boolean hasSourceSpec = false;
+        List<String> implementsList = new ArrayList<String>();
+        List<BuilderMethod> methods = new ArrayList<BuilderMethod>();
+        List<BuilderField> fields = new ArrayList<BuilderField>();
+        List<Annotation> classAnnotations = new ArrayList<Annotation>();
+
+        do {
+            switch (la(1)) {
+                case CLASS_DIRECTIVE:
+                    if (classType != null) {
+                        throw fallback();
+                    }
+                    next();
+                    accessFlags = accessList(0);
+                    classType = match(CLASS_DESCRIPTOR).getText();
+                    break;
+                case SUPER_DIRECTIVE:
+                    if (hasSuperSpec) {
+                        throw fallback();
+                    }
+                    next();
+                    superType = match(CLASS_DESCRIPTOR).getText();
+                    hasSuperSpec = true;
+                    break;
+                case IMPLEMENTS_DIRECTIVE:
+                    next();
+                    implementsList.add(match(CLASS_DESCRIPTOR).getText());
+                    break;
+                case SOURCE_DIRECTIVE:
+                    if (hasSourceSpec) {
+                        throw fallback();
+                    }
+                    next();
+                    source = stringLiteral(match(STRING_LITERAL));
+                    hasSourceSpec = true;
+                    break;
+                case METHOD_DIRECTIVE:
+                    // The members may refer to the class implicitly, so the class must be known first
+                    if (classType == null) {
+                        throw fallback();
+                    }
+                    methods.add(method());
+                    break;
+                case FIELD_DIRECTIVE:
+                    if (classType == null) {
+                        throw fallback();
+                    }
+                    fields.add(field(classAnnotations));
+                    break;
+                case ANNOTATION_DIRECTIVE:
+                    if (classType == null) {
+                        throw fallback();
+                    }
+                    classAnnotations.add(annotation());
+                    break;
+                default:
+                    throw fallback();
+            }
+        } while (la(1) != Token.EOF);
+
+        if (classType == null) {
+            throw fallback();
+        }
+        if (!hasSuperSpec && !classType.equals("Ljava/lang/Object;")) {
+            throw fallback();
+        }
+
+        return dexBuilder.internClassDef(classType, accessFlags, superType,
+                implementsList.isEmpty() ? null : implementsList, source, annotationSet(classAnnotations), fields,
+                methods);
+    }
+
+    /**
+     * @param memberFollow The token after the name of the member, an access spec followed by it may be the name
+     */
+    private int accessList(int memberFollow) {
+        int value = 0;
+        while (la(1) == ACCESS_SPEC) {
+            if (memberFollow != 0 && la(2) == memberFollow) {
+                throw fallback();
+            }
+            value |= AccessFlags.getAccessFlag(next().getText()).getValue();
+        }
+        return value;
+    }
+
+    @Nonnull
+    private BuilderField field(@Nonnull List<Annotation> classAnnotations) {
+        match(FIELD_DIRECTIVE);
+        int accessFlags = accessList(COLON);
+        String name = memberName();
+        match(COLON);
+        String type = nonvoidTypeDescriptor();
+        EncodedValue initialValue = null;
+        if (la(1) == EQUAL) {
+            next();
+            initialValue = literal();
+        }
+
+        List<Annotation> annotations = new ArrayList<Annotation>();
+        while (la(1) == ANNOTATION_DIRECTIVE) {
+            annotations.add(annotation());
+        }
+        if (la(1) == END_FIELD_DIRECTIVE) {
+            next();
+        } else {
+            // Without .end field, the annotations belong to the class
+            classAnnotations.addAll(annotations);
+            annotations.clear();
+        }
+
+        if (!AccessFlags.STATIC.isSet(accessFlags) && initialValue != null) {
+            throw fallback();
+        }
+        return dexBuilder.internField(classType, name, type, accessFlags, initialValue, annotationSet(annotations));
+    }
+
+    private static final class CatchDirective {
+        @Nullable final String type;
+        @Nonnull final String from;
+        @Nonnull final String to;
+        @Nonnull final String using;
+
+        CatchDirective(@Nullable String type, @Nonnull String from, @Nonnull String to, @Nonnull String using) {
+            this.type = type;
+            this.from = from;
+            this.to = to;
+            this.using = using;
+        }
+    }
+
+    private static final class ParameterDirective {
+        @Nonnull final String register;
+        @Nullable final String name;
+        @Nonnull final List<Annotation> annotations;
+
+        ParameterDirective(@Nonnull String register, @Nullable String name, @Nonnull List<Annotation> annotations) {
+            this.register = register;
+            this.name = name;
+            this.annotations = annotations;
+        }
+    }
+
+    @Nonnull
+    private BuilderMethod method() {
+        match(METHOD_DIRECTIVE);
+        int accessFlags = accessList(OPEN_PAREN);
+        String name = memberName();
+        ImmutableMethodProtoReference proto = methodPrototype();
+
+        List<SmaliMethodParameter> parameters = new ArrayList<SmaliMethodParameter>();
+        int paramRegister = 0;
+        for (CharSequence type: proto.getParameterTypes()) {
+            parameters.add(new SmaliMethodParameter(paramRegister++, type.toString()));
+            char c = type.charAt(0);
+            if (c == 'D' || c == 'J') {
+                paramRegister++;
+            }
+        }
+
+        isStatic = AccessFlags.STATIC.isSet(accessFlags);
+        methodParameterRegisters = MethodUtil.getParameterRegisterCount(parameters, isStatic);
+        totalMethodRegisters = 0;
+        methodBuilder = null;
+
+        // smaliTreeWalker handles the catches, the parameters and the annotations after all of the ordered items
+        boolean hasRegistersDirective = false;
+        List<CatchDirective> catches = new ArrayList<CatchDirective>();
+        List<CatchDirective> catchalls = new ArrayList<CatchDirective>();
+        List<ParameterDirective> parameterDirectives = new ArrayList<ParameterDirective>();
+        List<Annotation> methodAnnotations = new ArrayList<Annotation>();
+
+        while (la(1) != END_METHOD_DIRECTIVE) {
+            switch (la(1)) {
+                case REGISTERS_DIRECTIVE:
+                case LOCALS_DIRECTIVE: {
+                    // The registers are parsed with the count given by the directive, so it must be the first
+                    if (hasRegistersDirective || methodBuilder != null) {
+                        throw fallback();
+                    }
+                    hasRegistersDirective = true;
+                    boolean isLocalsDirective = next().getType() == LOCALS_DIRECTIVE;
+                    int registers = shortIntegralLiteral() & 0xFFFF;
+                    if (isLocalsDirective) {
+                        totalMethodRegisters = registers + methodParameterRegisters;
+                    } else {
+                        totalMethodRegisters = registers;
+                    }
+                    break;
+                }
+                case CATCH_DIRECTIVE: {
+                    next();
+                    String type = nonvoidTypeDescriptor();
+                    match(OPEN_BRACE);
+                    String from = labelName();
+                    match(DOTDOT);
+                    String to = labelName();
+                    match(CLOSE_BRACE);
+                    catches.add(new CatchDirective(type, from, to, labelName()));
+                    break;
+                }
+                case CATCHALL_DIRECTIVE: {
+                    next();
+                    match(OPEN_BRACE);
+                    String from = labelName();
+                    match(DOTDOT);
+                    String to = labelName();
+                    match(CLOSE_BRACE);
+                    catchalls.add(new CatchDirective(null, from, to, labelName()));
+                    break;
+                }
+                case PARAMETER_DIRECTIVE: {
+                    next();
+                    String register = match(REGISTER).getText();
+                    String parameterName = null;
+                    if (la(1) == COMMA) {
+                        next();
+                        parameterName = stringLiteral(match(STRING_LITERAL));
+                    }
+                    List<Annotation> annotations = new ArrayList<Annotation>();
+                    while (la(1) == ANNOTATION_DIRECTIVE) {
+                        annotations.add(annotation());
+                    }
+                    if (la(1) == END_PARAMETER_DIRECTIVE) {
+                        next();
+                    } else {
+                        // Without .end param, the annotations belong to the method
+                        methodAnnotations.addAll(annotations);
+                        annotations.clear();
+                    }
+                    parameterDirectives.add(new ParameterDirective(register, parameterName, annotations));
+                    break;
+                }
+                case ANNOTATION_DIRECTIVE:
+                    methodAnnotations.add(annotation());
+                    break;
+                default:
+                    if (methodBuilder == null) {
+                        methodBuilder = new MethodImplementationBuilder(totalMethodRegisters);
+                    }
+                    orderedMethodItem();
+            }
+        }
+        next();
+
+        if (methodBuilder == null) {
+            methodBuilder = new MethodImplementationBuilder(totalMethodRegisters);
+        }
+        for (CatchDirective catchDirective: catches) {
+            methodBuilder.addCatch(dexBuilder.internTypeReference(catchDirective.type),
+                    methodBuilder.getLabel(catchDirective.from), methodBuilder.getLabel(catchDirective.to),
+                    methodBuilder.getLabel(catchDirective.using));
+        }
+        for (CatchDirective catchDirective: catchalls) {
+            methodBuilder.addCatch(methodBuilder.getLabel(catchDirective.from),
+                    methodBuilder.getLabel(catchDirective.to), methodBuilder.getLabel(catchDirective.using));
+        }
+        for (ParameterDirective parameterDirective: parameterDirectives) {
+            parameter(parameters, parameterDirective);
+        }
+        Set<Annotation> annotations = annotationSet(methodAnnotations);
+
+        boolean isAbstract = (accessFlags & AccessFlags.ABSTRACT.getValue()) != 0;
+        boolean isNative = !isAbstract && (accessFlags & AccessFlags.NATIVE.getValue()) != 0;
+
+        MethodImplementation methodImplementation = methodBuilder.getMethodImplementation();
+        boolean hasInstructions;
+        try {
+            // Places the labels of the instructions
+            hasInstructions = !Iterables.isEmpty(methodImplementation.getInstructions());
+        } catch (IllegalStateException ex) {
+            // E.g. a switch payload that is referred to by more than one switch instruction
+            throw fallback();
+        }
+        if (!hasInstructions) {
+            if ((!isAbstract && !isNative) || hasRegistersDirective ||
+                    methodImplementation.getTryBlocks().size() > 0 ||
+                    !Iterables.isEmpty(methodImplementation.getDebugItems())) {
+                throw fallback();
+            }
+            methodImplementation = null;
+        } else if (isAbstract || isNative || !hasRegistersDirective ||
+                totalMethodRegisters < methodParameterRegisters) {
+            throw fallback();
+        }
+
+        BuilderMethod method = dexBuilder.internMethod(classType, name, parameters, proto.getReturnType(),
+                accessFlags, annotations, methodImplementation);
+        methodBuilder = null;
+        return method;
+    }
+
+    private void parameter(@Nonnull List<SmaliMethodParameter> parameters,
+                           @Nonnull ParameterDirective parameterDirective) {
+        int registerNumber = parseRegister_short(parameterDirective.register);
+        if (registerNumber >= totalMethodRegisters) {
+            throw fallback();
+        }
+        final int indexGuess = registerNumber - (totalMethodRegisters - methodParameterRegisters) - (isStatic?0:1);
+        if (indexGuess < 0) {
+            throw fallback();
+        }
+
+        int parameterIndex = LinearSearch.linearSearch(parameters, SmaliMethodParameter.COMPARATOR,
+                new WithRegister() { public int getRegister() { return indexGuess; } },
+                indexGuess);
+        if (parameterIndex < 0) {
+            throw fallback();
+        }
+
+        SmaliMethodParameter methodParameter = parameters.get(parameterIndex);
+        methodParameter.name = parameterDirective.name;
+        Set<Annotation> annotations = annotationSet(parameterDirective.annotations);
+        if (annotations.size() > 0) {
+            methodParameter.annotations = annotations;
+        }
+    }
+
+    private void orderedMethodItem() {
+        switch (la(1)) {
+            case COLON:
+                next();
+                methodBuilder.addLabel(simpleName());
+                break;
+            case LINE_DIRECTIVE:
+                next();
+                methodBuilder.addLineNumber(integralLiteral());
+                break;
+            case LOCAL_DIRECTIVE: {
+                next();
+                String register = match(REGISTER).getText();
+                String name = null;
+                String type = null;
+                String signature = null;
+                if (la(1) == COMMA) {
+                    next();
+                    if (la(1) == NULL_LITERAL) {
+                        next();
+                    } else {
+                        name = stringLiteral(match(STRING_LITERAL));
+                    }
+                    match(COLON);
+                    if (la(1) == VOID_TYPE) {
+                        next();
+                    } else {
+                        type = nonvoidTypeDescriptor();
+                    }
+                    if (la(1) == COMMA) {
+                        next();
+                        signature = stringLiteral(match(STRING_LITERAL));
+                    }
+                }
+                int registerNumber = parseRegister_short(register);
+                methodBuilder.addStartLocal(registerNumber, dexBuilder.internNullableStringReference(name),
+                        dexBuilder.internNullableTypeReference(type),
+                        dexBuilder.internNullableStringReference(signature));
+                break;
+            }
+            case END_LOCAL_DIRECTIVE:
+                next();
+                methodBuilder.addEndLocal(parseRegister_short(match(REGISTER).getText()));
+                break;
+            case RESTART_LOCAL_DIRECTIVE:
+                next();
+                methodBuilder.addRestartLocal(parseRegister_short(match(REGISTER).getText()));
+                break;
+            case PROLOGUE_DIRECTIVE:
+                next();
+                methodBuilder.addPrologue();
+                break;
+            case EPILOGUE_DIRECTIVE:
+                next();
+                methodBuilder.addEpilogue();
+                break;
+            case SOURCE_DIRECTIVE: {
+                next();
+                String source = null;
+                if (la(1) == STRING_LITERAL) {
+                    source = stringLiteral(next());
+                }
+                methodBuilder.addSetSourceFile(dexBuilder.internNullableStringReference(source));
+                break;
+            }
+            default:
+                methodBuilder.addInstruction(instruction());
+        }
+    }
+
+    @Nonnull
+    private Opcode opcode(@Nonnull Token instruction) {
+        Opcode opcode = opcodes.getOpcodeByName(instruction.getText());
+        if (opcode == null) {
+            throw fallback();
+        }
+        return opcode;
+    }
+
+    private void checkOdexAllowed(@Nonnull Token instruction) {
+        if (!allowOdex || opcodes.getOpcodeByName(instruction.getText()) == null || apiLevel >= 14) {
+            throw fallback();
+        }
+    }
+
+    @Nonnull
+    private BuilderInstruction instruction() {
+        Token insn = next();
+        switch (insn.getType()) {
+            case INSTRUCTION_FORMAT10t:
+                return new BuilderInstruction10t(opcode(insn), labelRef());
+            case INSTRUCTION_FORMAT10x:
+                return new BuilderInstruction10x(opcode(insn));
+            case INSTRUCTION_FORMAT11n: {
+                String regA = match(REGISTER).getText();
+                match(COMMA);
+                short litB = shortIntegralLiteral();
+                LiteralTools.checkNibble(litB);
+                return new BuilderInstruction11n(opcode(insn), parseRegister_nibble(regA), litB);
+            }
+            case INSTRUCTION_FORMAT11x:
+                return new BuilderInstruction11x(opcode(insn), parseRegister_byte(match(REGISTER).getText()));
+            case INSTRUCTION_FORMAT12x:
+            case INSTRUCTION_FORMAT12x_OR_ID: {
+                String regA = match(REGISTER).getText();
+                match(COMMA);
+                String regB = match(REGISTER).getText();
+                return new BuilderInstruction12x(opcode(insn), parseRegister_nibble(regA),
+                        parseRegister_nibble(regB));
+            }
+            case INSTRUCTION_FORMAT20bc: {
+                String verificationErrorType = match(VERIFICATION_ERROR_TYPE).getText();
+                match(COMMA);
+                ImmutableReference reference = verificationErrorReference();
+                checkOdexAllowed(insn);
+                return new BuilderInstruction20bc(opcode(insn),
+                        VerificationError.getVerificationError(verificationErrorType),
+                        dexBuilder.internReference(reference));
+            }
+            case INSTRUCTION_FORMAT20t:
+                return new BuilderInstruction20t(opcode(insn), labelRef());
+            case INSTRUCTION_FORMAT21c_FIELD:
+            case INSTRUCTION_FORMAT21c_FIELD_ODEX: {
+                String regA = match(REGISTER).getText();
+                match(COMMA);
+                ImmutableFieldReference fieldReference = fieldReference();
+                if (insn.getType() == INSTRUCTION_FORMAT21c_FIELD_ODEX) {
+                    checkOdexAllowed(insn);
+                }
+                return new BuilderInstruction21c(opcode(insn), parseRegister_byte(regA),
+                        dexBuilder.internFieldReference(fieldReference));
+            }
+            case INSTRUCTION_FORMAT21c_METHOD_HANDLE: {
+                String regA = match(REGISTER).getText();
+                match(COMMA);
+                ImmutableMethodHandleReference methodHandleReference = methodHandleReference();
+                return new BuilderInstruction21c(opcode(insn), parseRegister_byte(regA),
+                        dexBuilder.internMethodHandle(methodHandleReference));
+            }
+            case INSTRUCTION_FORMAT21c_METHOD_TYPE: {
+                String regA = match(REGISTER).getText();
+                match(COMMA);
+                ImmutableMethodProtoReference methodProtoReference = methodPrototype();
+                return new BuilderInstruction21c(opcode(insn), parseRegister_byte(regA),
+                        dexBuilder.internMethodProtoReference(methodProtoReference));
+            }
+            case INSTRUCTION_FORMAT21c_STRING:
+            case INSTRUCTION_FORMAT31c: {
+                String regA = match(REGISTER).getText();
+                match(COMMA);
+                String string = stringLiteral(match(STRING_LITERAL));
+                if (insn.getType() == INSTRUCTION_FORMAT31c) {
+                    return new BuilderInstruction31c(opcode(insn), parseRegister_byte(regA),
+                            dexBuilder.internStringReference(string));
+                }
+                return new BuilderInstruction21c(opcode(insn), parseRegister_byte(regA),
+                        dexBuilder.internStringReference(string));
+            }
+            case INSTRUCTION_FORMAT21c_TYPE: {
+                String regA = match(REGISTER).getText();
+                match(COMMA);
+                String type = nonvoidTypeDescriptor();
+                return new BuilderInstruction21c(opcode(insn), parseRegister_byte(regA),
+                        dexBuilder.internTypeReference(type));
+            }
+            case INSTRUCTION_FORMAT21ih: {
+                String regA = match(REGISTER).getText();
+                match(COMMA);
+                int litB = fixed32bitLiteral();
+                return new BuilderInstruction21ih(opcode(insn), parseRegister_byte(regA), litB);
+            }
+            case INSTRUCTION_FORMAT21lh: {
+                String regA = match(REGISTER).getText();
+                match(COMMA);
+                long litB = fixed64bitLiteral(false);
+                return new BuilderInstruction21lh(opcode(insn), parseRegister_byte(regA), litB);
+            }
+            case INSTRUCTION_FORMAT21s: {
+                String regA = match(REGISTER).getText();
+                match(COMMA);
+                short litB = shortIntegralLiteral();
+                return new BuilderInstruction21s(opcode(insn), parseRegister_byte(regA), litB);
+            }
+            case INSTRUCTION_FORMAT21t: {
+                String regA = match(REGISTER).getText();
+                match(COMMA);
+                Label label = labelRef();
+                return new BuilderInstruction21t(opcode(insn), parseRegister_byte(regA), label);
+            }
+            case INSTRUCTION_FORMAT22b: {
+                String regA = match(REGISTER).getText();
+                match(COMMA);
+                String regB = match(REGISTER).getText();
+                match(COMMA);
+                short litC = shortIntegralLiteral();
+                LiteralTools.checkByte(litC);
+                return new BuilderInstruction22b(opcode(insn), parseRegister_byte(regA), parseRegister_byte(regB),
+                        litC);
+            }
+            case INSTRUCTION_FORMAT22c_FIELD:
+            case INSTRUCTION_FORMAT22c_FIELD_ODEX: {
+                String regA = match(REGISTER).getText();
+                match(COMMA);
+                String regB = match(REGISTER).getText();
+                match(COMMA);
+                ImmutableFieldReference fieldReference = fieldReference();
+                if (insn.getType() == INSTRUCTION_FORMAT22c_FIELD_ODEX) {
+                    checkOdexAllowed(insn);
+                }
+                return new BuilderInstruction22c(opcode(insn), parseRegister_nibble(regA),
+                        parseRegister_nibble(regB), dexBuilder.internFieldReference(fieldReference));
+            }
+            case INSTRUCTION_FORMAT22c_TYPE: {
+                String regA = match(REGISTER).getText();
+                match(COMMA);
+                String regB = match(REGISTER).getText();
+                match(COMMA);
+                String type = nonvoidTypeDescriptor();
+                return new BuilderInstruction22c(opcode(insn), parseRegister_nibble(regA),
+                        parseRegister_nibble(regB), dexBuilder.internTypeReference(type));
+            }
+            case INSTRUCTION_FORMAT22s:
+            case INSTRUCTION_FORMAT22s_OR_ID: {
+                String regA = match(REGISTER).getText();
+                match(COMMA);
+                String regB = match(REGISTER).getText();
+                match(COMMA);
+                short litC = shortIntegralLiteral();
+                return new BuilderInstruction22s(opcode(insn), parseRegister_nibble(regA),
+                        parseRegister_nibble(regB), litC);
+            }
+            case INSTRUCTION_FORMAT22t: {
+                String regA = match(REGISTER).getText();
+                match(COMMA);
+                String regB = match(REGISTER).getText();
+                match(COMMA);
+                Label label = labelRef();
+                return new BuilderInstruction22t(opcode(insn), parseRegister_nibble(regA),
+                        parseRegister_nibble(regB), label);
+            }
+            case INSTRUCTION_FORMAT22x: {
+                String regA = match(REGISTER).getText();
+                match(COMMA);
+                String regB = match(REGISTER).getText();
+                return new BuilderInstruction22x(opcode(insn), parseRegister_byte(regA), parseRegister_short(regB));
+            }
+            case INSTRUCTION_FORMAT23x: {
+                String regA = match(REGISTER).getText();
+                match(COMMA);
+                String regB = match(REGISTER).getText();
+                match(COMMA);
+                String regC = match(REGISTER).getText();
+                return new BuilderInstruction23x(opcode(insn), parseRegister_byte(regA), parseRegister_byte(regB),
+                        parseRegister_byte(regC));
+            }
+            case INSTRUCTION_FORMAT30t:
+                return new BuilderInstruction30t(opcode(insn), labelRef());
+            case INSTRUCTION_FORMAT31i:
+            case INSTRUCTION_FORMAT31i_OR_ID: {
+                String regA = match(REGISTER).getText();
+                match(COMMA);
+                int litB = fixed32bitLiteral();
+                return new BuilderInstruction31i(opcode(insn), parseRegister_byte(regA), litB);
+            }
+            case INSTRUCTION_FORMAT31t: {
+                String regA = match(REGISTER).getText();
+                match(COMMA);
+                Label label = labelRef();
+                return new BuilderInstruction31t(opcode(insn), parseRegister_byte(regA), label);
+            }
+            case INSTRUCTION_FORMAT32x: {
+                String regA = match(REGISTER).getText();
+                match(COMMA);
+                String regB = match(REGISTER).getText();
+                return new BuilderInstruction32x(opcode(insn), parseRegister_short(regA),
+                        parseRegister_short(regB));
+            }
+            case INSTRUCTION_FORMAT35c_CALL_SITE: {
+                byte[] registers = new byte[5];
+                byte registerCount = registerList(registers);
+                match(COMMA);
+                ImmutableCallSiteReference callSiteReference = callSiteReference();
+                return new BuilderInstruction35c(opcode(insn), registerCount, registers[0], registers[1],
+                        registers[2], registers[3], registers[4], dexBuilder.internCallSite(callSiteReference));
+            }
+            case INSTRUCTION_FORMAT35c_METHOD:
+            case INSTRUCTION_FORMAT35c_METHOD_OR_METHOD_HANDLE_TYPE: {
+                byte[] registers = new byte[5];
+                byte registerCount = registerList(registers);
+                match(COMMA);
+                ImmutableMethodReference methodReference = methodReference();
+                return new BuilderInstruction35c(opcode(insn), registerCount, registers[0], registers[1],
+                        registers[2], registers[3], registers[4], dexBuilder.internMethodReference(methodReference));
+            }
+            case INSTRUCTION_FORMAT35c_TYPE: {
+                byte[] registers = new byte[5];
+                byte registerCount = registerList(registers);
+                match(COMMA);
+                String type = nonvoidTypeDescriptor();
+                return new BuilderInstruction35c(opcode(insn), registerCount, registers[0], registers[1],
+                        registers[2], registers[3], registers[4], dexBuilder.internTypeReference(type));
+            }
+            case INSTRUCTION_FORMAT3rc_CALL_SITE: {
+                int[] range = registerRange();
+                match(COMMA);
+                ImmutableCallSiteReference callSiteReference = callSiteReference();
+                return new BuilderInstruction3rc(opcode(insn), range[0], range[1] - range[0] + 1,
+                        dexBuilder.internCallSite(callSiteReference));
+            }
+            case INSTRUCTION_FORMAT3rc_METHOD: {
+                int[] range = registerRange();
+                match(COMMA);
+                ImmutableMethodReference methodReference = methodReference();
+                return new BuilderInstruction3rc(opcode(insn), range[0], range[1] - range[0] + 1,
+                        dexBuilder.internMethodReference(methodReference));
+            }
+            case INSTRUCTION_FORMAT3rc_TYPE: {
+                int[] range = registerRange();
+                match(COMMA);
+                String type = nonvoidTypeDescriptor();
+                return new BuilderInstruction3rc(opcode(insn), range[0], range[1] - range[0] + 1,
+                        dexBuilder.internTypeReference(type));
+            }
+            case INSTRUCTION_FORMAT45cc_METHOD: {
+                byte[] registers = new byte[5];
+                byte registerCount = registerList(registers);
+                match(COMMA);
+                ImmutableMethodReference methodReference = methodReference();
+                match(COMMA);
+                ImmutableMethodProtoReference methodProtoReference = methodPrototype();
+                return new BuilderInstruction45cc(opcode(insn), registerCount, registers[0], registers[1],
+                        registers[2], registers[3], registers[4], dexBuilder.internMethodReference(methodReference),
+                        dexBuilder.internMethodProtoReference(methodProtoReference));
+            }
+            case INSTRUCTION_FORMAT4rcc_METHOD: {
+                int[] range = registerRange();
+                match(COMMA);
+                ImmutableMethodReference methodReference = methodReference();
+                match(COMMA);
+                ImmutableMethodProtoReference methodProtoReference = methodPrototype();
+                return new BuilderInstruction4rcc(opcode(insn), range[0], range[1] - range[0] + 1,
+                        dexBuilder.internMethodReference(methodReference),
+                        dexBuilder.internMethodProtoReference(methodProtoReference));
+            }
+            case INSTRUCTION_FORMAT51l: {
+                String regA = match(REGISTER).getText();
+                match(COMMA);
+                long litB = fixed64bitLiteral(true);
+                return new BuilderInstruction51l(opcode(insn), parseRegister_byte(regA), litB);
+            }
+            case ARRAY_DATA_DIRECTIVE: {
+                Token widthToken = next();
+                if (widthToken.getType() != POSITIVE_INTEGER_LITERAL &&
+                        widthToken.getType() != NEGATIVE_INTEGER_LITERAL) {
+                    throw fallback();
+                }
+                int elementWidth = LiteralTools.parseInt(widthToken.getText());
+                if (elementWidth != 4 && elementWidth != 8 && elementWidth != 1 && elementWidth != 2) {
+                    throw fallback();
+                }
+                List<Number> elements = new ArrayList<Number>();
+                while (la(1) != END_ARRAY_DATA_DIRECTIVE) {
+                    elements.add(fixed64bitLiteralNumber());
+                }
+                next();
+                return new BuilderArrayPayload(elementWidth, elements);
+            }
+            case PACKED_SWITCH_DIRECTIVE: {
+                int startKey = fixed32bitLiteral();
+                List<Label> elements = new ArrayList<Label>();
+                while (la(1) == COLON) {
+                    elements.add(labelRef());
+                }
+                match(END_PACKED_SWITCH_DIRECTIVE);
+                return new BuilderPackedSwitchPayload(startKey, elements);
+            }
+            case SPARSE_SWITCH_DIRECTIVE: {
+                List<SwitchLabelElement> elements = new ArrayList<SwitchLabelElement>();
+                while (la(1) != END_SPARSE_SWITCH_DIRECTIVE) {
+                    int key = fixed32bitLiteral();
+                    match(ARROW);
+                    elements.add(new SwitchLabelElement(key, labelRef()));
+                }
+                next();
+                return new BuilderSparseSwitchPayload(elements);
+            }
+            default:
+                // Including the odexed instructions, which are always rejected by smaliParser
+                throw fallback();
+        }
+    }
+
+    private byte registerList(@Nonnull byte[] registers) {
+        match(OPEN_BRACE);
+        byte registerCount = 0;
+        if (la(1) == REGISTER) {
+            while (true) {
+                if (registerCount == 5) {
+                    throw fallback();
+                }
+                registers[registerCount++] = parseRegister_nibble(next().getText());
+                if (la(1) != COMMA) {
+                    break;
+                }
+                next();
+                if (la(1) != REGISTER) {
+                    throw fallback();
+                }
+            }
+        }
+        match(CLOSE_BRACE);
+        return registerCount;
+    }
+
+    /**
+     * @return The start register and the end register of the range
+     */
+    @Nonnull
+    private int[] registerRange() {
+        match(OPEN_BRACE);
+        int startRegister = 0;
+        int endRegister = -1;
+        if (la(1) == REGISTER) {
+            startRegister = parseRegister_short(next().getText());
+            endRegister = startRegister;
+            if (la(1) == DOTDOT) {
+                next();
+                endRegister = parseRegister_short(match(REGISTER).getText());
+            }
+            if (endRegister - startRegister + 1 < 1) {
+                throw fallback();
+            }
+        }
+        match(CLOSE_BRACE);
+        return new int[] { startRegister, endRegister };
+    }
+
+    private byte parseRegister_nibble(@Nonnull String register) {
+        //register should be in the format "v12"
+        int val = Byte.parseByte(register.substring(1));
+        if (register.charAt(0) == 'p') {
+            val = totalMethodRegisters - methodParameterRegisters + val;
+        }
+        if (val >= 2<<4) {
+            throw fallback();
+        }
+        return (byte)val;
+    }
+
+    //return a short, because java's byte is signed
+    private short parseRegister_byte(@Nonnull String register) {
+        //register should be in the format "v123"
+        int val = Short.parseShort(register.substring(1));
+        if (register.charAt(0) == 'p') {
+            val = totalMethodRegisters - methodParameterRegisters + val;
+        }
+        if (val >= 2<<8) {
+            throw fallback();
+        }
+        return (short)val;
+    }
+
+    //return an int because java's short is signed
+    private int parseRegister_short(@Nonnull String register) {
+        //register should be in the format "v12345"
+        int val = Integer.parseInt(register.substring(1));
+        if (register.charAt(0) == 'p') {
+            val = totalMethodRegisters - methodParameterRegisters + val;
+        }
+        if (val >= 2<<16) {
+            throw fallback();
+        }
+        return val;
+    }
+
+    @Nonnull
+    private String labelName() {
+        match(COLON);
+        return simpleName();
+    }
+
+    @Nonnull
+    private Label labelRef() {
+        return methodBuilder.getLabel(labelName());
+    }
+
+    @Nonnull
+    private String simpleName() {
+        int type = la(1);
+        if (type == PARAM_LIST_OR_ID_PRIMITIVE_TYPE) {
+            // The lexer splits a name like "IJ" into primitive types, join them back
+            CommonToken token = (CommonToken)next();
+            StringBuilder sb = new StringBuilder(token.getText());
+            while (la(1) == PARAM_LIST_OR_ID_PRIMITIVE_TYPE) {
+                CommonToken nextToken = (CommonToken)next();
+                if (nextToken.getStartIndex() != token.getStopIndex() + 1) {
+                    // The name from smaliParser would include the whitespace between the tokens
+                    throw fallback();
+                }
+                sb.append(nextToken.getText());
+                token = nextToken;
+            }
+            return sb.toString();
+        }
+        // METHOD_HANDLE_TYPE_FIELD and METHOD_HANDLE_TYPE_METHOD are accepted by smaliParser, but not by
+        // smaliTreeWalker
+        if (!SIMPLE_NAME_TOKENS.get(type)) {
+            throw fallback();
+        }
+        return next().getText();
+    }
+
+    @Nonnull
+    private String memberName() {
+        if (la(1) == MEMBER_NAME) {
+            return next().getText();
+        }
+        return simpleName();
+    }
+
+    @Nonnull
+    private String arrayDescriptor() {
+        String prefix = match(ARRAY_TYPE_PREFIX).getText();
+        if (la(1) != PRIMITIVE_TYPE && la(1) != CLASS_DESCRIPTOR) {
+            throw fallback();
+        }
+        return prefix + next().getText();
+    }
+
+    @Nonnull
+    private String nonvoidTypeDescriptor() {
+        switch (la(1)) {
+            case PRIMITIVE_TYPE:
+            case CLASS_DESCRIPTOR:
+                return next().getText();
+            case ARRAY_TYPE_PREFIX:
+                return arrayDescriptor();
+            default:
+                throw fallback();
+        }
+    }
+
+    @Nonnull
+    private String referenceTypeDescriptor() {
+        if (la(1) == CLASS_DESCRIPTOR) {
+            return next().getText();
+        }
+        return arrayDescriptor();
+    }
+
+    @Nonnull
+    private String typeDescriptor() {
+        if (la(1) == VOID_TYPE) {
+            next();
+            return "V";
+        }
+        return nonvoidTypeDescriptor();
+    }
+
+    @Nonnull
+    private ImmutableMethodProtoReference methodPrototype() {
+        match(OPEN_PAREN);
+        List<String> parameters = new ArrayList<String>();
+        if (la(1) == PARAM_LIST_OR_ID_PRIMITIVE_TYPE) {
+            while (la(1) == PARAM_LIST_OR_ID_PRIMITIVE_TYPE) {
+                parameters.add(next().getText());
+            }
+        } else {
+            while (la(1) != CLOSE_PAREN) {
+                parameters.add(nonvoidTypeDescriptor());
+            }
+        }
+        match(CLOSE_PAREN);
+        return new ImmutableMethodProtoReference(parameters, typeDescriptor());
+    }
+
+    @Nonnull
+    private ImmutableFieldReference fieldReference() {
+        String type = classType;
+        if (la(1) == CLASS_DESCRIPTOR || la(1) == ARRAY_TYPE_PREFIX) {
+            type = referenceTypeDescriptor();
+            match(ARROW);
+        }
+        return fieldReference(type);
+    }
+
+    @Nonnull
+    private ImmutableFieldReference fieldReference(@Nonnull String type) {
+        String name = memberName();
+        match(COLON);
+        return new ImmutableFieldReference(type, name, nonvoidTypeDescriptor());
+    }
+
+    @Nonnull
+    private ImmutableMethodReference methodReference() {
+        String type = classType;
+        if (la(1) == CLASS_DESCRIPTOR || la(1) == ARRAY_TYPE_PREFIX) {
+            type = referenceTypeDescriptor();
+            match(ARROW);
+        }
+        return methodReference(type);
+    }
+
+    @Nonnull
+    private ImmutableMethodReference methodReference(@Nonnull String type) {
+        String name = memberName();
+        ImmutableMethodProtoReference proto = methodPrototype();
+        return new ImmutableMethodReference(type, name, proto.getParameterTypes(), proto.getReturnType());
+    }
+
+    @Nonnull
+    private ImmutableReference verificationErrorReference() {
+        String type = classType;
+        if (la(1) == CLASS_DESCRIPTOR && la(2) != ARROW) {
+            return new ImmutableTypeReference(next().getText());
+        }
+        if (la(1) == CLASS_DESCRIPTOR || la(1) == ARRAY_TYPE_PREFIX) {
+            type = referenceTypeDescriptor();
+            match(ARROW);
+        }
+        return memberReference(type);
+    }
+
+    /**
+     * Parses the field or method reference after the optional type
+     */
+    @Nonnull
+    private ImmutableReference memberReference(@Nonnull String type) {
+        String name = memberName();
+        if (la(1) == COLON) {
+            next();
+            return new ImmutableFieldReference(type, name, nonvoidTypeDescriptor());
+        }
+        ImmutableMethodProtoReference proto = methodPrototype();
+        return new ImmutableMethodReference(type, name, proto.getParameterTypes(), proto.getReturnType());
+    }
+
+    @Nonnull
+    private ImmutableMethodHandleReference methodHandleReference() {
+        Token handleType = next();
+        switch (handleType.getType()) {
+            case METHOD_HANDLE_TYPE_FIELD:
+                match(AT);
+                return new ImmutableMethodHandleReference(
+                        MethodHandleType.getMethodHandleType(handleType.getText()), fieldReference());
+            case METHOD_HANDLE_TYPE_METHOD:
+            case INSTRUCTION_FORMAT35c_METHOD_OR_METHOD_HANDLE_TYPE:
+                match(AT);
+                return new ImmutableMethodHandleReference(
+                        MethodHandleType.getMethodHandleType(handleType.getText()), methodReference());
+            default:
+                throw fallback();
+        }
+    }
+
+    @Nonnull
+    private ImmutableCallSiteReference callSiteReference() {
+        String callSiteName = simpleName();
+        match(OPEN_PAREN);
+        String methodName = stringLiteral(match(STRING_LITERAL));
+        match(COMMA);
+        ImmutableMethodProtoReference methodProto = methodPrototype();
+        List<ImmutableEncodedValue> extraArguments = new ArrayList<ImmutableEncodedValue>();
+        while (la(1) == COMMA) {
+            next();
+            extraArguments.add(literal());
+        }
+        match(CLOSE_PAREN);
+        match(AT);
+        ImmutableMethodHandleReference methodHandleReference =
+                new ImmutableMethodHandleReference(MethodHandleType.INVOKE_STATIC, methodReference());
+        return new ImmutableCallSiteReference(callSiteName, methodHandleReference, methodName, methodProto,
+                extraArguments);
+    }
+
+    @Nonnull
+    private Annotation annotation() {
+        match(ANNOTATION_DIRECTIVE);
+        int visibility = AnnotationVisibility.getVisibility(match(ANNOTATION_VISIBILITY).getText());
+        String annotationType = match(CLASS_DESCRIPTOR).getText();
+        List<AnnotationElement> elements = annotationElements(END_ANNOTATION_DIRECTIVE);
+        return new ImmutableAnnotation(visibility, annotationType, elements);
+    }
+
+    @Nonnull
+    private List<AnnotationElement> annotationElements(int endDirective) {
+        List<AnnotationElement> elements = new ArrayList<AnnotationElement>();
+        while (la(1) != endDirective) {
+            String name = simpleName();
+            match(EQUAL);
+            elements.add(new ImmutableAnnotationElement(name, literal()));
+        }
+        next();
+        return elements;
+    }
+
+    /**
+     * Collects the annotations as smaliTreeWalker does, which also decides the order of the set.
+     */
+    @Nonnull
+    private static Set<Annotation> annotationSet(@Nonnull List<Annotation> annotations) {
+        HashMap<String, Annotation> annotationMap = new HashMap<String, Annotation>();
+        for (Annotation annotation: annotations) {
+            if (annotationMap.put(annotation.getType(), annotation) != null) {
+                throw fallback();
+            }
+        }
+        return ImmutableSet.copyOf(annotationMap.values());
+    }
+
+    @Nonnull
+    private ImmutableEncodedValue literal() {
+        int type = la(1);
+        if (LITERAL_OR_NAME_TOKENS.get(type) && (la(2) == COLON || la(2) == OPEN_PAREN)) {
+            throw fallback();
+        }
+        switch (type) {
+            case LONG_LITERAL:
+                return new ImmutableLongEncodedValue(LiteralTools.parseLong(next().getText()));
+            case POSITIVE_INTEGER_LITERAL:
+            case NEGATIVE_INTEGER_LITERAL:
+                return new ImmutableIntEncodedValue(LiteralTools.parseInt(next().getText()));
+            case SHORT_LITERAL:
+                return new ImmutableShortEncodedValue(LiteralTools.parseShort(next().getText()));
+            case BYTE_LITERAL:
+                return new ImmutableByteEncodedValue(LiteralTools.parseByte(next().getText()));
+            case FLOAT_LITERAL:
+            case FLOAT_LITERAL_OR_ID:
+                return new ImmutableFloatEncodedValue(LiteralTools.parseFloat(next().getText()));
+            case DOUBLE_LITERAL:
+            case DOUBLE_LITERAL_OR_ID:
+                return new ImmutableDoubleEncodedValue(LiteralTools.parseDouble(next().getText()));
+            case CHAR_LITERAL:
+                return new ImmutableCharEncodedValue(next().getText().charAt(1));
+            case STRING_LITERAL:
+                return new ImmutableStringEncodedValue(stringLiteral(next()));
+            case BOOL_LITERAL:
+                return ImmutableBooleanEncodedValue.forBoolean(Boolean.parseBoolean(next().getText()));
+            case NULL_LITERAL:
+                next();
+                return ImmutableNullEncodedValue.INSTANCE;
+            case OPEN_BRACE: {
+                next();
+                List<EncodedValue> elements = new ArrayList<EncodedValue>();
+                if (la(1) != CLOSE_BRACE) {
+                    elements.add(literal());
+                    while (la(1) == COMMA) {
+                        next();
+                        elements.add(literal());
+                    }
+                }
+                match(CLOSE_BRACE);
+                return new ImmutableArrayEncodedValue(elements);
+            }
+            case SUBANNOTATION_DIRECTIVE: {
+                next();
+                String annotationType = match(CLASS_DESCRIPTOR).getText();
+                List<AnnotationElement> elements = annotationElements(END_SUBANNOTATION_DIRECTIVE);
+                return new ImmutableAnnotationEncodedValue(annotationType, elements);
+            }
+            case ENUM_DIRECTIVE:
+                next();
+                return new ImmutableEnumEncodedValue(fieldReference());
+            case OPEN_PAREN:
+                return new ImmutableMethodTypeEncodedValue(methodPrototype());
+            case METHOD_HANDLE_TYPE_FIELD:
+            case METHOD_HANDLE_TYPE_METHOD:
+                // smaliTreeWalker doesn't accept the tree of an encoded method handle
+                throw fallback();
+            case INSTRUCTION_FORMAT35c_METHOD_OR_METHOD_HANDLE_TYPE:
+                if (la(2) == AT) {
+                    throw fallback();
+                }
+                return memberLiteral(classType);
+            case CLASS_DESCRIPTOR:
+            case ARRAY_TYPE_PREFIX: {
+                String referenceType = referenceTypeDescriptor();
+                if (la(1) != ARROW) {
+                    return new ImmutableTypeEncodedValue(referenceType);
+                }
+                next();
+                return memberLiteral(referenceType);
+            }
+            case PRIMITIVE_TYPE:
+            case VOID_TYPE:
+                if (la(2) != COLON && la(2) != OPEN_PAREN) {
+                    return new ImmutableTypeEncodedValue(typeDescriptor());
+                }
+                return memberLiteral(classType);
+            default:
+                return memberLiteral(classType);
+        }
+    }
+
+    @Nonnull
+    private ImmutableEncodedValue memberLiteral(@Nonnull String type) {
+        ImmutableReference reference = memberReference(type);
+        if (reference instanceof ImmutableFieldReference) {
+            return new ImmutableFieldEncodedValue((ImmutableFieldReference)reference);
+        }
+        return new ImmutableMethodEncodedValue((ImmutableMethodReference)reference);
+    }
+
+    @Nonnull
+    private static String stringLiteral(@Nonnull Token token) {
+        String value = token.getText();
+        return value.substring(1, value.length() - 1);
+    }
+
+    // integral_literal of smaliParser, as short_integral_literal of smaliTreeWalker
+    private short shortIntegralLiteral() {
+        Token token = next();
+        switch (token.getType()) {
+            case LONG_LITERAL: {
+                long value = LiteralTools.parseLong(token.getText());
+                LiteralTools.checkShort(value);
+                return (short)value;
+            }
+            case POSITIVE_INTEGER_LITERAL:
+            case NEGATIVE_INTEGER_LITERAL: {
+                int value = LiteralTools.parseInt(token.getText());
+                LiteralTools.checkShort(value);
+                return (short)value;
+            }
+            case SHORT_LITERAL:
+                return LiteralTools.parseShort(token.getText());
+            case CHAR_LITERAL:
+                return (short)token.getText().charAt(1);
+            case BYTE_LITERAL:
+                return LiteralTools.parseByte(token.getText());
+            default:
+                throw fallback();
+        }
+    }
+
+    // integral_literal of smaliParser, as integral_literal of smaliTreeWalker
+    private int integralLiteral() {
+        Token token = next();
+        switch (token.getType()) {
+            case LONG_LITERAL: {
+                long value = LiteralTools.parseLong(token.getText());
+                LiteralTools.checkInt(value);
+                return (int)value;
+            }
+            case POSITIVE_INTEGER_LITERAL:
+            case NEGATIVE_INTEGER_LITERAL:
+                return LiteralTools.parseInt(token.getText());
+            case SHORT_LITERAL:
+                return LiteralTools.parseShort(token.getText());
+            case BYTE_LITERAL:
+                return LiteralTools.parseByte(token.getText());
+            default:
+                throw fallback();
+        }
+    }
+
+    // fixed_32bit_literal of smaliParser, as fixed_32bit_literal of smaliTreeWalker
+    private int fixed32bitLiteral() {
+        Token token = next();
+        switch (token.getType()) {
+            case LONG_LITERAL: {
+                long value = LiteralTools.parseLong(token.getText());
+                LiteralTools.checkInt(value);
+                return (int)value;
+            }
+            case POSITIVE_INTEGER_LITERAL:
+            case NEGATIVE_INTEGER_LITERAL:
+                return LiteralTools.parseInt(token.getText());
+            case SHORT_LITERAL:
+                return LiteralTools.parseShort(token.getText());
+            case BYTE_LITERAL:
+                return LiteralTools.parseByte(token.getText());
+            case FLOAT_LITERAL:
+            case FLOAT_LITERAL_OR_ID:
+                return Float.floatToRawIntBits(LiteralTools.parseFloat(token.getText()));
+            case CHAR_LITERAL:
+                return token.getText().charAt(1);
+            case BOOL_LITERAL:
+                return Boolean.parseBoolean(token.getText())?1:0;
+            default:
+                throw fallback();
+        }
+    }
+
+    /**
+     * fixed_32bit_literal or fixed_literal of smaliParser, as fixed_64bit_literal of smaliTreeWalker
+     */
+    private long fixed64bitLiteral(boolean allowDouble) {
+        switch (la(1)) {
+            case LONG_LITERAL:
+                return LiteralTools.parseLong(next().getText());
+            case DOUBLE_LITERAL:
+            case DOUBLE_LITERAL_OR_ID:
+                if (!allowDouble) {
+                    throw fallback();
+                }
+                return Double.doubleToRawLongBits(LiteralTools.parseDouble(next().getText()));
+            default:
+                return fixed32bitLiteral();
+        }
+    }
+
+    // fixed_literal of smaliParser, as fixed_64bit_literal_number of smaliTreeWalker
+    @Nonnull
+    private Number fixed64bitLiteralNumber() {
+        Token token = next();
+        switch (token.getType()) {
+            case POSITIVE_INTEGER_LITERAL:
+            case NEGATIVE_INTEGER_LITERAL:
+                return LiteralTools.parseInt(token.getText());
+            case LONG_LITERAL:
+                return LiteralTools.parseLong(token.getText());
+            case SHORT_LITERAL:
+                return LiteralTools.parseShort(token.getText());
+            case BYTE_LITERAL:
+                return LiteralTools.parseByte(token.getText());
+            case FLOAT_LITERAL:
+            case FLOAT_LITERAL_OR_ID:
+                return Float.floatToRawIntBits(LiteralTools.parseFloat(token.getText()));
+            case DOUBLE_LITERAL:
+            case DOUBLE_LITERAL_OR_ID:
+                return Double.doubleToRawLongBits(LiteralTools.parseDouble(token.getText()));
+            case CHAR_LITERAL:
+                return (int)token.getText().charAt(1);
+            case BOOL_LITERAL:
+                return Boolean.parseBoolean(token.getText())?1:0;
+            default:
+                throw fallback();
+        }
+    }
+}
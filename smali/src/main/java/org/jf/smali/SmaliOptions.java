@@ -39,4 +39,6 @@ public class SmaliOptions {
     public boolean allowOdexOpcodes = false;
     public boolean verboseErrors = false;
     public boolean printTokens = false;
+    // Build the classes with SmaliDirectParser, the files that it rejects are still handled by smaliParser
+    public boolean directParser = true;
 }
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2016, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.smali;
+
+import com.google.common.io.Files;
+import junit.framework.Assert;
+import org.antlr.runtime.CommonTokenStream;
+import org.antlr.runtime.tree.CommonTreeNodeStream;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.writer.builder.DexBuilder;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compares the classes built by SmaliDirectParser with the classes built by smaliParser and smaliTreeWalker
+ */
+public class DirectParserTest {
+    private static final int[] API_LEVELS = new int[] { 15, 28 };
+
+    @Test
+    public void testSmaliFiles() throws Exception {
+        List<File> files = new ArrayList<File>();
+        URL lexerTests = DirectParserTest.class.getClassLoader().getResource("LexerTest");
+        if (lexerTests != null) {
+            collectSmaliFiles(new File(lexerTests.toURI()), files);
+        }
+        collectSmaliFiles(new File("../smali-integration-tests/src/test/smali"), files);
+        collectSmaliFiles(new File("../baksmali/src/test/resources"), files);
+        collectSmaliFiles(new File("../baksmali/src/test/smali"), files);
+        collectSmaliFiles(new File("../examples"), files);
+        Assert.assertFalse(files.isEmpty());
+
+        int accepted = 0;
+        for (File file: files) {
+            String text = Files.toString(file, StandardCharsets.UTF_8);
+            for (int apiLevel: API_LEVELS) {
+                if (compare(file.getPath(), text, apiLevel)) {
+                    accepted++;
+                }
+            }
+        }
+        Assert.assertTrue(accepted > 0);
+    }
+
+    @Test
+    public void testImplicitReferences() throws Exception {
+        Assert.assertTrue(compare("methods", "" +
+                ".class public LHelloWorld;\n" +
+                ".super Ljava/lang/Object;\n" +
+                ".method public static main([Ljava/lang/String;)V\n" +
+                "    .registers 1\n" +
+                "    invoke-static {p0}, toString()V\n" +
+                "    invoke-static {p0}, V()V\n" +
+                "    invoke-static {p0}, I()V\n" +
+                "    sget v0, I:I\n" +
+                "    return-void\n" +
+                ".end method", 15));
+        Assert.assertTrue(compare("literals", "" +
+                ".class public LHelloWorld;\n" +
+                ".super Ljava/lang/Object;\n" +
+                ".field public static field1:Ljava/lang/reflect/Method; = toString()V\n" +
+                ".field public static field2:Ljava/lang/reflect/Method; = V()V\n" +
+                ".field public static field3:Ljava/lang/reflect/Method; = I()V\n" +
+                ".field public static field4:Ljava/lang/Class; = I\n" +
+                ".field public static field5:Ljava/lang/reflect/Field; = I:I\n" +
+                ".field public static field6:Ljava/lang/reflect/Field; = LHelloWorld;->V:I\n" +
+                ".field public static IJ:Ljava/lang/Class; = [I", 15));
+    }
+
+    @Test
+    public void testErrors() throws Exception {
+        String[] texts = new String[] {
+                "",
+                ".class public LHelloWorld;\n",
+                ".class public LHelloWorld;\n.super Ljava/lang/Object;\n.super Ljava/lang/Object;\n",
+                ".class public LHelloWorld;\n.super Ljava/lang/Object;\n.field public field:I = 1\n",
+                ".class public LHelloWorld;\n.super Ljava/lang/Object;\n" +
+                        ".method public test()V\n    return-void\n.end method\n",
+                ".class public LHelloWorld;\n.super Ljava/lang/Object;\n" +
+                        ".method public test()V\n    .registers 1\n    const/4 v0, 8\n    return-void\n.end method\n",
+                ".class public LHelloWorld;\n.super Ljava/lang/Object;\n" +
+                        ".method public test()V\n    .registers 1\n    goto :missing\n.end method\n",
+                ".class public LHelloWorld;\n.super Ljava/lang/Object;\n.field public field:I ^\n"
+        };
+        for (String text: texts) {
+            Assert.assertFalse(compare("error", text, 15));
+        }
+    }
+
+    private static void collectSmaliFiles(@Nonnull File dir, @Nonnull List<File> files) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        Arrays.sort(children);
+        for (File child: children) {
+            if (child.isDirectory()) {
+                collectSmaliFiles(child, files);
+            } else if (child.getName().endsWith(".smali")) {
+                files.add(child);
+            }
+        }
+    }
+
+    /**
+     * @return Whether the text is assembled by smaliParser
+     */
+    private static boolean compare(@Nonnull String name, @Nonnull String text, int apiLevel) throws Exception {
+        byte[] expected = assembleWithAntlr(text, apiLevel);
+
+        smaliFlexLexer lexer = new smaliFlexLexer(new StringReader(text));
+        lexer.setSuppressErrors(true);
+        DexBuilder dexBuilder = new DexBuilder(Opcodes.forApi(apiLevel));
+        boolean parsed = new SmaliDirectParser(lexer, dexBuilder, apiLevel, false).parseSmaliFile() != null;
+
+        if (expected == null) {
+            Assert.assertFalse(name + " at api " + apiLevel + " should be rejected", parsed);
+            return false;
+        }
+        Assert.assertTrue(name + " at api " + apiLevel + " should be accepted", parsed);
+        Assert.assertTrue(name + " at api " + apiLevel, Arrays.equals(expected, write(dexBuilder)));
+        return true;
+    }
+
+    @Nullable
+    private static byte[] assembleWithAntlr(@Nonnull String text, int apiLevel) throws Exception {
+        // The errors are expected for some of the files
+        PrintStream err = System.err;
+        System.setErr(new PrintStream(new ByteArrayOutputStream()));
+        try {
+            smaliFlexLexer lexer = new smaliFlexLexer(new StringReader(text));
+            lexer.setSuppressErrors(true);
+            CommonTokenStream tokens = new CommonTokenStream(lexer);
+            smaliParser parser = new smaliParser(tokens);
+            parser.setAllowOdex(false);
+            parser.setApiLevel(apiLevel);
+            smaliParser.smali_file_return result = parser.smali_file();
+            if (parser.getNumberOfSyntaxErrors() > 0 || lexer.getNumberOfSyntaxErrors() > 0) {
+                return null;
+            }
+
+            CommonTreeNodeStream treeStream = new CommonTreeNodeStream(result.getTree());
+            treeStream.setTokenStream(tokens);
+            smaliTreeWalker dexGen = new smaliTreeWalker(treeStream);
+            dexGen.setApiLevel(apiLevel);
+            DexBuilder dexBuilder = new DexBuilder(Opcodes.forApi(apiLevel));
+            dexGen.setDexBuilder(dexBuilder);
+            dexGen.smali_file();
+            if (dexGen.getNumberOfSyntaxErrors() > 0) {
+                return null;
+            }
+            return write(dexBuilder);
+        } catch (RuntimeException ex) {
+            return null;
+        } finally {
+            System.setErr(err);
+        }
+    }
+
+    @Nonnull
+    private static byte[] write(@Nonnull DexBuilder dexBuilder) throws IOException {
+        MemoryDataStore dataStore = new MemoryDataStore();
+        dexBuilder.writeTo(dataStore);
+        return dataStore.getData();
+    }
+}
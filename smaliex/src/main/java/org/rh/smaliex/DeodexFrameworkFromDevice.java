@@ -20,11 +20,19 @@ import com.android.ddmlib.Device;
 
 import org.rh.smaliex.reader.Elf;
 
+import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 public class DeodexFrameworkFromDevice {
@@ -55,9 +63,15 @@ public class DeodexFrameworkFromDevice {
     public final static String FOLDER_FRAMEWORK_ODEX = "framework-odex";
     public final static String FOLDER_FRAMEWORK_JAR = "framework-jar-original";
     public final static String FOLDER_FRAMEWORK_JAR_DEX = "framework-jar-with-dex";
+    public final static String FILE_JOURNAL = "deodex-journal.txt";
 
     public final static String SYS_FRAMEWORK = "/system/framework/";
 
+    // The number of workers to convert the pulled non-boot files.
+    public static int CONVERT_JOBS = 1;
+    // The max number of pulled files which are waiting to be converted.
+    public static int PIPELINE_QUEUE_DEPTH = 4;
+
     public static void deOptimizeAuto(String sysFolder, String outFolder) {
         if (outFolder == null) {
             outFolder = MiscUtil.workingDir();
@@ -260,10 +274,16 @@ public class DeodexFrameworkFromDevice {
 
     static void deOptimizeFramework(FwProvider device, String workingDir) throws IOException {
         String outBootJarFolder = MiscUtil.path(workingDir, FOLDER_BOOT_JAR_RESULT);
-        if (!generateBootJar(device, workingDir, outBootJarFolder)) {
-            return;
+        final DeodexJournal journal = DeodexJournal.open(
+                new File(MiscUtil.path(workingDir, FILE_JOURNAL)));
+        try {
+            if (!generateBootJar(device, workingDir, outBootJarFolder, journal)) {
+                return;
+            }
+            generateNonBootFrameworkJar(device, workingDir, outBootJarFolder, journal);
+        } finally {
+            journal.close();
         }
-        generateNonBootFrameworkJar(device, workingDir, outBootJarFolder);
         String outFwJarFolder = MiscUtil.path(workingDir, FOLDER_FRAMEWORK_JAR_DEX);
         LLog.i("Done\n The rest steps:\n"
                 + " 1. Push all files under " + outBootJarFolder + " to /system/framework/\n"
@@ -272,9 +292,62 @@ public class DeodexFrameworkFromDevice {
                 + " 4. Reboot then the device will run with non-pre-optimized framework");
     }
 
+    /**
+     * Pull the file if the local one does not exist or its content is different from the
+     * one recorded as pulled. An existing local file without journal entry, e.g. pulled
+     * manually, is kept and recorded as pulled.
+     *
+     * @return The content hash of the local file, or null if it is unavailable
+     */
+    @Nullable
+    static String pullFileToFolder(FwProvider device, DeodexJournal journal,
+                                   String remote, String localFolder) {
+        final File local = new File(localFolder, MiscUtil.getFilenameNoPath(remote));
+        final String key = device.getName() + ":" + remote;
+        if (local.isFile()) {
+            final String hash = DeodexJournal.hash(local);
+            if (journal.isDone(DeodexJournal.Stage.PULLED, key, hash)) {
+                LLog.i("Found " + local + " in journal, skip pull " + remote);
+                return hash;
+            }
+            if (!journal.contains(DeodexJournal.Stage.PULLED, key)) {
+                LLog.i("Found " + local + ", skip pull " + remote);
+                if (hash != null) {
+                    journal.record(DeodexJournal.Stage.PULLED, key, hash);
+                }
+                return hash;
+            }
+        }
+        LLog.i("Pulling " + remote + " -> " + localFolder);
+        device.pullFileToFolder(remote, localFolder);
+        if (!local.isFile()) {
+            return null;
+        }
+        final String hash = DeodexJournal.hash(local);
+        if (hash != null) {
+            journal.record(DeodexJournal.Stage.PULLED, key, hash);
+        }
+        return hash;
+    }
+
+    static boolean verifyOat(DeodexJournal journal, File oat, @Nullable String hash) {
+        if (hash == null) {
+            return false;
+        }
+        if (journal.isDone(DeodexJournal.Stage.VERIFIED, oat.getName(), hash)) {
+            return true;
+        }
+        if (!MiscUtil.isElf(oat) || !MiscUtil.isOat(oat)) {
+            return false;
+        }
+        journal.record(DeodexJournal.Stage.VERIFIED, oat.getName(), hash);
+        return true;
+    }
+
     static void generateNonBootFrameworkJar(FwProvider device,
                                             String workingDir,
-                                            String bootDir) throws IOException {
+                                            String bootDir,
+                                            DeodexJournal journal) throws IOException {
         final String pullOdexDir = MiscUtil.path(workingDir, FOLDER_FRAMEWORK_ODEX);
         final String pullJarDir = MiscUtil.path(workingDir, FOLDER_FRAMEWORK_JAR);
 
@@ -297,46 +370,211 @@ public class DeodexFrameworkFromDevice {
                 "boot-" + MiscUtil.getFilenameNoExt(MiscUtil.getFilenameNoPath(p))
         ).collect(Collectors.toList());
 
-        for (java.util.Map.Entry<String, String[]> entry : fileLists.entrySet()) {
-            final String path = entry.getKey();
-            final String[] files = entry.getValue();
-            if (files == null) {
-                LLog.e("Cannot list " + path + " from " + device.getName());
-                continue;
+        final ConvertPipeline pipeline = new ConvertPipeline(CONVERT_JOBS, PIPELINE_QUEUE_DEPTH,
+                bootDir, pullJarDir, resultJarDir, journal);
+
+        try {
+            for (java.util.Map.Entry<String, String[]> entry : fileLists.entrySet()) {
+                final String path = entry.getKey();
+                final String[] files = entry.getValue();
+                if (files == null) {
+                    LLog.e("Cannot list " + path + " from " + device.getName());
+                    continue;
+                }
+
+                String[] filteredFiles = Arrays.stream(files).filter(f ->
+                        !f.endsWith(".art") && !f.startsWith("boot.")
+                                && excludePrefixes.stream().noneMatch(f::startsWith)
+                ).toArray(String[]::new);
+
+                // The odex and its vdex need to be pulled before it can be converted.
+                final LinkedHashMap<String, List<String>> groups = new LinkedHashMap<>();
+                for (String f : filteredFiles) {
+                    groups.computeIfAbsent(MiscUtil.getFilenameNoExt(f),
+                            k -> new ArrayList<>()).add(f);
+                }
+                for (Map.Entry<String, List<String>> group : groups.entrySet()) {
+                    final ArrayList<ConvertTask> groupTasks = new ArrayList<>();
+                    for (String f : group.getValue()) {
+                        final String hash = pullFileToFolder(
+                                device, journal, oatLocation + f, pullOdexDir);
+                        groupTasks.add(new ConvertTask(
+                                new File(MiscUtil.path(pullOdexDir, f)), hash));
+                    }
+                    String jar = SYS_FRAMEWORK + group.getKey() + ".jar";
+                    pullFileToFolder(device, journal, jar, pullJarDir);
+                    for (ConvertTask task : groupTasks) {
+                        pipeline.put(task);
+                    }
+                }
             }
+        } catch (Throwable t) {
+            pipeline.cancel(t);
+            throw t;
+        }
+        pipeline.finish();
+    }
 
-            String[] filteredFiles = Arrays.stream(files).filter(f ->
-                    !f.endsWith(".art") && !f.startsWith("boot.")
-                            && excludePrefixes.stream().noneMatch(f::startsWith)
-            ).toArray(String[]::new);
+    static final class ConvertTask {
+        final File odex;
+        final String hash;
 
-            for (String f : filteredFiles) {
-                String oat = oatLocation + f;
-                LLog.i("Pulling " + oat + " -> " + pullOdexDir);
-                device.pullFileToFolder(oat, pullOdexDir);
+        ConvertTask(File odex, String hash) {
+            this.odex = odex;
+            this.hash = hash;
+        }
+    }
 
-                String jar = SYS_FRAMEWORK + MiscUtil.getFilenameNoExt(f) + ".jar";
-                LLog.i("Pulling " + jar + " -> " + pullJarDir);
-                device.pullFileToFolder(jar, pullJarDir);
+    interface TaskConverter {
+        void convert(ConvertTask task) throws IOException;
+    }
+
+    /**
+     * Converts the pulled files by a pool of workers while the next files are pulling.
+     * The number of pulled but not yet converted files is limited by the queue depth.
+     *
+     * A failed file does not stop the others, but an {@link Error} of any worker aborts the
+     * pipeline, the waiting files are dropped and the next {@link #put} fails.
+     */
+    static final class ConvertPipeline {
+        private static final long POLL_MILLIS = 100;
+
+        private final BlockingQueue<ConvertTask> mQueue;
+        private final ExecutorService mWorkers;
+        private final String mName;
+        private final TaskConverter mConverter;
+        private volatile boolean mFinishing;
+        private volatile boolean mAborted;
+        private IOException mError;
+
+        ConvertPipeline(int jobs, int queueDepth, String bootDir, String pullJarDir,
+                        File resultJarDir, DeodexJournal journal) {
+            this(jobs, queueDepth, resultJarDir.getPath(),
+                    task -> convert(task, bootDir, pullJarDir, resultJarDir, journal));
+        }
+
+        ConvertPipeline(int jobs, int queueDepth, String name, TaskConverter converter) {
+            jobs = Math.max(1, jobs);
+            mQueue = new ArrayBlockingQueue<>(Math.max(1, queueDepth));
+            mName = name;
+            mConverter = converter;
+            mWorkers = Executors.newFixedThreadPool(jobs);
+            for (int i = 0; i < jobs; i++) {
+                mWorkers.execute(this::runWorker);
             }
+        }
 
-            for (String f : filteredFiles) {
-                File odex = new File(MiscUtil.path(pullOdexDir, f));
-                if (MiscUtil.isOat(odex)) {
-                    try (Elf e = new Elf(odex)) {
-                        OatUtil.convertToDexJar(
-                                OatUtil.getOat(e), resultJarDir,
-                                bootDir, pullJarDir, false);
+        void put(ConvertTask task) throws IOException {
+            try {
+                while (!mAborted) {
+                    if (mQueue.offer(task, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                        return;
                     }
-                } else if (MiscUtil.isOdex(odex)) {
-                    LLog.i("Not support repacking legacy " + odex + " yet");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while queuing " + task.odex);
+            }
+            throw new IOException("Pipeline of " + mName + " is aborted");
+        }
+
+        /**
+         * Waits for the queued files to be converted.
+         *
+         * @throws IOException If any file failed to convert
+         */
+        void finish() throws IOException {
+            mFinishing = true;
+            mWorkers.shutdown();
+            try {
+                mWorkers.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                final IOException ioe = new IOException("Interrupted while converting");
+                cancel(ioe);
+                throw ioe;
+            }
+            synchronized (this) {
+                if (mError != null) {
+                    throw OatUtil.handleIOE(mError);
+                }
+            }
+        }
+
+        /**
+         * Drops the queued files and waits for the converting ones. The errors of the
+         * workers are added to the cause as suppressed.
+         */
+        void cancel(Throwable cause) {
+            abort();
+            mWorkers.shutdownNow();
+            try {
+                mWorkers.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (this) {
+                if (mError != null && mError != cause) {
+                    cause.addSuppressed(mError);
                 }
             }
         }
+
+        private void abort() {
+            mAborted = true;
+            mQueue.clear();
+        }
+
+        private void runWorker() {
+            try {
+                while (!mAborted) {
+                    final ConvertTask task = mQueue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (task == null) {
+                        // No more put after finishing, so the empty queue will not be filled.
+                        if (mFinishing && mQueue.isEmpty()) {
+                            break;
+                        }
+                        continue;
+                    }
+                    try {
+                        mConverter.convert(task);
+                    } catch (Throwable ex) {
+                        onError(task, ex);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private synchronized void onError(ConvertTask task, Throwable ex) {
+            LLog.e("Failed to convert " + task.odex);
+            if (mError == null) {
+                mError = new IOException("Error at pipeline of " + mName);
+            }
+            mError.addSuppressed(ex);
+            if (!(ex instanceof Exception)) {
+                abort();
+            }
+        }
+
+        private static void convert(ConvertTask task, String bootDir, String pullJarDir,
+                                    File resultJarDir, DeodexJournal journal) throws IOException {
+            final File odex = task.odex;
+            if (verifyOat(journal, odex, task.hash)) {
+                try (Elf e = new Elf(odex)) {
+                    OatUtil.convertToDexJar(
+                            OatUtil.getOat(e), resultJarDir,
+                            bootDir, pullJarDir, false, journal);
+                }
+            } else if (odex.exists() && MiscUtil.isOdex(odex)) {
+                LLog.i("Not support repacking legacy " + odex + " yet");
+            }
+        }
     }
 
     static boolean generateBootJar(FwProvider device, String workingDir,
-            String outBootJarFolder) throws IOException {
+            String outBootJarFolder, DeodexJournal journal) throws IOException {
         String bootOatDir = MiscUtil.path(workingDir, FOLDER_BOOT_ODEX);
         MiscUtil.mkdirs(new File(bootOatDir));
 
@@ -345,32 +583,24 @@ public class DeodexFrameworkFromDevice {
         for (String file : device.getFileList(bootOatLocation)) {
             if (file.endsWith(".art")) continue;
             File targetFile = new File(bootOatDir, file);
-            if (targetFile.exists()) {
-                LLog.i("Found " + targetFile + ", skip pull " + file);
-                continue;
-            }
-
-            String fileLoc = bootOatLocation + file;
-            LLog.i("Pulling " + fileLoc + " -> " + bootOatDir);
-            device.pullFileToFolder(fileLoc, bootOatDir);
-            if (!targetFile.exists()) {
+            final String hash = pullFileToFolder(device, journal, bootOatLocation + file, bootOatDir);
+            if (hash == null) {
                 LLog.i("Pulled " + targetFile + " not found");
                 return false;
             }
+            if (file.endsWith(".oat") && !verifyOat(journal, targetFile, hash)) {
+                LLog.e("Pulled " + targetFile + " is not a valid oat file");
+                return false;
+            }
         }
 
         String originalJarFolder = MiscUtil.path(workingDir, FOLDER_BOOT_JAR_ORIGINAL);
         MiscUtil.mkdirs(new File(originalJarFolder));
         for (String jar : device.getBootClassPath()) {
-            File targetFile = new File(originalJarFolder, MiscUtil.getFilenameNoPath(jar));
-            if (targetFile.exists()) {
-                LLog.i("Found " + targetFile + ", skip pull " + jar);
-                continue;
-            }
-            LLog.i("Pulling " + jar + " -> " + originalJarFolder);
-            device.pullFileToFolder(jar, originalJarFolder);
+            pullFileToFolder(device, journal, jar, originalJarFolder);
         }
-        OatUtil.bootOat2Jar(bootOatDir, originalJarFolder, outBootJarFolder);
+        OatUtil.convertDexFromBootOat(bootOatDir, outBootJarFolder,
+                bootOatDir, originalJarFolder, true, journal);
         return true;
     }
 }
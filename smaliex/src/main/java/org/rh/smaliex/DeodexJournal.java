@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2014 Riddle Hsu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rh.smaliex;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+
+/**
+ * Records the progress of each file of a de-optimization job, so an interrupted job can
+ * continue from the last completed stage instead of starting over.
+ *
+ * Each line of the journal file is "stage key hash". The hash is the content hash of the
+ * artifact produced by the stage, so a stage is only treated as done if the artifact still
+ * has the same content. The later line of the same stage and key overrides the former one.
+ */
+public class DeodexJournal {
+
+    public enum Stage {
+        PULLED,
+        VERIFIED,
+        DEOPTIMIZED,
+        // The dex is invalid after de-optimization, so it is not in the output jar.
+        SKIPPED,
+        REPACKED
+    }
+
+    private final File mFile;
+    private final HashMap<String, String> mEntries = new HashMap<>();
+    private Writer mWriter;
+
+    private DeodexJournal(@Nonnull File file) {
+        mFile = file;
+    }
+
+    @Nonnull
+    public static DeodexJournal open(@Nonnull File file) {
+        final DeodexJournal journal = new DeodexJournal(file);
+        if (file.isFile()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    final int keyPos = line.indexOf(' ');
+                    final int hashPos = line.lastIndexOf(' ');
+                    if (keyPos < 0 || hashPos <= keyPos) {
+                        // Incomplete line written when the process was killed.
+                        continue;
+                    }
+                    journal.mEntries.put(line.substring(0, hashPos), line.substring(hashPos + 1));
+                }
+            } catch (IOException ex) {
+                LLog.ex(ex);
+            }
+            LLog.i("Resume with " + journal.mEntries.size() + " journal entries from " + file);
+        }
+        return journal;
+    }
+
+    @Nonnull
+    public File getFile() {
+        return mFile;
+    }
+
+    private static String entryKey(Stage stage, String key) {
+        return stage + " " + key;
+    }
+
+    public synchronized boolean isDone(@Nonnull Stage stage, @Nonnull String key,
+                                       @Nullable String hash) {
+        return hash != null && hash.equals(mEntries.get(entryKey(stage, key)));
+    }
+
+    public synchronized boolean contains(@Nonnull Stage stage, @Nonnull String key) {
+        return mEntries.containsKey(entryKey(stage, key));
+    }
+
+    public boolean isDone(@Nonnull Stage stage, @Nonnull String key, @Nonnull File artifact) {
+        if (!contains(stage, key)) {
+            return false;
+        }
+        return artifact.isFile() && isDone(stage, key, hash(artifact));
+    }
+
+    public synchronized void record(@Nonnull Stage stage, @Nonnull String key,
+                                    @Nonnull String hash) {
+        final String entryKey = entryKey(stage, key);
+        if (hash.equals(mEntries.put(entryKey, hash))) {
+            return;
+        }
+        try {
+            if (mWriter == null) {
+                mWriter = new FileWriter(mFile, true);
+            }
+            // Flush each line so the progress survives a crash.
+            mWriter.write(entryKey + " " + hash + "\n");
+            mWriter.flush();
+        } catch (IOException ex) {
+            LLog.ex(ex);
+        }
+    }
+
+    public void record(@Nonnull Stage stage, @Nonnull String key, @Nonnull File artifact) {
+        final String hash = hash(artifact);
+        if (hash != null) {
+            record(stage, key, hash);
+        }
+    }
+
+    public synchronized void close() {
+        if (mWriter != null) {
+            try {
+                mWriter.close();
+            } catch (IOException ex) {
+                LLog.ex(ex);
+            }
+            mWriter = null;
+        }
+    }
+
+    @Nonnull
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Nonnull
+    public static String hash(@Nonnull byte[] data) {
+        return toHex(newDigest().digest(data));
+    }
+
+    @Nullable
+    public static String hash(@Nonnull File file) {
+        final MessageDigest digest = newDigest();
+        final byte[] buf = new byte[64 * 1024];
+        try (InputStream is = new FileInputStream(file)) {
+            int len;
+            while ((len = is.read(buf)) > 0) {
+                digest.update(buf, 0, len);
+            }
+        } catch (IOException ex) {
+            LLog.ex(ex);
+            return null;
+        }
+        return toHex(digest.digest());
+    }
+
+    @Nonnull
+    public static String toHex(@Nonnull byte[] bytes) {
+        final StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
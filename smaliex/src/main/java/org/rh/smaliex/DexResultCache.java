@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2014 Riddle Hsu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rh.smaliex;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Content-addressed cache of de-optimized dex. The oat files of different instruction sets
+ * (e.g. arm and arm64) usually embed the same dex, so the result of the first one can be
+ * reused by the others.
+ *
+ * The key is composed of the content of the optimized dex, the fingerprint of its class path
+ * and the api level, which are all the inputs that affect the de-optimized result. The key
+ * also has the version of the cache, so the results stored by an older tool are not used.
+ */
+public class DexResultCache {
+    // Increase it when the de-optimized result of the same input is changed.
+    private static final int VERSION = 1;
+
+    // If not null, the results are also stored in the folder to be shared across runs.
+    public static File DIR;
+
+    private static final ConcurrentHashMap<String, SoftReference<byte[]>> resultCache =
+            new ConcurrentHashMap<>();
+
+    @Nonnull
+    public static String key(@Nonnull byte[] odexBytes, @Nonnull String classPathFingerprint,
+                             int apiLevel) {
+        final String key = "v" + VERSION + "-" + DeodexJournal.hash(odexBytes) + "-"
+                + classPathFingerprint + "-" + apiLevel;
+        return OdexUtil.PROFILE_HASH == null ? key : key + "-" + OdexUtil.PROFILE_HASH;
+    }
+
+    /**
+     * @return The serialized de-optimized dex, or null if it is not cached
+     */
+    @Nullable
+    public static byte[] get(@Nonnull String key) {
+        byte[] data = MiscUtil.getCache(resultCache, key);
+        if (data == null && DIR != null) {
+            final File file = new File(DIR, key + ".dex");
+            if (file.isFile()) {
+                try {
+                    data = Files.readAllBytes(file.toPath());
+                    MiscUtil.putCache(resultCache, key, data);
+                } catch (IOException ex) {
+                    LLog.ex(ex);
+                }
+            }
+        }
+        return data;
+    }
+
+    public static void put(@Nonnull String key, @Nonnull byte[] data) {
+        MiscUtil.putCache(resultCache, key, data);
+        if (DIR == null) {
+            return;
+        }
+        MiscUtil.mkdirs(DIR);
+        final File file = new File(DIR, key + ".dex");
+        final File tmpFile = new File(DIR, key + ".tmp" + Thread.currentThread().getId());
+        try {
+            // Rename after written, so an interrupted write won't be treated as a result.
+            Files.write(tmpFile.toPath(), data);
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            LLog.ex(ex);
+            MiscUtil.delete(tmpFile);
+        }
+    }
+}
@@ -0,0 +1,457 @@
+/*
+ * Copyright (C) 2014 Riddle Hsu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rh.smaliex;
+
+import javax.annotation.Nonnull;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+/**
+ * Writes a jar from new dex entries and the entries of an original jar.
+ *
+ * The entries of the original jar are copied as the raw compressed data without inflating and
+ * deflating again. The dex entries are compressed in parallel when they are added, or stored
+ * without compression and aligned to page boundary if the alignment is specified, so the runtime
+ * is able to map the dex directly. The stored native libraries are aligned in the same way.
+ *
+ * If any entry failed to be read or written, the output jar is deleted when it is closed.
+ */
+public class JarRepacker implements Closeable {
+    public static final int PAGE_SIZE = 4096;
+
+    private static final int LOCAL_HEADER_SIG = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+    private static final int END_HEADER_SIG = 0x06054b50;
+    private static final int ZIP64_END_HEADER_SIG = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_HEADER_SIZE = 22;
+    private static final int ZIP64_END_HEADER_SIZE = 56;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final long ZIP64_MAGIC = 0xffffffffL;
+    private static final int FLAG_DATA_DESCRIPTOR = 0x08;
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+    private static final int VERSION_STORED = 10;
+    private static final int VERSION_DEFLATED = 20;
+    // The extra field used by zipalign to pad the local header.
+    private static final int ALIGNMENT_EXTRA_ID = 0xd935;
+
+    static final class Entry {
+        byte[] name;
+        int flags;
+        int method;
+        int time;
+        int date;
+        int crc;
+        long compressedSize;
+        long size;
+        long localHeaderOffset;
+
+        // The source of data, either an array or a range of the original jar.
+        byte[] data;
+        FileChannel srcChannel;
+        long srcDataOffset;
+    }
+
+    private final File mOutput;
+    private final RandomAccessFile mOutputFile;
+    private final FileChannel mOut;
+    private final int mDexAlignment;
+    private final ArrayList<Future<Entry>> mPendingEntries = new ArrayList<>();
+    private final ArrayList<Entry> mWrittenEntries = new ArrayList<>();
+    private final ArrayList<RandomAccessFile> mSources = new ArrayList<>();
+    private boolean mFailed;
+
+    /**
+     * @param output The output jar
+     * @param dexAlignment If greater than 0, the dex entries are stored uncompressed and the
+     *                     data of stored dex and native library entries is aligned to the
+     *                     given bytes.
+     */
+    public JarRepacker(@Nonnull File output, int dexAlignment) throws IOException {
+        mOutput = output;
+        mOutputFile = new RandomAccessFile(output, "rw");
+        mOutputFile.setLength(0);
+        mOut = mOutputFile.getChannel();
+        mDexAlignment = dexAlignment;
+    }
+
+    public void addDex(@Nonnull String name, @Nonnull byte[] dexBytes) {
+        final Entry entry = new Entry();
+        entry.name = name.getBytes(StandardCharsets.UTF_8);
+        setTime(entry, System.currentTimeMillis());
+        entry.size = dexBytes.length;
+        if (mDexAlignment > 0) {
+            final CRC32 crc = new CRC32();
+            crc.update(dexBytes);
+            entry.crc = (int) crc.getValue();
+            entry.method = METHOD_STORED;
+            entry.compressedSize = dexBytes.length;
+            entry.data = dexBytes;
+            mPendingEntries.add(CompletableFuture.completedFuture(entry));
+        } else {
+            entry.method = METHOD_DEFLATED;
+            mPendingEntries.add(CompletableFuture.supplyAsync(() -> deflate(entry, dexBytes)));
+        }
+    }
+
+    static Entry deflate(Entry entry, byte[] data) {
+        final CRC32 crc = new CRC32();
+        crc.update(data);
+        entry.crc = (int) crc.getValue();
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2);
+            final byte[] buf = new byte[64 * 1024];
+            while (!deflater.finished()) {
+                final int len = deflater.deflate(buf);
+                out.write(buf, 0, len);
+            }
+            entry.data = out.toByteArray();
+            entry.compressedSize = entry.data.length;
+        } finally {
+            deflater.end();
+        }
+        return entry;
+    }
+
+    /**
+     * Copy the entries from the jar without recompressing.
+     *
+     * @param srcJar The original jar
+     * @param skip The entries with the matched name are not copied
+     * @throws IOException Failed to read the jar or it is not a supported zip format
+     */
+    public void copyFrom(@Nonnull File srcJar, @Nonnull Predicate<String> skip) throws IOException {
+        try {
+            readEntries(srcJar, skip);
+        } catch (IOException | RuntimeException e) {
+            mFailed = true;
+            throw e;
+        }
+    }
+
+    private void readEntries(@Nonnull File srcJar, @Nonnull Predicate<String> skip)
+            throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(srcJar, "r");
+        mSources.add(raf);
+        final FileChannel src = raf.getChannel();
+        final long fileSize = src.size();
+        final int tailSize = (int) Math.min(fileSize, END_HEADER_SIZE + 0xffff);
+        final ByteBuffer tail = read(src, fileSize - tailSize, tailSize);
+        int endPos = -1;
+        for (int i = tailSize - END_HEADER_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == END_HEADER_SIG) {
+                endPos = i;
+                break;
+            }
+        }
+        if (endPos < 0) {
+            throw new ZipException("Not a zip file: " + srcJar);
+        }
+        long entryCount = tail.getShort(endPos + 10) & 0xffff;
+        long dirSize = tail.getInt(endPos + 12) & 0xffffffffL;
+        long dirOffset = tail.getInt(endPos + 16) & 0xffffffffL;
+        if (entryCount == 0xffff || dirSize == ZIP64_MAGIC || dirOffset == ZIP64_MAGIC) {
+            // The zip64 end locator is right before the end header.
+            final long locatorPos = fileSize - tailSize + endPos - ZIP64_LOCATOR_SIZE;
+            final ByteBuffer locator = locatorPos >= 0
+                    ? read(src, locatorPos, ZIP64_LOCATOR_SIZE) : null;
+            if (locator != null && locator.getInt(0) == ZIP64_LOCATOR_SIG) {
+                final ByteBuffer end = read(src, locator.getLong(8), ZIP64_END_HEADER_SIZE);
+                if (end.getInt(0) != ZIP64_END_HEADER_SIG) {
+                    throw new ZipException("Invalid zip64 end header in " + srcJar);
+                }
+                entryCount = end.getLong(32);
+                dirSize = end.getLong(40);
+                dirOffset = end.getLong(48);
+            }
+        }
+        if (dirSize > Integer.MAX_VALUE) {
+            throw new ZipException("Too large central directory in " + srcJar);
+        }
+
+        final ByteBuffer dir = read(src, dirOffset, (int) dirSize);
+        int pos = 0;
+        for (long i = 0; i < entryCount; i++) {
+            if (dir.getInt(pos) != CENTRAL_HEADER_SIG) {
+                throw new ZipException("Invalid central directory in " + srcJar);
+            }
+            final Entry entry = new Entry();
+            entry.flags = dir.getShort(pos + 8) & 0xffff & ~FLAG_DATA_DESCRIPTOR;
+            entry.method = dir.getShort(pos + 10) & 0xffff;
+            entry.time = dir.getShort(pos + 12) & 0xffff;
+            entry.date = dir.getShort(pos + 14) & 0xffff;
+            entry.crc = dir.getInt(pos + 16);
+            entry.compressedSize = dir.getInt(pos + 20) & 0xffffffffL;
+            entry.size = dir.getInt(pos + 24) & 0xffffffffL;
+            final int nameLen = dir.getShort(pos + 28) & 0xffff;
+            final int extraLen = dir.getShort(pos + 30) & 0xffff;
+            final int commentLen = dir.getShort(pos + 32) & 0xffff;
+            long localOffset = dir.getInt(pos + 42) & 0xffffffffL;
+            entry.name = new byte[nameLen];
+            dir.position(pos + CENTRAL_HEADER_SIZE);
+            dir.get(entry.name);
+            if (entry.size == ZIP64_MAGIC || entry.compressedSize == ZIP64_MAGIC
+                    || localOffset == ZIP64_MAGIC) {
+                // Only the values which are ZIP64_MAGIC are in the extra field, in this order.
+                final int extraPos = findExtra(dir, pos + CENTRAL_HEADER_SIZE + nameLen,
+                        extraLen, ZIP64_EXTRA_ID);
+                if (extraPos < 0) {
+                    throw new ZipException("Missing zip64 extra field in " + srcJar);
+                }
+                int valuePos = extraPos + 4;
+                if (entry.size == ZIP64_MAGIC) {
+                    entry.size = dir.getLong(valuePos);
+                    valuePos += 8;
+                }
+                if (entry.compressedSize == ZIP64_MAGIC) {
+                    entry.compressedSize = dir.getLong(valuePos);
+                    valuePos += 8;
+                }
+                if (localOffset == ZIP64_MAGIC) {
+                    localOffset = dir.getLong(valuePos);
+                }
+            }
+            pos += CENTRAL_HEADER_SIZE + nameLen + extraLen + commentLen;
+
+            final String name = new String(entry.name, StandardCharsets.UTF_8);
+            if (skip.test(name)) {
+                continue;
+            }
+            final ByteBuffer localHeader = read(src, localOffset, LOCAL_HEADER_SIZE);
+            if (localHeader.getInt(0) != LOCAL_HEADER_SIG) {
+                throw new ZipException("Invalid local header of " + name + " in " + srcJar);
+            }
+            entry.srcChannel = src;
+            entry.srcDataOffset = localOffset + LOCAL_HEADER_SIZE
+                    + (localHeader.getShort(26) & 0xffff) + (localHeader.getShort(28) & 0xffff);
+            mPendingEntries.add(CompletableFuture.completedFuture(entry));
+        }
+    }
+
+    // Returns the position of the extra field with the id, or -1 if it is not found.
+    private static int findExtra(ByteBuffer buf, int start, int length, int id) {
+        int pos = start;
+        while (pos + 4 <= start + length) {
+            final int size = buf.getShort(pos + 2) & 0xffff;
+            if ((buf.getShort(pos) & 0xffff) == id) {
+                return pos + 4 + size <= start + length ? pos : -1;
+            }
+            pos += 4 + size;
+        }
+        return -1;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int size)
+            throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                throw new ZipException("Unexpected end of zip");
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private void writeFully(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            mOut.write(buf);
+        }
+    }
+
+    private boolean needsAlignment(Entry entry) {
+        if (mDexAlignment <= 0 || entry.method != METHOD_STORED) {
+            return false;
+        }
+        final String name = new String(entry.name, StandardCharsets.UTF_8);
+        return name.endsWith(".dex") || name.endsWith(".so");
+    }
+
+    private void writeEntry(Entry entry) throws IOException {
+        if (entry.size >= ZIP64_MAGIC || entry.compressedSize >= ZIP64_MAGIC) {
+            throw new ZipException("Too large to write without zip64: " + mOutput);
+        }
+        entry.localHeaderOffset = mOut.position();
+        int extraLen = 0;
+        if (needsAlignment(entry)) {
+            final long dataPos = entry.localHeaderOffset + LOCAL_HEADER_SIZE
+                    + entry.name.length + 6;
+            extraLen = 6 + (int) ((mDexAlignment - dataPos % mDexAlignment) % mDexAlignment);
+        }
+        final ByteBuffer header = ByteBuffer.allocate(
+                LOCAL_HEADER_SIZE + entry.name.length + extraLen).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(LOCAL_HEADER_SIG);
+        header.putShort((short) versionNeeded(entry));
+        header.putShort((short) entry.flags);
+        header.putShort((short) entry.method);
+        header.putShort((short) entry.time);
+        header.putShort((short) entry.date);
+        header.putInt(entry.crc);
+        header.putInt((int) entry.compressedSize);
+        header.putInt((int) entry.size);
+        header.putShort((short) entry.name.length);
+        header.putShort((short) extraLen);
+        header.put(entry.name);
+        if (extraLen > 0) {
+            header.putShort((short) ALIGNMENT_EXTRA_ID);
+            header.putShort((short) (extraLen - 4));
+            header.putShort((short) mDexAlignment);
+            header.position(header.limit());
+        }
+        header.flip();
+        writeFully(header);
+
+        if (entry.data != null) {
+            writeFully(ByteBuffer.wrap(entry.data));
+            entry.data = null;
+        } else {
+            long copied = 0;
+            while (copied < entry.compressedSize) {
+                copied += entry.srcChannel.transferTo(entry.srcDataOffset + copied,
+                        entry.compressedSize - copied, mOut);
+            }
+        }
+        mWrittenEntries.add(entry);
+    }
+
+    private void writeCentralDirectory() throws IOException {
+        final long dirOffset = mOut.position();
+        for (Entry entry : mWrittenEntries) {
+            final ByteBuffer header = ByteBuffer.allocate(CENTRAL_HEADER_SIZE + entry.name.length)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(CENTRAL_HEADER_SIG);
+            header.putShort((short) versionNeeded(entry));
+            header.putShort((short) versionNeeded(entry));
+            header.putShort((short) entry.flags);
+            header.putShort((short) entry.method);
+            header.putShort((short) entry.time);
+            header.putShort((short) entry.date);
+            header.putInt(entry.crc);
+            header.putInt((int) entry.compressedSize);
+            header.putInt((int) entry.size);
+            header.putShort((short) entry.name.length);
+            header.putShort((short) 0); // extra length
+            header.putShort((short) 0); // comment length
+            header.putShort((short) 0); // disk number
+            header.putShort((short) 0); // internal attributes
+            header.putInt(0); // external attributes
+            header.putInt((int) entry.localHeaderOffset);
+            header.put(entry.name);
+            header.flip();
+            writeFully(header);
+        }
+        final long dirSize = mOut.position() - dirOffset;
+        if (mWrittenEntries.size() > 0xfffe || mOut.position() > 0xffffffffL) {
+            throw new ZipException("Too large to write without zip64: " + mOutput);
+        }
+        final ByteBuffer end = ByteBuffer.allocate(END_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        end.putInt(END_HEADER_SIG);
+        end.putShort((short) 0);
+        end.putShort((short) 0);
+        end.putShort((short) mWrittenEntries.size());
+        end.putShort((short) mWrittenEntries.size());
+        end.putInt((int) dirSize);
+        end.putInt((int) dirOffset);
+        end.putShort((short) 0);
+        end.flip();
+        writeFully(end);
+    }
+
+    private static int versionNeeded(Entry entry) {
+        return entry.method == METHOD_DEFLATED ? VERSION_DEFLATED : VERSION_STORED;
+    }
+
+    private static void setTime(Entry entry, long millis) {
+        final Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(millis);
+        entry.date = ((c.get(Calendar.YEAR) - 1980) << 9) | ((c.get(Calendar.MONTH) + 1) << 5)
+                | c.get(Calendar.DAY_OF_MONTH);
+        entry.time = (c.get(Calendar.HOUR_OF_DAY) << 11) | (c.get(Calendar.MINUTE) << 5)
+                | (c.get(Calendar.SECOND) >> 1);
+    }
+
+    /**
+     * Write all the added entries in order and the central directory.
+     */
+    @Override
+    @SuppressWarnings("try")
+    public void close() throws IOException {
+        try (Metrics.Timer t = Metrics.time(Metrics.Phase.REPACK_JAR)) {
+            writeAndClose();
+        }
+    }
+
+    private void writeAndClose() throws IOException {
+        boolean complete = false;
+        try {
+            if (mFailed) {
+                LLog.i("Discard incomplete " + mOutput);
+                return;
+            }
+            for (Future<Entry> pending : mPendingEntries) {
+                final Entry entry;
+                try {
+                    entry = pending.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while writing " + mOutput);
+                } catch (ExecutionException e) {
+                    throw new IOException("Failed to compress entry of " + mOutput, e.getCause());
+                }
+                writeEntry(entry);
+            }
+            writeCentralDirectory();
+            complete = true;
+        } finally {
+            mPendingEntries.clear();
+            for (RandomAccessFile src : mSources) {
+                try {
+                    src.close();
+                } catch (IOException ex) {
+                    LLog.ex(ex);
+                }
+            }
+            mOutputFile.close();
+            if (!complete && !mOutput.delete()) {
+                LLog.e("Unable to delete incomplete " + mOutput);
+            }
+        }
+    }
+}
@@ -16,58 +16,390 @@
 
 package org.rh.smaliex;
 
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * The messages are put into a lock-free ring buffer and written by a background thread, so
+ * the worker threads only pay for the message construction. The time formatting and the
+ * stack traces of exceptions are also done by the background thread.
+ *
+ * The messages below the level of {@link #setLevel} are dropped before they are put into
+ * the buffer, the callers which build a large message should check {@link #isLoggable}
+ * before building.
+ */
 public class LLog {
 
-    private static final SimpleDateFormat sdf = new SimpleDateFormat("MM-dd kk:mm:ss:SSS");
-    private static final Date date = new Date();
-    public static boolean VERBOSE = false;
+    public static final int LEVEL_VERBOSE = 0;
+    public static final int LEVEL_INFO = 1;
+    public static final int LEVEL_ERROR = 2;
 
-    private synchronized static String time() {
-        date.setTime(System.currentTimeMillis());
-        return sdf.format(date);
-    }
+    private static volatile int sLevel = LEVEL_INFO;
+
+    // If not null, each message is also written to the file as a line of json object with
+    // the context of the thread, e.g. the dex file and the method being processed.
+    public static File JSON_FILE;
 
-    interface P {
-        void print(CharSequence str);
-        void println(CharSequence str);
+    private static final int RING_SIZE = 8192; // Must be power of 2
+    private static final int RING_MASK = RING_SIZE - 1;
+    private static final Record[] sRing = new Record[RING_SIZE];
+    // The sequence of each slot. A slot can be written when its sequence equals to the
+    // position of producer, and can be read when its sequence is the position of consumer + 1.
+    private static final AtomicLongArray sSequences = new AtomicLongArray(RING_SIZE);
+    private static final AtomicLong sProducerPosition = new AtomicLong();
+    private static volatile long sWrittenPosition;
+    private static volatile boolean sConsumerParked;
+    private static Thread sConsumer;
+
+    static {
+        for (int i = 0; i < RING_SIZE; i++) {
+            sSequences.set(i, i);
+        }
     }
 
-    static final P sStdOut = new P() {
-        @Override
-        public void print(CharSequence str) {
-            System.out.println(str);
+    private static final char RAW = ' ';
+    private static final String TIME_FORMAT = "MM-dd kk:mm:ss:SSS";
+
+    private static final class Record {
+        final char level;
+        final long time;
+        final String thread;
+        final String file;
+        final Object method;
+        final String msg;
+        final Throwable throwable;
+        final boolean briefTrace;
+
+        Record(char level, String msg, Throwable throwable, boolean briefTrace) {
+            this.level = level;
+            this.msg = msg;
+            this.throwable = throwable;
+            this.briefTrace = briefTrace;
+            time = System.currentTimeMillis();
+            thread = Thread.currentThread().getName();
+            final Context context = sContext.get();
+            file = context.file;
+            method = context.method;
         }
+    }
+
+    private static final class Context {
+        String file;
+        Object method;
+    }
 
+    private static final ThreadLocal<Context> sContext = new ThreadLocal<Context>() {
         @Override
-        public void println(CharSequence str) {
-            System.out.println(time() + " " + str);
+        protected Context initialValue() {
+            return new Context();
         }
     };
 
-    static P sOut = sStdOut;
+    /**
+     * Sets the input file processed by current thread, which is shown in the json log.
+     */
+    public static void setFileContext(@Nullable String file) {
+        sContext.get().file = file;
+    }
+
+    /**
+     * Sets the method processed by current thread, which is shown in the json log. The
+     * string of the object is only created when writing the log.
+     */
+    public static void setMethodContext(@Nullable Object method) {
+        sContext.get().method = method;
+    }
+
+    /**
+     * Sets the lowest level of the messages to log, one of {@link #LEVEL_VERBOSE},
+     * {@link #LEVEL_INFO} and {@link #LEVEL_ERROR}.
+     */
+    public static void setLevel(int level) {
+        sLevel = level;
+    }
+
+    public static boolean isLoggable(int level) {
+        return level >= sLevel;
+    }
 
     public static void e(String msg) {
-        sOut.println(msg);
+        if (isLoggable(LEVEL_ERROR)) {
+            log(new Record('E', msg, null, false));
+        }
     }
 
     public static void ex(Throwable e) {
-        String s = exception(e);
-        sOut.println(s);
+        if (isLoggable(LEVEL_ERROR)) {
+            log(new Record('E', null, e, false));
+        }
+    }
+
+    /**
+     * Prints the exception with only the first and last few stack frames if the trace is
+     * long. The full trace is printed in verbose mode.
+     */
+    public static void exBrief(Throwable e) {
+        if (isLoggable(LEVEL_ERROR)) {
+            log(new Record('E', null, e, !isLoggable(LEVEL_VERBOSE)));
+        }
     }
 
     public static void v(String msg) {
-        if (VERBOSE) {
-            sOut.println(msg);
+        if (isLoggable(LEVEL_VERBOSE)) {
+            log(new Record('V', msg, null, false));
         }
     }
 
     public static void i(String msg) {
-        sOut.println(msg);
+        if (isLoggable(LEVEL_INFO)) {
+            log(new Record('I', msg, null, false));
+        }
+    }
+
+    /**
+     * Prints the message without time, in the same order as other messages.
+     */
+    public static void println(String msg) {
+        log(new Record(RAW, msg, null, false));
+    }
+
+    private static void log(@Nonnull Record record) {
+        final Thread consumer = ensureConsumer();
+        for (;;) {
+            if (!consumer.isAlive()) {
+                // Nothing will take the buffered messages, so don't wait for it.
+                writeDirectly(record);
+                return;
+            }
+            final long pos = sProducerPosition.get();
+            final int index = (int) (pos & RING_MASK);
+            final long diff = sSequences.get(index) - pos;
+            if (diff == 0) {
+                if (sProducerPosition.compareAndSet(pos, pos + 1)) {
+                    sRing[index] = record;
+                    sSequences.set(index, pos + 1);
+                    if (sConsumerParked) {
+                        LockSupport.unpark(consumer);
+                    }
+                    return;
+                }
+            } else if (diff < 0) {
+                // The buffer is full, wait for the consumer.
+                LockSupport.unpark(consumer);
+                Thread.yield();
+            }
+        }
+    }
+
+    private static synchronized void writeDirectly(@Nonnull Record record) {
+        final String msg = formatMessage(record);
+        if (record.level == RAW) {
+            System.out.println(msg);
+        } else {
+            System.out.println(new SimpleDateFormat(TIME_FORMAT).format(new Date(record.time))
+                    + ' ' + msg);
+        }
+    }
+
+    @Nonnull
+    private static String formatMessage(@Nonnull Record record) {
+        if (record.throwable != null) {
+            return record.briefTrace ? briefException(record.throwable)
+                    : exception(record.throwable);
+        }
+        return String.valueOf(record.msg);
+    }
+
+    /**
+     * Waits until all logged messages are written.
+     */
+    public static void flush() {
+        final Thread consumer = sConsumer;
+        if (consumer == null || consumer == Thread.currentThread()) {
+            return;
+        }
+        final long target = sProducerPosition.get();
+        while (sWrittenPosition < target && consumer.isAlive()) {
+            LockSupport.unpark(consumer);
+            LockSupport.parkNanos(100_000);
+        }
+    }
+
+    @Nonnull
+    private static synchronized Thread ensureConsumer() {
+        if (sConsumer != null) {
+            return sConsumer;
+        }
+        final Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                consume();
+            }
+        }, "LLog");
+        consumer.setDaemon(true);
+        sConsumer = consumer;
+        consumer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }));
+        return consumer;
+    }
+
+    private static void consume() {
+        final SimpleDateFormat sdf = new SimpleDateFormat(TIME_FORMAT);
+        final Date date = new Date();
+        final StringBuilder sb = new StringBuilder(256);
+        final Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 64 * 1024);
+        Writer jsonOut = null;
+        File jsonFile = null;
+        long position = 0;
+        for (;;) {
+            final int index = (int) (position & RING_MASK);
+            if (sSequences.get(index) != position + 1) {
+                // Empty, make the written messages visible before waiting.
+                try {
+                    out.flush();
+                    if (jsonOut != null) {
+                        jsonOut.flush();
+                    }
+                } catch (IOException ignored) {
+                }
+                sWrittenPosition = position;
+                sConsumerParked = true;
+                if (sSequences.get(index) != position + 1) {
+                    LockSupport.parkNanos(10_000_000);
+                }
+                sConsumerParked = false;
+                continue;
+            }
+            final Record record = sRing[index];
+            sRing[index] = null;
+            sSequences.set(index, position + RING_SIZE);
+            position++;
+
+            try {
+                final String msg = formatMessage(record);
+                if (record.level == RAW) {
+                    out.write(msg);
+                } else {
+                    date.setTime(record.time);
+                    out.write(sdf.format(date));
+                    out.write(' ');
+                    out.write(msg);
+                }
+                out.write('\n');
+
+                if (JSON_FILE != jsonFile) {
+                    if (jsonOut != null) {
+                        jsonOut.close();
+                        jsonOut = null;
+                    }
+                    jsonFile = JSON_FILE;
+                    if (jsonFile != null) {
+                        jsonOut = new BufferedWriter(new OutputStreamWriter(
+                                new FileOutputStream(jsonFile, true), StandardCharsets.UTF_8));
+                    }
+                }
+                if (jsonOut != null && record.level != RAW) {
+                    sb.setLength(0);
+                    sb.append("{\"time\":").append(record.time);
+                    sb.append(",\"level\":\"").append(record.level).append('"');
+                    appendJsonField(sb, "thread", record.thread);
+                    appendJsonField(sb, "file", record.file);
+                    appendJsonField(sb, "method", record.method == null
+                            ? null : record.method.toString());
+                    appendJsonField(sb, "msg", msg);
+                    sb.append("}\n");
+                    jsonOut.append(sb);
+                }
+            } catch (Throwable t) {
+                // The log should never break the processing, or stop this thread.
+                System.err.println("Unable to write log: " + t);
+                jsonOut = null;
+            }
+        }
+    }
+
+    private static void appendJsonField(@Nonnull StringBuilder sb, @Nonnull String name,
+                                        @Nullable String value) {
+        if (value == null) {
+            return;
+        }
+        sb.append(",\"").append(name).append("\":");
+        appendJsonString(sb, value);
+    }
+
+    static void appendJsonString(@Nonnull StringBuilder sb, @Nonnull String value) {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+
+    @Nonnull
+    static String briefException(@Nonnull Throwable t) {
+        final StackTraceElement[] stacks = t.getCause() == null
+                ? t.getStackTrace() : t.getCause().getStackTrace();
+        final int printLine = 5;
+        if (stacks.length < printLine * 2) {
+            return exception(t);
+        }
+        final StringBuilder sb = new StringBuilder(1024);
+        sb.append(t.toString()).append("\n");
+        int i = 0;
+        final int s = Math.min(printLine, stacks.length);
+        for (; i < s; i++) {
+            sb.append("\tat ").append(stacks[i]).append("\n");
+        }
+        i = Math.max(i, stacks.length - printLine);
+        if (i > s) {
+            sb.append("\t...(Skip ").append(i - s - 1).append(" traces)\n");
+        }
+        for (; i < stacks.length; i++) {
+            sb.append("\tat ").append(stacks[i]).append("\n");
+        }
+        return sb.toString();
     }
 
     public static String exception(Throwable t) {
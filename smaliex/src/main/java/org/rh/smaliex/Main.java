@@ -17,6 +17,7 @@
 package org.rh.smaliex;
 
 import org.jf.dexlib2.VersionMap;
+import org.rh.smaliex.deopt.MethodResultCache;
 
 import java.io.File;
 import java.io.IOException;
@@ -31,6 +32,14 @@ public class Main {
         println(" Api level: -a <integer>");
         println(" Output folder: -o <folder path>");
         println(" Print detail : -v");
+        println(" Errors only  : -q");
+        println(" Convert jobs : -j <integer> (devfw only)");
+        println(" Queue depth  : -d <integer> (devfw only, pulled files waiting to convert)");
+        println(" Result cache : -c <folder path>");
+        println(" Json log     : -l <file path>");
+        println(" Metrics      : -m <json file path> (also print report)");
+        println(" JFR events   : -f");
+        println(" Dex layout   : -p <ART profile text file>");
         println("<action>");
         println(" Get dex of boot(.oat) : boot <boot.oat/boot-folder>");
         println(" Get dex (de-optimize) : <oat/odex file> <boot-class-folder>");
@@ -45,6 +54,9 @@ public class Main {
             mainImpl(args);
         } catch (IOException ex) {
             exit("Unhandled IOException: " + ex.getMessage());
+        } finally {
+            MethodResultCache.save();
+            Metrics.report();
         }
     }
 
@@ -69,7 +81,53 @@ public class Main {
                         shift = 2;
                         break;
                     case 'v':
-                        LLog.VERBOSE = true;
+                        LLog.setLevel(LLog.LEVEL_VERBOSE);
+                        Metrics.REPORT = true;
+                        break;
+                    case 'q':
+                        LLog.setLevel(LLog.LEVEL_ERROR);
+                        break;
+                    case 'j':
+                        try {
+                            DeodexFrameworkFromDevice.CONVERT_JOBS = Integer.parseInt(args[1]);
+                        } catch (NumberFormatException e) {
+                            println("Invalid jobs: " + args[1]);
+                        }
+                        shift = 2;
+                        break;
+                    case 'd':
+                        try {
+                            DeodexFrameworkFromDevice.PIPELINE_QUEUE_DEPTH =
+                                    Integer.parseInt(args[1]);
+                        } catch (NumberFormatException e) {
+                            println("Invalid queue depth: " + args[1]);
+                        }
+                        shift = 2;
+                        break;
+                    case 'c':
+                        DexResultCache.DIR = new File(args[1]);
+                        MethodResultCache.DIR = DexResultCache.DIR;
+                        shift = 2;
+                        break;
+                    case 'l':
+                        LLog.JSON_FILE = new File(args[1]);
+                        shift = 2;
+                        break;
+                    case 'm':
+                        Metrics.JSON_FILE = new File(args[1]);
+                        Metrics.REPORT = true;
+                        shift = 2;
+                        break;
+                    case 'f':
+                        Metrics.JFR_EVENTS = true;
+                        break;
+                    case 'p':
+                        try {
+                            OdexUtil.setProfile(new File(args[1]));
+                        } catch (IOException e) {
+                            println("Invalid profile: " + e.getMessage());
+                        }
+                        shift = 2;
                         break;
                     default:
                         println("Unrecognized option: " + opt);
@@ -172,7 +230,7 @@ public class Main {
     }
 
     static void println(String s) {
-        System.out.println(s);
+        LLog.println(s);
     }
 
     static void exit(String msg) {
@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2014 Riddle Hsu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rh.smaliex;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and timers of the phases of conversion, in total and per input file. The phases
+ * of dexlib2 (analysis, interning and writing) are measured where smaliex calls them.
+ *
+ * The phases may be nested, e.g. the time of analyzing methods is part of de-optimizing.
+ */
+public class Metrics {
+    // If not null, the metrics are written to the file as json at the end.
+    public static File JSON_FILE;
+    public static boolean REPORT = false;
+    // Emit each timed phase as a JFR event, the events are only recorded with a recording.
+    public static boolean JFR_EVENTS = false;
+
+    public enum Phase {
+        PARSE_OAT,
+        LOAD_CLASS_PATH,
+        DEOPTIMIZE,
+        ANALYZE_METHOD,
+        INTERN_DEX,
+        WRITE_DEX,
+        REPACK_JAR
+    }
+
+    public enum Counter {
+        METHODS_ANALYZED,
+        ANALYSIS_FAILURES,
+        CLASSES_RESOLVED,
+        BYTES_READ,
+        BYTES_WRITTEN,
+        DEX_CACHE_HITS,
+        METHOD_CACHE_HITS
+    }
+
+    private static final class Stats {
+        @Nullable
+        final String file;
+        final LongAdder[] counters = newAdders(Counter.values().length);
+        final LongAdder[] phaseCounts = newAdders(Phase.values().length);
+        final LongAdder[] phaseNanos = newAdders(Phase.values().length);
+
+        Stats(@Nullable String file) {
+            this.file = file;
+        }
+
+        static LongAdder[] newAdders(int size) {
+            final LongAdder[] adders = new LongAdder[size];
+            for (int i = 0; i < size; i++) {
+                adders[i] = new LongAdder();
+            }
+            return adders;
+        }
+
+        boolean isEmpty() {
+            for (LongAdder adder : counters) {
+                if (adder.sum() != 0) {
+                    return false;
+                }
+            }
+            for (LongAdder adder : phaseCounts) {
+                if (adder.sum() != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final Stats sTotal = new Stats(null);
+    private static final ConcurrentHashMap<String, Stats> sFileStats = new ConcurrentHashMap<>();
+    private static final ThreadLocal<Stats> sCurrentFile = new ThreadLocal<>();
+
+    /**
+     * Sets the input file processed by current thread, the following metrics of the thread
+     * are also accounted to the file.
+     */
+    public static void setFile(@Nullable String file) {
+        sCurrentFile.set(file == null ? null : sFileStats.computeIfAbsent(file, Stats::new));
+    }
+
+    public static void count(@Nonnull Counter counter) {
+        add(counter, 1);
+    }
+
+    public static void add(@Nonnull Counter counter, long value) {
+        sTotal.counters[counter.ordinal()].add(value);
+        final Stats file = sCurrentFile.get();
+        if (file != null) {
+            file.counters[counter.ordinal()].add(value);
+        }
+    }
+
+    /**
+     * Starts to measure the phase until the returned timer is closed.
+     */
+    @Nonnull
+    public static Timer time(@Nonnull Phase phase) {
+        return new Timer(phase);
+    }
+
+    public static final class Timer implements AutoCloseable {
+        private final Phase mPhase;
+        private final Stats mFile;
+        private final Object mEvent;
+        private final long mBegin;
+
+        Timer(@Nonnull Phase phase) {
+            mPhase = phase;
+            mFile = sCurrentFile.get();
+            mEvent = JFR_EVENTS ? JfrEvents.begin(phase) : null;
+            mBegin = System.nanoTime();
+        }
+
+        @Override
+        public void close() {
+            final long nanos = System.nanoTime() - mBegin;
+            final int index = mPhase.ordinal();
+            sTotal.phaseCounts[index].increment();
+            sTotal.phaseNanos[index].add(nanos);
+            if (mFile != null) {
+                mFile.phaseCounts[index].increment();
+                mFile.phaseNanos[index].add(nanos);
+            }
+            if (mEvent != null) {
+                JfrEvents.commit(mEvent, mFile);
+            }
+        }
+    }
+
+    /**
+     * Prints the summary and writes the json file if they are enabled.
+     */
+    public static void report() {
+        if (sTotal.isEmpty()) {
+            return;
+        }
+        if (REPORT) {
+            final StringBuilder sb = new StringBuilder(1024);
+            sb.append("===== Metrics =====\n");
+            sb.append(String.format(Locale.US, "%-20s %10s %12s\n", "Phase", "Count", "Time(ms)"));
+            for (Phase phase : Phase.values()) {
+                final long count = sTotal.phaseCounts[phase.ordinal()].sum();
+                if (count > 0) {
+                    sb.append(String.format(Locale.US, "%-20s %10d %12.1f\n", name(phase), count,
+                            sTotal.phaseNanos[phase.ordinal()].sum() / 1e6));
+                }
+            }
+            for (Counter counter : Counter.values()) {
+                sb.append(String.format(Locale.US, "%-20s %10d\n", name(counter),
+                        sTotal.counters[counter.ordinal()].sum()));
+            }
+            LLog.i(sb.toString());
+        }
+        if (JSON_FILE != null) {
+            final StringBuilder sb = new StringBuilder(4096);
+            sb.append('{');
+            appendStats(sb, sTotal);
+            sb.append(",\"files\":{");
+            boolean first = true;
+            for (Map.Entry<String, Stats> entry : new TreeMap<>(sFileStats).entrySet()) {
+                if (!first) {
+                    sb.append(',');
+                }
+                first = false;
+                LLog.appendJsonString(sb, entry.getKey());
+                sb.append(":{");
+                appendStats(sb, entry.getValue());
+                sb.append('}');
+            }
+            sb.append("}}\n");
+            try {
+                Files.write(JSON_FILE.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+                LLog.i("Output metrics to " + JSON_FILE);
+            } catch (IOException ex) {
+                LLog.ex(ex);
+            }
+        }
+    }
+
+    private static void appendStats(@Nonnull StringBuilder sb, @Nonnull Stats stats) {
+        sb.append("\"phases\":{");
+        for (Phase phase : Phase.values()) {
+            if (phase.ordinal() > 0) {
+                sb.append(',');
+            }
+            sb.append('"').append(name(phase)).append("\":{\"count\":")
+                    .append(stats.phaseCounts[phase.ordinal()].sum())
+                    .append(",\"nanos\":").append(stats.phaseNanos[phase.ordinal()].sum())
+                    .append('}');
+        }
+        sb.append("},\"counters\":{");
+        for (Counter counter : Counter.values()) {
+            if (counter.ordinal() > 0) {
+                sb.append(',');
+            }
+            sb.append('"').append(name(counter)).append("\":")
+                    .append(stats.counters[counter.ordinal()].sum());
+        }
+        sb.append('}');
+    }
+
+    @Nonnull
+    private static String name(@Nonnull Enum<?> e) {
+        return e.name().toLowerCase(Locale.US);
+    }
+
+    /**
+     * The JFR api only exists in newer java, so the events are created by reflection.
+     */
+    private static final class JfrEvents {
+        private static Object sFactory;
+        private static Method sNewEvent;
+        private static Method sBegin;
+        private static Method sCommit;
+        private static Method sSet;
+        private static boolean sInitialized;
+
+        private static synchronized boolean init() {
+            if (sInitialized) {
+                return sFactory != null;
+            }
+            sInitialized = true;
+            try {
+                final Class<?> annotationClass = Class.forName("jdk.jfr.AnnotationElement");
+                final Constructor<?> newAnnotation =
+                        annotationClass.getConstructor(Class.class, Object.class);
+                final Class<?> valueClass = Class.forName("jdk.jfr.ValueDescriptor");
+                final Constructor<?> newValue =
+                        valueClass.getConstructor(Class.class, String.class);
+                final ArrayList<Object> annotations = new ArrayList<>(Arrays.asList(
+                        newAnnotation.newInstance(Class.forName("jdk.jfr.Name"),
+                                "org.rh.smaliex.Phase"),
+                        newAnnotation.newInstance(Class.forName("jdk.jfr.Label"),
+                                "oat2dex Phase")));
+                final ArrayList<Object> fields = new ArrayList<>(Arrays.asList(
+                        newValue.newInstance(String.class, "phase"),
+                        newValue.newInstance(String.class, "file")));
+                final Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+                final Object factory = factoryClass.getMethod("create", java.util.List.class,
+                        java.util.List.class).invoke(null, annotations, fields);
+                final Class<?> eventClass = Class.forName("jdk.jfr.Event");
+                sNewEvent = factoryClass.getMethod("newEvent");
+                sBegin = eventClass.getMethod("begin");
+                sCommit = eventClass.getMethod("commit");
+                sSet = eventClass.getMethod("set", int.class, Object.class);
+                sFactory = factory;
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                LLog.i("JFR events are not supported: " + e);
+            }
+            return sFactory != null;
+        }
+
+        @Nullable
+        static Object begin(@Nonnull Phase phase) {
+            if (!init()) {
+                return null;
+            }
+            try {
+                final Object event = sNewEvent.invoke(sFactory);
+                sSet.invoke(event, 0, name(phase));
+                sBegin.invoke(event);
+                return event;
+            } catch (ReflectiveOperationException e) {
+                return null;
+            }
+        }
+
+        static void commit(@Nonnull Object event, @Nullable Stats file) {
+            try {
+                if (file != null) {
+                    sSet.invoke(event, 1, file.file);
+                }
+                sCommit.invoke(event);
+            } catch (ReflectiveOperationException ignored) {
+            }
+        }
+    }
+}
@@ -21,7 +21,6 @@ import org.jf.dexlib2.VersionMap;
 import org.jf.dexlib2.dexbacked.DexBackedDexFile;
 import org.jf.dexlib2.iface.DexFile;
 import org.jf.dexlib2.writer.io.MemoryDataStore;
-import org.jf.dexlib2.writer.pool.DexPool;
 import org.rh.smaliex.deopt.OdexRewriter;
 import org.rh.smaliex.reader.DataReader;
 import org.rh.smaliex.reader.Dex;
@@ -31,19 +30,15 @@ import org.rh.smaliex.reader.Oat;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.file.Files;
 import java.util.ArrayList;
-import java.util.Enumeration;
 import java.util.HashMap;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
-import java.util.jar.JarOutputStream;
-import java.util.zip.ZipEntry;
 
 public class OatUtil {
     public static boolean SKIP_EXISTS;
+    // Store dex in output jar without compression and align to page for mapping directly.
+    public static boolean STORE_DEX_ALIGNED;
 
     public static Opcodes getOpcodes(Oat oat) {
         return DexUtil.getOpcodes(VersionMap.mapArtVersionToApi(oat.getArtVersion()));
@@ -82,13 +77,16 @@ public class OatUtil {
     }
 
     @Nonnull
+    @SuppressWarnings("try")
     public static Oat getOat(@Nonnull Elf e) throws IOException {
         final DataReader r = e.getReader();
         // Currently the same as e.getSymbolTable("oatdata").getOffset(e)
         final Elf.Elf_Shdr sec = e.getSection(Oat.SECTION_RODATA);
         if (sec != null) {
             r.seek(sec.getOffset());
-            return new Oat(r);
+            try (Metrics.Timer t = Metrics.time(Metrics.Phase.PARSE_OAT)) {
+                return new Oat(r);
+            }
         }
         throw new IOException("oat not found");
     }
@@ -180,6 +178,19 @@ public class OatUtil {
                                              @Nonnull String bootClassPath,
                                              @Nullable String noClassJarFolder,
                                              boolean isBoot) throws IOException {
+        convertDexFromBootOat(oatPath, outputPath, bootClassPath, noClassJarFolder, isBoot, null);
+    }
+
+    /**
+     * Same as {@link #convertDexFromBootOat(String, String, String, String, boolean)}, and
+     * the output jars which are already recorded as repacked in the journal will be skipped.
+     */
+    public static void convertDexFromBootOat(@Nonnull String oatPath,
+                                             @Nullable String outputPath,
+                                             @Nonnull String bootClassPath,
+                                             @Nullable String noClassJarFolder,
+                                             boolean isBoot,
+                                             @Nullable DeodexJournal journal) throws IOException {
         final boolean dexOnly = noClassJarFolder == null;
         final File outDir = MiscUtil.ensureOutputDir(oatPath, outputPath, dexOnly ? "-dex" : "-jar");
 
@@ -191,7 +202,7 @@ public class OatUtil {
                 if (dexOnly) {
                     convertToDex(oat, outDir, bootClassPath, isBoot);
                 } else {
-                    convertToDexJar(oat, outDir, bootClassPath, noClassJarFolder, isBoot);
+                    convertToDexJar(oat, outDir, bootClassPath, noClassJarFolder, isBoot, journal);
                 }
             } catch (IOException ex) {
                 if (ioe == null) {
@@ -247,6 +258,7 @@ public class OatUtil {
         if (bootClassPath == null || !new File(bootClassPath).exists()) {
             throw new IOException("Invalid bootclasspath: " + bootClassPath);
         }
+        Metrics.setFile(oat.srcFile.getPath());
         final OdexRewriter deOpt = OdexRewriter.get(
                 bootClassPath, opcodes, outputDir.getAbsolutePath());
 
@@ -267,15 +279,31 @@ public class OatUtil {
             File outputFile = MiscUtil.changeExt(new File(outputDir, outputName), "dex");
             if (SKIP_EXISTS && outputFile.exists()) continue;
 
+            final String resultKey = DexResultCache.key(oat.dexFiles[i].getBytes(),
+                    deOpt.getClassPathFingerprint(), opcodes.api);
+            final byte[] cachedResult = DexResultCache.get(resultKey);
+            if (cachedResult != null) {
+                LLog.i("Reuse de-optimized result of the same dex for " + dexLoc);
+                Metrics.count(Metrics.Counter.DEX_CACHE_HITS);
+                Metrics.add(Metrics.Counter.BYTES_WRITTEN, cachedResult.length);
+                Files.write(outputFile.toPath(), cachedResult);
+                LLog.i("Output to " + outputFile);
+                continue;
+            }
+
             LLog.i("De-optimizing " + dexLoc);
+            LLog.setFileContext(dexLoc);
             final DexFile d = deOpt.rewriteDexFile(dexFiles[i]);
+            LLog.setFileContext(null);
             if (OdexRewriter.isInvalid(d)) {
                 LLog.i("convertToDex: skip " + dexLoc);
                 continue;
             }
 
             OdexUtil.outputDex(d, outputFile, true);
+            DexResultCache.put(resultKey, Files.readAllBytes(outputFile.toPath()));
         }
+        Metrics.setFile(null);
     }
 
     public static void convertToDexJar(@Nonnull Oat oat,
@@ -283,7 +311,23 @@ public class OatUtil {
                                        @Nonnull String bootClassPath,
                                        @Nonnull String noClassJarFolder,
                                        boolean isBoot) throws IOException {
+        convertToDexJar(oat, outputFolder, bootClassPath, noClassJarFolder, isBoot, null);
+    }
+
+    /**
+     * Output jars with de-optimized dex and the other files from original jars.
+     *
+     * @param journal If not null, the stages of each jar are recorded to it. A jar is skipped
+     *                if its output is recorded as repacked from the same dex content.
+     */
+    public static void convertToDexJar(@Nonnull Oat oat,
+                                       @Nonnull File outputFolder,
+                                       @Nonnull String bootClassPath,
+                                       @Nonnull String noClassJarFolder,
+                                       boolean isBoot,
+                                       @Nullable DeodexJournal journal) throws IOException {
         final Opcodes opcodes = getOpcodes(oat);
+        Metrics.setFile(oat.srcFile.getPath());
         final OdexRewriter deOpt = OdexRewriter.get(
                 bootClassPath, opcodes, outputFolder.getAbsolutePath());
         final HashMap<String, ArrayList<Dex>> dexFileGroup = new HashMap<>();
@@ -307,49 +351,94 @@ public class OatUtil {
         for (String jarName : dexFileGroup.keySet()) {
             final File outputJar = MiscUtil.changeExt(new File(outputFolder, jarName), "jar");
             if (SKIP_EXISTS && outputJar.exists()) continue;
+            if (journal != null && isRepacked(journal, outputJar, dexFileGroup.get(jarName))) {
+                LLog.i("Found repacked " + outputJar + " in journal, skip");
+                continue;
+            }
 
-            String classesIdx = "";
-            int i = 1;
-            try (JarOutputStream jos = new JarOutputStream(new FileOutputStream(outputJar))) {
-                for (Dex dex : dexFileGroup.get(jarName)) {
-                    jos.putNextEntry(new ZipEntry("classes" + classesIdx + ".dex"));
-                    LLog.i("De-optimizing " + jarName + (i > 1 ? (" part-" + classesIdx) : ""));
-                    final DexFile d = deOpt.rewriteDexFile(
-                            new DexBackedDexFile(opcodes, dex.getBytes()));
-                    if (OdexRewriter.isInvalid(d)) {
-                        LLog.i("convertToDexJar: skip " + jarName);
-                        continue;
+            final ArrayList<Dex> dexFiles = dexFileGroup.get(jarName);
+            int entryCount = 0;
+            try (JarRepacker jar = new JarRepacker(outputJar,
+                    STORE_DEX_ALIGNED ? JarRepacker.PAGE_SIZE : 0)) {
+                for (int i = 0; i < dexFiles.size(); i++) {
+                    final Dex dex = dexFiles.get(i);
+                    final String part = i > 0 ? (" part-" + (i + 1)) : "";
+                    final String dexKey = getDexJournalKey(outputJar, i);
+                    final String dexHash = DeodexJournal.toHex(dex.header.getSignature());
+                    final byte[] dexBytes = dex.getBytes();
+                    final String resultKey = DexResultCache.key(dexBytes,
+                            deOpt.getClassPathFingerprint(), opcodes.api);
+                    byte[] result = DexResultCache.get(resultKey);
+                    if (result != null) {
+                        LLog.i("Reuse de-optimized result of the same dex for " + jarName + part);
+                        Metrics.count(Metrics.Counter.DEX_CACHE_HITS);
+                    } else {
+                        LLog.i("De-optimizing " + jarName + part);
+                        final DexBackedDexFile odex = new DexBackedDexFile(opcodes, dexBytes);
+                        LLog.setFileContext(dexKey);
+                        final DexFile d = deOpt.rewriteDexFile(odex);
+                        LLog.setFileContext(null);
+                        if (OdexRewriter.isInvalid(d)) {
+                            LLog.i("convertToDexJar: skip " + jarName + part);
+                            if (journal != null) {
+                                journal.record(DeodexJournal.Stage.SKIPPED, dexKey, dexHash);
+                            }
+                            continue;
+                        }
+                        final MemoryDataStore m = new MemoryDataStore(dex.header.file_size_ + 512);
+                        OdexUtil.writeDex(d, m);
+                        result = m.getData();
+                        DexResultCache.put(resultKey, result);
+                    }
+                    if (journal != null) {
+                        journal.record(DeodexJournal.Stage.DEOPTIMIZED, dexKey, dexHash);
                     }
 
-                    final MemoryDataStore m = new MemoryDataStore(dex.header.file_size_ + 512);
-                    DexPool.writeTo(m, d);
-                    m.writeTo(jos);
-                    classesIdx = String.valueOf(++i);
-                    jos.closeEntry();
+                    // The compression runs in background while de-optimizing the next dex.
+                    // The entries are numbered without gaps of the skipped dex files.
+                    jar.addDex(getDexEntryName(entryCount++), result);
                 }
 
                 // Copy files from original jar
-                try (JarFile jarFile = new JarFile(new File(noClassJarFolder, jarName))) {
-                    final Enumeration<JarEntry> entries = jarFile.entries();
-                    while (entries.hasMoreElements()) {
-                        final JarEntry e = entries.nextElement();
-                        final String name = e.getName();
-                        if (name.startsWith("classes") && name.endsWith(".dex")) {
-                            continue;
-                        }
-                        jos.putNextEntry(new ZipEntry(name));
-                        try (InputStream is = jarFile.getInputStream(e)) {
-                            jos.write(MiscUtil.readBytes(is));
-                        }
-                        jos.closeEntry();
-                    }
-                }
-                LLog.i("Output " + outputJar);
+                jar.copyFrom(new File(noClassJarFolder, jarName),
+                        name -> name.startsWith("classes") && name.endsWith(".dex"));
             } catch (IOException ex) {
                 throw handleIOE(ex);
             }
+            LLog.i("Output " + outputJar);
+            Metrics.add(Metrics.Counter.BYTES_WRITTEN, outputJar.length());
+            if (journal != null) {
+                journal.record(DeodexJournal.Stage.REPACKED, outputJar.getName(), outputJar);
+            }
         }
         deOpt.recycle();
+        Metrics.setFile(null);
+    }
+
+    @Nonnull
+    static String getDexEntryName(int index) {
+        return "classes" + (index > 0 ? String.valueOf(index + 1) : "") + ".dex";
+    }
+
+    // The dex files are recorded by their position in the oat, which is not shifted by the
+    // skipped dex files like the entry names in the output jar.
+    @Nonnull
+    static String getDexJournalKey(@Nonnull File outputJar, int index) {
+        return outputJar.getName() + ":" + getDexEntryName(index);
+    }
+
+    // The jar is complete only if all its dex are de-optimized or skipped from the same content.
+    static boolean isRepacked(@Nonnull DeodexJournal journal, @Nonnull File outputJar,
+                              @Nonnull ArrayList<Dex> dexFiles) {
+        for (int i = 0; i < dexFiles.size(); i++) {
+            final String dexKey = getDexJournalKey(outputJar, i);
+            final String dexHash = DeodexJournal.toHex(dexFiles.get(i).header.getSignature());
+            if (!journal.isDone(DeodexJournal.Stage.DEOPTIMIZED, dexKey, dexHash)
+                    && !journal.isDone(DeodexJournal.Stage.SKIPPED, dexKey, dexHash)) {
+                return false;
+            }
+        }
+        return journal.isDone(DeodexJournal.Stage.REPACKED, outputJar.getName(), outputJar);
     }
 
     static IOException handleIOE(IOException ex) {
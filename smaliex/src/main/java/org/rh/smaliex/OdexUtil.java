@@ -21,7 +21,12 @@ import org.jf.dexlib2.MultiDex;
 import org.jf.dexlib2.Opcodes;
 import org.jf.dexlib2.VersionMap;
 import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.iface.ClassDef;
 import org.jf.dexlib2.iface.DexFile;
+import org.jf.dexlib2.writer.ArtProfile;
+import org.jf.dexlib2.writer.DexLayoutReport;
+import org.jf.dexlib2.writer.io.DexDataStore;
+import org.jf.dexlib2.writer.io.FileDataStore;
 import org.jf.dexlib2.writer.pool.DexPool;
 import org.rh.smaliex.deopt.OdexRewriter;
 import org.rh.smaliex.deopt.VdexDecompiler;
@@ -39,11 +44,23 @@ import java.util.List;
 public class OdexUtil {
     private static final String NO_NEED_BOOT_CLASSPATH = "NO_NEED_BOOT_CLASSPATH";
 
+    // If not null, the startup and hot classes and methods of the profile are clustered in
+    // the written dex files.
+    public static ArtProfile PROFILE;
+    // The hash of the profile file, which is a part of the key of cached results.
+    public static String PROFILE_HASH;
+
+    public static void setProfile(@Nonnull File file) throws IOException {
+        PROFILE = ArtProfile.read(file);
+        PROFILE_HASH = DeodexJournal.hash(file);
+    }
+
     public static void vdex2dex(@Nonnull String vdex,
                                 @Nullable String outPath) throws IOException {
         odex2dex(vdex, NO_NEED_BOOT_CLASSPATH, outPath, VersionMap.NO_VERSION);
     }
 
+    @SuppressWarnings("try")
     public static void odex2dex(@Nonnull String odex,
                                 @Nonnull String bootClassPath,
                                 @Nullable String outPath, int apiLevel) throws IOException {
@@ -55,9 +72,13 @@ public class OdexUtil {
             if (MiscUtil.isVdex(input)) {
                 final Opcodes opcodes = DexUtil.getOpcodes(Math.max(Oat.Version.O_80.api, apiLevel));
                 try (DataReader r = new DataReader(input)) {
-                    final Vdex vdex = new Vdex(r);
+                    final Vdex vdex;
+                    try (Metrics.Timer t = Metrics.time(Metrics.Phase.PARSE_OAT)) {
+                        vdex = new Vdex(r);
+                    }
                     LLog.i("Unquickening " + input + " ver=" + vdex.header.version);
-                    final DexFile[] dexFiles = VdexDecompiler.unquicken(vdex, opcodes);
+                    final DexFile[] dexFiles = VdexDecompiler.unquicken(vdex, opcodes,
+                            Runtime.getRuntime().availableProcessors());
                     for (int i = 0; i < dexFiles.length; i++) {
                         final File outputFile = MiscUtil.changeExt(new File(outputFolder,
                                 MultiDex.getDexFileName(input.getName(), i)), "dex");
@@ -91,10 +112,30 @@ public class OdexUtil {
                 LLog.i(old + " already existed, use name " + output.getName());
             }
         }
-        DexPool.writeTo(output.getAbsolutePath(), dex);
+        writeDex(dex, new FileDataStore(output));
+        Metrics.add(Metrics.Counter.BYTES_WRITTEN, output.length());
         LLog.i("Output to " + output);
     }
 
+    @SuppressWarnings("try")
+    static void writeDex(@Nonnull DexFile dex, @Nonnull DexDataStore dataStore)
+            throws IOException {
+        final DexPool dexPool = new DexPool(dex.getOpcodes());
+        dexPool.setLayout(PROFILE);
+        try (Metrics.Timer t = Metrics.time(Metrics.Phase.INTERN_DEX)) {
+            for (ClassDef classDef : dex.getClasses()) {
+                dexPool.internClass(classDef);
+            }
+        }
+        try (Metrics.Timer t = Metrics.time(Metrics.Phase.WRITE_DEX)) {
+            dexPool.writeTo(dataStore);
+        }
+        final DexLayoutReport report = dexPool.getLayoutReport();
+        if (report != null) {
+            LLog.i("Profile layout: " + report);
+        }
+    }
+
     /**
      * Extract smali from odex or oat file.
      *
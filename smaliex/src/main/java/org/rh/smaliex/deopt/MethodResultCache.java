@@ -0,0 +1,617 @@
+/*
+ * Copyright (C) 2014 Riddle Hsu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rh.smaliex.deopt;
+
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.ReferenceType;
+import org.jf.dexlib2.iface.ExceptionHandler;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.iface.TryBlock;
+import org.jf.dexlib2.iface.instruction.DualReferenceInstruction;
+import org.jf.dexlib2.iface.instruction.FieldOffsetInstruction;
+import org.jf.dexlib2.iface.instruction.FiveRegisterInstruction;
+import org.jf.dexlib2.iface.instruction.InlineIndexInstruction;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.iface.instruction.OffsetInstruction;
+import org.jf.dexlib2.iface.instruction.OneRegisterInstruction;
+import org.jf.dexlib2.iface.instruction.ReferenceInstruction;
+import org.jf.dexlib2.iface.instruction.RegisterRangeInstruction;
+import org.jf.dexlib2.iface.instruction.SwitchElement;
+import org.jf.dexlib2.iface.instruction.SwitchPayload;
+import org.jf.dexlib2.iface.instruction.ThreeRegisterInstruction;
+import org.jf.dexlib2.iface.instruction.TwoRegisterInstruction;
+import org.jf.dexlib2.iface.instruction.VerificationErrorInstruction;
+import org.jf.dexlib2.iface.instruction.VtableIndexInstruction;
+import org.jf.dexlib2.iface.instruction.WideLiteralInstruction;
+import org.jf.dexlib2.iface.instruction.formats.ArrayPayload;
+import org.jf.dexlib2.iface.instruction.formats.UnknownInstruction;
+import org.jf.dexlib2.iface.reference.FieldReference;
+import org.jf.dexlib2.iface.reference.MethodProtoReference;
+import org.jf.dexlib2.iface.reference.MethodReference;
+import org.jf.dexlib2.iface.reference.Reference;
+import org.jf.dexlib2.iface.reference.StringReference;
+import org.jf.dexlib2.iface.reference.TypeReference;
+import org.jf.dexlib2.immutable.instruction.*;
+import org.jf.dexlib2.immutable.reference.ImmutableFieldReference;
+import org.jf.dexlib2.immutable.reference.ImmutableMethodProtoReference;
+import org.jf.dexlib2.immutable.reference.ImmutableMethodReference;
+import org.jf.dexlib2.immutable.reference.ImmutableStringReference;
+import org.jf.dexlib2.immutable.reference.ImmutableTypeReference;
+import org.rh.smaliex.DeodexJournal;
+import org.rh.smaliex.LLog;
+import org.rh.smaliex.MiscUtil;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Least recently used cache of de-optimized instructions, so the same library embedded in
+ * different apps only needs to be analyzed once.
+ *
+ * The key is the hash of the method in symbolic form (references are represented by their
+ * names instead of the indices of a dex file). Because the analysis also depends on the
+ * class definitions in class path, each entry records the types loaded while analyzing the
+ * method and the digest of their definitions. The entry is only used if the same types have
+ * the same definitions in the current class path.
+ */
+public class MethodResultCache {
+    private static final int MAGIC = 0x6d726331; // mrc1
+    private static final int VERSION = 1;
+    private static final String FILE_NAME = "method-cache.bin";
+
+    // The folder to store the cache. If null, the cache is disabled.
+    public static File DIR;
+    public static long MAX_BYTES = 256 * 1024 * 1024;
+
+    private static final LinkedHashMap<String, Entry> entries =
+            new LinkedHashMap<>(1024, 0.75f, true);
+    private static long totalBytes;
+    private static boolean loaded;
+    private static boolean modified;
+
+    static class Entry {
+        final String[] dependencies;
+        final String dependencyDigest;
+        final byte[] instructions;
+
+        Entry(@Nonnull String[] dependencies, @Nonnull String dependencyDigest,
+              @Nonnull byte[] instructions) {
+            this.dependencies = dependencies;
+            this.dependencyDigest = dependencyDigest;
+            this.instructions = instructions;
+        }
+
+        long size() {
+            long size = 64 + dependencyDigest.length() + instructions.length;
+            for (String dep : dependencies) {
+                size += dep.length() + 2;
+            }
+            return size;
+        }
+    }
+
+    public static boolean isEnabled() {
+        return DIR != null;
+    }
+
+    /**
+     * @return The key of the method, or null if the method cannot be cached
+     */
+    @Nullable
+    static String key(@Nonnull Method method, @Nonnull MethodImplementation impl,
+                      int oatVersion) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(oatVersion);
+            out.writeUTF(method.getDefiningClass());
+            out.writeUTF(method.getName());
+            writeStrings(out, method.getParameterTypes());
+            out.writeUTF(method.getReturnType());
+            out.writeInt(method.getAccessFlags());
+            out.writeInt(impl.getRegisterCount());
+            if (!writeInstructions(out, impl.getInstructions())) {
+                return null;
+            }
+            final List<? extends TryBlock<? extends ExceptionHandler>> tryBlocks =
+                    impl.getTryBlocks();
+            out.writeInt(tryBlocks.size());
+            for (TryBlock<? extends ExceptionHandler> tryBlock : tryBlocks) {
+                out.writeInt(tryBlock.getStartCodeAddress());
+                out.writeInt(tryBlock.getCodeUnitCount());
+                final List<? extends ExceptionHandler> handlers = tryBlock.getExceptionHandlers();
+                out.writeInt(handlers.size());
+                for (ExceptionHandler handler : handlers) {
+                    final String type = handler.getExceptionType();
+                    out.writeUTF(type == null ? "" : type);
+                    out.writeInt(handler.getHandlerCodeAddress());
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+        return DeodexJournal.hash(bytes.toByteArray());
+    }
+
+    /**
+     * @return The de-optimized instructions if the cached entry is analyzed with the same
+     *         class definitions, or null otherwise
+     */
+    @Nullable
+    static List<Instruction> get(@Nonnull String key, @Nonnull OdexRewriter.ClassPathEx classPath) {
+        final Entry entry;
+        synchronized (MethodResultCache.class) {
+            ensureLoaded();
+            entry = entries.get(key);
+        }
+        if (entry == null || !entry.dependencyDigest.equals(
+                getDependencyDigest(entry.dependencies, classPath))) {
+            return null;
+        }
+        try {
+            return readInstructions(new DataInputStream(
+                    new ByteArrayInputStream(entry.instructions)));
+        } catch (IOException | RuntimeException e) {
+            LLog.v("Drop broken cache entry " + key + ": " + e);
+            synchronized (MethodResultCache.class) {
+                if (entries.remove(key) != null) {
+                    totalBytes -= entry.size();
+                }
+            }
+            return null;
+        }
+    }
+
+    static void put(@Nonnull String key, @Nonnull Set<String> dependencies,
+                    @Nonnull OdexRewriter.ClassPathEx classPath,
+                    @Nonnull List<? extends Instruction> instructions) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            if (!writeInstructions(out, instructions)) {
+                return;
+            }
+        } catch (IOException e) {
+            return;
+        }
+        final String[] deps = dependencies.toArray(new String[0]);
+        Arrays.sort(deps);
+        final Entry entry = new Entry(deps, getDependencyDigest(deps, classPath),
+                bytes.toByteArray());
+        synchronized (MethodResultCache.class) {
+            putEntry(key, entry);
+            modified = true;
+        }
+    }
+
+    private static void putEntry(@Nonnull String key, @Nonnull Entry entry) {
+        final Entry prev = entries.put(key, entry);
+        if (prev != null) {
+            totalBytes -= prev.size();
+        }
+        totalBytes += entry.size();
+        final Iterator<Entry> iter = entries.values().iterator();
+        while (totalBytes > MAX_BYTES && iter.hasNext()) {
+            totalBytes -= iter.next().size();
+            iter.remove();
+        }
+    }
+
+    @Nonnull
+    private static String getDependencyDigest(@Nonnull String[] types,
+                                              @Nonnull OdexRewriter.ClassPathEx classPath) {
+        final MessageDigest digest = DeodexJournal.newDigest();
+        for (String type : types) {
+            digest.update(classPath.getTypeDigest(type).getBytes());
+        }
+        return DeodexJournal.toHex(digest.digest());
+    }
+
+    private static void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        final File file = new File(DIR, FILE_NAME);
+        if (!file.isFile()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || in.readInt() != Opcode.values().length) {
+                LLog.i("Ignore incompatible method cache " + file);
+                return;
+            }
+            // The entries are stored from the least recently used one.
+            while (true) {
+                final String key;
+                try {
+                    key = in.readUTF();
+                } catch (EOFException e) {
+                    break;
+                }
+                final String[] deps = new String[in.readInt()];
+                for (int i = 0; i < deps.length; i++) {
+                    deps[i] = in.readUTF();
+                }
+                final String depDigest = in.readUTF();
+                final byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                putEntry(key, new Entry(deps, depDigest, data));
+            }
+        } catch (IOException e) {
+            LLog.ex(e);
+        }
+        LLog.i("Loaded " + entries.size() + " method cache entries from " + file);
+    }
+
+    /**
+     * Write the cache to {@link #DIR} if it is changed.
+     */
+    public static synchronized void save() {
+        if (DIR == null || !modified) {
+            return;
+        }
+        MiscUtil.mkdirs(DIR);
+        final File file = new File(DIR, FILE_NAME);
+        final File tmpFile = new File(DIR, FILE_NAME + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(Opcode.values().length);
+                for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                    final Entry entry = e.getValue();
+                    out.writeUTF(e.getKey());
+                    out.writeInt(entry.dependencies.length);
+                    for (String dep : entry.dependencies) {
+                        out.writeUTF(dep);
+                    }
+                    out.writeUTF(entry.dependencyDigest);
+                    out.writeInt(entry.instructions.length);
+                    out.write(entry.instructions);
+                }
+            }
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            modified = false;
+            LLog.i("Saved " + entries.size() + " method cache entries to " + file);
+        } catch (IOException e) {
+            LLog.ex(e);
+            MiscUtil.delete(tmpFile);
+        }
+    }
+
+    private static void writeStrings(@Nonnull DataOutputStream out,
+                                     @Nonnull List<? extends CharSequence> strings)
+            throws IOException {
+        out.writeInt(strings.size());
+        for (CharSequence s : strings) {
+            out.writeUTF(s.toString());
+        }
+    }
+
+    @Nonnull
+    private static List<String> readStrings(@Nonnull DataInputStream in) throws IOException {
+        final int size = in.readInt();
+        final ArrayList<String> strings = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            strings.add(in.readUTF());
+        }
+        return strings;
+    }
+
+    /**
+     * @return False if there is any instruction which is not supported to be serialized
+     */
+    static boolean writeInstructions(@Nonnull DataOutputStream out,
+                                     @Nonnull Iterable<? extends Instruction> instructions)
+            throws IOException {
+        int count = 0;
+        for (Instruction ignored : instructions) {
+            count++;
+        }
+        out.writeInt(count);
+        for (Instruction instruction : instructions) {
+            if (!writeInstruction(out, instruction)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean writeInstruction(@Nonnull DataOutputStream out,
+                                            @Nonnull Instruction instruction) throws IOException {
+        final Opcode opcode = instruction.getOpcode();
+        if (instruction instanceof UnknownInstruction || opcode.format == null) {
+            return false;
+        }
+        out.writeShort(opcode.ordinal());
+        switch (opcode.format) {
+            case PackedSwitchPayload:
+            case SparseSwitchPayload:
+                final List<? extends SwitchElement> elements =
+                        ((SwitchPayload) instruction).getSwitchElements();
+                out.writeInt(elements.size());
+                for (SwitchElement element : elements) {
+                    out.writeInt(element.getKey());
+                    out.writeInt(element.getOffset());
+                }
+                return true;
+            case ArrayPayload:
+                final ArrayPayload payload = (ArrayPayload) instruction;
+                out.writeInt(payload.getElementWidth());
+                out.writeInt(payload.getArrayElements().size());
+                for (Number number : payload.getArrayElements()) {
+                    out.writeLong(number.longValue());
+                }
+                return true;
+            case Format4rcc:
+                return false;
+            default:
+                break;
+        }
+        if (instruction instanceof OneRegisterInstruction) {
+            out.writeInt(((OneRegisterInstruction) instruction).getRegisterA());
+        }
+        if (instruction instanceof TwoRegisterInstruction) {
+            out.writeInt(((TwoRegisterInstruction) instruction).getRegisterB());
+        }
+        if (instruction instanceof ThreeRegisterInstruction) {
+            out.writeInt(((ThreeRegisterInstruction) instruction).getRegisterC());
+        }
+        if (instruction instanceof FiveRegisterInstruction) {
+            final FiveRegisterInstruction i = (FiveRegisterInstruction) instruction;
+            out.writeInt(i.getRegisterCount());
+            out.writeInt(i.getRegisterC());
+            out.writeInt(i.getRegisterD());
+            out.writeInt(i.getRegisterE());
+            out.writeInt(i.getRegisterF());
+            out.writeInt(i.getRegisterG());
+        }
+        if (instruction instanceof RegisterRangeInstruction) {
+            final RegisterRangeInstruction i = (RegisterRangeInstruction) instruction;
+            out.writeInt(i.getStartRegister());
+            out.writeInt(i.getRegisterCount());
+        }
+        if (instruction instanceof WideLiteralInstruction) {
+            out.writeLong(((WideLiteralInstruction) instruction).getWideLiteral());
+        }
+        if (instruction instanceof OffsetInstruction) {
+            out.writeInt(((OffsetInstruction) instruction).getCodeOffset());
+        }
+        if (instruction instanceof VerificationErrorInstruction) {
+            out.writeInt(((VerificationErrorInstruction) instruction).getVerificationError());
+        }
+        if (instruction instanceof FieldOffsetInstruction) {
+            out.writeInt(((FieldOffsetInstruction) instruction).getFieldOffset());
+        }
+        if (instruction instanceof VtableIndexInstruction) {
+            out.writeInt(((VtableIndexInstruction) instruction).getVtableIndex());
+        }
+        if (instruction instanceof InlineIndexInstruction) {
+            out.writeInt(((InlineIndexInstruction) instruction).getInlineIndex());
+        }
+        if (instruction instanceof ReferenceInstruction) {
+            if (!writeReference(out, ((ReferenceInstruction) instruction).getReference())) {
+                return false;
+            }
+        }
+        if (instruction instanceof DualReferenceInstruction) {
+            return writeReference(out, ((DualReferenceInstruction) instruction).getReference2());
+        }
+        return true;
+    }
+
+    private static boolean writeReference(@Nonnull DataOutputStream out,
+                                          @Nonnull Reference reference) throws IOException {
+        final int type = ReferenceType.getReferenceType(reference);
+        out.writeByte(type);
+        switch (type) {
+            case ReferenceType.STRING:
+                out.writeUTF(((StringReference) reference).getString());
+                return true;
+            case ReferenceType.TYPE:
+                out.writeUTF(((TypeReference) reference).getType());
+                return true;
+            case ReferenceType.FIELD:
+                final FieldReference field = (FieldReference) reference;
+                out.writeUTF(field.getDefiningClass());
+                out.writeUTF(field.getName());
+                out.writeUTF(field.getType());
+                return true;
+            case ReferenceType.METHOD:
+                final MethodReference method = (MethodReference) reference;
+                out.writeUTF(method.getDefiningClass());
+                out.writeUTF(method.getName());
+                writeStrings(out, method.getParameterTypes());
+                out.writeUTF(method.getReturnType());
+                return true;
+            case ReferenceType.METHOD_PROTO:
+                final MethodProtoReference proto = (MethodProtoReference) reference;
+                writeStrings(out, proto.getParameterTypes());
+                out.writeUTF(proto.getReturnType());
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Nonnull
+    private static Reference readReference(@Nonnull DataInputStream in) throws IOException {
+        final int type = in.readByte();
+        switch (type) {
+            case ReferenceType.STRING:
+                return new ImmutableStringReference(in.readUTF());
+            case ReferenceType.TYPE:
+                return new ImmutableTypeReference(in.readUTF());
+            case ReferenceType.FIELD:
+                return new ImmutableFieldReference(in.readUTF(), in.readUTF(), in.readUTF());
+            case ReferenceType.METHOD:
+                final String definingClass = in.readUTF();
+                final String name = in.readUTF();
+                return new ImmutableMethodReference(definingClass, name,
+                        readStrings(in), in.readUTF());
+            case ReferenceType.METHOD_PROTO:
+                return new ImmutableMethodProtoReference(readStrings(in), in.readUTF());
+            default:
+                throw new IOException("Unsupported reference type " + type);
+        }
+    }
+
+    @Nonnull
+    static List<Instruction> readInstructions(@Nonnull DataInputStream in) throws IOException {
+        final int count = in.readInt();
+        final ArrayList<Instruction> instructions = new ArrayList<>(count);
+        final Opcode[] opcodes = Opcode.values();
+        for (int i = 0; i < count; i++) {
+            instructions.add(readInstruction(in, opcodes[in.readShort()]));
+        }
+        return instructions;
+    }
+
+    @Nonnull
+    private static Instruction readInstruction(@Nonnull DataInputStream in,
+                                               @Nonnull Opcode opcode) throws IOException {
+        switch (opcode.format) {
+            case Format10t:
+                return new ImmutableInstruction10t(opcode, in.readInt());
+            case Format10x:
+                return new ImmutableInstruction10x(opcode);
+            case Format11n:
+                return new ImmutableInstruction11n(opcode, in.readInt(), (int) in.readLong());
+            case Format11x:
+                return new ImmutableInstruction11x(opcode, in.readInt());
+            case Format12x:
+                return new ImmutableInstruction12x(opcode, in.readInt(), in.readInt());
+            case Format20bc:
+                return new ImmutableInstruction20bc(opcode, in.readInt(), readReference(in));
+            case Format20t:
+                return new ImmutableInstruction20t(opcode, in.readInt());
+            case Format21c:
+                return new ImmutableInstruction21c(opcode, in.readInt(), readReference(in));
+            case Format21ih:
+                return new ImmutableInstruction21ih(opcode, in.readInt(), (int) in.readLong());
+            case Format21lh:
+                return new ImmutableInstruction21lh(opcode, in.readInt(), in.readLong());
+            case Format21s:
+                return new ImmutableInstruction21s(opcode, in.readInt(), (int) in.readLong());
+            case Format21t:
+                return new ImmutableInstruction21t(opcode, in.readInt(), in.readInt());
+            case Format22b:
+                return new ImmutableInstruction22b(opcode, in.readInt(), in.readInt(),
+                        (int) in.readLong());
+            case Format22c:
+                return new ImmutableInstruction22c(opcode, in.readInt(), in.readInt(),
+                        readReference(in));
+            case Format22cs:
+                return new ImmutableInstruction22cs(opcode, in.readInt(), in.readInt(),
+                        in.readInt());
+            case Format22s:
+                return new ImmutableInstruction22s(opcode, in.readInt(), in.readInt(),
+                        (int) in.readLong());
+            case Format22t:
+                return new ImmutableInstruction22t(opcode, in.readInt(), in.readInt(),
+                        in.readInt());
+            case Format22x:
+                return new ImmutableInstruction22x(opcode, in.readInt(), in.readInt());
+            case Format23x:
+                return new ImmutableInstruction23x(opcode, in.readInt(), in.readInt(),
+                        in.readInt());
+            case Format30t:
+                return new ImmutableInstruction30t(opcode, in.readInt());
+            case Format31c:
+                return new ImmutableInstruction31c(opcode, in.readInt(), readReference(in));
+            case Format31i:
+                return new ImmutableInstruction31i(opcode, in.readInt(), (int) in.readLong());
+            case Format31t:
+                return new ImmutableInstruction31t(opcode, in.readInt(), in.readInt());
+            case Format32x:
+                return new ImmutableInstruction32x(opcode, in.readInt(), in.readInt());
+            case Format35c:
+                return new ImmutableInstruction35c(opcode, in.readInt(), in.readInt(),
+                        in.readInt(), in.readInt(), in.readInt(), in.readInt(),
+                        readReference(in));
+            case Format35mi:
+                return new ImmutableInstruction35mi(opcode, in.readInt(), in.readInt(),
+                        in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt());
+            case Format35ms:
+                return new ImmutableInstruction35ms(opcode, in.readInt(), in.readInt(),
+                        in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt());
+            case Format3rc:
+                return new ImmutableInstruction3rc(opcode, in.readInt(), in.readInt(),
+                        readReference(in));
+            case Format3rmi:
+                return new ImmutableInstruction3rmi(opcode, in.readInt(), in.readInt(),
+                        in.readInt());
+            case Format3rms:
+                return new ImmutableInstruction3rms(opcode, in.readInt(), in.readInt(),
+                        in.readInt());
+            case Format45cc:
+                return new ImmutableInstruction45cc(opcode, in.readInt(), in.readInt(),
+                        in.readInt(), in.readInt(), in.readInt(), in.readInt(),
+                        readReference(in), readReference(in));
+            case Format51l:
+                return new ImmutableInstruction51l(opcode, in.readInt(), in.readLong());
+            case PackedSwitchPayload:
+            case SparseSwitchPayload: {
+                final int size = in.readInt();
+                final ArrayList<ImmutableSwitchElement> elements = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    elements.add(new ImmutableSwitchElement(in.readInt(), in.readInt()));
+                }
+                return opcode == Opcode.PACKED_SWITCH_PAYLOAD
+                        ? new ImmutablePackedSwitchPayload(elements)
+                        : new ImmutableSparseSwitchPayload(elements);
+            }
+            case ArrayPayload: {
+                final int elementWidth = in.readInt();
+                final int size = in.readInt();
+                final ArrayList<Number> elements = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    final long value = in.readLong();
+                    elements.add(elementWidth == 8 ? Long.valueOf(value)
+                            : Integer.valueOf((int) value));
+                }
+                return new ImmutableArrayPayload(elementWidth, elements);
+            }
+            default:
+                throw new IOException("Unsupported format " + opcode.format);
+        }
+    }
+}
@@ -24,22 +24,30 @@ import org.jf.dexlib2.Opcodes;
 import org.jf.dexlib2.VersionMap;
 import org.jf.dexlib2.analysis.AnalysisException;
 import org.jf.dexlib2.analysis.ClassPath;
+import org.jf.dexlib2.analysis.DexClassProvider;
 import org.jf.dexlib2.analysis.MethodAnalyzer;
+import org.jf.dexlib2.analysis.TypeProto;
 import org.jf.dexlib2.analysis.UnresolvedClassException;
 import org.jf.dexlib2.analysis.reflection.ReflectionClassDef;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.dexbacked.raw.HeaderItem;
 import org.jf.dexlib2.iface.ClassDef;
 import org.jf.dexlib2.iface.DexFile;
+import org.jf.dexlib2.iface.Field;
 import org.jf.dexlib2.iface.Method;
 import org.jf.dexlib2.iface.MethodImplementation;
 import org.jf.dexlib2.iface.instruction.Instruction;
 import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.jf.dexlib2.immutable.PackedMethodImplementation;
 import org.jf.dexlib2.rewriter.MethodImplementationRewriter;
 import org.jf.dexlib2.rewriter.MethodRewriter;
 import org.jf.dexlib2.rewriter.Rewriter;
 import org.jf.dexlib2.rewriter.RewriterModule;
 import org.jf.dexlib2.rewriter.Rewriters;
+import org.rh.smaliex.DeodexJournal;
 import org.rh.smaliex.DexUtil;
 import org.rh.smaliex.LLog;
+import org.rh.smaliex.Metrics;
 import org.rh.smaliex.MiscUtil;
 
 import javax.annotation.Nonnull;
@@ -49,13 +57,20 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Serializable;
 import java.lang.ref.SoftReference;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class OdexRewriter extends org.jf.dexlib2.rewriter.DexRewriter {
     private static final ConcurrentHashMap<String, SoftReference<OdexRewriter>> rewriterCache =
             new ConcurrentHashMap<>();
+    private static final HashMap<String, SoftReference<List<DexFile>>> classPathDexCache =
+            new HashMap<>();
 
     private final OdexRewriterModule mRewriterModule;
 
@@ -66,8 +81,9 @@ public class OdexRewriter extends org.jf.dexlib2.rewriter.DexRewriter {
 
     @Nonnull
     @Override
+    @SuppressWarnings("try")
     public DexFile rewriteDexFile(@Nonnull DexFile dexFile) {
-        try {
+        try (Metrics.Timer t = Metrics.time(Metrics.Phase.DEOPTIMIZE)) {
             return org.jf.dexlib2.immutable.ImmutableDexFile.of(super.rewriteDexFile(dexFile));
         } catch (Exception e) {
             LLog.i("Failed to re-construct dex " + e);
@@ -75,6 +91,8 @@ public class OdexRewriter extends org.jf.dexlib2.rewriter.DexRewriter {
                     || e instanceof ArrayIndexOutOfBoundsException) {
                 LLog.ex(e);
             }
+        } finally {
+            LLog.setMethodContext(null);
         }
         return new FailedDexFile();
     }
@@ -83,6 +101,14 @@ public class OdexRewriter extends org.jf.dexlib2.rewriter.DexRewriter {
         mRewriterModule.mClassPath.addDex(dexFile, true);
     }
 
+    /**
+     * @return The fingerprint of the dex files in class path, including the additional ones
+     */
+    @Nonnull
+    public String getClassPathFingerprint() {
+        return mRewriterModule.mClassPath.getFingerprint();
+    }
+
     public void recycle() {
         mRewriterModule.mClassPath.reset();
     }
@@ -91,11 +117,13 @@ public class OdexRewriter extends org.jf.dexlib2.rewriter.DexRewriter {
     public static OdexRewriter get(@Nonnull String bootClassPath,
                                    @Nonnull Opcodes opcodes,
                                    @Nullable String failInfoLocation) {
-        final String key = bootClassPath + " " + opcodes.api;
+        // The rewriter is not thread-safe, so each thread has its own one. The dex files of
+        // the class path are shared, each thread only costs the classes resolved by it.
+        final String key = bootClassPath + " " + opcodes.api + " " + Thread.currentThread().getId();
         OdexRewriter rewriter = MiscUtil.getCache(rewriterCache, key);
         if (rewriter == null) {
             rewriter = new OdexRewriter(new OdexRewriterModule(bootClassPath, opcodes));
-            if (LLog.VERBOSE && failInfoLocation != null) {
+            if (LLog.isLoggable(LLog.LEVEL_VERBOSE) && failInfoLocation != null) {
                 rewriter.mRewriterModule.mFailInfoLocation = failInfoLocation;
             }
             MiscUtil.putCache(rewriterCache, key, rewriter);
@@ -124,27 +152,58 @@ public class OdexRewriter extends org.jf.dexlib2.rewriter.DexRewriter {
     @Nonnull
     public static ClassPathEx getClassPath(@Nonnull String path,
                                            @Nonnull Opcodes opcodes, @Nonnull String ext) {
-        final ArrayList<DexFile> dexFiles = new ArrayList<>();
-        for (File f : MiscUtil.getFiles(path, ext)) {
-            dexFiles.addAll(DexUtil.getDexFiles(f, opcodes.api, null));
-        }
-        if (dexFiles.isEmpty()) {
-            LLog.i("Not added any dex from " + path);
+        return new ClassPathEx(getClassPathDexFiles(path, opcodes, ext), opcodes.artVersion);
+    }
+
+    // The dex files are read-only, so the class paths of different threads share them and
+    // only the resolved classes are kept by each class path.
+    @Nonnull
+    private static List<DexFile> getClassPathDexFiles(@Nonnull String path,
+                                                      @Nonnull Opcodes opcodes,
+                                                      @Nonnull String ext) {
+        final String key = path + " " + opcodes.api + " " + ext;
+        synchronized (classPathDexCache) {
+            List<DexFile> dexFiles = MiscUtil.getCache(classPathDexCache, key);
+            if (dexFiles == null) {
+                dexFiles = new ArrayList<>();
+                for (File f : MiscUtil.getFiles(path, ext)) {
+                    dexFiles.addAll(DexUtil.getDexFiles(f, opcodes.api, null));
+                }
+                if (dexFiles.isEmpty()) {
+                    LLog.i("Not added any dex from " + path);
+                }
+                dexFiles = Collections.unmodifiableList(dexFiles);
+                MiscUtil.putCache(classPathDexCache, key, dexFiles);
+            }
+            return dexFiles;
         }
-        return new ClassPathEx(dexFiles, opcodes.artVersion);
     }
 
     public static class ClassPathEx extends ClassPath {
+        // The classes are looked up from the dex files on demand, the first found one is used.
+        @Nonnull
+        private final ArrayList<DexClassProvider> classProviders = Lists.newArrayList();
+        @Nonnull
+        private final HashMap<String, ClassDef> availableClasses = Maps.newHashMap();
         @Nonnull
-        private HashMap<String, ClassDef> availableClasses = Maps.newHashMap();
+        private final HashSet<String> missingClasses = new HashSet<>();
         ArrayList<DexFile> additionalDexFiles;
+        private ArrayList<DexClassProvider> additionalClassProviders;
+        @Nonnull
+        private final String bootFingerprint;
+        // The types loaded while analyzing a method if it is not null.
+        @Nullable
+        private HashSet<String> recordedTypes;
+        @Nonnull
+        private final HashMap<String, String> typeDigests = Maps.newHashMap();
 
         public ClassPathEx(@Nonnull Iterable<? extends DexFile> classPath, int oatVersion) {
             super(false, oatVersion);
             for (DexFile dexFile : classPath) {
                 addDex(dexFile, false);
             }
-            if (availableClasses.get("Ljava/lang/Class;") == null) {
+            bootFingerprint = computeFingerprint(classPath, "");
+            if (findClassDef("Ljava/lang/Class;") == null) {
                 final DexFile basicClasses = new ImmutableDexFile(
                         DexUtil.getOpcodes(VersionMap.mapArtVersionToApi(oatVersion)),
                         ImmutableSet.of(
@@ -159,39 +218,160 @@ public class OdexRewriter extends org.jf.dexlib2.rewriter.DexRewriter {
         }
 
         public void addDex(@Nonnull DexFile dexFile, boolean additional) {
-            for (ClassDef classDef : dexFile.getClasses()) {
-                final ClassDef prev = availableClasses.get(classDef.getType());
-                if (prev == null) {
-                    availableClasses.put(classDef.getType(), classDef);
-                }
-                //else {
-                //    LLog.v("Duplicated class " + prev.getType());
-                //}
-            }
+            final DexClassProvider provider = new DexClassProvider(dexFile);
+            classProviders.add(provider);
+            // The classes which were not found may be in the new dex.
+            missingClasses.clear();
             if (additional) {
                 if (additionalDexFiles == null) {
                     additionalDexFiles = Lists.newArrayList();
+                    additionalClassProviders = Lists.newArrayList();
                 }
                 additionalDexFiles.add(dexFile);
+                additionalClassProviders.add(provider);
             }
         }
 
-        public void reset() {
-            if (additionalDexFiles != null) {
-                for (DexFile dexFile : additionalDexFiles) {
-                    for (ClassDef classDef : dexFile.getClasses()) {
-                        availableClasses.remove(classDef.getType());
+        @Nullable
+        private ClassDef findClassDef(@Nonnull String type) {
+            ClassDef classDef = availableClasses.get(type);
+            if (classDef != null || missingClasses.contains(type)) {
+                return classDef;
+            }
+            for (DexClassProvider provider : classProviders) {
+                classDef = provider.getClassDef(type);
+                if (classDef != null) {
+                    Metrics.count(Metrics.Counter.CLASSES_RESOLVED);
+                    availableClasses.put(type, classDef);
+                    return classDef;
+                }
+            }
+            missingClasses.add(type);
+            return null;
+        }
+
+        /**
+         * The dex files are identified by their signatures, which are not changed by the
+         * optimization, so the same class path extracted from oat files of different
+         * instruction sets has the same fingerprint.
+         */
+        @Nonnull
+        private static String computeFingerprint(@Nonnull Iterable<? extends DexFile> dexFiles,
+                                                 @Nonnull String base) {
+            final MessageDigest digest = DeodexJournal.newDigest();
+            digest.update(base.getBytes());
+            for (DexFile dexFile : dexFiles) {
+                if (dexFile instanceof DexBackedDexFile) {
+                    final DexBackedDexFile dex = (DexBackedDexFile) dexFile;
+                    for (int i = 0; i < HeaderItem.SIGNATURE_SIZE; i++) {
+                        digest.update((byte) dex.readUbyte(HeaderItem.SIGNATURE_OFFSET + i));
                     }
                 }
+            }
+            return DeodexJournal.toHex(digest.digest());
+        }
+
+        @Nonnull
+        public String getFingerprint() {
+            if (additionalDexFiles == null || additionalDexFiles.isEmpty()) {
+                return bootFingerprint;
+            }
+            return computeFingerprint(additionalDexFiles, bootFingerprint);
+        }
+
+        void startRecording() {
+            recordedTypes = new HashSet<>();
+        }
+
+        @Nonnull
+        Set<String> stopRecording() {
+            final Set<String> types = recordedTypes;
+            recordedTypes = null;
+            return types == null ? Collections.emptySet() : types;
+        }
+
+        /**
+         * @return The digest of the class definition of the type, including its super classes
+         *         and interfaces
+         */
+        @Nonnull
+        String getTypeDigest(@Nonnull String type) {
+            int dim = 0;
+            while (dim < type.length() && type.charAt(dim) == '[') {
+                dim++;
+            }
+            if (dim > 0) {
+                type = type.substring(dim);
+            }
+            if (type.length() == 1) {
+                return type;
+            }
+            String digest = typeDigests.get(type);
+            if (digest != null) {
+                return digest;
+            }
+            final ClassDef classDef = findClassDef(type);
+            if (classDef == null) {
+                digest = "?" + type;
+                typeDigests.put(type, digest);
+                return digest;
+            }
+            // Avoid infinite recursion of bad class hierarchy.
+            typeDigests.put(type, "!" + type);
+            final StringBuilder sb = new StringBuilder(1024);
+            sb.append(type).append(classDef.getAccessFlags());
+            final String superclass = classDef.getSuperclass();
+            if (superclass != null) {
+                sb.append(" s ").append(getTypeDigest(superclass));
+            }
+            for (String iface : classDef.getInterfaces()) {
+                sb.append(" i ").append(getTypeDigest(iface));
+            }
+            for (Field field : classDef.getFields()) {
+                sb.append(" f ").append(field.getAccessFlags()).append(field.getName())
+                        .append(':').append(field.getType());
+            }
+            for (Method method : classDef.getMethods()) {
+                sb.append(" m ").append(method.getAccessFlags()).append(method.getName())
+                        .append('(');
+                for (CharSequence param : method.getParameterTypes()) {
+                    sb.append(param);
+                }
+                sb.append(')').append(method.getReturnType());
+            }
+            digest = DeodexJournal.hash(sb.toString().getBytes());
+            typeDigests.put(type, digest);
+            return digest;
+        }
+
+        @Nonnull
+        @Override
+        public TypeProto getClass(@Nonnull CharSequence type) {
+            if (recordedTypes != null) {
+                recordedTypes.add(type.toString());
+            }
+            return super.getClass(type);
+        }
+
+        public void reset() {
+            if (additionalDexFiles != null) {
+                classProviders.removeAll(additionalClassProviders);
+                additionalClassProviders.clear();
                 additionalDexFiles.clear();
             }
+            availableClasses.clear();
+            missingClasses.clear();
             loadedClasses = CacheBuilder.newBuilder().build(classLoader);
+            typeDigests.clear();
         }
 
         @Nonnull
         @Override
         public ClassDef getClassDef(String type) {
-            final ClassDef ret = availableClasses.get(type);
+            if (recordedTypes != null) {
+                recordedTypes.add(type);
+            }
+            final ClassDef ret = findClassDef(type);
             if (ret == null) {
                 throw new UnresolvedClassException("Could not resolve class %s", type);
             }
@@ -205,11 +385,16 @@ public class OdexRewriter extends org.jf.dexlib2.rewriter.DexRewriter {
      */
     static class OdexRewriterModule extends RewriterModule {
         private final ClassPathEx mClassPath;
+        private final Opcodes mOpcodes;
         private Method mCurrentMethod;
         private String mFailInfoLocation;
 
+        @SuppressWarnings("try")
         OdexRewriterModule(@Nonnull String bootClassPath, @Nonnull Opcodes opcodes, @Nonnull String ext) {
-            mClassPath = getClassPath(bootClassPath, opcodes, ext);
+            mOpcodes = opcodes;
+            try (Metrics.Timer t = Metrics.time(Metrics.Phase.LOAD_CLASS_PATH)) {
+                mClassPath = getClassPath(bootClassPath, opcodes, ext);
+            }
         }
 
         OdexRewriterModule(@Nonnull String bootClassPath, @Nonnull Opcodes opcodes) {
@@ -224,14 +409,38 @@ public class OdexRewriter extends org.jf.dexlib2.rewriter.DexRewriter {
                 @Nonnull
                 @Override
                 public MethodImplementation rewrite(@Nonnull MethodImplementation methodImpl) {
+                    // The result is kept until the dex is written, so the instructions are packed
+                    // into code units instead of an object for each instruction.
+                    return PackedMethodImplementation.of(mOpcodes, rewriteInstructions(methodImpl));
+                }
+
+                @Nonnull
+                private MethodImplementation rewriteInstructions(
+                        @Nonnull MethodImplementation methodImpl) {
                     return new MethodImplementationRewriter.RewrittenMethodImplementation(
                             methodImpl) {
                         @Nonnull
                         @Override
+                        @SuppressWarnings("try")
                         public Iterable<? extends Instruction> getInstructions() {
-                            final MethodAnalyzer ma = new MethodAnalyzer(
-                                    mClassPath, mCurrentMethod, null, false);
-                            if (!ma.analysisInfo.isEmpty()) {
+                            final String cacheKey = MethodResultCache.isEnabled()
+                                    ? MethodResultCache.key(mCurrentMethod, methodImpl,
+                                    mClassPath.oatVersion) : null;
+                            if (cacheKey != null) {
+                                final List<Instruction> cached =
+                                        MethodResultCache.get(cacheKey, mClassPath);
+                                if (cached != null) {
+                                    Metrics.count(Metrics.Counter.METHOD_CACHE_HITS);
+                                    return cached;
+                                }
+                                mClassPath.startRecording();
+                            }
+                            final MethodAnalyzer ma;
+                            try (Metrics.Timer t = Metrics.time(Metrics.Phase.ANALYZE_METHOD)) {
+                                ma = new MethodAnalyzer(mClassPath, mCurrentMethod, null, false);
+                            }
+                            Metrics.count(Metrics.Counter.METHODS_ANALYZED);
+                            if (LLog.isLoggable(LLog.LEVEL_VERBOSE) && !ma.analysisInfo.isEmpty()) {
                                 StringBuilder sb = new StringBuilder(256);
                                 sb.append("Analysis info of ").append(mCurrentMethod.getDefiningClass())
                                         .append("->").append(mCurrentMethod.getName()).append(":\n");
@@ -244,7 +453,15 @@ public class OdexRewriter extends org.jf.dexlib2.rewriter.DexRewriter {
                             if (ae != null) {
                                 handleAnalysisException(ae);
                             }
-                            return ma.getInstructions();
+                            final List<Instruction> instructions = ma.getInstructions();
+                            if (cacheKey != null) {
+                                final Set<String> types = mClassPath.stopRecording();
+                                if (ae == null) {
+                                    MethodResultCache.put(
+                                            cacheKey, types, mClassPath, instructions);
+                                }
+                            }
+                            return instructions;
                         }
                     };
                 }
@@ -252,30 +469,10 @@ public class OdexRewriter extends org.jf.dexlib2.rewriter.DexRewriter {
         }
 
         void handleAnalysisException(AnalysisException ae) {
+            Metrics.count(Metrics.Counter.ANALYSIS_FAILURES);
             LLog.e("Analysis error in class=" + mCurrentMethod.getDefiningClass()
                     + " method=" + mCurrentMethod.getName() + "\n" + ae.getContext());
-            final StackTraceElement[] stacks = ae.getCause() == null
-                    ? ae.getStackTrace() : ae.getCause().getStackTrace();
-            if (LLog.VERBOSE || stacks.length < 10) {
-                LLog.ex(ae);
-            } else {
-                final int printLine = 5;
-                StringBuilder sb = new StringBuilder(1024);
-                sb.append(ae.toString()).append("\n");
-                int i = 0;
-                int s = Math.min(printLine, stacks.length);
-                for (; i < s; i++) {
-                    sb.append("\tat ").append(stacks[i]).append("\n");
-                }
-                i = Math.max(i, stacks.length - printLine);
-                if (i > s) {
-                    sb.append("\t...(Skip ").append(i - s - 1).append(" traces)\n");
-                }
-                for (; i < stacks.length; i++) {
-                    sb.append("\tat ").append(stacks[i]).append("\n");
-                }
-                LLog.i(sb.toString());
-            }
+            LLog.exBrief(ae);
             if (mFailInfoLocation != null) {
                 final String fileName = mCurrentMethod.getDefiningClass().replace(
                         "/", "-").replace(";", "") + ".smali";
@@ -297,6 +494,7 @@ public class OdexRewriter extends org.jf.dexlib2.rewriter.DexRewriter {
                 @Override
                 public Method rewrite(@Nonnull Method method) {
                     mCurrentMethod = method;
+                    LLog.setMethodContext(method);
                     return super.rewrite(method);
                 }
             };
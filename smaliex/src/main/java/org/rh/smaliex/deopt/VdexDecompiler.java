@@ -20,8 +20,11 @@ import org.jf.dexlib2.Opcode;
 import org.jf.dexlib2.Opcodes;
 import org.jf.dexlib2.ReferenceType;
 import org.jf.dexlib2.analysis.OdexedFieldInstructionMapper;
+import org.jf.dexlib2.dexbacked.DexBackedClassDef;
 import org.jf.dexlib2.dexbacked.DexBackedDexFile;
 import org.jf.dexlib2.dexbacked.DexBackedMethod;
+import org.jf.dexlib2.dexbacked.DexBackedMethodImplementation;
+import org.jf.dexlib2.dexbacked.instruction.InstructionCursor;
 import org.jf.dexlib2.dexbacked.reference.DexBackedFieldReference;
 import org.jf.dexlib2.dexbacked.reference.DexBackedReference;
 import org.jf.dexlib2.iface.DexFile;
@@ -52,7 +55,12 @@ import org.rh.smaliex.reader.Vdex;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.ListIterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class VdexDecompiler {
 
@@ -61,32 +69,116 @@ public class VdexDecompiler {
 
     @Nonnull
     public static DexFile[] unquicken(@Nonnull Vdex vdex, @Nullable Opcodes opcodes) {
+        return unquicken(vdex, opcodes, 1);
+    }
+
+    /**
+     * Unquicken the dex files of vdex.
+     *
+     * @param jobs The number of threads to unquicken the dex files. If the quickening info of
+     *             the dex files can only be iterated in order, it is indexed by a sequential scan
+     *             of the code items before unquickening them in parallel.
+     */
+    @Nonnull
+    public static DexFile[] unquicken(@Nonnull Vdex vdex, @Nullable Opcodes opcodes, int jobs) {
         if (opcodes == null) {
             opcodes = DexUtil.getOpcodes(Oat.Version.O_80.api);
         }
+        final int dexCount = vdex.dexFiles.length;
+        if (jobs <= 1 || dexCount <= 1 || VdexRewriterModule.DEBUG) {
+            return unquickenSequentially(vdex, opcodes);
+        }
 
+        if (vdex.dexFiles[0].getQuickeningInfoIndex() == null) {
+            buildQuickeningInfoIndex(vdex, opcodes);
+        }
+        final VdexRewriterModule[] modules = new VdexRewriterModule[dexCount];
+        for (int i = 0; i < dexCount; i++) {
+            modules[i] = new VdexRewriterModule(vdex.dexFiles[i], opcodes);
+        }
+
+        final DexFile[] deodexedFiles = new DexFile[dexCount];
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(jobs, dexCount));
+        try {
+            final ArrayList<Future<DexFile>> results = new ArrayList<>(dexCount);
+            for (VdexRewriterModule module : modules) {
+                results.add(executor.submit(() -> unquicken(module)));
+            }
+            for (int i = 0; i < dexCount; i++) {
+                deodexedFiles[i] = results.get(i).get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while unquickening " + vdex, e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            executor.shutdown();
+        }
+        return deodexedFiles;
+    }
+
+    @Nonnull
+    static DexFile[] unquickenSequentially(@Nonnull Vdex vdex, @Nonnull Opcodes opcodes) {
         VdexRewriterModule previousModule = null;
         final DexFile[] mDeodexedFiles = new DexFile[vdex.dexFiles.length];
         for (int i = 0; i < mDeodexedFiles.length; i++) {
             final VdexRewriterModule rewriterModule;
-            if (vdex.isSingleQuickeningInfo && previousModule != null) {
+            if (vdex.isSingleQuickeningInfo && previousModule != null
+                    && vdex.dexFiles[i].getQuickeningInfoIndex() == null) {
                 // All dex files share the same iterator.
                 rewriterModule = new VdexRewriterModule(vdex.dexFiles[i], previousModule);
             } else {
                 rewriterModule = new VdexRewriterModule(vdex.dexFiles[i], opcodes);
             }
-            final DexRewriter vdexRewriter = new DexRewriter(rewriterModule);
-            mDeodexedFiles[i] = ImmutableDexFile.of(
-                    vdexRewriter.rewriteDexFile(rewriterModule.mDex));
+            mDeodexedFiles[i] = unquicken(rewriterModule);
             previousModule = rewriterModule;
-            if (VdexRewriterModule.DEBUG) {
-                rewriterModule.fillLastInfo();
-                rewriterModule.printUnquickenInfo();
-            }
         }
         return mDeodexedFiles;
     }
 
+    @Nonnull
+    static DexFile unquicken(@Nonnull VdexRewriterModule rewriterModule) {
+        final DexRewriter vdexRewriter = new DexRewriter(rewriterModule);
+        final DexFile dexFile = ImmutableDexFile.of(
+                vdexRewriter.rewriteDexFile(rewriterModule.mDex));
+        if (VdexRewriterModule.DEBUG) {
+            rewriterModule.fillLastInfo();
+            rewriterModule.printUnquickenInfo();
+        }
+        return dexFile;
+    }
+
+    /**
+     * Build the index by code offset for the quickening info which is only able to be iterated
+     * in order (version 006). It walks the code items with a cursor and consumes the quickening
+     * info of the quickened instructions in the same order as the rewriter, without rewriting
+     * the instructions, and records where each method starts to consume it.
+     */
+    public static void buildQuickeningInfoIndex(@Nonnull Vdex vdex, @Nonnull Opcodes opcodes) {
+        final Vdex.QuickeningInfoIndex[] indices =
+                new Vdex.QuickeningInfoIndex[vdex.dexFiles.length];
+        VdexRewriterModule previousModule = null;
+        for (int i = 0; i < indices.length; i++) {
+            final Vdex.QuickenDex odex = vdex.dexFiles[i];
+            final VdexRewriterModule module = previousModule == null
+                    ? new VdexRewriterModule(odex, opcodes)
+                    : new VdexRewriterModule(odex, previousModule);
+            indices[i] = new Vdex.QuickeningInfoIndex(odex.quickeningInfoList.size());
+            module.scanQuickeningInfo(indices[i]);
+            indices[i].build();
+            previousModule = module;
+        }
+        // Set after all are built, the modules above need to iterate in order.
+        for (int i = 0; i < indices.length; i++) {
+            vdex.dexFiles[i].setQuickeningInfoIndex(indices[i]);
+        }
+    }
+
     // See art/runtime/dex_to_dex_decompiler.cc
     public static class VdexRewriterModule extends RewriterModule {
         public static boolean DEBUG;
@@ -95,6 +187,11 @@ public class VdexDecompiler {
         private final DexBackedDexFile mDex;
         private ListIterator<Vdex.QuickeningInfoList> mGiIter;
         private ListIterator<Vdex.QuickeningInfo> mQiIter;
+        private Vdex.QuickeningInfoList mQiGroup;
+        // Lookup by code offset if not null. Otherwise iterate the groups in order.
+        private final Vdex.QuickeningInfoIndex mIndex;
+        // Record the position of each method while iterating in order.
+        private Vdex.QuickeningInfoIndex mIndexRecorder;
         private DexBackedMethod mCurrentMethod;
         private boolean mDecompileReturnInstruction = true;
         private boolean mNoQuickenInfo;
@@ -118,14 +215,71 @@ public class VdexDecompiler {
         public VdexRewriterModule(Vdex.QuickenDex odex, Opcodes opcodes) {
             mOdex = odex;
             mDex = new DexBackedDexFile(opcodes, odex.getBytes());
+            mIndex = odex.getQuickeningInfoIndex();
             mGiIter = odex.quickeningInfoList.listIterator();
         }
 
         private VdexRewriterModule(Vdex.QuickenDex odex, VdexRewriterModule module) {
             mOdex = odex;
             mDex = new DexBackedDexFile(module.mDex.getOpcodes(), odex.getBytes());
+            mIndex = null;
             mGiIter = module.mGiIter;
             mQiIter = module.mQiIter;
+            mQiGroup = module.mQiGroup;
+        }
+
+        /**
+         * Consume the quickening info of all methods as the rewriter does, and record where each
+         * method starts in the index.
+         */
+        void scanQuickeningInfo(@Nonnull Vdex.QuickeningInfoIndex indexRecorder) {
+            mIndexRecorder = indexRecorder;
+            for (DexBackedClassDef classDef : mDex.getClasses()) {
+                scanQuickeningInfo(classDef.getDirectMethods());
+                scanQuickeningInfo(classDef.getVirtualMethods());
+            }
+            mIndexRecorder = null;
+        }
+
+        private void scanQuickeningInfo(@Nonnull Iterable<? extends DexBackedMethod> methods) {
+            for (DexBackedMethod method : methods) {
+                startMethod(method);
+                final DexBackedMethodImplementation impl = method.getImplementation();
+                if (impl == null) {
+                    continue;
+                }
+                final InstructionCursor cursor = impl.newInstructionCursor();
+                while (cursor.next()) {
+                    switch (cursor.getOpcode()) {
+                        case NOP:
+                            if (!mNoQuickenInfo) {
+                                decompileNop();
+                            }
+                            break;
+                        case IGET_QUICK:
+                        case IGET_WIDE_QUICK:
+                        case IGET_OBJECT_QUICK:
+                        case IGET_BOOLEAN_QUICK:
+                        case IGET_BYTE_QUICK:
+                        case IGET_CHAR_QUICK:
+                        case IGET_SHORT_QUICK:
+                        case IPUT_QUICK:
+                        case IPUT_BOOLEAN_QUICK:
+                        case IPUT_BYTE_QUICK:
+                        case IPUT_CHAR_QUICK:
+                        case IPUT_SHORT_QUICK:
+                        case IPUT_WIDE_QUICK:
+                        case IPUT_OBJECT_QUICK:
+                        case INVOKE_VIRTUAL_QUICK:
+                        case INVOKE_VIRTUAL_QUICK_RANGE:
+                            nextInfo();
+                            break;
+                        default:
+                            break;
+                    }
+                    mDexPc += cursor.getCodeUnits();
+                }
+            }
         }
 
         public void setDecompileReturnInstruction(boolean enable) {
@@ -280,48 +434,73 @@ public class VdexDecompiler {
             };
         }
 
+        private void findQuickenGroup() {
+            final ListIterator<Vdex.QuickeningInfo> iter =
+                    mIndex.find(mCurrentMethod.getCodeOffset());
+            if (iter != null) {
+                mQiIter = iter;
+            } else {
+                mQiIter = Collections.emptyListIterator();
+                mNoQuickenInfo = true;
+            }
+        }
+
+        private void nextQuickenGroup() {
+            if (mIndex != null) {
+                findQuickenGroup();
+                return;
+            }
+            if (mOdex.quickeningInfoList.shouldIterateAll
+                    && mQiIter != null && mQiIter.hasNext()) {
+                // For version 006
+                return;
+            }
+
+            if (!mGiIter.hasNext()) {
+                if (DEBUG) {
+                    LLog.v("Reach end @ " + mCurrentMethod);
+                }
+                return;
+            }
+            final Vdex.QuickeningInfoList list = mOdex.quickeningInfoList.get(
+                    mGiIter.nextIndex());
+            if (list.matchCodeOffset(mCurrentMethod.getCodeOffset())) {
+                mQiIter = list.listIterator();
+                mQiGroup = list;
+                mGiIter.next();
+            } else {
+                mNoQuickenInfo = true;
+            }
+        }
+
+        // Select the quickening info for the instructions of the method.
+        private void startMethod(@Nonnull DexBackedMethod method) {
+            mDexPc = 0;
+            mNoQuickenInfo = false;
+            mCurrentMethod = method;
+            if (method.getImplementation() != null) {
+                nextQuickenGroup();
+                if (mIndexRecorder != null && mQiIter != null && !mNoQuickenInfo) {
+                    mIndexRecorder.add(mCurrentMethod.getCodeOffset(),
+                            mQiGroup, mQiIter.nextIndex());
+                }
+                if (DEBUG) {
+                    fillLastInfo();
+                    mMethodInfoList.add(new MethodInfo(method));
+                }
+            }
+            mQuickenInstrCount = 0;
+        }
+
         @Nonnull
         @Override
         public Rewriter<Method> getMethodRewriter(@Nonnull Rewriters rewriters) {
             return new MethodRewriter(rewriters) {
 
-                void nextQuickenGroup() {
-                    if (mOdex.quickeningInfoList.shouldIterateAll
-                            && mQiIter != null && mQiIter.hasNext()) {
-                        // For version 006
-                        return;
-                    }
-
-                    if (!mGiIter.hasNext()) {
-                        if (DEBUG) {
-                            LLog.v("Reach end @ " + mCurrentMethod);
-                        }
-                        return;
-                    }
-                    final Vdex.QuickeningInfoList list = mOdex.quickeningInfoList.get(
-                            mGiIter.nextIndex());
-                    if (list.matchCodeOffset(mCurrentMethod.getCodeOffset())) {
-                        mQiIter = list.listIterator();
-                        mGiIter.next();
-                    } else {
-                        mNoQuickenInfo = true;
-                    }
-                }
-
                 @Nonnull
                 @Override
                 public Method rewrite(@Nonnull Method method) {
-                    mDexPc = 0;
-                    mNoQuickenInfo = false;
-                    mCurrentMethod = (DexBackedMethod) method;
-                    if (method.getImplementation() != null) {
-                        nextQuickenGroup();
-                        if (DEBUG) {
-                            fillLastInfo();
-                            mMethodInfoList.add(new MethodInfo(method));
-                        }
-                    }
-                    mQuickenInstrCount = 0;
+                    startMethod((DexBackedMethod) method);
                     return super.rewrite(method);
                 }
             };
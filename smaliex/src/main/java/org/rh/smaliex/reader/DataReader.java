@@ -17,23 +17,43 @@
 package org.rh.smaliex.reader;
 
 import org.rh.smaliex.LLog;
+import org.rh.smaliex.Metrics;
 
 import javax.annotation.Nonnull;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 
+/**
+ * Reads a file by memory mapping. The file is mapped by windows on demand, so it can be larger
+ * than 2GB and only the accessed parts are mapped. The mappings are released when closing.
+ */
 public class DataReader implements Closeable {
+    // The size of a mapped region. Each region also maps the beginning of next region, so a
+    // value can always be read from one region.
+    static int WINDOW_SIZE = 1 << 30;
+    private static final int WINDOW_OVERLAP = 4096;
 
     private final RandomAccessFile mRaf;
     private final File mFile;
-    private final MappedByteBuffer mMappedBuffer;
+    private final long mLength;
+    private MappedByteBuffer[] mWindows;
+    private MappedByteBuffer mWindow;
+    private long mWindowBase;
+    private long mWindowEnd = -1;
+    private long mPosition;
+    private ByteOrder mOrder;
     private ArrayList<DataReader> mAssociatedReaders;
+    private boolean mClosed;
 
     public DataReader(@Nonnull String file) throws IOException {
         this(new File(file));
@@ -42,35 +62,103 @@ public class DataReader implements Closeable {
     public DataReader(@Nonnull File file) throws IOException {
         mFile = file;
         mRaf = new RandomAccessFile(mFile, "r");
-        mMappedBuffer = mRaf.getChannel().map(
-                FileChannel.MapMode.READ_ONLY, 0, file.length());
-        mMappedBuffer.rewind();
+        mLength = mRaf.length();
+        mWindows = new MappedByteBuffer[(int) ((mLength + WINDOW_SIZE - 1) / WINDOW_SIZE)];
         setLittleEndian(true);
     }
 
     public void setLittleEndian(boolean isLittleEndian) {
-        mMappedBuffer.order(isLittleEndian
-                ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        mOrder = isLittleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+        for (MappedByteBuffer window : mWindows) {
+            if (window != null) {
+                window.order(mOrder);
+            }
+        }
+    }
+
+    private void selectWindow(long position) {
+        if (mClosed) {
+            throw new IllegalStateException(mFile + " is closed");
+        }
+        if (position < 0 || position >= mLength) {
+            throw new BufferUnderflowException();
+        }
+        final int index = (int) (position / WINDOW_SIZE);
+        MappedByteBuffer window = mWindows[index];
+        final long base = (long) index * WINDOW_SIZE;
+        if (window == null) {
+            final long size = Math.min(WINDOW_SIZE + WINDOW_OVERLAP, mLength - base);
+            try {
+                window = mRaf.getChannel().map(FileChannel.MapMode.READ_ONLY, base, size);
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to map " + mFile + " at " + base, e);
+            }
+            window.order(mOrder);
+            mWindows[index] = window;
+        }
+        mWindow = window;
+        mWindowBase = base;
+        mWindowEnd = base + WINDOW_SIZE;
+    }
+
+    /**
+     * Moves the position forward and returns the index in current window for reading.
+     */
+    private int advance(int size) {
+        final long position = mPosition;
+        if (position < mWindowBase || position >= mWindowEnd) {
+            selectWindow(position);
+        }
+        if (position + size > mLength) {
+            throw new BufferUnderflowException();
+        }
+        mPosition = position + size;
+        return (int) (position - mWindowBase);
     }
 
     public void seek(long offset) {
-        position((int) offset);
+        position(offset);
     }
 
-    public void position(int newPosition) {
-        mMappedBuffer.position(newPosition);
+    public void position(long newPosition) {
+        if (newPosition < 0 || newPosition > mLength) {
+            throw new IllegalArgumentException("Invalid position " + newPosition
+                    + " of " + mFile + " length=" + mLength);
+        }
+        mPosition = newPosition;
     }
 
-    public int position() {
-        return mMappedBuffer.position();
+    public long position() {
+        return mPosition;
+    }
+
+    public long length() {
+        return mLength;
     }
 
     public int readByte() {
-        return mMappedBuffer.get() & 0xff;
+        final int index = advance(1);
+        return mWindow.get(index) & 0xff;
     }
 
     public void readBytes(@Nonnull byte[] b) {
-        mMappedBuffer.get(b, 0, b.length);
+        Metrics.add(Metrics.Counter.BYTES_READ, b.length);
+        int offset = 0;
+        while (offset < b.length) {
+            final long position = mPosition;
+            if (position < mWindowBase || position >= mWindowEnd) {
+                selectWindow(position);
+            }
+            final int index = (int) (position - mWindowBase);
+            final int size = Math.min(b.length - offset, mWindow.limit() - index);
+            if (size <= 0) {
+                throw new BufferUnderflowException();
+            }
+            mWindow.position(index);
+            mWindow.get(b, offset, size);
+            mPosition += size;
+            offset += size;
+        }
     }
 
     public void readBytes(@Nonnull char[] b) {
@@ -82,22 +170,25 @@ public class DataReader implements Closeable {
     }
 
     public short readShort() {
-        return mMappedBuffer.getShort();
+        final int index = advance(Short.BYTES);
+        return mWindow.getShort(index);
     }
 
     public int readInt() {
-        return mMappedBuffer.getInt();
+        final int index = advance(Integer.BYTES);
+        return mWindow.getInt(index);
     }
 
     public int previewInt() {
-        mMappedBuffer.mark();
+        final long position = mPosition;
         final int value = readInt();
-        mMappedBuffer.reset();
+        mPosition = position;
         return value;
     }
 
     public final long readLong() {
-        return mMappedBuffer.getLong();
+        final int index = advance(Long.BYTES);
+        return mWindow.getLong(index);
     }
 
     public int readUleb128() {
@@ -143,6 +234,19 @@ public class DataReader implements Closeable {
         } catch (IOException ex) {
             LLog.ex(ex);
         }
+        // Release the mappings now instead of waiting for GC. Any access after closing has
+        // to select a window again, which throws IllegalStateException instead of reading
+        // the unmapped memory.
+        mClosed = true;
+        final MappedByteBuffer[] windows = mWindows;
+        mWindows = new MappedByteBuffer[0];
+        mWindow = null;
+        mWindowEnd = -1;
+        for (MappedByteBuffer window : windows) {
+            if (window != null) {
+                unmap(window);
+            }
+        }
         if (mAssociatedReaders != null) {
             for (DataReader r : mAssociatedReaders) {
                 r.close();
@@ -150,4 +254,39 @@ public class DataReader implements Closeable {
         }
     }
 
+    private static Method sInvokeCleaner;
+    private static Object sUnsafe;
+    private static boolean sUnmapUnsupported;
+
+    private static synchronized void unmap(@Nonnull MappedByteBuffer buffer) {
+        if (sUnmapUnsupported) {
+            return;
+        }
+        try {
+            if (sInvokeCleaner == null) {
+                final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                sUnsafe = theUnsafe.get(null);
+                sInvokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            }
+            sInvokeCleaner.invoke(sUnsafe, buffer);
+        } catch (NoSuchMethodException e) {
+            // Java 8 does not have Unsafe#invokeCleaner.
+            try {
+                final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                final Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            } catch (ReflectiveOperationException | RuntimeException ex) {
+                sUnmapUnsupported = true;
+                LLog.v("Unable to unmap buffer: " + ex);
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            sUnmapUnsupported = true;
+            LLog.v("Unable to unmap buffer: " + e);
+        }
+    }
 }
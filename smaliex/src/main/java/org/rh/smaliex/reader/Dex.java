@@ -84,10 +84,15 @@ public class Dex {
             data_size_ = r.readInt();
             data_off_ = r.readInt();
         }
+
+        @Nonnull
+        public byte[] getSignature() {
+            return signature_.clone();
+        }
     }
 
     private final DataReader mReader;
-    public final int dexPosition;
+    public final long dexPosition;
     public final int dataEnd;
     public final Header header;
 
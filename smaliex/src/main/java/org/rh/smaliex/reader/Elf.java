@@ -23,7 +23,15 @@ import javax.annotation.Nullable;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
-
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+/**
+ * Only the ELF header, section headers and section names are read when opening. The symbols
+ * are decoded from the mapped file on demand, so looking up a section or a symbol of an oat
+ * file doesn't need to parse the whole symbol table. The symbol lookups restore the position
+ * of {@link #getReader()}, so they can be interleaved with the reads of the caller.
+ */
 @SuppressWarnings("unused")
 public class Elf implements Closeable {
     // art/runtime/elf.h
@@ -67,8 +75,6 @@ public class Elf implements Closeable {
         short e_shstrndx;  // Sect hdr table index of sect name string table
 
         abstract long getSectionOffset();
-
-        abstract long getProgramOffset();
     }
 
     static class Elf32_Ehdr extends Ehdr {
@@ -78,11 +84,7 @@ public class Elf implements Closeable {
 
         @Override
         long getSectionOffset() {
-            return e_shoff;
-        }
-        @Override
-        long getProgramOffset() {
-            return e_phoff;
+            return e_shoff & 0xffffffffL;
         }
     }
 
@@ -95,10 +97,6 @@ public class Elf implements Closeable {
         long getSectionOffset() {
             return e_shoff;
         }
-        @Override
-        long getProgramOffset() {
-            return e_phoff;
-        }
     }
 
     // --- Begin section header ---
@@ -112,6 +110,7 @@ public class Elf implements Closeable {
 
     // Special section indices.
     final static int SHN_UNDEF = 0; // Undefined, missing, irrelevant, or meaningless
+    final static int STN_UNDEF = 0; // Undefined symbol index
 
     // Section types
     final static int SHT_PROGBITS = 1; // Program-defined contents.
@@ -148,7 +147,7 @@ public class Elf implements Closeable {
 
         @Override
         public long getOffset() {
-            return sh_offset;
+            return sh_offset & 0xffffffffL;
         }
     }
 
@@ -204,12 +203,9 @@ public class Elf implements Closeable {
         abstract long getSize();
 
         public long getOffset(Elf elf) {
-            for (int i = 0; i < elf.mSectionHeaders.length; i++) {
-                if (st_shndx == i) {
-                    return elf.mSectionHeaders[i].getOffset();
-                }
-            }
-            return -1;
+            final int index = st_shndx & 0xffff;
+            return index < elf.mSectionHeaders.length
+                    ? elf.mSectionHeaders[index].getOffset() : -1;
         }
     }
 
@@ -235,90 +231,6 @@ public class Elf implements Closeable {
         }
     }
 
-    // --- Begin program header ---
-    // Segment types.
-    final static int PT_NULL = 0; // Unused segment.
-    final static int PT_LOAD = 1; // Loadable segment.
-    final static int PT_DYNAMIC = 2; // Dynamic linking information.
-    final static int PT_INTERP = 3; // Interpreter pathname.
-    final static int PT_NOTE = 4; // Auxiliary information.
-    final static int PT_SHLIB = 5; // Reserved.
-    final static int PT_PHDR = 6; // The program header table itself.
-    final static int PT_TLS = 7; // The thread-local storage template.
-
-    // Segment flag bits.
-    final static int PF_X = 1; // Execute
-    final static int PF_W = 2; // Write
-    final static int PF_R = 4; // Read
-    final static int PF_MASKOS = 0x0ff00000;// Bits for operating system-specific semantics.
-    final static int PF_MASKPROC = 0xf0000000; // Bits for processor-specific semantics.
-
-    static abstract class Elf_Phdr {
-        int p_type;   // Type of segment
-        int p_offset; // File offset where segment is located, in bytes
-
-        abstract long getFlags();
-
-        String flagsString() {
-            return  "("
-                    + ((getFlags() & PF_R) != 0 ? "R" : "_")
-                    + ((getFlags() & PF_W) != 0 ? "W" : "_")
-                    + ((getFlags() & PF_X) != 0 ? "X" : "_")
-                    + ")";
-        }
-
-        String programType() {
-            switch (p_type) {
-            case PT_NULL:
-                return "NULL";
-            case PT_LOAD:
-                return "Loadable Segment";
-            case PT_DYNAMIC:
-                return "Dynamic Segment";
-            case PT_INTERP:
-                return "Interpreter Path";
-            case PT_NOTE:
-                return "Note";
-            case PT_SHLIB:
-                return "PT_SHLIB";
-            case PT_PHDR:
-                return "Program Header";
-            default:
-                return "Unknown Section";
-            }
-        }
-    }
-
-    // Program header for ELF32.
-    static class Elf32_Phdr extends Elf_Phdr {
-        int p_vaddr;  // Virtual address of beginning of segment
-        int p_paddr;  // Physical address of beginning of segment (OS-specific)
-        int p_filesz; // Num. of bytes in file image of segment (may be zero)
-        int p_memsz;  // Num. of bytes in mem image of segment (may be zero)
-        int p_flags;  // Segment flags
-        int p_align;  // Segment alignment constraint
-
-        @Override
-        public long getFlags() {
-            return p_flags;
-        }
-    }
-
-    // Program header for ELF64.
-    static class Elf64_Phdr extends Elf_Phdr {
-        long p_vaddr;  // Virtual address of beginning of segment
-        long p_paddr;  // Physical address of beginning of segment (OS-specific)
-        long p_filesz; // Num. of bytes in file image of segment (may be zero)
-        long p_memsz;  // Num. of bytes in mem image of segment (may be zero)
-        long p_flags;  // Segment flags
-        long p_align;  // Segment alignment constraint
-
-        @Override
-        public long getFlags() {
-            return p_flags;
-        }
-    }
-
     public DataReader getReader() {
         return mReader;
     }
@@ -337,10 +249,14 @@ public class Elf implements Closeable {
     private byte[] mStringTable;
 
     public final boolean is64bit;
-    boolean mReadFull;
-    Elf_Phdr[] mProgHeaders;
-    Elf_Sym[] mDynamicSymbols;
-    byte[] mDynStringTable;
+    private HashMap<String, Integer> mSectionIndices;
+
+    // The symbol table is accessed in place, these are resolved on the first use.
+    private boolean mSymbolTableResolved;
+    private Elf_Shdr mDynSymSection;
+    private Elf_Shdr mDynStrSection;
+    private Elf_Shdr mHashSection;
+    private HashMap<String, Integer> mSymbolIndices;
 
     public Elf(String file, boolean closeNow) throws IOException {
         this(file);
@@ -438,114 +354,188 @@ public class Elf implements Closeable {
         } else {
             LLog.e("Invalid e_shstrndx=" + h.e_shstrndx);
         }
+    }
+
+    private void resolveSymbolTable() {
+        if (mSymbolTableResolved) {
+            return;
+        }
+        mSymbolTableResolved = true;
+        final Elf_Shdr dynsym = getSection(SHN_DYNSYM);
+        if (dynsym == null || dynsym.sh_link < 0 || dynsym.sh_link >= mSectionHeaders.length) {
+            return;
+        }
+        mDynSymSection = dynsym;
+        mDynStrSection = mSectionHeaders[dynsym.sh_link];
+        final Elf_Shdr hash = getSection(SHN_HASH);
+        if (hash != null && hash.sh_type == SHT_HASH
+                && hash.sh_link == getSectionIndex(dynsym)) {
+            mHashSection = hash;
+        }
+    }
 
-        if (mReadFull) {
-            readSymbolTables();
-            readProgramHeaders();
+    private int getSectionIndex(@Nonnull Elf_Shdr section) {
+        for (int i = 0; i < mSectionHeaders.length; i++) {
+            if (mSectionHeaders[i] == section) {
+                return i;
+            }
         }
+        return -1;
     }
 
-    private void readSymbolTables() {
+    /**
+     * @return The number of entries in the dynamic symbol table
+     */
+    public final int getSymbolCount() {
+        resolveSymbolTable();
+        return mDynSymSection == null
+                ? 0 : mDynSymSection.getSize() / (is64bit ? 24 : 16); // sizeof Elf_Sym
+    }
+
+    /**
+     * Decodes the dynamic symbol of the given index from the mapped file.
+     */
+    @Nonnull
+    public final Elf_Sym getSymbol(int index) {
+        if (index < 0 || index >= getSymbolCount()) {
+            throw new IndexOutOfBoundsException("Symbol index " + index);
+        }
+        final long position = mReader.position();
+        try {
+            return readSymbol(index);
+        } finally {
+            mReader.position(position);
+        }
+    }
+
+    @Nonnull
+    private Elf_Sym readSymbol(int index) {
         final DataReader r = mReader;
-        final Elf_Shdr dynsym = getSection(SHN_DYNSYM);
-        if (dynsym != null) {
-            r.seek(dynsym.getOffset());
-            int len = dynsym.getSize() / (is64bit ? 24 : 16); // sizeof Elf_Sym
-            mDynamicSymbols = new Elf_Sym[len];
-            char cbuf[] = new char[1];
-            for (int i = 0; i < len; i++) {
-                if (is64bit) {
-                    Elf64_Sym dsym = new Elf64_Sym();
-                    dsym.st_name = r.readInt();
-                    r.readBytes(cbuf);
-                    dsym.st_info = cbuf[0];
-                    r.readBytes(cbuf);
-                    dsym.st_other = cbuf[0];
-                    dsym.st_value = r.readLong();
-                    dsym.st_size = r.readLong();
-                    dsym.st_shndx = r.readShort();
-                    mDynamicSymbols[i] = dsym;
-                } else {
-                    Elf32_Sym dsym = new Elf32_Sym();
-                    dsym.st_name = r.readInt();
-                    dsym.st_value = r.readInt();
-                    dsym.st_size = r.readInt();
-                    r.readBytes(cbuf);
-                    dsym.st_info = cbuf[0];
-                    r.readBytes(cbuf);
-                    dsym.st_other = cbuf[0];
-                    dsym.st_shndx = r.readShort();
-                    mDynamicSymbols[i] = dsym;
-                    //if (dsym.st_size > 0) {
-                    //    Elf_Shdr sec = mSectionHeaders[dsym.st_shndx];
-                    //}
-                }
+        if (is64bit) {
+            r.seek(mDynSymSection.getOffset() + index * 24L);
+            Elf64_Sym dsym = new Elf64_Sym();
+            dsym.st_name = r.readInt();
+            dsym.st_info = (char) r.readByte();
+            dsym.st_other = (char) r.readByte();
+            dsym.st_shndx = r.readShort();
+            dsym.st_value = r.readLong();
+            dsym.st_size = r.readLong();
+            return dsym;
+        }
+        r.seek(mDynSymSection.getOffset() + index * 16L);
+        Elf32_Sym dsym = new Elf32_Sym();
+        dsym.st_name = r.readInt();
+        dsym.st_value = r.readInt();
+        dsym.st_size = r.readInt();
+        dsym.st_info = (char) r.readByte();
+        dsym.st_other = (char) r.readByte();
+        dsym.st_shndx = r.readShort();
+        return dsym;
+    }
+
+    private int getSymbolNameIndex(int index) {
+        mReader.seek(mDynSymSection.getOffset() + index * (is64bit ? 24L : 16L));
+        return mReader.readInt();
+    }
+
+    /**
+     * @return The index of the dynamic symbol with the given name, or -1 if it doesn't exist
+     */
+    public final int findSymbolIndex(@Nonnull String name) {
+        if (getSymbolCount() == 0) {
+            return -1;
+        }
+        final long position = mReader.position();
+        try {
+            return findSymbolIndex0(name);
+        } finally {
+            mReader.position(position);
+        }
+    }
+
+    private int findSymbolIndex0(@Nonnull String name) {
+        if (mHashSection != null) {
+            return findSymbolIndexByHashSection(name.getBytes(StandardCharsets.UTF_8));
+        }
+        if (mSymbolIndices == null) {
+            final int count = getSymbolCount();
+            final HashMap<String, Integer> indices = new HashMap<>(count * 2);
+            for (int i = count - 1; i > STN_UNDEF; i--) {
+                // Iterate backward so the first one wins if there are duplicated names.
+                indices.put(readDynString(getSymbolNameIndex(i)), i);
             }
+            mSymbolIndices = indices;
+        }
+        final Integer index = mSymbolIndices.get(name);
+        return index != null ? index : -1;
+    }
 
-            final Elf_Shdr dynLinkSec = mSectionHeaders[dynsym.sh_link];
-            r.seek(dynLinkSec.getOffset());
-            mDynStringTable = new byte[dynLinkSec.getSize()];
-            r.readBytes(mDynStringTable);
-            //for (Elf_Sym ds : mDynamicSymbols) {
-            //    System.out.println(getDynString(ds.st_name));
-            //}
+    // Looks up with the existing hash table of the dynamic symbols (System V ABI).
+    private int findSymbolIndexByHashSection(@Nonnull byte[] name) {
+        int h = 0;
+        for (byte b : name) {
+            h = (h << 4) + (b & 0xff);
+            final int g = h & 0xf0000000;
+            if (g != 0) {
+                h ^= g >>> 24;
+            }
+            h &= ~g;
         }
+        final DataReader r = mReader;
+        final long base = mHashSection.getOffset();
+        r.seek(base);
+        final int nBucket = r.readInt();
+        final int nChain = r.readInt();
+        if (nBucket <= 0) {
+            return -1;
+        }
+        final long chainBase = base + 8 + nBucket * 4L;
+        r.seek(base + 8 + Integer.remainderUnsigned(h, nBucket) * 4L);
+        int index = r.readInt();
+        // The chain length is bounded to avoid looping forever on broken files.
+        for (int i = 0; index > STN_UNDEF && index < nChain && i < nChain; i++) {
+            if (dynStringEquals(getSymbolNameIndex(index), name)) {
+                return index;
+            }
+            r.seek(chainBase + index * 4L);
+            index = r.readInt();
+        }
+        return -1;
     }
 
-    private void readProgramHeaders() {
-        final Ehdr h = mHeader;
+    private boolean dynStringEquals(int index, @Nonnull byte[] name) {
+        if (index < 0 || index + name.length >= mDynStrSection.getSize()) {
+            return false;
+        }
         final DataReader r = mReader;
-        mProgHeaders = new Elf_Phdr[h.e_phnum];
-        for (int i = 0; i < h.e_phnum; i++) {
-            final long offset = h.getProgramOffset() + (i * h.e_phentsize);
-            r.seek(offset);
-            if (is64bit) {
-                Elf64_Phdr progHeader = new Elf64_Phdr();
-                progHeader.p_type = r.readInt();
-                progHeader.p_offset = r.readInt();
-                progHeader.p_vaddr = r.readLong();
-                progHeader.p_paddr = r.readLong();
-                progHeader.p_filesz = r.readLong();
-                progHeader.p_memsz = r.readLong();
-                progHeader.p_flags = r.readLong();
-                progHeader.p_align = r.readLong();
-                mProgHeaders[i] = progHeader;
-            } else {
-                Elf32_Phdr progHeader = new Elf32_Phdr();
-                progHeader.p_type = r.readInt();
-                progHeader.p_offset = r.readInt();
-                progHeader.p_vaddr = r.readInt();
-                progHeader.p_paddr = r.readInt();
-                progHeader.p_filesz = r.readInt();
-                progHeader.p_memsz = r.readInt();
-                progHeader.p_flags = r.readInt();
-                progHeader.p_align = r.readInt();
-                mProgHeaders[i] = progHeader;
-                //if (filesz > memsz) { ELF inconsistency: filesz > memsz }
+        r.seek(mDynStrSection.getOffset() + index);
+        for (byte b : name) {
+            if (r.readByte() != (b & 0xff)) {
+                return false;
             }
         }
+        return r.readByte() == 0;
     }
 
     @Nullable
     public final Elf_Shdr getSection(@Nonnull String name) {
-        for (Elf_Shdr sec : mSectionHeaders) {
-            if (name.equals(getString(sec.sh_name))) {
-                return sec;
+        if (mSectionIndices == null) {
+            final HashMap<String, Integer> indices = new HashMap<>(mSectionHeaders.length * 2);
+            if (mStringTable != null) {
+                for (int i = mSectionHeaders.length - 1; i >= 0; i--) {
+                    indices.put(getString(mSectionHeaders[i].sh_name), i);
+                }
             }
+            mSectionIndices = indices;
         }
-        return null;
+        final Integer index = mSectionIndices.get(name);
+        return index != null ? mSectionHeaders[index] : null;
     }
 
     @Nullable
     public final Elf_Sym getSymbolTable(@Nonnull String name) {
-        if (mDynamicSymbols != null) {
-            for (Elf_Sym sym : mDynamicSymbols) {
-                if (name.equals(getDynString(sym.st_name))) {
-                    return sym;
-                }
-            }
-        }
-        return null;
+        final int index = findSymbolIndex(name);
+        return index >= 0 ? getSymbol(index) : null;
     }
 
     @Nonnull
@@ -562,14 +552,32 @@ public class Elf implements Closeable {
 
     @Nonnull
     public final String getDynString(int index) {
+        resolveSymbolTable();
+        final long position = mReader.position();
+        try {
+            return readDynString(index);
+        } finally {
+            mReader.position(position);
+        }
+    }
+
+    @Nonnull
+    private String readDynString(int index) {
         if (index == SHN_UNDEF) {
             return "SHN_UNDEF";
         }
-        int end = index;
-        while (mDynStringTable[end] != '\0') {
+        final DataReader r = mReader;
+        final long begin = mDynStrSection.getOffset() + index;
+        final long limit = mDynStrSection.getOffset() + mDynStrSection.getSize();
+        r.seek(begin);
+        long end = begin;
+        while (end < limit && r.readByte() != 0) {
             end++;
         }
-        return new String(mDynStringTable, index, end - index);
+        final byte[] str = new byte[(int) (end - begin)];
+        r.seek(begin);
+        r.readBytes(str);
+        return new String(str, StandardCharsets.UTF_8);
     }
 
     @Override
@@ -207,10 +207,10 @@ public class Oat {
             if (odf.dex_file_pointer_ != null) {
                 DataReader r = new DataReader(odf.dex_file_pointer_);
                 reader.addAssociatedReader(r);
-                r.seek(odf.dex_file_offset_);
+                r.seek(odf.dex_file_offset_ & 0xffffffffL);
                 dex = new Dex(r);
             } else {
-                reader.seek(oatPosition + odf.dex_file_offset_);
+                reader.seek(oatPosition + (odf.dex_file_offset_ & 0xffffffffL));
                 dex = new Dex(reader);
             }
             dexFiles[i] = dex;
@@ -24,7 +24,10 @@ import org.rh.smaliex.LLog;
 import org.rh.smaliex.MiscUtil;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ListIterator;
 
 // See art/runtime/vdex_file.cc
 public class Vdex {
@@ -94,6 +97,8 @@ public class Vdex {
     // A group means a set of quicken info for a method.
     public static class QuickeningGroupList extends ArrayList<QuickeningInfoList> {
         public final boolean shouldIterateAll;
+        // Null if the data has no code offset, then it can only be iterated in order.
+        QuickeningInfoIndex index;
 
         QuickeningGroupList(int initialCapacity, boolean shouldIterateAll) {
             super(initialCapacity);
@@ -116,10 +121,102 @@ public class Vdex {
         }
     }
 
+    /**
+     * Random-access index from the code item offset of a method to the position of its
+     * quickening info, so the methods can be unquickened in any order.
+     */
+    public static class QuickeningInfoIndex {
+        private int[] mCodeOffsets;
+        private QuickeningInfoList[] mGroups;
+        private int[] mStartIndices;
+        private int mSize;
+        private boolean mSorted = true;
+
+        public QuickeningInfoIndex(int initialCapacity) {
+            initialCapacity = Math.max(initialCapacity, 4);
+            mCodeOffsets = new int[initialCapacity];
+            mGroups = new QuickeningInfoList[initialCapacity];
+            mStartIndices = new int[initialCapacity];
+        }
+
+        /**
+         * Add the quickening info of a method. If the code offset was added, the first one is
+         * kept, e.g. the methods which share the same code item.
+         *
+         * @param startIndex The index of group where the method starts to consume
+         */
+        public void add(int codeOffset, @Nonnull QuickeningInfoList group, int startIndex) {
+            if (mSize == mCodeOffsets.length) {
+                final int newCapacity = mSize * 2;
+                mCodeOffsets = Arrays.copyOf(mCodeOffsets, newCapacity);
+                mGroups = Arrays.copyOf(mGroups, newCapacity);
+                mStartIndices = Arrays.copyOf(mStartIndices, newCapacity);
+            }
+            if (mSize > 0 && mCodeOffsets[mSize - 1] >= codeOffset) {
+                mSorted = false;
+            }
+            mCodeOffsets[mSize] = codeOffset;
+            mGroups[mSize] = group;
+            mStartIndices[mSize] = startIndex;
+            mSize++;
+        }
+
+        /**
+         * Sort the entries for lookup. It must be called after all entries are added and
+         * before being shared with other threads.
+         */
+        public void build() {
+            if (mSorted) {
+                return;
+            }
+            // Sort by code offset and keep the order of addition for the same offset.
+            final long[] keys = new long[mSize];
+            for (int i = 0; i < mSize; i++) {
+                keys[i] = ((long) mCodeOffsets[i] << 32) | i;
+            }
+            Arrays.sort(keys);
+            final int[] codeOffsets = new int[mSize];
+            final QuickeningInfoList[] groups = new QuickeningInfoList[mSize];
+            final int[] startIndices = new int[mSize];
+            int size = 0;
+            for (long key : keys) {
+                final int i = (int) key;
+                if (size > 0 && codeOffsets[size - 1] == mCodeOffsets[i]) {
+                    continue;
+                }
+                codeOffsets[size] = mCodeOffsets[i];
+                groups[size] = mGroups[i];
+                startIndices[size] = mStartIndices[i];
+                size++;
+            }
+            mCodeOffsets = codeOffsets;
+            mGroups = groups;
+            mStartIndices = startIndices;
+            mSize = size;
+            mSorted = true;
+        }
+
+        /**
+         * @return The iterator of quickening info for the method, or null if it has none
+         */
+        @Nullable
+        public ListIterator<QuickeningInfo> find(int codeOffset) {
+            final int pos = Arrays.binarySearch(mCodeOffsets, 0, mSize, codeOffset);
+            if (pos < 0) {
+                return null;
+            }
+            return mGroups[pos].listIterator(mStartIndices[pos]);
+        }
+
+        public int size() {
+            return mSize;
+        }
+    }
+
     public static abstract class QuickeningInfoReader {
         Vdex vdex;
-        int begin;
-        int end;
+        long begin;
+        long end;
 
         abstract QuickeningGroupList read(DataReader r, int dexIndex);
     }
@@ -151,7 +248,7 @@ public class Vdex {
             r.position(begin);
             while (r.position() < end) {
                 final int groupByteSize = r.readInt();
-                final int groupEnd = r.position() + groupByteSize;
+                final long groupEnd = r.position() + groupByteSize;
                 final QuickeningInfoList infoList = new QuickeningInfoList(groupByteSize / 2);
                 while (r.position() < groupEnd) {
                     infoList.add(new QuickeningInfoV6(r));
@@ -187,10 +284,10 @@ public class Vdex {
     static class QuickeningInfoReaderV10 extends QuickeningInfoReader {
         @Override
         public QuickeningGroupList read(DataReader r, int dexIndex) {
-            final int dexIndicesPos = end - Integer.BYTES * vdex.header.number_of_dex_files_;
+            final long dexIndicesPos = end - Integer.BYTES * vdex.header.number_of_dex_files_;
             r.position(dexIndicesPos + Integer.BYTES * dexIndex);
             final int offsetStartPos = r.readInt();
-            final int codeItemEnd;
+            final long codeItemEnd;
             if (dexIndex == vdex.header.number_of_dex_files_ - 1) {
                 codeItemEnd = dexIndicesPos;
             } else {
@@ -208,10 +305,11 @@ public class Vdex {
 
             final QuickeningGroupList groupList = new QuickeningGroupList(
                     offsetInfoList.size(), false);
+            groupList.index = new QuickeningInfoIndex(offsetInfoList.size());
             for (QuickeningInfoV10.GroupOffsetInfo info : offsetInfoList) {
                 r.position(begin + info.sizeOffset);
                 final int groupByteSize = r.readInt();
-                final int groupEnd = r.position() + groupByteSize;
+                final long groupEnd = r.position() + groupByteSize;
                 final QuickeningInfoList infoList = new QuickeningInfoList(
                         groupByteSize / Integer.BYTES);
                 infoList.mOffsetChecker = info;
@@ -219,7 +317,9 @@ public class Vdex {
                     infoList.add(new QuickeningInfoV10(r));
                 }
                 groupList.add(infoList);
+                groupList.index.add(info.codeOffset, infoList, 0);
             }
+            groupList.index.build();
             return groupList;
         }
     }
@@ -264,30 +364,46 @@ public class Vdex {
         @Override
         QuickeningGroupList read(DataReader r, int dexIndex) {
             CompactOffsetTable table = new CompactOffsetTable(new CompactOffsetReader(r),
-                    begin + vdex.quickeningTableOffsets[dexIndex]);
+                    Math.toIntExact(begin + vdex.quickeningTableOffsets[dexIndex]));
             // TODO wait formal release
             final QuickeningGroupList empty = new QuickeningGroupList(0, false);
+            empty.index = new QuickeningInfoIndex(0);
             return empty;
         }
     }
 
     public static class QuickenDex extends Dex {
         public final QuickeningGroupList quickeningInfoList;
+        private QuickeningInfoIndex mQuickeningInfoIndex;
 
         QuickenDex(DataReader r, int dexIndex, QuickeningInfoReader infoReader) {
             super(r);
             quickeningInfoList = infoReader.read(r, dexIndex);
+            mQuickeningInfoIndex = quickeningInfoList.index;
             LLog.i("QuickeningInfoSize[" + dexIndex + "]="
                     + quickeningInfoList.size() + " @ " + r.getFile());
         }
+
+        /**
+         * @return The index by code offset, or null if it is not built for version 006 which
+         *         has no code offset in its quickening info.
+         */
+        @Nullable
+        public QuickeningInfoIndex getQuickeningInfoIndex() {
+            return mQuickeningInfoIndex;
+        }
+
+        public void setQuickeningInfoIndex(@Nonnull QuickeningInfoIndex index) {
+            mQuickeningInfoIndex = index;
+        }
     }
 
     public final Header header;
     public final QuickenDex[] dexFiles;
     public final int[] quickeningTableOffsets;
-    public final int dexBegin;
-    public final int verifierDepsDataBegin;
-    public final int quickeningInfoBegin;
+    public final long dexBegin;
+    public final long verifierDepsDataBegin;
+    public final long quickeningInfoBegin;
     public final boolean isSingleQuickeningInfo;
 
     protected QuickeningInfoReader createQuickeningInfoReader() {
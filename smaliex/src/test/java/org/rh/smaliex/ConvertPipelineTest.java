@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2014 Riddle Hsu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.rh.smaliex;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+public class ConvertPipelineTest {
+
+    private static DeodexFrameworkFromDevice.ConvertTask task(int i) {
+        return new DeodexFrameworkFromDevice.ConvertTask(new File(i + ".odex"), null);
+    }
+
+    @Test(timeout = 30000)
+    public void testAllTasksConverted() throws IOException {
+        final Set<String> converted = Collections.synchronizedSet(new HashSet<>());
+        final DeodexFrameworkFromDevice.ConvertPipeline pipeline =
+                new DeodexFrameworkFromDevice.ConvertPipeline(3, 2, "test",
+                        task -> converted.add(task.odex.getName()));
+        for (int i = 0; i < 20; i++) {
+            pipeline.put(task(i));
+        }
+        pipeline.finish();
+        Assert.assertEquals(20, converted.size());
+    }
+
+    @Test(timeout = 30000)
+    public void testFailedTaskDoesNotStopOthers() {
+        final Set<String> converted = Collections.synchronizedSet(new HashSet<>());
+        final DeodexFrameworkFromDevice.ConvertPipeline pipeline =
+                new DeodexFrameworkFromDevice.ConvertPipeline(2, 1, "test", task -> {
+                    if (task.odex.getName().equals("3.odex")) {
+                        throw new IOException("bad file");
+                    }
+                    converted.add(task.odex.getName());
+                });
+        try {
+            for (int i = 0; i < 10; i++) {
+                pipeline.put(task(i));
+            }
+            pipeline.finish();
+            Assert.fail("Expected IOException");
+        } catch (IOException ex) {
+            Assert.assertEquals(1, ex.getSuppressed().length);
+            Assert.assertEquals("bad file", ex.getSuppressed()[0].getMessage());
+        }
+        Assert.assertEquals(9, converted.size());
+    }
+
+    @Test(timeout = 30000)
+    public void testWorkerErrorAbortsPipeline() {
+        // A single worker with a small queue, the producer would block forever if the
+        // dead worker left the queue full.
+        final DeodexFrameworkFromDevice.ConvertPipeline pipeline =
+                new DeodexFrameworkFromDevice.ConvertPipeline(1, 1, "test", task -> {
+                    throw new StackOverflowError();
+                });
+        IOException error = null;
+        try {
+            for (int i = 0; i < 1000; i++) {
+                pipeline.put(task(i));
+            }
+            pipeline.finish();
+        } catch (IOException ex) {
+            pipeline.cancel(ex);
+            error = ex;
+        }
+        Assert.assertNotNull(error);
+        Assert.assertTrue(containsError(error));
+    }
+
+    private static boolean containsError(Throwable t) {
+        if (t instanceof Error) {
+            return true;
+        }
+        for (Throwable s : t.getSuppressed()) {
+            if (containsError(s)) {
+                return true;
+            }
+        }
+        return t.getCause() != null && containsError(t.getCause());
+    }
+}
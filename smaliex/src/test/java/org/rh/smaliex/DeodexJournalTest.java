@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2014 Riddle Hsu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.rh.smaliex;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.jf.dexlib2.writer.io.FileDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
+import org.junit.Assert;
+import org.junit.Test;
+import org.rh.smaliex.reader.DataReader;
+import org.rh.smaliex.reader.Dex;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+public class DeodexJournalTest {
+
+    private static class CountingFwProvider extends DeodexFrameworkFromDevice.FileFwProvider {
+        final List<String> mPulled = new ArrayList<>();
+
+        CountingFwProvider(File folder) {
+            super(folder);
+        }
+
+        @Override
+        void pullFileToFolder(String remote, String localFolder) {
+            mPulled.add(remote);
+            super.pullFileToFolder(remote, localFolder);
+        }
+    }
+
+    private static void write(File file, String content) throws IOException {
+        MiscUtil.mkdirs(file.getParentFile());
+        Files.write(content, file, StandardCharsets.UTF_8);
+    }
+
+    private static File createFramework() throws IOException {
+        final File fw = Files.createTempDir();
+        write(new File(fw, "arm/boot.vdex"), "boot");
+        write(new File(fw, "oat/arm/services.vdex"), "services");
+        write(new File(fw, "services.jar"), "jar");
+        return fw;
+    }
+
+    @Test
+    public void testSecondRunSkipsPulledFiles() throws IOException {
+        final File fw = createFramework();
+        final File out = Files.createTempDir();
+
+        final CountingFwProvider first = new CountingFwProvider(fw);
+        DeodexFrameworkFromDevice.deOptimizeFramework(first, out.getAbsolutePath());
+        Assert.assertTrue(first.mPulled.contains("/system/framework/arm/boot.vdex"));
+        Assert.assertTrue(first.mPulled.contains("/system/framework/oat/arm/services.vdex"));
+        Assert.assertTrue(first.mPulled.contains("/system/framework/services.jar"));
+        Assert.assertTrue(new File(out, DeodexFrameworkFromDevice.FILE_JOURNAL).isFile());
+
+        final CountingFwProvider second = new CountingFwProvider(fw);
+        DeodexFrameworkFromDevice.deOptimizeFramework(second, out.getAbsolutePath());
+        Assert.assertFalse(second.mPulled.contains("/system/framework/arm/boot.vdex"));
+        Assert.assertFalse(second.mPulled.contains("/system/framework/oat/arm/services.vdex"));
+        Assert.assertFalse(second.mPulled.contains("/system/framework/services.jar"));
+    }
+
+    @Test
+    public void testChangedFileIsPulledAgain() throws IOException {
+        final File fw = createFramework();
+        final File out = Files.createTempDir();
+        DeodexFrameworkFromDevice.deOptimizeFramework(
+                new CountingFwProvider(fw), out.getAbsolutePath());
+
+        // E.g. truncated by an interrupted pull after it was recorded.
+        write(new File(out, DeodexFrameworkFromDevice.FOLDER_FRAMEWORK_ODEX + "/services.vdex"),
+                "serv");
+        final CountingFwProvider second = new CountingFwProvider(fw);
+        DeodexFrameworkFromDevice.deOptimizeFramework(second, out.getAbsolutePath());
+        Assert.assertTrue(second.mPulled.contains("/system/framework/oat/arm/services.vdex"));
+        Assert.assertFalse(second.mPulled.contains("/system/framework/services.jar"));
+        Assert.assertFalse(second.mPulled.contains("/system/framework/arm/boot.vdex"));
+    }
+
+    @Test
+    public void testPrePulledFileIsKept() throws IOException {
+        final File fw = createFramework();
+        final File out = Files.createTempDir();
+        final File prePulled = new File(out,
+                DeodexFrameworkFromDevice.FOLDER_FRAMEWORK_JAR + "/services.jar");
+        write(prePulled, "pre-pulled");
+
+        final CountingFwProvider provider = new CountingFwProvider(fw);
+        DeodexFrameworkFromDevice.deOptimizeFramework(provider, out.getAbsolutePath());
+        Assert.assertFalse(provider.mPulled.contains("/system/framework/services.jar"));
+        Assert.assertEquals("pre-pulled", Files.toString(prePulled, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testConvertedArtifactSurvivesReopen() throws IOException {
+        final File dir = Files.createTempDir();
+        final File journalFile = new File(dir, DeodexFrameworkFromDevice.FILE_JOURNAL);
+        final File jar = new File(dir, "services.jar");
+        write(jar, "repacked");
+
+        DeodexJournal journal = DeodexJournal.open(journalFile);
+        journal.record(DeodexJournal.Stage.REPACKED, jar.getName(), jar);
+        journal.close();
+
+        journal = DeodexJournal.open(journalFile);
+        Assert.assertTrue(journal.isDone(DeodexJournal.Stage.REPACKED, jar.getName(), jar));
+        Assert.assertFalse(journal.isDone(DeodexJournal.Stage.DEOPTIMIZED, jar.getName(), jar));
+        write(jar, "modified");
+        Assert.assertFalse(journal.isDone(DeodexJournal.Stage.REPACKED, jar.getName(), jar));
+        journal.close();
+    }
+
+    private static Dex createDex(File dexFile, String type) throws IOException {
+        DexPool.writeTo(new FileDataStore(dexFile), new ImmutableDexFile(Opcodes.getDefault(),
+                ImmutableList.of(new ImmutableClassDef(type, AccessFlags.PUBLIC.getValue(),
+                        "Ljava/lang/Object;", null, null, null, null, null))));
+        return new Dex(new DataReader(dexFile));
+    }
+
+    @Test
+    public void testRepackedWithSkippedDex() throws IOException {
+        final File dir = Files.createTempDir();
+        final File jar = new File(dir, "services.jar");
+        write(jar, "repacked");
+        final ArrayList<Dex> dexFiles = new ArrayList<>();
+        dexFiles.add(createDex(new File(dir, "1.dex"), "La;"));
+        dexFiles.add(createDex(new File(dir, "2.dex"), "Lb;"));
+        dexFiles.add(createDex(new File(dir, "3.dex"), "Lc;"));
+        final String[] hashes = new String[dexFiles.size()];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = DeodexJournal.toHex(dexFiles.get(i).header.getSignature());
+        }
+
+        final DeodexJournal journal = DeodexJournal.open(new File(dir,
+                DeodexFrameworkFromDevice.FILE_JOURNAL));
+        // The second dex is invalid, so the third one is written as classes2.dex.
+        journal.record(DeodexJournal.Stage.DEOPTIMIZED,
+                OatUtil.getDexJournalKey(jar, 0), hashes[0]);
+        journal.record(DeodexJournal.Stage.DEOPTIMIZED,
+                OatUtil.getDexJournalKey(jar, 2), hashes[2]);
+        journal.record(DeodexJournal.Stage.REPACKED, jar.getName(), jar);
+        Assert.assertFalse(OatUtil.isRepacked(journal, jar, dexFiles));
+
+        journal.record(DeodexJournal.Stage.SKIPPED, OatUtil.getDexJournalKey(jar, 1), hashes[1]);
+        Assert.assertTrue(OatUtil.isRepacked(journal, jar, dexFiles));
+        journal.close();
+        Assert.assertEquals("services.jar:classes3.dex", OatUtil.getDexJournalKey(jar, 2));
+        Assert.assertEquals("classes2.dex", OatUtil.getDexEntryName(1));
+    }
+}
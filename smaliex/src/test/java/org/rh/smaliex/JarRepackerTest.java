@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2014 Riddle Hsu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.rh.smaliex;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+public class JarRepackerTest {
+
+    private static byte[] bytes(int size, int seed) {
+        final byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) ((i * 31 + seed) % 7);
+        }
+        return data;
+    }
+
+    private static void putEntry(ZipOutputStream zos, String name, byte[] data, boolean stored)
+            throws IOException {
+        final ZipEntry entry = new ZipEntry(name);
+        if (stored) {
+            final CRC32 crc = new CRC32();
+            crc.update(data);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(data.length);
+            entry.setCompressedSize(data.length);
+            entry.setCrc(crc.getValue());
+        }
+        zos.putNextEntry(entry);
+        zos.write(data);
+        zos.closeEntry();
+    }
+
+    private static File createSourceJar(File dir) throws IOException {
+        final File jar = new File(dir, "src.jar");
+        try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(jar))) {
+            putEntry(zos, "classes.dex", bytes(100, 1), false);
+            putEntry(zos, "res/a.txt", bytes(3000, 2), false);
+            putEntry(zos, "res/b.bin", bytes(777, 3), true);
+            putEntry(zos, "lib/arm/libx.so", bytes(5000, 4), true);
+        }
+        return jar;
+    }
+
+    private static Map<String, ZipEntry> readEntries(File jar, Map<String, byte[]> contents)
+            throws IOException {
+        final HashMap<String, ZipEntry> entries = new HashMap<>();
+        try (ZipFile zip = new ZipFile(jar)) {
+            final Enumeration<? extends ZipEntry> e = zip.entries();
+            while (e.hasMoreElements()) {
+                final ZipEntry entry = e.nextElement();
+                entries.put(entry.getName(), entry);
+                try (InputStream is = zip.getInputStream(entry)) {
+                    contents.put(entry.getName(), ByteStreams.toByteArray(is));
+                }
+            }
+        }
+        return entries;
+    }
+
+    // Returns the data offsets of the entries by walking the local headers.
+    private static Map<String, Long> readDataOffsets(File jar) throws IOException {
+        final HashMap<String, Long> offsets = new HashMap<>();
+        try (RandomAccessFile raf = new RandomAccessFile(jar, "r")) {
+            long pos = 0;
+            final byte[] header = new byte[30];
+            while (true) {
+                raf.seek(pos);
+                raf.readFully(header);
+                final ByteBuffer buf = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+                if (buf.getInt(0) != 0x04034b50) {
+                    break;
+                }
+                final long compressedSize = buf.getInt(18) & 0xffffffffL;
+                final int nameLen = buf.getShort(26) & 0xffff;
+                final int extraLen = buf.getShort(28) & 0xffff;
+                final byte[] name = new byte[nameLen];
+                raf.readFully(name);
+                final long dataOffset = pos + 30 + nameLen + extraLen;
+                offsets.put(new String(name, StandardCharsets.UTF_8), dataOffset);
+                pos = dataOffset + compressedSize;
+            }
+        }
+        return offsets;
+    }
+
+    private static void repack(File src, File out, int alignment) throws IOException {
+        try (JarRepacker jar = new JarRepacker(out, alignment)) {
+            jar.addDex("classes.dex", bytes(10000, 5));
+            jar.addDex("classes2.dex", bytes(6000, 6));
+            jar.copyFrom(src, name -> name.startsWith("classes") && name.endsWith(".dex"));
+        }
+    }
+
+    @Test
+    public void testRoundTripDeflated() throws IOException {
+        final File dir = Files.createTempDir();
+        final File out = new File(dir, "out.jar");
+        repack(createSourceJar(dir), out, 0);
+
+        final HashMap<String, byte[]> contents = new HashMap<>();
+        final Map<String, ZipEntry> entries = readEntries(out, contents);
+        Assert.assertEquals(5, entries.size());
+        Assert.assertArrayEquals(bytes(10000, 5), contents.get("classes.dex"));
+        Assert.assertArrayEquals(bytes(6000, 6), contents.get("classes2.dex"));
+        Assert.assertArrayEquals(bytes(3000, 2), contents.get("res/a.txt"));
+        Assert.assertArrayEquals(bytes(777, 3), contents.get("res/b.bin"));
+        Assert.assertArrayEquals(bytes(5000, 4), contents.get("lib/arm/libx.so"));
+        Assert.assertEquals(ZipEntry.DEFLATED, entries.get("classes.dex").getMethod());
+        Assert.assertEquals(ZipEntry.DEFLATED, entries.get("res/a.txt").getMethod());
+        Assert.assertEquals(ZipEntry.STORED, entries.get("res/b.bin").getMethod());
+        Assert.assertEquals(ZipEntry.STORED, entries.get("lib/arm/libx.so").getMethod());
+    }
+
+    @Test
+    public void testStoredDexAligned() throws IOException {
+        final File dir = Files.createTempDir();
+        final File out = new File(dir, "out.jar");
+        repack(createSourceJar(dir), out, JarRepacker.PAGE_SIZE);
+
+        final HashMap<String, byte[]> contents = new HashMap<>();
+        final Map<String, ZipEntry> entries = readEntries(out, contents);
+        Assert.assertEquals(ZipEntry.STORED, entries.get("classes.dex").getMethod());
+        Assert.assertEquals(ZipEntry.STORED, entries.get("classes2.dex").getMethod());
+        Assert.assertArrayEquals(bytes(10000, 5), contents.get("classes.dex"));
+        Assert.assertArrayEquals(bytes(6000, 6), contents.get("classes2.dex"));
+        Assert.assertArrayEquals(bytes(3000, 2), contents.get("res/a.txt"));
+
+        final Map<String, Long> offsets = readDataOffsets(out);
+        Assert.assertEquals(0, offsets.get("classes.dex") % JarRepacker.PAGE_SIZE);
+        Assert.assertEquals(0, offsets.get("classes2.dex") % JarRepacker.PAGE_SIZE);
+        Assert.assertEquals(0, offsets.get("lib/arm/libx.so") % JarRepacker.PAGE_SIZE);
+        // The other stored entries are not padded.
+        final long bOffset = offsets.get("res/b.bin");
+        Assert.assertEquals(bOffset, offsets.get("res/a.txt")
+                + entries.get("res/a.txt").getCompressedSize() + 30 + "res/b.bin".length());
+    }
+
+    @Test
+    public void testZip64Source() throws IOException {
+        final File dir = Files.createTempDir();
+        final File src = createSourceJar(dir);
+        convertToZip64(src);
+        final HashMap<String, byte[]> srcContents = new HashMap<>();
+        Assert.assertEquals(4, readEntries(src, srcContents).size());
+
+        final File out = new File(dir, "out.jar");
+        repack(src, out, 0);
+        final HashMap<String, byte[]> contents = new HashMap<>();
+        Assert.assertEquals(5, readEntries(out, contents).size());
+        Assert.assertArrayEquals(bytes(3000, 2), contents.get("res/a.txt"));
+        Assert.assertArrayEquals(bytes(5000, 4), contents.get("lib/arm/libx.so"));
+    }
+
+    @Test
+    public void testFailedCopyDeletesOutput() throws IOException {
+        final File dir = Files.createTempDir();
+        final File notJar = new File(dir, "bad.jar");
+        Files.write(bytes(100, 7), notJar);
+        final File out = new File(dir, "out.jar");
+        try (JarRepacker jar = new JarRepacker(out, 0)) {
+            jar.addDex("classes.dex", bytes(100, 8));
+            jar.copyFrom(notJar, name -> false);
+            Assert.fail("Expected ZipException");
+        } catch (ZipException expected) {
+            // The jar is closed before here.
+        }
+        Assert.assertFalse(out.exists());
+    }
+
+    /**
+     * Replaces the end header by a zip64 one, and moves the size and offset of each entry in
+     * the central directory to the zip64 extra field.
+     */
+    private static void convertToZip64(File jar) throws IOException {
+        final ByteBuffer zip = ByteBuffer.wrap(Files.toByteArray(jar))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        final int endPos = zip.limit() - 22;
+        Assert.assertEquals(0x06054b50, zip.getInt(endPos));
+        final int entryCount = zip.getShort(endPos + 10) & 0xffff;
+        final int dirOffset = zip.getInt(endPos + 16);
+
+        final ByteBuffer out = ByteBuffer.allocate(zip.limit() + entryCount * 28 + 56 + 20)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        out.put(Arrays.copyOf(zip.array(), dirOffset));
+        int pos = dirOffset;
+        for (int i = 0; i < entryCount; i++) {
+            final int nameLen = zip.getShort(pos + 28) & 0xffff;
+            final int extraLen = zip.getShort(pos + 30) & 0xffff;
+            final int commentLen = zip.getShort(pos + 32) & 0xffff;
+            final long compressedSize = zip.getInt(pos + 20) & 0xffffffffL;
+            final long size = zip.getInt(pos + 24) & 0xffffffffL;
+            final long localOffset = zip.getInt(pos + 42) & 0xffffffffL;
+            out.put(zip.array(), pos, 46 + nameLen);
+            final int start = out.position() - 46 - nameLen;
+            out.putInt(start + 20, 0xffffffff);
+            out.putInt(start + 24, 0xffffffff);
+            out.putInt(start + 42, 0xffffffff);
+            out.putShort(start + 30, (short) (extraLen + 28));
+            out.putShort(start + 32, (short) 0);
+            out.putShort((short) 0x0001);
+            out.putShort((short) 24);
+            out.putLong(size);
+            out.putLong(compressedSize);
+            out.putLong(localOffset);
+            out.put(zip.array(), pos + 46 + nameLen, extraLen);
+            pos += 46 + nameLen + extraLen + commentLen;
+        }
+        final int dirSize = out.position() - dirOffset;
+        final int zip64EndPos = out.position();
+        out.putInt(0x06064b50);
+        out.putLong(44);
+        out.putShort((short) 45);
+        out.putShort((short) 45);
+        out.putInt(0);
+        out.putInt(0);
+        out.putLong(entryCount);
+        out.putLong(entryCount);
+        out.putLong(dirSize);
+        out.putLong(dirOffset);
+        out.putInt(0x07064b50);
+        out.putInt(0);
+        out.putLong(zip64EndPos);
+        out.putInt(1);
+        out.putInt(0x06054b50);
+        out.putShort((short) 0);
+        out.putShort((short) 0);
+        out.putShort((short) 0xffff);
+        out.putShort((short) 0xffff);
+        out.putInt(0xffffffff);
+        out.putInt(0xffffffff);
+        out.putShort((short) 0);
+        Files.write(Arrays.copyOf(out.array(), out.position()), jar);
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2014 Riddle Hsu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.rh.smaliex.deopt;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.ReferenceType;
+import org.jf.dexlib2.dexbacked.DexBackedClassDef;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.dexbacked.DexBackedMethod;
+import org.jf.dexlib2.dexbacked.reference.DexBackedReference;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.DexFile;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.iface.instruction.ReferenceInstruction;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.jf.dexlib2.immutable.ImmutableField;
+import org.jf.dexlib2.immutable.ImmutableMethod;
+import org.jf.dexlib2.immutable.ImmutableMethodImplementation;
+import org.jf.dexlib2.immutable.ImmutableMethodParameter;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction10x;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction11x;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction22cs;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction35ms;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
+import org.junit.Assert;
+import org.junit.Test;
+import org.rh.smaliex.reader.DataReader;
+import org.rh.smaliex.reader.Vdex;
+
+import javax.annotation.Nonnull;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+public class VdexDecompilerTest {
+    private static final Opcodes OPCODES = Opcodes.forApi(26);
+    private static final int DEX_COUNT = 3;
+    private static final int CLASS_COUNT = 5;
+
+    private static String getType(int dexIndex, int classIndex) {
+        return "Lorg/test/D" + dexIndex + "C" + classIndex + ";";
+    }
+
+    @Nonnull
+    private static byte[] makeQuickenedDex(int dexIndex) throws IOException {
+        final List<ClassDef> classDefs = Lists.newArrayList();
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            final String type = getType(dexIndex, i);
+            final List<ImmutableMethod> methods = Lists.newArrayList();
+            // A check-cast which is quickened to nops.
+            methods.add(new ImmutableMethod(type, "cast",
+                    ImmutableList.of(new ImmutableMethodParameter("Ljava/lang/String;", null, null)),
+                    "V", AccessFlags.PUBLIC.getValue() | AccessFlags.STATIC.getValue(), null,
+                    new ImmutableMethodImplementation(1, ImmutableList.<ImmutableInstruction>of(
+                            new ImmutableInstruction10x(Opcode.NOP),
+                            new ImmutableInstruction10x(Opcode.NOP),
+                            new ImmutableInstruction10x(Opcode.RETURN_VOID)), null, null)));
+            methods.add(new ImmutableMethod(type, "get", null, "I", AccessFlags.PUBLIC.getValue(),
+                    null, new ImmutableMethodImplementation(2, ImmutableList.<ImmutableInstruction>of(
+                            new ImmutableInstruction22cs(Opcode.IGET_QUICK, 0, 1, 8),
+                            new ImmutableInstruction11x(Opcode.RETURN, 0)), null, null)));
+            methods.add(new ImmutableMethod(type, "call", null, "I", AccessFlags.PUBLIC.getValue(),
+                    null, new ImmutableMethodImplementation(2, ImmutableList.<ImmutableInstruction>of(
+                            new ImmutableInstruction35ms(Opcode.INVOKE_VIRTUAL_QUICK, 1, 1, 0, 0, 0, 0, 0),
+                            new ImmutableInstruction11x(Opcode.MOVE_RESULT, 0),
+                            new ImmutableInstruction11x(Opcode.RETURN, 0)), null, null)));
+            classDefs.add(new ImmutableClassDef(type, AccessFlags.PUBLIC.getValue(),
+                    "Ljava/lang/Object;", null, null, null,
+                    ImmutableList.of(new ImmutableField(type, "value", "I",
+                            AccessFlags.PRIVATE.getValue(), null, null)),
+                    methods));
+        }
+        final MemoryDataStore dataStore = new MemoryDataStore();
+        DexPool.writeTo(dataStore, new ImmutableDexFile(OPCODES, classDefs));
+        return dataStore.getData();
+    }
+
+    private static int findIndex(@Nonnull DexBackedDexFile dex, int referenceType, int count,
+                                 @Nonnull String reference) {
+        for (int i = 0; i < count; i++) {
+            if (reference.equals(DexBackedReference.makeReference(
+                    dex, referenceType, i).toString())) {
+                return i;
+            }
+        }
+        throw new AssertionError("Not found " + reference);
+    }
+
+    private static void writeUleb128(@Nonnull ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static void writeInt(@Nonnull ByteArrayOutputStream out, int value) {
+        out.write(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(value).array(), 0, 4);
+    }
+
+    /**
+     * Writes the quickening info (dex pc and index) of each method with code in the order that
+     * the decompiler visits them. In version 006 the groups of all dex files are in one list.
+     */
+    private static void writeQuickeningInfo(@Nonnull ByteArrayOutputStream out,
+                                            @Nonnull byte[] dexBytes) {
+        final DexBackedDexFile dex = new DexBackedDexFile(OPCODES, dexBytes);
+        for (DexBackedClassDef classDef : dex.getClasses()) {
+            for (DexBackedMethod method : classDef.getMethods()) {
+                final ByteArrayOutputStream group = new ByteArrayOutputStream();
+                final String type = classDef.getType();
+                switch (method.getName()) {
+                    case "cast":
+                        writeUleb128(group, 0);
+                        writeUleb128(group, 0); // The register of check-cast
+                        writeUleb128(group, 0);
+                        writeUleb128(group, findIndex(dex, ReferenceType.TYPE,
+                                dex.getTypeCount(), "Ljava/lang/String;"));
+                        break;
+                    case "get":
+                        writeUleb128(group, 0);
+                        writeUleb128(group, findIndex(dex, ReferenceType.FIELD,
+                                dex.getFieldCount(), type + "->value:I"));
+                        break;
+                    case "call":
+                        writeUleb128(group, 0);
+                        writeUleb128(group, findIndex(dex, ReferenceType.METHOD,
+                                dex.getMethodCount(), type + "->get()I"));
+                        break;
+                    default:
+                        throw new AssertionError("Unexpected method " + method);
+                }
+                writeInt(out, group.size());
+                out.write(group.toByteArray(), 0, group.size());
+            }
+        }
+    }
+
+    @Nonnull
+    private static File makeVdex006() throws IOException {
+        final ByteArrayOutputStream dexData = new ByteArrayOutputStream();
+        final ByteArrayOutputStream quickeningInfo = new ByteArrayOutputStream();
+        for (int i = 0; i < DEX_COUNT; i++) {
+            final byte[] dexBytes = makeQuickenedDex(i);
+            dexData.write(dexBytes, 0, dexBytes.length);
+            writeQuickeningInfo(quickeningInfo, dexBytes);
+        }
+        final ByteArrayOutputStream vdex = new ByteArrayOutputStream();
+        vdex.write(new byte[] { 'v', 'd', 'e', 'x', '0', '0', '6', 0 }, 0, 8);
+        writeInt(vdex, DEX_COUNT);
+        writeInt(vdex, dexData.size());
+        writeInt(vdex, 0); // verifier_deps_size
+        writeInt(vdex, quickeningInfo.size());
+        for (int i = 0; i < DEX_COUNT; i++) {
+            writeInt(vdex, 0); // checksum
+        }
+        dexData.writeTo(vdex);
+        quickeningInfo.writeTo(vdex);
+
+        final File file = new File(Files.createTempDir(), "test.vdex");
+        Files.write(vdex.toByteArray(), file);
+        return file;
+    }
+
+    @Nonnull
+    private static byte[] write(@Nonnull DexFile dexFile) throws IOException {
+        final MemoryDataStore dataStore = new MemoryDataStore();
+        DexPool.writeTo(dataStore, dexFile);
+        return dataStore.getData();
+    }
+
+    @Nonnull
+    private static Instruction getFirstInstruction(@Nonnull DexFile dexFile, @Nonnull String type,
+                                                   @Nonnull String name) {
+        for (ClassDef classDef : dexFile.getClasses()) {
+            if (classDef.getType().equals(type)) {
+                for (Method method : classDef.getMethods()) {
+                    if (method.getName().equals(name)) {
+                        return method.getImplementation().getInstructions().iterator().next();
+                    }
+                }
+            }
+        }
+        throw new AssertionError("Not found " + type + "->" + name);
+    }
+
+    @Test
+    public void testParallelSameAsSequential() throws IOException {
+        final File file = makeVdex006();
+        try (DataReader sequentialReader = new DataReader(file);
+             DataReader parallelReader = new DataReader(file)) {
+            final Vdex sequentialVdex = new Vdex(sequentialReader);
+            Assert.assertTrue(sequentialVdex.isSingleQuickeningInfo);
+            final DexFile[] sequential = VdexDecompiler.unquicken(sequentialVdex, OPCODES, 1);
+
+            final Vdex parallelVdex = new Vdex(parallelReader);
+            final DexFile[] parallel = VdexDecompiler.unquicken(parallelVdex, OPCODES, DEX_COUNT);
+            Assert.assertNotNull(parallelVdex.dexFiles[DEX_COUNT - 1].getQuickeningInfoIndex());
+
+            Assert.assertEquals(DEX_COUNT, parallel.length);
+            for (int i = 0; i < DEX_COUNT; i++) {
+                Assert.assertArrayEquals(write(sequential[i]), write(parallel[i]));
+            }
+
+            // The last dex uses the end of the shared quickening info.
+            final String type = getType(DEX_COUNT - 1, CLASS_COUNT - 1);
+            final DexFile dexFile = parallel[DEX_COUNT - 1];
+            Instruction instruction = getFirstInstruction(dexFile, type, "cast");
+            Assert.assertEquals(Opcode.CHECK_CAST, instruction.getOpcode());
+            Assert.assertEquals("Ljava/lang/String;",
+                    ((ReferenceInstruction) instruction).getReference().toString());
+            instruction = getFirstInstruction(dexFile, type, "get");
+            Assert.assertEquals(Opcode.IGET, instruction.getOpcode());
+            Assert.assertEquals(type + "->value:I",
+                    ((ReferenceInstruction) instruction).getReference().toString());
+            instruction = getFirstInstruction(dexFile, type, "call");
+            Assert.assertEquals(Opcode.INVOKE_VIRTUAL, instruction.getOpcode());
+            Assert.assertEquals(type + "->get()I",
+                    ((ReferenceInstruction) instruction).getReference().toString());
+        }
+    }
+}
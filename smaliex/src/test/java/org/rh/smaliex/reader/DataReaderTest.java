@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2014 Riddle Hsu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.rh.smaliex.reader;
+
+import com.google.common.io.Files;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+public class DataReaderTest {
+
+    @Test
+    public void testReadAfterClose() throws IOException {
+        final File file = new File(Files.createTempDir(), "data");
+        Files.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 }, file);
+        final DataReader r = new DataReader(file);
+        Assert.assertEquals(0x04030201, r.readInt());
+        final byte[] bytes = new byte[4];
+        r.readBytes(bytes);
+        Assert.assertArrayEquals(new byte[] { 5, 6, 7, 8 }, bytes);
+        r.close();
+
+        r.position(0);
+        try {
+            r.readInt();
+            Assert.fail("Expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            r.readBytes(bytes);
+            Assert.fail("Expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+    }
+}